@@ -0,0 +1,83 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+
+/**
+ * Measures building revisions via RevisionBuilder.insert and commit,
+ * both from scratch and as small batches applied to a large
+ * existing revision, and via RevisionBuilder.bulkLoad from scratch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BuildBenchmark {
+  @Param({"1000", "100000", "1000000", "10000000"})
+  public int rows;
+
+  @Param({"Integer", "Long", "String"})
+  public String keyType;
+
+  @Param({"0", "1", "2"})
+  public int indexes;
+
+  @Param({"100"})
+  public int batch;
+
+  private Fixture fixture;
+  private Revision populated;
+  private int[] batchRows;
+  private int version;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    fixture = new Fixture(keyType, indexes);
+    populated = fixture.populate(rows);
+    batchRows = Fixture.pick(rows, batch, 42);
+  }
+
+  @Benchmark
+  public Revision insertAndCommit() {
+    return fixture.populate(rows);
+  }
+
+  @Benchmark
+  public Revision bulkLoadAndCommit() {
+    return fixture.bulkLoad(rows);
+  }
+
+  @Benchmark
+  public Revision updateBatchAndCommit() {
+    RevisionBuilder builder = populated.builder();
+    ++ version;
+    for (int row: batchRows) {
+      fixture.insert(builder, row, version);
+    }
+    return builder.commit();
+  }
+}
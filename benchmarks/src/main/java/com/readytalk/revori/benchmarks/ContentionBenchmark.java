@@ -0,0 +1,104 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.readytalk.revori.ConflictResolvers;
+import com.readytalk.revori.ForeignKeyResolvers;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.server.simple.SimpleRevisionServer;
+
+/**
+ * Measures the throughput of SimpleRevisionServer.merge when many
+ * threads commit concurrently, comparing the default compare-and-set
+ * retry loop with combining mode.  Each thread updates its own rows,
+ * so merges never conflict.  The thread count may be changed with
+ * JMH's -t option.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Threads(32)
+@Fork(1)
+public class ContentionBenchmark {
+  @Param({"10000", "1000000"})
+  public int rows;
+
+  @Param({"0", "2"})
+  public int indexes;
+
+  @Param({"retry", "combine"})
+  public String strategy;
+
+  private final AtomicInteger nextWriter = new AtomicInteger();
+  private Fixture fixture;
+  private SimpleRevisionServer server;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    fixture = new Fixture("Integer", indexes);
+    server = new SimpleRevisionServer
+      (ConflictResolvers.Restrict, ForeignKeyResolvers.Restrict,
+       "combine".equals(strategy));
+
+    Revision base = server.head();
+    server.merge(base, fixture.populate(rows));
+  }
+
+  @State(Scope.Thread)
+  public static class Writer {
+    private static final int MaxWriters = 1024;
+
+    private int id;
+    private int next;
+    private int version;
+
+    @Setup(Level.Trial)
+    public void setUp(ContentionBenchmark benchmark) {
+      id = benchmark.nextWriter.getAndIncrement() % MaxWriters;
+    }
+
+    // rows are striped across writers so no two threads update the
+    // same row
+    private int nextRow(int rows) {
+      int row = id + (next * MaxWriters);
+      if (row >= rows) {
+        next = 0;
+        row = id;
+      }
+      ++ next;
+      return row;
+    }
+  }
+
+  @Benchmark
+  public void merge(Writer writer) {
+    Revision base = server.head();
+    server.merge(base, fixture.update
+                 (base, new int[] { writer.nextRow(rows) },
+                  ++ writer.version));
+  }
+}
@@ -0,0 +1,118 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.benchmarks;
+
+import static com.readytalk.revori.ExpressionFactory.constant;
+import static com.readytalk.revori.ExpressionFactory.reference;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.collect.Lists;
+import com.readytalk.revori.DiffResult;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.QueryResult;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.TableReference;
+
+/**
+ * Measures Revision.diff(fork, QueryTemplate) and
+ * Revision.diff(fork, skipBrokenReferences) between a populated
+ * revision and a fork which differs from it by a given number of
+ * updated rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DiffBenchmark {
+  @Param({"1000", "100000", "1000000", "10000000"})
+  public int rows;
+
+  @Param({"Integer", "Long", "String"})
+  public String keyType;
+
+  @Param({"0", "1", "2"})
+  public int indexes;
+
+  @Param({"1", "100"})
+  public int changes;
+
+  private Revision base;
+  private Revision fork;
+  private QueryTemplate template;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Fixture fixture = new Fixture(keyType, indexes);
+    base = fixture.populate(rows);
+    fork = fixture.update(base, Fixture.pick(rows, changes, 42), 1);
+
+    TableReference reference = new TableReference(fixture.table);
+    template = new QueryTemplate
+      (Lists.<Expression>newArrayList
+       (reference(reference, fixture.key),
+        reference(reference, fixture.values.get(0)),
+        reference(reference, fixture.values.get(1))),
+       reference, constant(true));
+  }
+
+  @Benchmark
+  public int queryDiff(Blackhole blackhole) {
+    QueryResult result = base.diff(fork, template);
+    int count = 0;
+    while (result.nextRow() != QueryResult.Type.End) {
+      blackhole.consume(result.nextItem());
+      blackhole.consume(result.nextItem());
+      blackhole.consume(result.nextItem());
+      ++ count;
+    }
+    return count;
+  }
+
+  @Benchmark
+  public int revisionDiff(Blackhole blackhole) {
+    DiffResult result = base.diff(fork, true);
+    int count = 0;
+    while (true) {
+      DiffResult.Type type = result.next();
+      switch (type) {
+      case End:
+        return count;
+
+      case Key:
+        blackhole.consume(result.fork());
+        ++ count;
+        break;
+
+      case Value:
+        blackhole.consume(result.fork());
+        break;
+
+      default:
+        break;
+      }
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.benchmarks;
+
+import static com.readytalk.revori.util.Util.cols;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.readytalk.revori.Column;
+import com.readytalk.revori.DuplicateKeyResolution;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+
+/**
+ * Schema and data generator shared by the benchmarks.  Each fixture
+ * describes a single table keyed by a column of the requested type,
+ * with a fixed number of integer value columns and zero or more
+ * secondary indexes on those value columns.
+ */
+class Fixture {
+  public static final int ValueColumnCount = 4;
+
+  public final String keyType;
+  public final Column<?> key;
+  public final List<Column<Integer>> values;
+  public final Table table;
+  public final List<Index> indexes;
+
+  public Fixture(String keyType, int indexCount) {
+    if (indexCount > ValueColumnCount) {
+      throw new IllegalArgumentException
+        ("at most " + ValueColumnCount + " indexes are supported");
+    }
+
+    this.keyType = keyType;
+    this.key = makeKeyColumn(keyType);
+
+    List<Column<Integer>> values = new ArrayList<Column<Integer>>();
+    for (int i = 0; i < ValueColumnCount; ++i) {
+      values.add(new Column<Integer>(Integer.class, "value" + i));
+    }
+    this.values = Collections.unmodifiableList(values);
+
+    this.table = new Table(cols(key), "benchmark");
+
+    List<Index> indexes = new ArrayList<Index>();
+    for (int i = 0; i < indexCount; ++i) {
+      indexes.add(new Index(table, cols(values.get(i))));
+    }
+    this.indexes = Collections.unmodifiableList(indexes);
+  }
+
+  private static Column<?> makeKeyColumn(String keyType) {
+    if ("Integer".equals(keyType)) {
+      return new Column<Integer>(Integer.class, "key");
+    } else if ("Long".equals(keyType)) {
+      return new Column<Long>(Long.class, "key");
+    } else if ("String".equals(keyType)) {
+      return new Column<String>(String.class, "key");
+    } else {
+      throw new IllegalArgumentException("unexpected key type: " + keyType);
+    }
+  }
+
+  /**
+   * Returns the primary key value for the specified row number.  Keys
+   * sort in the same order as their row numbers regardless of type.
+   */
+  public Object key(int row) {
+    if (key.type == Integer.class) {
+      return row;
+    } else if (key.type == Long.class) {
+      return (long) row;
+    } else {
+      return String.format("%010d", row);
+    }
+  }
+
+  /**
+   * Inserts or overwrites every value column of the specified row,
+   * deriving the values from the row number and the specified
+   * version.
+   */
+  public void insert(RevisionBuilder builder, int row, int version) {
+    Object k = key(row);
+    for (int i = 0; i < values.size(); ++i) {
+      builder.insert(DuplicateKeyResolution.Overwrite, table, k,
+                     values.get(i), (row * 31 + i + version) % 1024);
+    }
+  }
+
+  public RevisionBuilder addIndexes(RevisionBuilder builder) {
+    for (Index index: indexes) {
+      builder.add(index);
+    }
+    return builder;
+  }
+
+  /**
+   * Builds a revision containing rows 0 through rows - 1.
+   */
+  public Revision populate(int rows) {
+    RevisionBuilder builder = addIndexes(Revisions.Empty.builder());
+    for (int i = 0; i < rows; ++i) {
+      insert(builder, i, 0);
+    }
+    return builder.commit();
+  }
+
+  /**
+   * Builds the same revision as populate(rows), but via
+   * RevisionBuilder.bulkLoad.
+   */
+  public Revision bulkLoad(final int rows) {
+    List<Column<?>> columns = new ArrayList<Column<?>>();
+    columns.add(key);
+    columns.addAll(values);
+
+    RevisionBuilder builder = addIndexes(Revisions.Empty.builder());
+    builder.bulkLoad(table, columns, new Iterator<Object[]>() {
+      private int row = 0;
+
+      public boolean hasNext() {
+        return row < rows;
+      }
+
+      public Object[] next() {
+        Object[] values = new Object[ValueColumnCount + 1];
+        values[0] = key(row);
+        for (int i = 0; i < ValueColumnCount; ++i) {
+          values[i + 1] = (row * 31 + i) % 1024;
+        }
+        ++ row;
+        return values;
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    });
+    return builder.commit();
+  }
+
+  /**
+   * Returns a revision derived from the specified one in which the
+   * specified rows have been updated.
+   */
+  public Revision update(Revision base, int[] rows, int version) {
+    RevisionBuilder builder = base.builder();
+    for (int row: rows) {
+      insert(builder, row, version);
+    }
+    return builder.commit();
+  }
+
+  /**
+   * Returns count distinct row numbers in the range [0, rows), chosen
+   * deterministically from the specified seed.
+   */
+  public static int[] pick(int rows, int count, long seed) {
+    count = Math.min(count, rows);
+    Random random = new Random(seed);
+    int[] result = new int[count];
+    Set<Integer> seen = new HashSet<Integer>();
+    for (int i = 0; i < count;) {
+      int row = random.nextInt(rows);
+      if (seen.add(row)) {
+        result[i++] = row;
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,77 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.readytalk.revori.ConflictResolvers;
+import com.readytalk.revori.ForeignKeyResolvers;
+import com.readytalk.revori.Revision;
+
+/**
+ * Measures three-way merges (Revision.merge, i.e. Merge.mergeRevisions)
+ * of two forks of a populated revision, each of which updates a
+ * disjoint set of rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MergeBenchmark {
+  @Param({"1000", "100000", "1000000", "10000000"})
+  public int rows;
+
+  @Param({"Integer", "Long", "String"})
+  public String keyType;
+
+  @Param({"0", "1", "2"})
+  public int indexes;
+
+  @Param({"1", "100"})
+  public int changes;
+
+  private Revision base;
+  private Revision left;
+  private Revision right;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Fixture fixture = new Fixture(keyType, indexes);
+    base = fixture.populate(rows);
+
+    int[] picked = Fixture.pick(rows, changes * 2, 42);
+    int[] leftRows = new int[picked.length / 2];
+    int[] rightRows = new int[picked.length - leftRows.length];
+    System.arraycopy(picked, 0, leftRows, 0, leftRows.length);
+    System.arraycopy(picked, leftRows.length, rightRows, 0, rightRows.length);
+
+    left = fixture.update(base, leftRows, 1);
+    right = fixture.update(base, rightRows, 2);
+  }
+
+  @Benchmark
+  public Revision merge() {
+    return base.merge(left, right, ConflictResolvers.Restrict,
+                      ForeignKeyResolvers.Restrict);
+  }
+}
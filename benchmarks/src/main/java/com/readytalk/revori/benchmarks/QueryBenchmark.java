@@ -0,0 +1,73 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.readytalk.revori.Revision;
+
+/**
+ * Measures point lookups via Revision.query(path) against the
+ * primary key of a populated table.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class QueryBenchmark {
+  private static final int KeyCount = 4096;
+
+  @Param({"1000", "100000", "1000000", "10000000"})
+  public int rows;
+
+  @Param({"Integer", "Long", "String"})
+  public String keyType;
+
+  @Param({"0", "1", "2"})
+  public int indexes;
+
+  private Fixture fixture;
+  private Revision revision;
+  private Object[] keys;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    fixture = new Fixture(keyType, indexes);
+    revision = fixture.populate(rows);
+
+    int[] picked = Fixture.pick(rows, KeyCount, 42);
+    keys = new Object[picked.length];
+    for (int i = 0; i < picked.length; ++i) {
+      keys[i] = fixture.key(picked[i]);
+    }
+  }
+
+  @Benchmark
+  public Object pointQuery() {
+    Object key = keys[next];
+    next = (next + 1) % keys.length;
+    return revision.query
+      (fixture.table.primaryKey, key, fixture.values.get(0));
+  }
+}
@@ -0,0 +1,128 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.readytalk.revori.ConflictResolvers;
+import com.readytalk.revori.DiffResult;
+import com.readytalk.revori.ForeignKeyResolvers;
+import com.readytalk.revori.Revision;
+
+/**
+ * Compares the binary and wide tree representations (see the
+ * com.readytalk.revori.tree system property) across the operations
+ * which depend most on tree shape: point lookups, small updates to a
+ * large revision, diffs and merges of such updates, and bulk loads.
+ *
+ * <p>The property is read once when the tree classes are
+ * initialized, so it is set here before the fixture touches them;
+ * each parameter combination runs in its own fork.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TreeBenchmark {
+  private static final int KeyCount = 1024;
+
+  @Param({"binary", "wide"})
+  public String tree;
+
+  @Param({"1000", "100000", "1000000"})
+  public int rows;
+
+  @Param({"100"})
+  public int changes;
+
+  private Fixture fixture;
+  private Revision base;
+  private Revision left;
+  private Revision right;
+  private int[] updated;
+  private Object[] keys;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    System.setProperty("com.readytalk.revori.tree", tree);
+
+    fixture = new Fixture("Integer", 0);
+    base = fixture.populate(rows);
+
+    int[] picked = Fixture.pick(rows, changes * 2, 42);
+    int[] leftRows = new int[picked.length / 2];
+    int[] rightRows = new int[picked.length - leftRows.length];
+    System.arraycopy(picked, 0, leftRows, 0, leftRows.length);
+    System.arraycopy(picked, leftRows.length, rightRows, 0, rightRows.length);
+
+    left = fixture.update(base, leftRows, 1);
+    right = fixture.update(base, rightRows, 2);
+    updated = leftRows;
+
+    int[] keyRows = Fixture.pick(rows, KeyCount, 7);
+    keys = new Object[keyRows.length];
+    for (int i = 0; i < keyRows.length; ++i) {
+      keys[i] = fixture.key(keyRows[i]);
+    }
+  }
+
+  @Benchmark
+  public Object pointQuery() {
+    Object key = keys[next];
+    next = (next + 1) % keys.length;
+    return base.query(fixture.table.primaryKey, key, fixture.values.get(0));
+  }
+
+  @Benchmark
+  public Revision update() {
+    return fixture.update(base, updated, 3);
+  }
+
+  @Benchmark
+  public int diff(Blackhole blackhole) {
+    DiffResult result = base.diff(left, true);
+    int count = 0;
+    while (true) {
+      DiffResult.Type type = result.next();
+      if (type == DiffResult.Type.End) {
+        return count;
+      } else if (type == DiffResult.Type.Key) {
+        blackhole.consume(result.fork());
+        ++ count;
+      }
+    }
+  }
+
+  @Benchmark
+  public Revision merge() {
+    return base.merge(left, right, ConflictResolvers.Restrict,
+                      ForeignKeyResolvers.Restrict);
+  }
+
+  @Benchmark
+  public Revision bulkLoad() {
+    return fixture.bulkLoad(rows);
+  }
+}
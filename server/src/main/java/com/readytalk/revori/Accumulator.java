@@ -0,0 +1,22 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Mutable accumulation into which a PrimitiveFoldable folds rows.
+ * Each foldable decides which of these fields it uses; e.g. Count
+ * uses only count, while Average uses all three.
+ */
+@NotThreadSafe
+public final class Accumulator {
+  public long count;
+  public long integralSum;
+  public double sum;
+}
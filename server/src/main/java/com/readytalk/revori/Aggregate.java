@@ -14,6 +14,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 
 import com.google.common.base.Objects;
@@ -24,16 +25,43 @@ public class Aggregate<T> implements Expression {
   private static final AtomicInteger nextOrder = new AtomicInteger();
 
   public final Class<T> type;
-  public final Foldable<T> function;
+  /**
+   * The function used to fold the values of the expressions, whose
+   * accumulation is the value of this aggregate, or null if this
+   * aggregate uses a reducer instead.
+   */
+  public final @Nullable Foldable<T> function;
+  /**
+   * The reducer used to fold the values of the expressions, whose
+   * result is the value of this aggregate, or null if this aggregate
+   * uses a function instead.
+   */
+  public final @Nullable Reducer<?, ? extends T> reducer;
   public final List<Expression> expressions;
   public final int order;
 
+  public Aggregate(Class<T> type,
+                   Reducer<?, ? extends T> reducer,
+                   List<Expression> expressions)
+  {
+    this(type, null, reducer, expressions);
+  }
+
   public Aggregate(Class<T> type,
                    Foldable<T> function,
                    List<Expression> expressions)
+  {
+    this(type, function, null, expressions);
+  }
+
+  private Aggregate(Class<T> type,
+                    @Nullable Foldable<T> function,
+                    @Nullable Reducer<?, ? extends T> reducer,
+                    List<Expression> expressions)
   {
     this.type = type;
     this.function = function;
+    this.reducer = reducer;
     this.expressions = ImmutableList.copyOf(expressions);
 
     this.order = nextOrder.getAndIncrement();
@@ -87,7 +115,7 @@ public class Aggregate<T> implements Expression {
         return d;
       }
 
-      if (equal(function, o.function)) {
+      if (equal(foldable(), o.foldable())) {
         return 0;
       } else {
         return order - o.order;
@@ -102,6 +130,13 @@ public class Aggregate<T> implements Expression {
   }
   
   public int hashCode() {
-	  return Objects.hashCode(type.getName(), expressions, function);
+	  return Objects.hashCode(type.getName(), expressions, foldable());
+  }
+
+  /**
+   * Returns whichever of function and reducer this aggregate uses.
+   */
+  public Foldable<?> foldable() {
+    return function == null ? reducer : function;
   }
 }
@@ -21,6 +21,18 @@ public class Column<T> implements Comparable<Column<?>> {
   @GuardedBy("Column.class")
   private static long nextId = 1;
 
+  static final SchemaRegistry<Column<?>> registry
+    = new SchemaRegistry<Column<?>>(new Comparator<Column<?>>() {
+        public int compare(Column<?> a, Column<?> b) {
+          int d = a.id.compareTo(b.id);
+          if (d != 0) {
+            return d;
+          }
+
+          return a.type.getName().compareTo(b.type.getName());
+        }
+      });
+
   public synchronized static String makeId() {
     return (nextId++) + "." + Column.class.getName() + ".id";
   }
@@ -43,6 +55,9 @@ public class Column<T> implements Comparable<Column<?>> {
    */
   public final boolean serializable;
 
+  // assigned by the registry on first comparison; see key()
+  private volatile SchemaRegistry.Key<Column<?>> key;
+
   /**
    * Defines a column which is associated with the specified type and
    * ID.  The type specified here will be used for dynamic type
@@ -82,15 +97,21 @@ public class Column<T> implements Comparable<Column<?>> {
     return id.hashCode();
   }
 
+  /**
+   * Returns the registry key shared by every column equal to this one.
+   */
+  SchemaRegistry.Key<Column<?>> key() {
+    SchemaRegistry.Key<Column<?>> k = key;
+    if (k == null) {
+      key = k = registry.register(this);
+    }
+    return k;
+  }
+
   public int compareTo(Column<?> o) {
     if (o == this) return 0;
 
-    int d = id.compareTo(o.id);
-    if (d != 0) {
-      return d;
-    }
-
-    return type.getName().compareTo(o.type.getName());
+    return registry.compare(key(), o.key());
   }
 
   /**
@@ -98,7 +119,8 @@ public class Column<T> implements Comparable<Column<?>> {
    * and type are equal to those of this instance.
    */
   public boolean equals(Object o) {
-    return o instanceof Column && compareTo((Column<?>) o) == 0;
+    return o == this
+      || (o instanceof Column && key() == ((Column<?>) o).key());
   }
       
   public String toString() {
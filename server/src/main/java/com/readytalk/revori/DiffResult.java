@@ -86,4 +86,21 @@ public interface DiffResult {
    * children, if any, when next() is called next.
    */
   public void skip();
+
+  /**
+   * Returns the number of tree nodes examined so far by this diff,
+   * across all levels of the tree.  A subtree shared by the base and
+   * fork is skipped without visiting its descendants, so for
+   * revisions which differ only slightly this should be proportional
+   * to the number of changes times the logarithm of the revision
+   * size, rather than to the size itself.
+   */
+  public long nodesVisited();
+
+  /**
+   * Returns the number of times next() has returned Type.Key so far,
+   * i.e. the number of keys reported as present in, or differing
+   * between, the base and fork.
+   */
+  public long nodesChanged();
 }
@@ -158,4 +158,11 @@ public class ExpressionFactory {
   {
     return new Aggregate<T>(type, function, Lists.newArrayList(expressions));
   }
+
+  public static <T> Expression aggregate(Class<T> type,
+                                         Reducer<?, ? extends T> function,
+                                         Expression ... expressions)
+  {
+    return new Aggregate<T>(type, function, Lists.newArrayList(expressions));
+  }
 }
@@ -7,11 +7,18 @@
 
 package com.readytalk.revori;
 
+import java.math.BigDecimal;
+
 import javax.annotation.concurrent.Immutable;
 
+import com.google.common.base.Objects;
+import com.readytalk.revori.imp.Extremum;
+
 @Immutable
 public class Foldables {
-  public static final Foldable<Integer> Count = new Foldable<Integer>() {
+  public static final Foldable<Integer> Count
+    = new PrimitiveFoldable<Integer>()
+  {
     public Integer base() {
       return 0;
     }
@@ -23,9 +30,25 @@ public class Foldables {
     public Integer subtract(Integer accumulation, Object ... values) {
       return accumulation - 1;
     }
+
+    public void unbox(Integer accumulation, Accumulator accumulator) {
+      accumulator.count = accumulation;
+    }
+
+    public void addTo(Accumulator accumulator, Object ... values) {
+      ++ accumulator.count;
+    }
+
+    public void subtractFrom(Accumulator accumulator, Object ... values) {
+      -- accumulator.count;
+    }
+
+    public Integer box(Accumulator accumulator) {
+      return (int) accumulator.count;
+    }
   };
 
-  public static final Foldable<Integer> Sum = new Foldable<Integer>() {
+  public static final Foldable<Integer> Sum = new PrimitiveFoldable<Integer>() {
     public Integer base() {
       return 0;
     }
@@ -37,5 +60,258 @@ public class Foldables {
     public Integer subtract(Integer accumulation, Object ... values) {
       return accumulation - (Integer) values[0];
     }
+
+    public void unbox(Integer accumulation, Accumulator accumulator) {
+      accumulator.integralSum = accumulation;
+    }
+
+    public void addTo(Accumulator accumulator, Object ... values) {
+      accumulator.integralSum += (Integer) values[0];
+    }
+
+    public void subtractFrom(Accumulator accumulator, Object ... values) {
+      accumulator.integralSum -= (Integer) values[0];
+    }
+
+    public Integer box(Accumulator accumulator) {
+      return (int) accumulator.integralSum;
+    }
   };
+
+  /**
+   * Sums any kind of Number as a long, ignoring nulls.
+   */
+  public static final Foldable<Long> LongSum = new PrimitiveFoldable<Long>() {
+    public Long base() {
+      return 0L;
+    }
+
+    public Long add(Long accumulation, Object ... values) {
+      return values[0] == null
+        ? accumulation : accumulation + ((Number) values[0]).longValue();
+    }
+
+    public Long subtract(Long accumulation, Object ... values) {
+      return values[0] == null
+        ? accumulation : accumulation - ((Number) values[0]).longValue();
+    }
+
+    public void unbox(Long accumulation, Accumulator accumulator) {
+      accumulator.integralSum = accumulation;
+    }
+
+    public void addTo(Accumulator accumulator, Object ... values) {
+      if (values[0] != null) {
+        accumulator.integralSum += ((Number) values[0]).longValue();
+      }
+    }
+
+    public void subtractFrom(Accumulator accumulator, Object ... values) {
+      if (values[0] != null) {
+        accumulator.integralSum -= ((Number) values[0]).longValue();
+      }
+    }
+
+    public Long box(Accumulator accumulator) {
+      return accumulator.integralSum;
+    }
+  };
+
+  /**
+   * Sums any kind of Number as a double, ignoring nulls.  Note that
+   * subtracting a value may not exactly undo adding it, due to
+   * rounding.
+   */
+  public static final Foldable<Double> DoubleSum
+    = new PrimitiveFoldable<Double>()
+  {
+    public Double base() {
+      return 0D;
+    }
+
+    public Double add(Double accumulation, Object ... values) {
+      return values[0] == null
+        ? accumulation : accumulation + ((Number) values[0]).doubleValue();
+    }
+
+    public Double subtract(Double accumulation, Object ... values) {
+      return values[0] == null
+        ? accumulation : accumulation - ((Number) values[0]).doubleValue();
+    }
+
+    public void unbox(Double accumulation, Accumulator accumulator) {
+      accumulator.sum = accumulation;
+    }
+
+    public void addTo(Accumulator accumulator, Object ... values) {
+      if (values[0] != null) {
+        accumulator.sum += ((Number) values[0]).doubleValue();
+      }
+    }
+
+    public void subtractFrom(Accumulator accumulator, Object ... values) {
+      if (values[0] != null) {
+        accumulator.sum -= ((Number) values[0]).doubleValue();
+      }
+    }
+
+    public Double box(Accumulator accumulator) {
+      return accumulator.sum;
+    }
+  };
+
+  /**
+   * Sums BigDecimal values exactly, ignoring nulls.
+   */
+  public static final Foldable<BigDecimal> BigDecimalSum
+    = new Foldable<BigDecimal>()
+  {
+    public BigDecimal base() {
+      return BigDecimal.ZERO;
+    }
+
+    public BigDecimal add(BigDecimal accumulation, Object ... values) {
+      return values[0] == null
+        ? accumulation : accumulation.add((BigDecimal) values[0]);
+    }
+
+    public BigDecimal subtract(BigDecimal accumulation, Object ... values) {
+      return values[0] == null
+        ? accumulation : accumulation.subtract((BigDecimal) values[0]);
+    }
+  };
+
+  /**
+   * Accumulation of the Average reducer.  Integral values are summed
+   * separately from others so that the average of integral values is
+   * unaffected by rounding however many are added and subtracted.
+   */
+  @Immutable
+  public static final class Total {
+    public static final Total Zero = new Total(0, 0, 0);
+
+    public final long count;
+    public final long integralSum;
+    public final double sum;
+
+    private Total(long count, long integralSum, double sum) {
+      this.count = count;
+      this.integralSum = integralSum;
+      this.sum = sum;
+    }
+
+    private Total plus(Number value, int sign) {
+      if (integral(value)) {
+        return new Total
+          (count + sign, integralSum + (sign * value.longValue()), sum);
+      } else {
+        return new Total
+          (count + sign, integralSum, sum + (sign * value.doubleValue()));
+      }
+    }
+
+    public boolean equals(Object o) {
+      if (o instanceof Total) {
+        Total t = (Total) o;
+        return count == t.count && integralSum == t.integralSum
+          && Double.compare(sum, t.sum) == 0;
+      } else {
+        return false;
+      }
+    }
+
+    public int hashCode() {
+      return Objects.hashCode(count, integralSum, sum);
+    }
+
+    public String toString() {
+      return "total[" + count + " " + integralSum + " " + sum + "]";
+    }
+  }
+
+  private static boolean integral(Number value) {
+    return value instanceof Integer || value instanceof Long
+      || value instanceof Short || value instanceof Byte;
+  }
+
+  private static void plus(Accumulator accumulator, Number value, int sign) {
+    accumulator.count += sign;
+    if (integral(value)) {
+      accumulator.integralSum += sign * value.longValue();
+    } else {
+      accumulator.sum += sign * value.doubleValue();
+    }
+  }
+
+  private static final class AverageReducer
+    implements Reducer<Total, Double>, PrimitiveFoldable<Total>
+  {
+    public Total base() {
+      return Total.Zero;
+    }
+
+    public Total add(Total accumulation, Object ... values) {
+      return values[0] == null
+        ? accumulation : accumulation.plus((Number) values[0], 1);
+    }
+
+    public Total subtract(Total accumulation, Object ... values) {
+      return values[0] == null
+        ? accumulation : accumulation.plus((Number) values[0], -1);
+    }
+
+    public Double result(Total accumulation) {
+      return accumulation.count == 0 ? null
+        : (accumulation.integralSum + accumulation.sum) / accumulation.count;
+    }
+
+    public void unbox(Total accumulation, Accumulator accumulator) {
+      accumulator.count = accumulation.count;
+      accumulator.integralSum = accumulation.integralSum;
+      accumulator.sum = accumulation.sum;
+    }
+
+    public void addTo(Accumulator accumulator, Object ... values) {
+      if (values[0] != null) {
+        plus(accumulator, (Number) values[0], 1);
+      }
+    }
+
+    public void subtractFrom(Accumulator accumulator, Object ... values) {
+      if (values[0] != null) {
+        plus(accumulator, (Number) values[0], -1);
+      }
+    }
+
+    public Total box(Accumulator accumulator) {
+      return new Total
+        (accumulator.count, accumulator.integralSum, accumulator.sum);
+    }
+  }
+
+  /**
+   * Averages any kind of Number as a double, ignoring nulls.  The
+   * average of no values is null.
+   */
+  public static final Reducer<Total, Double> Average = new AverageReducer();
+
+  /**
+   * Returns a reducer which yields the least of the values folded,
+   * ignoring nulls, or null if there are none.  Every value is
+   * retained in a persistent sorted multiset so that the minimum can
+   * be maintained in logarithmic time as values are subtracted.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T extends Comparable> Reducer<?, T> min() {
+    return (Reducer<?, T>) (Reducer) Extremum.Min;
+  }
+
+  /**
+   * Returns a reducer which yields the greatest of the values folded,
+   * as described in min.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T extends Comparable> Reducer<?, T> max() {
+    return (Reducer<?, T>) (Reducer) Extremum.Max;
+  }
 }
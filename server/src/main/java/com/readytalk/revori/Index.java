@@ -9,6 +9,7 @@ package com.readytalk.revori;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 
@@ -20,6 +21,18 @@ import javax.annotation.concurrent.NotThreadSafe;
  */
 @NotThreadSafe
 public final class Index implements Comparable<Index> {
+  static final SchemaRegistry<Index> registry
+    = new SchemaRegistry<Index>(new Comparator<Index>() {
+        public int compare(Index a, Index b) {
+          int d = a.table.compareTo(b.table);
+          if (d != 0) {
+            return d;
+          }
+
+          return a.compareColumns(b);
+        }
+      });
+
   /**
    * The table specified when this index was defined.
    */
@@ -37,6 +50,9 @@ public final class Index implements Comparable<Index> {
    */
   public final List<Column<?>> columns;
 
+  // assigned by the registry on first comparison; see key()
+  private volatile SchemaRegistry.Key<Index> key;
+
   /**
    * Defines an index which is associated with the specified list of
    * columns.  The order of the list determines the indexing order as
@@ -77,15 +93,21 @@ public final class Index implements Comparable<Index> {
     return 0;
   }
 
+  /**
+   * Returns the registry key shared by every index equal to this one.
+   */
+  SchemaRegistry.Key<Index> key() {
+    SchemaRegistry.Key<Index> k = key;
+    if (k == null) {
+      key = k = registry.register(this);
+    }
+    return k;
+  }
+
   public int compareTo(Index o) {
     if (o == this) return 0;
 
-    int d = table.compareTo(o.table);
-    if (d != 0) {
-      return d;
-    }
-
-    return compareColumns(o);
+    return registry.compare(key(), o.key());
   }
 
   public int hashCode() {
@@ -101,7 +123,8 @@ public final class Index implements Comparable<Index> {
    * its table and columns are equal to those of this instance.
    */
   public boolean equals(Object o) {
-    return o instanceof Index && compareTo((Index) o) == 0;
+    return o == this
+      || (o instanceof Index && key() == ((Index) o).key());
   }
       
   public String toString() {
@@ -0,0 +1,37 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori;
+
+/**
+ * A Foldable whose accumulation can be held in the primitive fields
+ * of an Accumulator.  When a view is updated, the accumulation of
+ * each group it touches is unboxed into an Accumulator once, every
+ * row of that group is folded into it in place, and the result is
+ * boxed again once the update is complete, so folding a row
+ * allocates nothing.<p>
+ *
+ * addTo and subtractFrom must have the same effect on the
+ * accumulation as add and subtract, respectively.
+ */
+public interface PrimitiveFoldable<T> extends Foldable<T> {
+  /**
+   * Sets the fields of the specified accumulator to represent the
+   * specified accumulation.
+   */
+  public void unbox(T accumulation, Accumulator accumulator);
+
+  public void addTo(Accumulator accumulator, Object ... values);
+
+  public void subtractFrom(Accumulator accumulator, Object ... values);
+
+  /**
+   * Returns the accumulation represented by the specified
+   * accumulator.
+   */
+  public T box(Accumulator accumulator);
+}
@@ -78,4 +78,18 @@ public interface QueryResult {
    * current row.
    */
   public boolean rowUpdated();
+
+  /**
+   * Resets this result to visit the diff between the specified
+   * revisions for the same query template, with the specified
+   * parameters, as if it had been returned by
+   * <code>base.diff(fork, template, parameters)</code>.<p>
+   *
+   * Applications which execute the same template repeatedly may use
+   * this to avoid allocating a new result each time.  Note that the
+   * query adapters and plan cache for a template are reused across
+   * results regardless, so this is only an incremental improvement
+   * over calling Revision.diff again.
+   */
+  public void reset(Revision base, Revision fork, Object ... parameters);
 }
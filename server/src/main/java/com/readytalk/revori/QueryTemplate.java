@@ -59,6 +59,20 @@ public final class QueryTemplate implements Comparable<QueryTemplate> {
 
   public final boolean hasAggregates;
 
+  /**
+   * The maximum number of rows to visit when the query is executed,
+   * or -1 if there is no limit.  Rows are counted after any skipped
+   * according to offset, and each row reported as inserted or deleted
+   * counts separately.
+   */
+  public final int limit;
+
+  /**
+   * The number of rows to skip before visiting any when the query is
+   * executed.
+   */
+  public final int offset;
+
   /**
    * Defines a query template with the specified expressions to be
    * evaluated, the source from which any column references in the
@@ -87,6 +101,31 @@ public final class QueryTemplate implements Comparable<QueryTemplate> {
                        Set<Expression> groupingExpressions,
                        List<OrderExpression> orderByExpressions)
   {
+    this(expressions, source, test, groupingExpressions, orderByExpressions,
+         -1, 0);
+  }
+
+  /**
+   * Defines a query template as above which visits at most the
+   * specified number of rows (or any number, if limit is -1) after
+   * skipping the specified number.  Combined with order-by
+   * expressions, this selects a page of the ordered result.
+   */
+  public QueryTemplate(List<Expression> expressions,
+                       Source source,
+                       Expression test,
+                       Set<Expression> groupingExpressions,
+                       List<OrderExpression> orderByExpressions,
+                       int limit,
+                       int offset)
+  {
+    if (limit < -1 || offset < 0) {
+      throw new IllegalArgumentException
+        ("invalid limit or offset: " + limit + ", " + offset);
+    }
+
+    this.limit = limit;
+    this.offset = offset;
     this.expressions = ImmutableList.copyOf(expressions);
     this.groupingExpressions = ImmutableSortedSet.copyOf(groupingExpressions);
     this.orderByExpressions = ImmutableList.copyOf(orderByExpressions);
@@ -112,7 +151,6 @@ public final class QueryTemplate implements Comparable<QueryTemplate> {
     test.visit(v);
 
     this.hasAggregates = hasAggregates[0];
-
   }
 
   public int compareTo(QueryTemplate o) {
@@ -138,6 +176,14 @@ public final class QueryTemplate implements Comparable<QueryTemplate> {
       return d;
     }
 
+    if (limit != o.limit) {
+      return limit < o.limit ? -1 : 1;
+    }
+
+    if (offset != o.offset) {
+      return offset < o.offset ? -1 : 1;
+    }
+
     return compare(groupingExpressions, o.groupingExpressions);
   }
 
@@ -0,0 +1,22 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori;
+
+/**
+ * A Foldable whose accumulation holds more than the value of the
+ * aggregate it implements, e.g. the running count as well as the sum
+ * for an average, or every value folded so far for a minimum, so
+ * that rows can still be subtracted in any order.  Views store the
+ * accumulation and derive the value of the aggregate using result.
+ *
+ * @param <A> the accumulation type
+ * @param <T> the type of the aggregate's value
+ */
+public interface Reducer<A, T> extends Foldable<A> {
+  public T result(A accumulation);
+}
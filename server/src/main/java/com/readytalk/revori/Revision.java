@@ -8,6 +8,7 @@
 package com.readytalk.revori;
 
 import java.util.Iterator;
+import java.util.concurrent.Executor;
 
 import javax.annotation.Nullable;
 
@@ -93,6 +94,49 @@ public interface Revision {
   public Object query(Object[] path,
                       int pathOffset,
                       int pathLength);
+
+  /**
+   * Returns the number of rows in the specified index whose values
+   * for its leading columns equal the specified prefix, which may be
+   * empty to count every row in the table, or may specify every
+   * column to test whether a row exists.  This takes logarithmic
+   * time per index column for any index and prefix, except that the
+   * first such call for an index may visit each distinct value of
+   * its columns other than the last once.  The row counts so
+   * computed are kept with the revision and shared with the
+   * revisions derived from it, so later calls on those revisions
+   * only revisit the values which have changed since.
+   */
+  public long count(Index index, Object ... indexPrefix);
+
+  /**
+   * Returns the number of rows counted by count(index, indexPrefix)
+   * whose value for the index column following the prefix is no less
+   * than low and less than high.  Either bound may be null to
+   * indicate no bound.
+   */
+  public long countRange(Index index,
+                         @Nullable Object low,
+                         @Nullable Object high,
+                         Object ... indexPrefix);
+
+  /**
+   * Returns the number of rows which precede, in the order of the
+   * specified index, the position where a row with the specified
+   * values for all of the index columns is or would be.  This takes
+   * time as described for count.
+   */
+  public long rank(Index index, Object ... indexValues);
+
+  /**
+   * Returns the values for all of the columns of the specified index
+   * of the row at the specified zero-based rank among those counted
+   * by count(index, indexPrefix), or null if there is no such row.
+   * This may be used to page through an index without visiting the
+   * rows of earlier pages.  It takes time as described for count.
+   */
+  @Nullable
+  public Object[] select(Index index, long rank, Object ... indexPrefix);
     
   /**
    * Defines a diff which represents the changes between the first
@@ -129,6 +173,18 @@ public interface Revision {
                           QueryTemplate template,
                           Object ... parameters);
 
+  /**
+   * Returns a human-readable description of the plan which would be
+   * used to evaluate diff(fork, template, parameters).  For each table
+   * referenced by the query, this names the index which would be
+   * scanned, the intervals to be scanned for each of its columns, and
+   * the estimated number of rows to be visited.  The format is
+   * intended for diagnostic purposes only and is subject to change.
+   */
+  public String explain(Revision fork,
+                        QueryTemplate template,
+                        Object ... parameters);
+
   /**
    * Defines a database-wide diff between two revisions.<p>
    *
@@ -182,4 +238,25 @@ public interface Revision {
                         Revision right,
                         @Nullable ConflictResolver conflictResolver,
                         @Nullable ForeignKeyResolver foreignKeyResolver);
+
+  /**
+   * Like merge(Revision, Revision, ConflictResolver,
+   * ForeignKeyResolver), but uses the specified executor to merge the
+   * data of independent tables and to update independent indexes and
+   * views in parallel.  The result is the same as that of a
+   * sequential merge.  The conflict resolver may be called from
+   * threads belonging to the executor, but calls are serialized.<p>
+   *
+   * The executor must not be the one the calling thread is running
+   * on, since the parallelism it offers is then shared with whatever
+   * else is queued there.  Even so, the calling thread runs any task
+   * the executor has not started (or has rejected) itself instead of
+   * waiting for it, so such a merge degrades to a sequential one
+   * rather than deadlocking.
+   */
+  public Revision merge(Revision left,
+                        Revision right,
+                        @Nullable ConflictResolver conflictResolver,
+                        @Nullable ForeignKeyResolver foreignKeyResolver,
+                        Executor executor);
 }
@@ -7,6 +7,9 @@
 
 package com.readytalk.revori;
 
+import java.util.Iterator;
+import java.util.List;
+
 /**
  * Type used for incrementally defining a new revision by applying a
  * series of inserts, updates, and/or deletes to a base revision.
@@ -90,6 +93,34 @@ public interface RevisionBuilder {
                                 int pathOffset,
                                 int pathLength);
 
+  /**
+   * Loads the specified rows into the specified table.  Each row
+   * contains values for the specified columns, in the same order; the
+   * columns must include every column of the table's primary key.<p>
+   *
+   * If the table contains no rows in this builder, the rows must be
+   * sorted in ascending order by primary key without duplicates.  In
+   * that case the primary key and index data trees are built directly
+   * from the rows in a single pass, which is much cheaper than
+   * inserting them one at a time.  Otherwise, this is equivalent to
+   * inserting each row with DuplicateKeyResolution.Throw.
+   *
+   * @throws IllegalArgumentException if the rows are not sorted by
+   * primary key or contain duplicate keys, or if a row does not have
+   * one value per column
+   *
+   * @throws DuplicateKeyException if the table already contains a row
+   * with the same primary key as one of the specified rows
+   *
+   * @throws ClassCastException if a value cannot be cast to the
+   * declared type of its column
+   */
+  public RevisionBuilder bulkLoad(Table table,
+                                  List<Column<?>> columns,
+                                  Iterator<Object[]> rows)
+    throws DuplicateKeyException,
+           ClassCastException;
+
   /**
    * Prepares a TableBuilder to update the given table.
    * @return said table builder
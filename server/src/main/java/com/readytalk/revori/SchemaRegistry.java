@@ -0,0 +1,269 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Comparator;
+import java.util.TreeSet;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Process-wide registry which assigns each distinct Table, Column, or
+ * Index (as determined by the specified comparator) a key, shared by
+ * every equal instance, holding a label whose numeric order matches
+ * the order defined by the comparator.<p>
+ *
+ * This allows such objects, which are compared at the top levels of
+ * every revision tree and for every column lookup, to be compared
+ * using a couple of field loads rather than by comparing ID strings
+ * and column lists, while preserving exactly the order those
+ * comparisons define, and therefore the layout of revision trees and
+ * the order in which they are diffed and serialized.<p>
+ *
+ * Labels are allocated with gaps between them and are reassigned in
+ * bulk if a gap is exhausted.  Readers detect a concurrent
+ * reassignment using a version number and retry, so that any two
+ * labels they compare are consistent.<p>
+ *
+ * Each registered instance holds its key, and the key holds the first
+ * instance registered with it, but the registry refers to keys only
+ * weakly.  Once every instance sharing a key is unreachable, its
+ * entry is dropped, so short-lived tables and columns, such as those
+ * created for temporary views, do not accumulate here.
+ */
+@ThreadSafe
+class SchemaRegistry<T> {
+  // distance between labels when they are (re)assigned, leaving room
+  // for 2^31 registrations before any label exceeds Long.MAX_VALUE
+  private static final long Gap = 1L << 32;
+
+  private final Comparator<T> comparator;
+
+  @GuardedBy("this")
+  private final TreeSet<Entry<T>> entries;
+
+  private final ReferenceQueue<Key<T>> queue = new ReferenceQueue<Key<T>>();
+
+  // odd while labels are being reassigned
+  private volatile int version;
+
+  public SchemaRegistry(final Comparator<T> comparator) {
+    this.comparator = comparator;
+    this.entries = new TreeSet<Entry<T>>(new Comparator<Entry<T>>() {
+        public int compare(Entry<T> a, Entry<T> b) {
+          if (a.probe == null && b.probe == null) {
+            // both are registered, so their labels are in order even
+            // if their keys have been cleared
+            return compareLabels(a.label, b.label);
+          }
+
+          return comparator.compare(a.object(), b.object());
+        }
+      });
+  }
+
+  private static int compareLabels(long a, long b) {
+    return a < b ? -1 : (a > b ? 1 : 0);
+  }
+
+  /**
+   * Returns the key shared by every object equal to the specified
+   * one, registering it if no equal object is currently registered.
+   */
+  public synchronized Key<T> register(T o) {
+    while (true) {
+      expunge();
+
+      try {
+        return tryRegister(o);
+      } catch (StaleEntryException e) {
+        // a key was cleared before it was enqueued; drop it and retry
+        remove((Entry<T>) e.entry);
+      }
+    }
+  }
+
+  @GuardedBy("this")
+  private Key<T> tryRegister(T o) {
+    Entry<T> probe = new Entry<T>(o);
+
+    Entry<T> lower = entries.floor(probe);
+    if (lower != null && entries.comparator().compare(lower, probe) == 0) {
+      Key<T> key = lower.get();
+      if (key == null) {
+        throw new StaleEntryException(lower);
+      }
+      return key;
+    }
+
+    Entry<T> higher = entries.higher(probe);
+    long low = lower == null ? Long.MIN_VALUE : lower.label;
+    long high = higher == null ? Long.MAX_VALUE : higher.label;
+    long middle = (low >> 1) + (high >> 1) + (low & high & 1);
+
+    Key<T> key = new Key<T>(o);
+    Entry<T> entry = new Entry<T>(key, queue);
+
+    if (lower == null && higher == null) {
+      entry.label = 0;
+    } else if (higher == null && low <= Long.MAX_VALUE - Gap) {
+      entry.label = low + Gap;
+    } else if (lower == null && high >= Long.MIN_VALUE + Gap) {
+      entry.label = high - Gap;
+    } else if (middle > low && middle < high) {
+      entry.label = middle;
+    } else {
+      // no room left between the neighbors, so relabel everything
+      relabel(lower, entry);
+    }
+
+    key.label = entry.label;
+    entries.add(entry);
+
+    return key;
+  }
+
+  /**
+   * Reassigns every label, leaving a gap after the specified entry
+   * (or before all entries if it is null) which is assigned to the
+   * specified new entry.
+   */
+  @GuardedBy("this")
+  private void relabel(@Nullable Entry<T> lower, Entry<T> entry) {
+    ++ version;
+    try {
+      long label = 0;
+      if (lower == null) {
+        entry.label = label;
+        label += Gap;
+      }
+
+      for (Entry<T> e: entries) {
+        e.label = label;
+        Key<T> key = e.get();
+        if (key != null) {
+          key.label = label;
+        }
+        label += Gap;
+
+        if (e == lower) {
+          entry.label = label;
+          label += Gap;
+        }
+      }
+    } finally {
+      ++ version;
+    }
+  }
+
+  @GuardedBy("this")
+  private void expunge() {
+    Entry<T> e;
+    while ((e = (Entry<T>) queue.poll()) != null) {
+      remove(e);
+    }
+  }
+
+  @GuardedBy("this")
+  private void remove(Entry<T> e) {
+    // the comparator orders registered entries by label, so this
+    // finds the entry even though its key is gone
+    if (e.registered) {
+      e.registered = false;
+      entries.remove(e);
+    }
+  }
+
+  /**
+   * Returns the number of distinct objects currently registered.
+   */
+  public synchronized int size() {
+    expunge();
+    return entries.size();
+  }
+
+  /**
+   * Compares the objects with the specified keys, consistent with the
+   * comparator this registry was created with.
+   */
+  public int compare(Key<T> a, Key<T> b) {
+    if (a == b) {
+      return 0;
+    }
+
+    while (true) {
+      int v = version;
+      long la = a.label;
+      long lb = b.label;
+      if ((v & 1) == 0 && v == version) {
+        return compareLabels(la, lb);
+      }
+      Thread.yield();
+    }
+  }
+
+  /**
+   * The identity shared by every registered object equal to a given
+   * one.
+   */
+  static final class Key<T> {
+    // kept reachable by every object sharing this key, so it can be
+    // compared against objects registered later
+    private final T object;
+    private volatile long label;
+
+    private Key(T object) {
+      this.object = object;
+    }
+  }
+
+  private static class Entry<T> extends WeakReference<Key<T>> {
+    // set only for an unregistered object being looked up
+    @Nullable private final T probe;
+    private long label;
+    private boolean registered;
+
+    public Entry(Key<T> key, ReferenceQueue<Key<T>> queue) {
+      super(key, queue);
+      this.probe = null;
+      this.registered = true;
+    }
+
+    public Entry(T probe) {
+      super(null);
+      this.probe = probe;
+    }
+
+    public T object() {
+      if (probe != null) {
+        return probe;
+      }
+
+      Key<T> key = get();
+      if (key == null) {
+        throw new StaleEntryException(this);
+      }
+      return key.object;
+    }
+  }
+
+  private static class StaleEntryException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    // never serialized; this only unwinds a lookup within register
+    public final transient Entry<?> entry;
+
+    public StaleEntryException(Entry<?> entry) {
+      this.entry = entry;
+    }
+  }
+}
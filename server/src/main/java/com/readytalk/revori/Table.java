@@ -7,6 +7,7 @@
 
 package com.readytalk.revori;
 
+import java.util.Comparator;
 import java.util.List;
 
 import javax.annotation.concurrent.ThreadSafe;
@@ -20,6 +21,23 @@ import javax.annotation.concurrent.ThreadSafe;
 public class Table implements Comparable<Table> {
   private static long nextId = 1;
 
+  static final SchemaRegistry<Table> registry
+    = new SchemaRegistry<Table>(new Comparator<Table>() {
+        public int compare(Table a, Table b) {
+          int d = a.order - b.order;
+          if (d != 0) {
+            return d;
+          }
+
+          d = a.id.compareTo(b.id);
+          if (d != 0) {
+            return d;
+          }
+
+          return a.primaryKey.compareColumns(b.primaryKey);
+        }
+      });
+
   public synchronized static String makeId() {
     return (nextId++) + "." + Table.class.getName() + ".id";
   }
@@ -45,6 +63,17 @@ public class Table implements Comparable<Table> {
    */
   public final boolean serializable;
 
+  /**
+   * True if each row of this table should be stored as a compact
+   * array of column values rather than as a tree of columns.  This
+   * only affects how rows are stored, not how they may be queried or
+   * updated, so it is not considered when comparing tables.
+   */
+  public final boolean packed;
+
+  // assigned by the registry on first comparison; see key()
+  private volatile SchemaRegistry.Key<Table> key;
+
   /**
    * Defines a table using the specified list of columns as the
    * primary key.<p>
@@ -69,11 +98,18 @@ public class Table implements Comparable<Table> {
 
   public Table(List<Column<?>> primaryKey, String id, int order,
                boolean serializable)
+  {
+    this(primaryKey, id, order, serializable, false);
+  }
+
+  public Table(List<Column<?>> primaryKey, String id, int order,
+               boolean serializable, boolean packed)
   {
     this.primaryKey = new Index(this, primaryKey);
     this.order = order;
     this.id = id;
     this.serializable = serializable;
+    this.packed = packed;
 
     if (id == null) throw new NullPointerException();
   }
@@ -108,20 +144,21 @@ public class Table implements Comparable<Table> {
     return o;
   }
 
-  public int compareTo(Table o) {
-    if (o == this) return 0;
-
-    int d = order - o.order;
-    if (d != 0) {
-      return d;
+  /**
+   * Returns the registry key shared by every table equal to this one.
+   */
+  SchemaRegistry.Key<Table> key() {
+    SchemaRegistry.Key<Table> k = key;
+    if (k == null) {
+      key = k = registry.register(this);
     }
+    return k;
+  }
 
-    d = id.compareTo(o.id);
-    if (d != 0) {
-      return d;
-    }
+  public int compareTo(Table o) {
+    if (o == this) return 0;
 
-    return primaryKey.compareColumns(o.primaryKey);
+    return registry.compare(key(), o.key());
   }
 
   public int hashCode() {
@@ -133,7 +170,8 @@ public class Table implements Comparable<Table> {
    * its ID and primaryKey are equal to those of this instance.
    */
   public boolean equals(Object o) {
-    return o instanceof Table && compareTo((Table) o) == 0;
+    return o == this
+      || (o instanceof Table && key() == ((Table) o).key());
   }
       
   public String toString() {
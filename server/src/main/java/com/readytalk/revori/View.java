@@ -119,7 +119,12 @@ public final class View implements Comparable<View> {
       }
 
       for (Aggregate<?> a: aggregates) {
-        myColumns.add(makeColumn(a, null, Comparators.Ascending));
+        myColumns.add
+          (a.reducer != null
+           ? new Column<Object>
+           (Object.class, "aggregate." + Column.makeId(),
+            Comparators.Ascending)
+           : makeColumn(a, null, Comparators.Ascending));
         myExpressions.add(a);
       }
     } else {
@@ -7,36 +7,87 @@
 
 package com.readytalk.revori.imp;
 
+import com.readytalk.revori.Accumulator;
 import com.readytalk.revori.Aggregate;
+import com.readytalk.revori.Foldable;
+import com.readytalk.revori.PrimitiveFoldable;
 
 class AggregateAdapter implements ExpressionAdapter {
   public final Aggregate aggregate;
+  public final Foldable function;
+  // while a view is being updated, this may be an Accumulator into
+  // which a PrimitiveFoldable is folding rows in place
   public Object value = Compare.Undefined;
 
   public AggregateAdapter(Aggregate aggregate) {
     this.aggregate = aggregate;
+    this.function = aggregate.foldable();
   }
 
   public void add(Object accumulation, Object ... increment) {
-    value = aggregate.function.add
-      (accumulation == Node.Null ? null : accumulation, increment);
+    if (function instanceof PrimitiveFoldable) {
+      Accumulator accumulator = accumulator(accumulation);
+      ((PrimitiveFoldable) function).addTo(accumulator, increment);
+      value = accumulator;
+    } else {
+      value = function.add
+        (accumulation == Node.Null ? null : accumulation, increment);
+    }
 
     // System.out.println("add " + accumulation + " " + java.util.Arrays.toString(increment) + ": " + value);
   }
 
   public void subtract(Object accumulation, Object ... increment) {
-    value = aggregate.function.subtract
-      (accumulation == Node.Null ? null : accumulation, increment);
+    if (function instanceof PrimitiveFoldable) {
+      Accumulator accumulator = accumulator(accumulation);
+      ((PrimitiveFoldable) function).subtractFrom(accumulator, increment);
+      value = accumulator;
+    } else {
+      value = function.subtract
+        (accumulation == Node.Null ? null : accumulation, increment);
+    }
 
     // System.out.println("subtract " + accumulation + " " + java.util.Arrays.toString(increment) + ": " + value);
   }
 
+  private Accumulator accumulator(Object accumulation) {
+    if (accumulation instanceof Accumulator) {
+      return (Accumulator) accumulation;
+    } else {
+      Accumulator accumulator = new Accumulator();
+      ((PrimitiveFoldable) function).unbox
+        (accumulation == Node.Null ? function.base() : accumulation,
+         accumulator);
+      return accumulator;
+    }
+  }
+
+  /**
+   * Replaces the value of this adapter with the accumulation it
+   * represents if it is an Accumulator, returning true if so.
+   */
+  public boolean box() {
+    if (value instanceof Accumulator) {
+      value = ((PrimitiveFoldable) function).box((Accumulator) value);
+      return true;
+    } else {
+      return false;
+    }
+  }
+
   public void visit(ExpressionAdapterVisitor visitor) {
     visitor.visit(this);
   }
 
   public Object evaluate(boolean convertDummyToNull) {
-    return value;
+    if (value instanceof Accumulator) {
+      // not known until the accumulation is boxed
+      return Compare.Undefined;
+    } else if (aggregate.reducer != null && value != Compare.Undefined) {
+      return aggregate.reducer.result(value);
+    } else {
+      return value;
+    }
   }
 
   public Scan makeScan(ColumnReferenceAdapter reference) {
@@ -11,9 +11,9 @@ import com.readytalk.revori.BinaryOperation;
 import com.readytalk.revori.OperationClass;
 
 class BooleanBinaryAdapter implements ExpressionAdapter {
-  private final BinaryOperation.Type type;
-  private final ExpressionAdapter left;
-  private final ExpressionAdapter right;
+  public final BinaryOperation.Type type;
+  public final ExpressionAdapter left;
+  public final ExpressionAdapter right;
     
   public BooleanBinaryAdapter(BinaryOperation.Type type,
                               ExpressionAdapter left,
@@ -11,8 +11,8 @@ import com.readytalk.revori.OperationClass;
 import com.readytalk.revori.UnaryOperation;
 
 class BooleanUnaryAdapter implements ExpressionAdapter {
-  private final UnaryOperation.Type type;
-  private final ExpressionAdapter operand;
+  public final UnaryOperation.Type type;
+  public final ExpressionAdapter operand;
     
   public BooleanUnaryAdapter(UnaryOperation.Type type,
                              ExpressionAdapter operand)
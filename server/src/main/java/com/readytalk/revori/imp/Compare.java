@@ -10,6 +10,7 @@ package com.readytalk.revori.imp;
 import java.util.Comparator;
 
 import com.readytalk.revori.Column;
+import com.readytalk.revori.Comparators;
 import com.readytalk.revori.Index;
 import com.readytalk.revori.Table;
 import com.readytalk.revori.imp.Interval.BoundType;
@@ -89,7 +90,7 @@ public class Compare {
     } else if (right == Dummy) {
       return 1;
     } else {
-      return comparator.compare(left, right);
+      return compareKeys(left, right, comparator);
     }
   }
 
@@ -97,7 +98,55 @@ public class Compare {
                               Object right,
                               Comparator comparator)
   {
-    return comparator.compare(left, right) == 0;
+    return compareKeys(left, right, comparator) == 0;
+  }
+
+  public static int compare(int left, int right) {
+    return left < right ? -1 : (left > right ? 1 : 0);
+  }
+
+  public static int compare(long left, long right) {
+    return left < right ? -1 : (left > right ? 1 : 0);
+  }
+
+  /**
+   * Returns true if keys of the specified class may be compared
+   * without dispatching through comparator, i.e. if comparator is
+   * natural order and the class is one of those handled by
+   * compareKeys.
+   */
+  public static boolean isNatural(Class c, Comparator comparator) {
+    return comparator == Comparators.Ascending
+      && (c == Integer.class || c == Long.class || c == String.class);
+  }
+
+  /**
+   * Compares the specified keys using the specified comparator,
+   * except that Integer, Long, and String keys in natural order are
+   * compared directly.  Most tables are keyed by such columns, and
+   * this avoids a megamorphic Comparator.compare and Comparable.compareTo
+   * call per tree level.
+   */
+  private static int compareKeys(Object left,
+                                 Object right,
+                                 Comparator comparator)
+  {
+    if (comparator == Comparators.Ascending && left != null && right != null)
+    {
+      Class c = left.getClass();
+      if (c == right.getClass()) {
+        if (c == Integer.class) {
+          return compare(((Integer) left).intValue(),
+                         ((Integer) right).intValue());
+        } else if (c == Long.class) {
+          return compare(((Long) left).longValue(),
+                         ((Long) right).longValue());
+        } else if (c == String.class) {
+          return ((String) left).compareTo((String) right);
+        }
+      }
+    }
+    return comparator.compare(left, right);
   }
 
   public static boolean equal(Object left,
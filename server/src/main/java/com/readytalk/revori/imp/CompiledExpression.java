@@ -0,0 +1,299 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.readytalk.revori.UnaryOperation;
+
+/**
+ * Flattened form of a boolean expression tree, evaluated by a single
+ * loop over an array of operations rather than by a virtual call per
+ * node.  This is used for the tests of queries, updates and deletes,
+ * which are evaluated once for every row visited.<p>
+ *
+ * The result is exactly that of evaluating the original tree, which
+ * is retained as source for planning (see makeScan and visit) and
+ * for code which inspects the shape of the test, such as
+ * JoinPlan.KeyFinder.  Like the adapters it is built from, an
+ * instance may only be used by one thread at a time.
+ */
+class CompiledExpression implements ExpressionAdapter {
+  private static final int ColumnOperation = 0;
+  private static final int ConstantOperation = 1;
+  private static final int GenericOperation = 2;
+  private static final int EqualOperation = 3;
+  private static final int NotEqualOperation = 4;
+  private static final int GreaterThanOperation = 5;
+  private static final int GreaterThanOrEqualOperation = 6;
+  private static final int LessThanOperation = 7;
+  private static final int LessThanOrEqualOperation = 8;
+  private static final int AndOperation = 9;
+  private static final int OrOperation = 10;
+  private static final int NotOperation = 11;
+  private static final int IsNullOperation = 12;
+  private static final int ParameterOperation = 13;
+
+  public final ExpressionAdapter source;
+  private final int[] operations;
+  private final Object[] operands;
+  private final Object[] stack;
+
+  private CompiledExpression(ExpressionAdapter source) {
+    this.source = source;
+
+    Compiler compiler = new Compiler();
+    compiler.compile(source);
+
+    operations = new int[compiler.operations.size()];
+    for (int i = 0; i < operations.length; ++i) {
+      operations[i] = compiler.operations.get(i);
+    }
+    operands = compiler.operands.toArray();
+    stack = new Object[compiler.maxDepth];
+  }
+
+  /**
+   * Returns a compiled form of the specified expression if it is a
+   * boolean operation, or the expression itself otherwise.
+   */
+  public static ExpressionAdapter compile(ExpressionAdapter expression) {
+    if (expression instanceof ComparisonAdapter
+        || expression instanceof BooleanBinaryAdapter
+        || expression instanceof BooleanUnaryAdapter)
+    {
+      return new CompiledExpression(expression);
+    } else {
+      return expression;
+    }
+  }
+
+  /**
+   * Returns the expression the specified one was compiled from, if
+   * any, or the expression itself otherwise.
+   */
+  public static ExpressionAdapter source(ExpressionAdapter expression) {
+    return expression instanceof CompiledExpression
+      ? ((CompiledExpression) expression).source : expression;
+  }
+
+  public Object evaluate(boolean convertDummyToNull) {
+    final int[] operations = this.operations;
+    final Object[] operands = this.operands;
+    final Object[] stack = this.stack;
+    int top = 0;
+
+    for (int i = 0; i < operations.length; ++i) {
+      int operation = operations[i];
+      switch (operation) {
+      case ColumnOperation: {
+        Object value = ((ColumnReferenceAdapter) operands[i]).value;
+        stack[top++] = convertDummyToNull && value == Compare.Dummy
+          ? null : value;
+      } break;
+
+      case ConstantOperation:
+        stack[top++] = operands[i];
+        break;
+
+      case ParameterOperation:
+        stack[top++] = ((ParameterAdapter) operands[i]).value;
+        break;
+
+      case GenericOperation:
+        stack[top++] = ((ExpressionAdapter) operands[i]).evaluate
+          (convertDummyToNull);
+        break;
+
+      case NotOperation:
+      case IsNullOperation:
+        stack[top - 1] = unary(operation, stack[top - 1]);
+        break;
+
+      default: {
+        Object right = stack[--top];
+        stack[top] = null;
+        stack[top - 1] = binary(operation, stack[top - 1], right);
+      } break;
+      }
+    }
+
+    Object result = stack[0];
+    stack[0] = null;
+    return result;
+  }
+
+  private static Object unary(int operation, Object value) {
+    if (value == null) {
+      return operation == IsNullOperation;
+    } else if (value == Compare.Undefined) {
+      return Compare.Undefined;
+    } else if (operation == NotOperation) {
+      return value != Boolean.TRUE;
+    } else {
+      return false; // the true case of IsNull is handled above
+    }
+  }
+
+  private static Object binary(int operation, Object left, Object right) {
+    if (left == null || right == null) {
+      return false;
+    } else if (left == Compare.Undefined || right == Compare.Undefined) {
+      return Compare.Undefined;
+    }
+
+    switch (operation) {
+    case EqualOperation:
+      return equal(left, right);
+    case NotEqualOperation:
+      return ! equal(left, right);
+    case GreaterThanOperation:
+      return compare(left, right) > 0;
+    case GreaterThanOrEqualOperation:
+      return compare(left, right) >= 0;
+    case LessThanOperation:
+      return compare(left, right) < 0;
+    case LessThanOrEqualOperation:
+      return compare(left, right) <= 0;
+    case AndOperation:
+      return left == Boolean.TRUE && right == Boolean.TRUE;
+    case OrOperation:
+      return left == Boolean.TRUE || right == Boolean.TRUE;
+    default: throw new RuntimeException
+        ("unexpected operation: " + operation);
+    }
+  }
+
+  /**
+   * Equivalent to left.equals(right), except that Integer and Long
+   * values are compared directly.
+   */
+  private static boolean equal(Object left, Object right) {
+    Class c = left.getClass();
+    if (c == right.getClass()) {
+      if (c == Integer.class) {
+        return ((Integer) left).intValue() == ((Integer) right).intValue();
+      } else if (c == Long.class) {
+        return ((Long) left).longValue() == ((Long) right).longValue();
+      }
+    }
+    return left.equals(right);
+  }
+
+  /**
+   * Equivalent to ((Comparable) left).compareTo(right), except that
+   * Integer, Long, and String values are compared directly.
+   */
+  private static int compare(Object left, Object right) {
+    Class c = left.getClass();
+    if (c == right.getClass()) {
+      if (c == Integer.class) {
+        return Compare.compare(((Integer) left).intValue(),
+                               ((Integer) right).intValue());
+      } else if (c == Long.class) {
+        return Compare.compare(((Long) left).longValue(),
+                               ((Long) right).longValue());
+      } else if (c == String.class) {
+        return ((String) left).compareTo((String) right);
+      }
+    }
+    return ((Comparable) left).compareTo(right);
+  }
+
+  public void visit(ExpressionAdapterVisitor visitor) {
+    source.visit(visitor);
+  }
+
+  public Scan makeScan(ColumnReferenceAdapter reference) {
+    return source.makeScan(reference);
+  }
+
+  public Class<?> type() {
+    return source.type();
+  }
+
+  private static class Compiler {
+    public final List<Integer> operations = new ArrayList<Integer>();
+    public final List<Object> operands = new ArrayList<Object>();
+    public int depth;
+    public int maxDepth;
+
+    public void compile(ExpressionAdapter e) {
+      if (e instanceof ColumnReferenceAdapter) {
+        push(ColumnOperation, e);
+      } else if (e instanceof ConstantAdapter) {
+        push(ConstantOperation, e.evaluate(false));
+      } else if (e instanceof ParameterAdapter) {
+        push(ParameterOperation, e);
+      } else if (e instanceof ComparisonAdapter) {
+        ComparisonAdapter a = (ComparisonAdapter) e;
+        compile(a.left);
+        compile(a.right);
+        switch (a.type) {
+        case Equal:
+          pop(EqualOperation);
+          break;
+        case NotEqual:
+          pop(NotEqualOperation);
+          break;
+        case GreaterThan:
+          pop(GreaterThanOperation);
+          break;
+        case GreaterThanOrEqual:
+          pop(GreaterThanOrEqualOperation);
+          break;
+        case LessThan:
+          pop(LessThanOperation);
+          break;
+        case LessThanOrEqual:
+          pop(LessThanOrEqualOperation);
+          break;
+        default: throw new RuntimeException
+            ("unexpected comparison type: " + a.type);
+        }
+      } else if (e instanceof BooleanBinaryAdapter) {
+        BooleanBinaryAdapter a = (BooleanBinaryAdapter) e;
+        compile(a.left);
+        compile(a.right);
+        switch (a.type) {
+        case And:
+          pop(AndOperation);
+          break;
+        case Or:
+          pop(OrOperation);
+          break;
+        default: throw new RuntimeException
+            ("unexpected boolean operation type: " + a.type);
+        }
+      } else if (e instanceof BooleanUnaryAdapter) {
+        BooleanUnaryAdapter a = (BooleanUnaryAdapter) e;
+        compile(a.operand);
+        operations.add(a.type == UnaryOperation.Type.Not
+                       ? NotOperation : IsNullOperation);
+        operands.add(null);
+      } else {
+        push(GenericOperation, e);
+      }
+    }
+
+    private void push(int operation, Object operand) {
+      operations.add(operation);
+      operands.add(operand);
+      if (++ depth > maxDepth) {
+        maxDepth = depth;
+      }
+    }
+
+    private void pop(int operation) {
+      operations.add(operation);
+      operands.add(null);
+      -- depth;
+    }
+  }
+}
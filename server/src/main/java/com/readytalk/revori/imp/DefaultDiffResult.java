@@ -31,14 +31,14 @@ class DefaultDiffResult implements DiffResult {
         return n == null ? null : n.key;
       }
 
-      public Node forkTree(DefaultDiffResult r) {
+      public Object forkTree(DefaultDiffResult r) {
         Node n = r.pairs[r.clientDepth].fork;
-        return n == null ? Node.Null : (Node) n.value;
+        return n == null ? Node.Null : n.value;
       }
 
-      public Node baseTree(DefaultDiffResult r) {
+      public Object baseTree(DefaultDiffResult r) {
         Node n = r.pairs[r.clientDepth].base;
-        return n == null ? Node.Null : (Node) n.value;
+        return n == null ? Node.Null : n.value;
       }
 
       public void skip(DefaultDiffResult r) {
@@ -69,11 +69,11 @@ class DefaultDiffResult implements DiffResult {
       throw new IllegalStateException();
     }
 
-    public Node forkTree(DefaultDiffResult r) {
+    public Object forkTree(DefaultDiffResult r) {
       throw new IllegalStateException();
     }
 
-    public Node baseTree(DefaultDiffResult r) {
+    public Object baseTree(DefaultDiffResult r) {
       throw new IllegalStateException();
     }
 
@@ -95,6 +95,8 @@ class DefaultDiffResult implements DiffResult {
   private int depth;
   private int bottom;
   private int clientDepth;
+  private long visited;
+  private long changed;
   private Set<Column<?>> primaryKey;
   private List<RefererForeignKeyAdapter> refererKeyAdapters;
 
@@ -126,6 +128,7 @@ class DefaultDiffResult implements DiffResult {
         if (! clientHasKey[clientDepth]) {
           state = State.FlushKey; 
           clientHasKey[clientDepth] = true;
+          ++ changed;
           return DiffResult.Type.Key;
         } else if (clientDepth != depth) {
           if (clientDepth == Constants.TableDataDepth) {
@@ -159,13 +162,27 @@ class DefaultDiffResult implements DiffResult {
         DiffPair pair = pairs[depth];
 
         if (pair.base != null && pair.fork != null) {
-          if (depth > Constants.IndexDataDepth && depth == bottom) {
+          if (pair.base.value == pair.fork.value) {
+            // the nodes differ (e.g. due to rebalancing or a change
+            // elsewhere in this tree) but share a value, so there's
+            // nothing to report here or below
+            state = State.Iterate;
+          } else if (depth > Constants.IndexDataDepth && depth == bottom) {
             if (Compare.equal(pair.base.value, pair.fork.value)) {
               state = State.Iterate;
             } else {
               nextState = State.Value;
               state = State.Flush;
             }
+          } else if (depth == bottom - 1
+                     && pair.base.value instanceof PackedRow
+                     && pair.fork.value instanceof PackedRow
+                     && PackedRow.equal
+                     (baseStack, pair.base.value, forkStack, pair.fork.value))
+          {
+            // packed rows with the same values, which we can compare
+            // without expanding them
+            state = State.Iterate;
           } else {
             state = State.Descend;
           }
@@ -187,7 +204,7 @@ class DefaultDiffResult implements DiffResult {
                        && skipBrokenReferences
                        && pair.fork == null
                        && findBrokenReference
-                       (fork, (Node) pair.base.value, refererKeyAdapters))
+                       (fork, pair.base.value, refererKeyAdapters))
             {
               // no need to explicitly report deletion of rows which
               // cannot exist due to a foreign key constraint
@@ -260,6 +277,9 @@ class DefaultDiffResult implements DiffResult {
         // after this.  The popStack calls below should not be called
         // more than once.
 
+        visited += iterators[0].visited;
+        iterators[0].visited = 0;
+
         baseStack.popStack();
         forkStack.popStack();
         
@@ -282,9 +302,9 @@ class DefaultDiffResult implements DiffResult {
     ++ depth;
 
     iterators[depth] = new DiffIterator
-      (base == null ? Node.Null : (Node) base.value,
+      (base == null ? Node.Null : PackedRow.tree(base.value),
        baseStack = new NodeStack(baseStack),
-       fork == null ? Node.Null : (Node) fork.value,
+       fork == null ? Node.Null : PackedRow.tree(fork.value),
        forkStack = new NodeStack(forkStack),
        Lists.newArrayList(Interval.Unbounded).iterator(),
        false, depth == Constants.IndexDataDepth ? Compare.IndexComparator
@@ -298,6 +318,7 @@ class DefaultDiffResult implements DiffResult {
   }
 
   public void ascend() {
+    visited += iterators[depth].visited;
     iterators[depth] = null;
 
     -- depth;
@@ -314,11 +335,16 @@ class DefaultDiffResult implements DiffResult {
     return state.base(this);
   }
 
-  public Node forkTree() {
+  /**
+   * Returns the value of the current node in the fork, which is a row
+   * (either a tree or a PackedRow) if the current node is a leaf of a
+   * primary key data tree.
+   */
+  public Object forkTree() {
     return state.forkTree(this);
   }
 
-  public Node baseTree() {
+  public Object baseTree() {
     return state.baseTree(this);
   }
 
@@ -326,13 +352,27 @@ class DefaultDiffResult implements DiffResult {
     state.skip(this);
   }
 
+  public long nodesVisited() {
+    long count = visited;
+    for (int i = 0; i <= depth; ++i) {
+      if (iterators[i] != null) {
+        count += iterators[i].visited;
+      }
+    }
+    return count;
+  }
+
+  public long nodesChanged() {
+    return changed;
+  }
+
   private static boolean findBrokenReference
     (DefaultRevision revision,
-     Node tree,
+     Object row,
      List<RefererForeignKeyAdapter> adapters)
   {
     for (RefererForeignKeyAdapter adapter: adapters) {
-      if (adapter.isBrokenReference(revision, tree)) {
+      if (adapter.isBrokenReference(revision, row)) {
         return true;
       }
     }
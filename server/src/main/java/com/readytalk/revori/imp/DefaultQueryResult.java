@@ -7,15 +7,17 @@
 
 package com.readytalk.revori.imp;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
 
 import javax.annotation.Nullable;
 
 import com.readytalk.revori.Expression;
+import com.readytalk.revori.Index;
 import com.readytalk.revori.QueryResult;
 import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.TableReference;
 
 class DefaultQueryResult implements QueryResult {
   private static class ChangeFinder implements SourceAdapterVisitor {
@@ -42,15 +44,21 @@ class DefaultQueryResult implements QueryResult {
     }
   }
 
-  private final SourceAdapter source;
-  public final List<ExpressionAdapter> expressions;
-  public final ExpressionContext expressionContext;
-  public final ExpressionAdapter test;
-  private final DefaultRevision base;
-  private final DefaultRevision fork;
-  private final NodeStack baseStack;
-  private final NodeStack forkStack;
+  private final QueryTemplate requestedTemplate;
+  private final boolean force;
+  private PreparedQuery query;
+  private Index orderIndex;
+  private boolean sort;
+  private SourceAdapter source;
+  public List<ExpressionAdapter> expressions;
+  public ExpressionContext expressionContext;
+  public ExpressionAdapter test;
+  private DefaultRevision base;
+  private DefaultRevision fork;
+  private NodeStack baseStack;
+  private NodeStack forkStack;
   private SourceIterator iterator;
+  private TopIterator top;
   private int nextItemIndex;
 
   public DefaultQueryResult(DefaultRevision base,
@@ -60,7 +68,8 @@ class DefaultQueryResult implements QueryResult {
                        QueryTemplate template,
                        Object[] parameters)
   {
-    this(base, baseStack, fork, forkStack, template, parameters, false);
+    this(template, base, baseStack, fork, forkStack, template, parameters,
+         null, false, false);
   }
 
   public DefaultQueryResult(DefaultRevision base,
@@ -71,43 +80,100 @@ class DefaultQueryResult implements QueryResult {
                        Object[] parameters,
                        boolean force)
   {
-    if (base == fork && (! force)) {
-      source = null;
-      expressions = null;
-      expressionContext = null;
-      test = null;
-    } else {
-      ChangeFinder finder = new ChangeFinder(base, fork);
-      SourceAdapter source = SourceAdapterFactory.makeAdapter(template.source);
-      source.visit(finder);
+    this(template, base, baseStack, fork, forkStack, template, parameters,
+         null, false, force);
+  }
 
-      if (finder.foundChanged || force) {
-        expressions = new ArrayList<ExpressionAdapter>
-          (template.expressions.size());
+  /**
+   * Creates a result for the specified template, which may differ
+   * from the one requested by the caller (e.g. if the latter is
+   * evaluated using a temporary view), in which case the requested
+   * one is used when resetting this result.<p>
+   *
+   * If orderIndex is non-null, the template must select from a single
+   * table, and only the rows it inserts are visited, in the order of
+   * that index (see Plan.orderedIndex).  If sort is true, the
+   * template must be TopIterator.sortTemplate(requestedTemplate), and
+   * the first rows it inserts are visited in the order requested.<p>
+   *
+   * In either case, the offset and limit of the requested template
+   * are applied to the rows visited.
+   */
+  public DefaultQueryResult(QueryTemplate requestedTemplate,
+                            DefaultRevision base,
+                            @Nullable NodeStack baseStack,
+                            DefaultRevision fork,
+                            @Nullable NodeStack forkStack,
+                            QueryTemplate template,
+                            Object[] parameters,
+                            @Nullable Index orderIndex,
+                            boolean sort,
+                            boolean force)
+  {
+    this.requestedTemplate = requestedTemplate;
+    this.force = force;
 
-        expressionContext = new ExpressionContext
-          (parameters, force ? null : expressions);
+    init(base, baseStack, fork, forkStack, template, parameters, orderIndex,
+         sort);
+  }
 
-        for (Expression e: template.expressions) {
-          expressions.add
-            (ExpressionAdapterFactory.makeAdapter(expressionContext, e));
-        }
+  void init(DefaultRevision base,
+            @Nullable NodeStack baseStack,
+            DefaultRevision fork,
+            @Nullable NodeStack forkStack,
+            QueryTemplate template,
+            Object[] parameters,
+            @Nullable Index orderIndex,
+            boolean sort)
+  {
+    // an ordered result must visit every row whose values have
+    // changed, as a forced one does, not just those whose query
+    // expressions have changed, since the temporary view it stands
+    // in for would include them
+    boolean prepareForced = force || orderIndex != null || sort;
 
-        if (baseStack == null) baseStack = new NodeStack();
-        if (forkStack == null) forkStack = new NodeStack();
+    PreparedQuery query = null;
+    if (base != fork || force) {
+      if (this.query != null
+          && this.query.preparedFor(template, prepareForced)
+          && this.query.bind(parameters))
+      {
+        query = this.query;
+      } else {
+        release();
+        query = PreparedQuery.acquire(template, parameters, prepareForced);
+      }
+      this.query = null;
 
-        test = ExpressionAdapterFactory.makeAdapter
-          (expressionContext, template.test);
+      ChangeFinder finder = new ChangeFinder(base, fork);
+      query.source.visit(finder);
 
-        this.source = source;
-      } else {
-        this.source = null;
-        expressions = null;
-        expressionContext = null;
-        test = null;
+      if (! (finder.foundChanged || force)) {
+        query.release();
+        query = null;
       }
+    } else {
+      release();
+    }
+
+    if (query == null) {
+      source = null;
+      expressions = null;
+      expressionContext = null;
+      test = null;
+    } else {
+      if (baseStack == null) baseStack = new NodeStack();
+      if (forkStack == null) forkStack = new NodeStack();
+
+      this.query = query;
+      source = query.source;
+      expressions = query.expressions;
+      expressionContext = query.expressionContext;
+      test = query.test;
     }
 
+    this.orderIndex = orderIndex;
+    this.sort = sort;
     this.base = base;
     this.fork = fork;
     this.baseStack = baseStack;
@@ -116,25 +182,141 @@ class DefaultQueryResult implements QueryResult {
     reset();
   }
 
+  /**
+   * Returns the adapters used by this result to the pool for their
+   * template, after which this result will visit no further rows
+   * until reset.  This is done automatically when the end of an
+   * unforced result is reached.
+   */
+  public void release() {
+    if (query != null) {
+      query.release();
+      query = null;
+      source = null;
+      iterator = null;
+      top = null;
+    }
+  }
+
+  /**
+   * Appends a description of the plan which would be used to visit
+   * the results of the specified query, as described in
+   * Revision.explain, to the specified buffer.
+   */
+  public static void explain(DefaultRevision base,
+                             DefaultRevision fork,
+                             QueryTemplate template,
+                             Object[] parameters,
+                             StringBuilder out,
+                             int depth)
+  {
+    SourceAdapter source = SourceAdapterFactory.makeAdapter(template.source);
+
+    ExpressionContext expressionContext = new ExpressionContext
+      (parameters, null);
+
+    // the expressions must be visited before the test so parameters
+    // are resolved in the right order
+    for (Expression e: template.expressions) {
+      ExpressionAdapterFactory.makeAdapter(expressionContext, e);
+    }
+
+    ExpressionAdapter test = ExpressionAdapterFactory.makeAdapter
+      (expressionContext, template.test);
+
+    source.explain(base, fork, test, expressionContext, out, depth);
+  }
+
+  /**
+   * Appends a description of the plan which would be used to visit
+   * the rows of the specified query in the order of the specified
+   * index, as described in the constructor, to the specified buffer.
+   */
+  public static void explain(DefaultRevision base,
+                             DefaultRevision fork,
+                             QueryTemplate template,
+                             Object[] parameters,
+                             Index orderIndex,
+                             StringBuilder out,
+                             int depth)
+  {
+    ExpressionContext expressionContext = new ExpressionContext
+      (parameters, null);
+
+    for (Expression e: template.expressions) {
+      ExpressionAdapterFactory.makeAdapter(expressionContext, e);
+    }
+
+    ExpressionAdapter test = ExpressionAdapterFactory.makeAdapter
+      (expressionContext, template.test);
+
+    Plan.indent(out, depth).append
+      (Plan.choosePlan
+       (base, fork, test, (TableReference) template.source, orderIndex))
+      .append("\n");
+  }
+
   public void reset() {
+    top = null;
+
     if (source != null) {
-      iterator = source.iterator
-        (base, baseStack, fork, forkStack, test, expressionContext, false);
+      if (orderIndex == null) {
+        iterator = source.iterator
+          (base, baseStack, fork, forkStack, test, expressionContext, false);
+      } else {
+        TableReference tableReference = ((TableAdapter) source).tableReference;
+
+        iterator = new InsertedRowIterator
+          (new TableIterator
+           (tableReference, base, baseStack, fork, forkStack, test,
+            expressionContext, Plan.choosePlan
+            (base, fork, test, tableReference, orderIndex), false));
+      }
+
+      if (sort) {
+        iterator = top = new TopIterator
+          (iterator, expressions, requestedTemplate);
+      }
+
+      if (requestedTemplate.limit >= 0 || requestedTemplate.offset > 0) {
+        iterator = new LimitIterator
+          (iterator, requestedTemplate.offset, requestedTemplate.limit);
+      }
     }
   }
 
+  public void reset(Revision base, Revision fork, Object ... parameters) {
+    DefaultRevision myBase;
+    try {
+      myBase = (DefaultRevision) base;
+    } catch (ClassCastException e) {
+      throw new IllegalArgumentException
+        ("revision not created by this implementation");
+    }
+
+    myBase.diff(this, fork, requestedTemplate, parameters);
+  }
+
   public QueryResult.Type nextRow() {
     if (iterator == null) {
       return QueryResult.Type.End;
     } else {
       nextItemIndex = 0;
-      return iterator.nextRow();
+      QueryResult.Type type = iterator.nextRow();
+      if (type == QueryResult.Type.End && ! force) {
+        release();
+      }
+      return type;
     }
   }
 
   public Object nextItem() {
-    if (iterator == null || nextItemIndex >= expressions.size()) {
+    if (iterator == null
+        || nextItemIndex >= requestedTemplate.expressions.size())
+    {
       throw new NoSuchElementException();
+    } else if (top != null) {
+      return top.item(nextItemIndex++);
     } else {
       return expressions.get(nextItemIndex++).evaluate(true);
     }      
@@ -7,10 +7,17 @@
 
 package com.readytalk.revori.imp;
 
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.readytalk.revori.Column;
 import com.readytalk.revori.ColumnReference;
@@ -24,6 +31,9 @@ import com.readytalk.revori.QueryResult;
 import com.readytalk.revori.QueryTemplate;
 import com.readytalk.revori.Revision;
 import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Source;
+import com.readytalk.revori.SourceVisitor;
+import com.readytalk.revori.Table;
 import com.readytalk.revori.TableReference;
 import com.readytalk.revori.View;
 
@@ -60,7 +70,9 @@ public class DefaultRevision implements Revision {
     final ColumnReferenceAdapter adapter = new ColumnReferenceAdapter
       (reference, column);
 
-    Plan plan = new Plan(index);
+    Plan plan = new Plan
+      (index, Node.Null,
+       Node.pathFind(root, index.table, Compare.TableComparator));
     for (int i = 0; i < plan.scans.length; ++i) {
       if (i < indexValues.length) {
         ExpressionAdapter ea = new ConstantAdapter(indexValues[i]);
@@ -138,24 +150,23 @@ public class DefaultRevision implements Revision {
         ("expected column as second-to-last element of path");        
     }
 
-    Object[] myPath = new Object[(columns.size() + 2) * 2];
+    // find the leaf holding the row, then the column within it
+    int last = columns.size() - 1;
+    Object[] myPath = new Object[(last + 2) * 2];
     myPath[0] = index.table;
     myPath[1] = Compare.TableComparator;
     myPath[2] = index;
     myPath[3] = Compare.IndexComparator;
-    for (int i = 0; i < columns.size(); ++i) {
+    for (int i = 0; i < last; ++i) {
       myPath[(i + 2) * 2] = path[pathOffset + i + 1];
       myPath[((i + 2) * 2) + 1] = columns.get(i).comparator;
     }
 
-    Node n = Node.find
-      (Node.pathFind(root, myPath), column, Compare.ColumnComparator);
+    Node leaf = Node.find
+      (Node.pathFind(root, myPath), path[pathOffset + last + 1],
+       columns.get(last).comparator);
 
-    if (n == Node.Null) {
-      return null;
-    } else {
-      return n.value;
-    }
+    return leaf == Node.Null ? null : PackedRow.value(leaf.value, column);
   }
 
   public Object query(Object ... path)
@@ -163,9 +174,185 @@ public class DefaultRevision implements Revision {
     return query(path, 0, path.length);
   }
 
+  public long count(Index index, Object ... indexPrefix) {
+    int last = index.columns.size() - 1;
+    if (indexPrefix.length == last + 1) {
+      // all columns specified -- the row either exists or it doesn't
+      return Node.find
+        (prefixTree(index, Arrays.copyOf(indexPrefix, last)),
+         indexPrefix[last], index.columns.get(last).comparator)
+        == Node.Null ? 0 : 1;
+    } else {
+      return rows(prefixTree(index, indexPrefix), weights(index),
+                  indexPrefix.length);
+    }
+  }
+
+  public long countRange(Index index,
+                         @Nullable Object low,
+                         @Nullable Object high,
+                         Object ... indexPrefix)
+  {
+    int depth = indexPrefix.length;
+    Node tree = prefixTree(index, indexPrefix);
+    Comparator comparator = index.columns.get(depth).comparator;
+    Object myLow = low == null ? Compare.Undefined : low;
+    Object myHigh = high == null ? Compare.Undefined : high;
+
+    int start;
+    int end;
+    if (depth == index.columns.size() - 1) {
+      start = Node.rank
+        (tree, myLow, Interval.BoundType.Inclusive, false, comparator);
+      end = Node.rank
+        (tree, myHigh, Interval.BoundType.Exclusive, true, comparator);
+    } else {
+      Node.Weight weight = weights(index)[depth];
+      start = Node.rank
+        (tree, myLow, Interval.BoundType.Inclusive, false, comparator,
+         weight);
+      end = Node.rank
+        (tree, myHigh, Interval.BoundType.Exclusive, true, comparator,
+         weight);
+    }
+
+    return Math.max(0, end - start);
+  }
+
+  public long rank(Index index, Object ... indexValues) {
+    List<Column<?>> columns = index.columns;
+    if (indexValues.length != columns.size()) {
+      throw new IllegalArgumentException
+        ("wrong number of parameters for specified index");
+    }
+
+    Node.Weight[] weights = weights(index);
+    long rank = 0;
+    Node tree = prefixTree(index, new Object[0]);
+    for (int depth = 0; depth < columns.size() && tree != Node.Null; ++depth) {
+      Comparator comparator = columns.get(depth).comparator;
+      if (depth == columns.size() - 1) {
+        rank += Node.rank
+          (tree, indexValues[depth], Interval.BoundType.Inclusive, false,
+           comparator);
+      } else {
+        rank += Node.rank
+          (tree, indexValues[depth], Interval.BoundType.Inclusive, false,
+           comparator, weights[depth]);
+
+        tree = (Node) Node.find(tree, indexValues[depth], comparator).value;
+      }
+    }
+
+    return rank;
+  }
+
+  public Object[] select(Index index, long rank, Object ... indexPrefix) {
+    List<Column<?>> columns = index.columns;
+    Node tree = prefixTree(index, indexPrefix);
+    Object[] values = new Object[columns.size()];
+    System.arraycopy(indexPrefix, 0, values, 0, indexPrefix.length);
+
+    if (rank < 0 || rank > Integer.MAX_VALUE) {
+      return null;
+    }
+
+    Node.Weight[] weights = weights(index);
+    Node.SelectResult result = new Node.SelectResult();
+    int myRank = (int) rank;
+    for (int depth = indexPrefix.length; depth < columns.size(); ++depth) {
+      if (depth == columns.size() - 1) {
+        if (myRank >= tree.size) {
+          return null;
+        } else {
+          values[depth] = Node.select(tree, myRank).key;
+        }
+      } else {
+        // find the key beneath which the row of the specified rank
+        // lies, and its rank among the rows beneath that key
+        Node.select(result, tree, myRank, weights[depth]);
+        if (result.node == Node.Null) {
+          return null;
+        }
+
+        values[depth] = result.node.key;
+        tree = (Node) result.node.value;
+        myRank = result.offset;
+      }
+    }
+
+    return values;
+  }
+
+  /**
+   * Returns the tree holding the keys of the specified index for the
+   * column following the specified prefix, or Node.Null if there are
+   * no such keys.
+   */
+  private Node prefixTree(Index index, Object[] indexPrefix) {
+    if (indexPrefix.length >= index.columns.size()) {
+      throw new IllegalArgumentException
+        ("too many parameters for specified index");
+    }
+
+    Node tree = Node.pathFind
+      (root, index.table, Compare.TableComparator, index,
+       Compare.IndexComparator);
+    for (int i = 0; i < indexPrefix.length && tree != Node.Null; ++i) {
+      tree = (Node) Node.find
+        (tree, indexPrefix[i], index.columns.get(i).comparator).value;
+    }
+    return tree;
+  }
+
+  /**
+   * Returns the number of rows beneath the specified tree, which holds
+   * the keys of the specified index for the column at the specified
+   * depth.
+   */
+  private static int rows(Node tree, Node.Weight[] weights, int depth) {
+    return depth == weights.length ? tree.size
+      : Node.total(tree, weights[depth]);
+  }
+
+  /**
+   * Returns an array holding, for each column of the specified index
+   * but the last, a weight which assigns each key of that column the
+   * number of rows beneath it.  The size of each tree of keys for the
+   * last column is the number of rows it holds, while the number of
+   * rows beneath a tree of keys for any other column is memoized in
+   * its nodes (see Node.total), so all of these counts take
+   * logarithmic time once computed for an earlier revision.
+   */
+  private static Node.Weight[] weights(Index index) {
+    final Node.Weight[] weights = new Node.Weight[index.columns.size() - 1];
+    for (int i = 0; i < weights.length; ++i) {
+      final int depth = i + 1;
+      weights[i] = new Node.Weight() {
+          public int of(Node entry) {
+            return rows((Node) entry.value, weights, depth);
+          }
+        };
+    }
+    return weights;
+  }
+
   public QueryResult diff(Revision fork,
                           QueryTemplate template,
                           Object ... parameters)
+  {
+    return diff(null, fork, template, parameters);
+  }
+
+  /**
+   * Implements diff(Revision, QueryTemplate, Object...), resetting and
+   * returning the specified result, if non-null, rather than
+   * creating a new one.
+   */
+  DefaultQueryResult diff(@Nullable DefaultQueryResult result,
+                          Revision fork,
+                          QueryTemplate template,
+                          Object[] parameters)
   {
     DefaultRevision myFork;
     try {
@@ -182,39 +369,216 @@ public class DefaultRevision implements Revision {
          + parameters.length + ")");
     }
 
+    DefaultRevision base = this;
+    QueryTemplate actualTemplate = template;
+    Object[] actualParameters = parameters;
+    Index orderIndex = null;
+    boolean sort = false;
     if (template.hasAggregates || (! template.orderByExpressions.isEmpty())) {
-      // todo: look for an index or view which will allow us to
-      // fulfill this query without creating a temporary view;
-      // i.e. teach the query planner about order-by clauses,
-      // aggregates, and views, so we only fall back to using a
-      // temporary view when an exisiting view or index does not
-      // suffice.  The query planner may be able to use a view even
-      // for queries which do not involve aggregates or order-by
-      // clauses.  Ultimately, it may help to remove the distinction
-      // between indexes and views.
-
-      View view = new View(template, parameters);
-      DefaultRevisionBuilder builder = new DefaultRevisionBuilder
-        (new Object(), myFork, new NodeStack());
-
-      builder.addView(view, this);
-
-      TableReference tableReference = new TableReference(view.table);
-      List<Expression> expressions = Lists.newArrayListWithCapacity(view.primaryKeyOffset);
-      for (int i = 0; i < view.primaryKeyOffset; ++i) {
-        expressions.add
-          (new ColumnReference(tableReference, view.columns.get(i)));
+      // Such a query is answered, in order of preference, by scanning
+      // an index which visits the rows in the requested order, by
+      // reading an existing view derived from an equal template, by
+      // sorting just the rows needed to satisfy a limit, or by
+      // populating a temporary view with the rows which differ
+      // between this revision and the fork.  Ultimately, it may help
+      // to remove the distinction between indexes and views.
+
+      orderIndex = Plan.orderedIndex(this, myFork, template);
+
+      if (orderIndex == null) {
+        View view = new View(template, parameters);
+        View existing = findView(this, myFork, view);
+
+        if (existing != null) {
+          base = Empty;
+          actualTemplate = viewQuery(existing);
+          actualParameters = new Object[0];
+        } else if (template.limit >= 0 && ! template.hasAggregates) {
+          sort = true;
+          actualTemplate = TopIterator.sortTemplate(template);
+        } else {
+          DefaultRevisionBuilder builder = new DefaultRevisionBuilder
+            (new Object(), myFork, new NodeStack());
+
+          builder.addView(view, this);
+
+          base = myFork;
+          myFork = (DefaultRevision) builder.commit();
+          actualTemplate = viewQuery(view);
+          actualParameters = new Object[0];
+        }
       }
+    }
 
-      return myFork.diff
-        (builder.commit(), new QueryTemplate
-         (expressions, tableReference, new Constant(true)));
-    } else {
+    if (result == null) {
       return new DefaultQueryResult
-        (this, null, myFork, null, template, parameters.clone());
+        (template, base, null, myFork, null, actualTemplate, actualParameters,
+         orderIndex, sort, false);
+    } else {
+      result.init
+        (base, null, myFork, null, actualTemplate, actualParameters,
+         orderIndex, sort);
+      return result;
     }
   }
 
+  /**
+   * Returns a template which selects the columns of the specified
+   * view corresponding to the expressions of the template it was
+   * defined with.
+   */
+  private static QueryTemplate viewQuery(View view) {
+    TableReference tableReference = new TableReference(view.table);
+    List<Expression> expressions = Lists.newArrayListWithCapacity
+      (view.primaryKeyOffset);
+    for (int i = 0; i < view.primaryKeyOffset; ++i) {
+      expressions.add
+        (new ColumnReference(tableReference, view.columns.get(i)));
+    }
+
+    return new QueryTemplate
+      (expressions, tableReference, new Constant(true));
+  }
+
+  /**
+   * Returns a view defined in the specified fork which holds the same
+   * rows in the same order as the specified temporary view would if
+   * populated with the differences between the specified base and
+   * the fork, or null if there is no such view.  This is only
+   * possible if the base contains no rows in any table referenced by
+   * the view, in which case those differences are simply the
+   * contents of the fork.
+   */
+  private static View findView(final DefaultRevision base,
+                               DefaultRevision fork,
+                               View temporary)
+  {
+    final List<Table> tables = Lists.newArrayList();
+    final boolean[] baseEmpty = new boolean[] { true };
+    temporary.query.source.visit(new SourceVisitor() {
+        public void visit(Source source) {
+          if (source instanceof TableReference) {
+            Table table = ((TableReference) source).table;
+            tables.add(table);
+            if (Node.find(base.root, table, Compare.TableComparator)
+                != Node.Null)
+            {
+              baseEmpty[0] = false;
+            }
+          }
+        }
+      });
+
+    if (tables.isEmpty() || ! baseEmpty[0]) {
+      return null;
+    }
+
+    // a view is indexed under every table it references, so we need
+    // only look under one of them
+    for (NodeIterator views = new NodeIterator
+           (new NodeStack(), Node.pathFind
+            (fork.root, Constants.ViewTable, Compare.TableComparator,
+             Constants.ViewTable.primaryKey, Compare.IndexComparator,
+             tables.get(0), Constants.TableColumn.comparator));
+         views.hasNext();)
+    {
+      View view = (View) views.next().key;
+      if (equivalent(view, temporary)) {
+        return view;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns true if the specified views were derived from equal
+   * templates and parameters and therefore hold the same rows, with
+   * primary keys ordered the same way, though their tables and
+   * columns have different IDs.
+   */
+  private static boolean equivalent(View a, View b) {
+    if (a.primaryKeyOffset != b.primaryKeyOffset
+        || a.aggregateOffset != b.aggregateOffset
+        || a.aggregateExpressionOffset != b.aggregateExpressionOffset
+        || (! a.parameters.equals(b.parameters))
+        || (! a.query.equals(b.query)))
+    {
+      return false;
+    }
+
+    List<Column<?>> aKey = a.table.primaryKey.columns;
+    List<Column<?>> bKey = b.table.primaryKey.columns;
+    if (aKey.size() != bKey.size()) {
+      return false;
+    }
+
+    for (int i = 0; i < aKey.size(); ++i) {
+      if (! aKey.get(i).comparator.equals(bKey.get(i).comparator)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  public String explain(Revision fork,
+                        QueryTemplate template,
+                        Object ... parameters)
+  {
+    DefaultRevision myFork;
+    try {
+      myFork = (DefaultRevision) fork;
+    } catch (ClassCastException e) {
+      throw new IllegalArgumentException
+        ("revision not created by this implementation");        
+    }
+
+    if (parameters.length != template.parameterCount) {
+      throw new IllegalArgumentException
+        ("wrong number of parameters (expected "
+         + template.parameterCount + "; got "
+         + parameters.length + ")");
+    }
+
+    StringBuilder out = new StringBuilder();
+    if (template.hasAggregates || (! template.orderByExpressions.isEmpty())) {
+      Index orderIndex = Plan.orderedIndex(this, myFork, template);
+      if (orderIndex != null) {
+        out.append("ordered by index\n");
+        DefaultQueryResult.explain
+          (this, myFork, template, parameters.clone(), orderIndex, out, 1);
+        return out.toString();
+      }
+
+      View existing = findView(this, myFork, new View(template, parameters));
+      if (existing != null) {
+        out.append(existing).append("\n");
+        DefaultQueryResult.explain
+          (Empty, myFork, viewQuery(existing), new Object[0], out, 1);
+        return out.toString();
+      }
+
+      if (template.limit >= 0 && ! template.hasAggregates) {
+        out.append("sort first ")
+          .append((long) template.offset + template.limit).append(" rows\n");
+        DefaultQueryResult.explain
+          (this, myFork, TopIterator.sortTemplate(template),
+           parameters.clone(), out, 1);
+        return out.toString();
+      }
+
+      out.append("temporary view\n");
+      DefaultQueryResult.explain
+        (this, myFork, template, parameters.clone(), out, 1);
+    } else {
+      DefaultQueryResult.explain
+        (this, myFork, template, parameters.clone(), out, 0);
+    }
+
+    return out.toString();
+  }
+
   public DiffResult diff(Revision fork, boolean skipBrokenReferences)
   {
     DefaultRevision myBase = this;
@@ -234,6 +598,42 @@ public class DefaultRevision implements Revision {
     return new DefaultRevisionBuilder(new Object(), this, new NodeStack());
   }
 
+  /**
+   * Returns a revision which is identical to this one except that the
+   * specified index is defined and populated, incrementing the
+   * specified counter once for each row visited while populating it.
+   * The counter may be read concurrently by other threads to report
+   * progress.
+   */
+  public Revision withIndex(Index index, AtomicLong rowsVisited) {
+    DefaultRevisionBuilder builder = new DefaultRevisionBuilder
+      (new Object(), this, new NodeStack());
+    builder.rowsVisited = Preconditions.checkNotNull(rowsVisited);
+    builder.add(index);
+    return builder.commit();
+  }
+
+  /**
+   * Returns a revision which is identical to this one except that the
+   * specified view is defined and populated, incrementing the
+   * specified counter as described in withIndex.
+   */
+  public Revision withView(View view, AtomicLong rowsVisited) {
+    DefaultRevisionBuilder builder = new DefaultRevisionBuilder
+      (new Object(), this, new NodeStack());
+    builder.rowsVisited = Preconditions.checkNotNull(rowsVisited);
+    builder.add(view);
+    return builder.commit();
+  }
+
+  /**
+   * Returns an estimate of the number of rows in the specified table,
+   * computed in time logarithmic in that number.
+   */
+  public long estimateRows(Table table) {
+    return Plan.estimateRows(this, table);
+  }
+
   public Revision merge(Revision left,
                         Revision right,
                         ConflictResolver conflictResolver,
@@ -254,6 +654,28 @@ public class DefaultRevision implements Revision {
       (myBase, myLeft, myRight, conflictResolver, foreignKeyResolver);
   }
 
+  public Revision merge(Revision left,
+                        Revision right,
+                        ConflictResolver conflictResolver,
+                        ForeignKeyResolver foreignKeyResolver,
+                        Executor executor)
+  {
+    DefaultRevision myBase = this;
+    DefaultRevision myLeft;
+    DefaultRevision myRight;
+    try {
+      myLeft = (DefaultRevision) left;
+      myRight = (DefaultRevision) right;
+    } catch (ClassCastException e) {
+      throw new IllegalArgumentException
+        ("revision not created by this implementation");
+    }
+
+    return Merge.mergeRevisions
+      (myBase, myLeft, myRight, conflictResolver, foreignKeyResolver,
+       Preconditions.checkNotNull(executor));
+  }
+
   public String toString() {
     java.io.StringWriter sw = new java.io.StringWriter();
     java.io.PrintWriter pw = new java.io.PrintWriter(sw);
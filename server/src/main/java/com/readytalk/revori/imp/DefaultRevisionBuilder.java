@@ -11,9 +11,13 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.readytalk.revori.SourceFactory.reference;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +25,7 @@ import org.slf4j.LoggerFactory;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.readytalk.revori.Accumulator;
 import com.readytalk.revori.Column;
 import com.readytalk.revori.DeleteTemplate;
 import com.readytalk.revori.DuplicateKeyException;
@@ -62,6 +67,7 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 	private final Node[] blazedLeaves;
 	private final Node[] found;
 	private final Node.BlazeResult blazeResult = new Node.BlazeResult();
+	private final List<Node> expandedRows = new ArrayList<Node>();
 	private NodeStack indexUpdateIterateStack;
 	private NodeStack indexUpdateBaseStack;
 	private NodeStack indexUpdateForkStack;
@@ -70,6 +76,9 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 	public DefaultRevision result;
 	private int max = -1;
 	private boolean dirtyIndexes;
+	// if non-null, counts the rows visited while building or updating
+	// index and view data trees, for reporting progress to other threads
+	AtomicLong rowsVisited;
 
 	public DefaultRevisionBuilder(Object token, DefaultRevision base,
 			NodeStack stack) {
@@ -87,15 +96,81 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 
 	public void setToken(Object token) {
 		if (token != this.token) {
+			// rows expanded using the old token may be shared once we
+			// switch tokens, so pack them now while they're still ours
+			pack();
+
 			this.token = token;
-			for (int i = 0; i < max; ++i) {
-				found[i] = null;
-				blazedLeaves[i] = null;
-				blazedRoots[i + 1] = null;
+			clearCache();
+		}
+	}
+
+	private void clearCache() {
+		for (int i = 0; i < max; ++i) {
+			found[i] = null;
+			blazedLeaves[i] = null;
+			blazedRoots[i + 1] = null;
+		}
+	}
+
+	/**
+	 * Packs any rows of packed tables which this builder has expanded
+	 * into trees in order to modify them, or has created from scratch.
+	 * This must be done before the nodes holding those rows are shared
+	 * with another revision.
+	 */
+	public void pack() {
+		if (!expandedRows.isEmpty()) {
+			for (Node leaf : expandedRows) {
+				if (leaf.value instanceof Node && leaf.value != Node.Null) {
+					leaf.value = PackedRow.pack((Node) leaf.value);
+				}
 			}
+			expandedRows.clear();
+
+			// cached paths into the rows we just packed are now stale
+			clearCache();
 		}
 	}
 
+	/**
+	 * Returns the row held by the specified leaf, which was blazed at
+	 * the specified depth, as a tree which this builder may modify,
+	 * expanding it first if it is packed.
+	 */
+	private Node row(int index, Node leaf) {
+		Object value = leaf.value;
+		if (value instanceof PackedRow) {
+			leaf.value = ((PackedRow) value).expand(token);
+			found[index + 1] = null;
+			expandedRows.add(leaf);
+		} else if (packedRowDepth(index)
+				&& (expandedRows.isEmpty() || expandedRows
+						.get(expandedRows.size() - 1) != leaf)) {
+			// a new or unpacked row of a packed table
+			expandedRows.add(leaf);
+		}
+		return (Node) leaf.value;
+	}
+
+	/**
+	 * Returns true if the specified depth is that of the rows of a
+	 * packed table according to the current path.
+	 */
+	private boolean packedRowDepth(int index) {
+		if (max < Constants.IndexDataDepth
+				|| !(keys[Constants.TableDataDepth] instanceof Table)) {
+			return false;
+		}
+
+		Table table = (Table) keys[Constants.TableDataDepth];
+		return table.packed
+				&& index == Constants.IndexDataBodyDepth
+						+ table.primaryKey.columns.size() - 1
+				&& Compare.equal(keys[Constants.IndexDataDepth],
+						table.primaryKey, Compare.IndexComparator);
+	}
+
 	public void setKey(int index, Object key, Comparator comparator) {
 		if (key == Compare.Undefined)
 			throw new RuntimeException();
@@ -140,14 +215,16 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 					result = getRevision(token, result, root);
 				}
 			} else {
+				if (find(index - 1).value instanceof PackedRow) {
+					row(index - 1, blaze(index - 1));
+				}
+
 				Node original = find(index);
 				Node originalRoot = (Node) find(index - 1).value;
 
 				if (original == Node.Null) {
 					return;
-				} else if (original == originalRoot
-						&& original.left == Node.Null
-						&& original.right == Node.Null) {
+				} else if (originalRoot.size == 1) {
 					delete(index - 1);
 				} else {
 					root = Node.delete(token, stack,
@@ -176,8 +253,8 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 					n = Node.find(result.root, keys[0], comparators[0]);
 					found[0] = n;
 				} else {
-					n = Node.find((Node) find(index - 1).value, keys[index],
-							comparators[index]);
+					n = Node.find(PackedRow.tree(find(index - 1).value),
+							keys[index], comparators[index]);
 					found[index] = n;
 				}
 			}
@@ -230,7 +307,7 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 				return blazeResult.node;
 			} else {
 				Node root = Node.blaze(blazeResult, token, stack,
-						(Node) blaze(index - 1).value, keys[index],
+						row(index - 1, blaze(index - 1)), keys[index],
 						comparators[index]);
 
 				blazedLeaves[index - 1].value = root;
@@ -258,47 +335,46 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 
 		while (true) {
 			QueryResult.Type type = iterator.nextRow();
+			if (rowsVisited != null && type != QueryResult.Type.End) {
+				rowsVisited.lazySet(rowsVisited.get() + 1);
+			}
 			switch (type) {
 			case End:
 				return;
 
 			case Inserted: {
-				Node tree = (Node) iterator.pair.fork.value;
+				Object row = iterator.pair.fork.value;
 
 				int i = 0;
 				for (; i < keyColumns.size() - 1; ++i) {
 					Column c = keyColumns.get(i);
 					setKey(i + Constants.IndexDataBodyDepth,
-							Node.find(tree, c, Compare.ColumnComparator).value,
-							c.comparator);
+							PackedRow.find(row, c), c.comparator);
 				}
 
 				Column c = keyColumns.get(i);
 				Node n = blaze(i + Constants.IndexDataBodyDepth,
-						Node.find(tree, c, Compare.ColumnComparator).value,
-						c.comparator);
+						PackedRow.find(row, c), c.comparator);
 
 				checkArgument(n.value == Node.Null);
 
-				n.value = tree;
+				n.value = row;
 			}
 				break;
 
 			case Deleted: {
-				Node tree = (Node) iterator.pair.base.value;
+				Object row = iterator.pair.base.value;
 
 				int i = 0;
 				for (; i < keyColumns.size() - 1; ++i) {
 					Column c = keyColumns.get(i);
 					setKey(i + Constants.IndexDataBodyDepth,
-							Node.find(tree, c, Compare.ColumnComparator).value,
-							c.comparator);
+							PackedRow.find(row, c), c.comparator);
 				}
 
 				Column c = keyColumns.get(i);
 				deleteKey(i + Constants.IndexDataBodyDepth,
-						Node.find(tree, c, Compare.ColumnComparator).value,
-						c.comparator);
+						PackedRow.find(row, c), c.comparator);
 			}
 				break;
 
@@ -308,15 +384,21 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 		}
 	}
 
-	private Node makeTree(NodeStack stack, List<Column<?>> columns,
+	private Node makeTree(NodeStack stack, View view,
 			List<ExpressionAdapter> expressions) {
+		List<Column<?>> columns = view.columns;
 		Node.BlazeResult result = new Node.BlazeResult();
 		Node n = Node.Null;
 		for (int i = 0; i < columns.size(); ++i) {
 			Column<?> c = columns.get(i);
-			Object v = expressions.get(i).evaluate(true);
+			// the hidden aggregate columns hold accumulations, which differ
+			// from the values of the aggregates themselves for reducers
+			Object v = i >= view.aggregateOffset
+					&& i < view.aggregateExpressionOffset ? ((AggregateAdapter) expressions
+					.get(i)).value : expressions.get(i).evaluate(true);
 			if (!Compare.Undefined.equals(v)) {
-				if (v != null && !c.type.isInstance(v)) {
+				if (v != null && !(v instanceof Accumulator)
+						&& !c.type.isInstance(v)) {
 					throw new ClassCastException(v.getClass().getName()
 							+ " cannot be cast to " + c.type.getName());
 				}
@@ -340,6 +422,14 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 				view.parameters.toArray(new Object[view.parameters.size()]),
 				true);
 
+		try {
+			updateViewTree(view, qr);
+		} finally {
+			qr.release();
+		}
+	}
+
+	private void updateViewTree(View view, DefaultQueryResult qr) {
 		setKey(Constants.TableDataDepth, view.table, Compare.TableComparator);
 		setKey(Constants.IndexDataDepth, view.table.primaryKey,
 				Compare.IndexComparator);
@@ -366,6 +456,21 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 			aggregates = null;
 		}
 
+		// equal aggregates share an adapter, e.g. a Count in the query and
+		// the count the view maintains for itself, and each adapter must
+		// only fold a given row once since it may do so in place
+		boolean[] repeated = null;
+		if (view.query.hasAggregates) {
+			repeated = new boolean[aggregates.size()];
+			for (int i = 1; i < repeated.length; ++i) {
+				for (int j = 0; j < i; ++j) {
+					if (aggregates.get(i) == aggregates.get(j)) {
+						repeated[i] = true;
+					}
+				}
+			}
+		}
+
 		Object[] values = new Object[maxValues];
 		NodeStack stack = new NodeStack();
 
@@ -375,6 +480,9 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 			QueryResult.Type type = qr.nextRow();
 			if (!QueryResult.Type.End.equals(type)) {
 				sawSomething = true;
+				if (rowsVisited != null) {
+					rowsVisited.lazySet(rowsVisited.get() + 1);
+				}
 			}
 			switch (type) {
 			case End:
@@ -401,10 +509,13 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 									Constants.IndexDataBodyDepth + i + 1));
 				}
 
+				boolean inPlace = false;
 				if (view.query.hasAggregates) {
+					inPlace = true;
 					int columnOffset = view.aggregateOffset;
 					int expressionOffset = view.aggregateExpressionOffset;
-					for (AggregateAdapter a : aggregates) {
+					for (int k = 0; k < aggregates.size(); ++k) {
+						AggregateAdapter a = aggregates.get(k);
 						for (int j = 0; j < a.aggregate.expressions.size(); ++j) {
 							values[j] = expressions.get(expressionOffset++)
 									.evaluate(true);
@@ -414,14 +525,20 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 								view.columns.get(columnOffset++),
 								Compare.ColumnComparator);
 
-						a.add(old == Node.Null ? a.aggregate.function.base()
-								: old.value, values);
+						if (!repeated[k]) {
+							a.add(old == Node.Null ? a.function.base()
+									: old.value, values);
+						}
+
+						inPlace &= old.value instanceof Accumulator;
 					}
 				} else {
 					checkArgument(n.value == Node.Null);
 				}
 
-				n.value = makeTree(stack, view.columns, expressions);
+				if (!inPlace) {
+					n.value = makeTree(stack, view, expressions);
+				}
 
 				if (view.query.hasAggregates) {
 					for (AggregateAdapter a : aggregates) {
@@ -443,12 +560,15 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 
 				log.debug("deleted " + Util.toString(keys, 0, index + 1));
 
+				boolean inPlace = false;
 				if (view.query.hasAggregates) {
+					inPlace = true;
 					Node n = find(index);
 
 					int columnOffset = view.aggregateOffset;
 					int expressionOffset = view.aggregateExpressionOffset;
-					for (AggregateAdapter a : aggregates) {
+					for (int k = 0; k < aggregates.size(); ++k) {
+						AggregateAdapter a = aggregates.get(k);
 						for (int j = 0; j < a.aggregate.expressions.size(); ++j) {
 							values[j] = expressions.get(expressionOffset++)
 									.evaluate(true);
@@ -458,17 +578,22 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 								view.columns.get(columnOffset++),
 								Compare.ColumnComparator);
 
-						a.subtract(
-								old == Node.Null ? a.aggregate.function.base()
-										: old.value, values);
+						if (!repeated[k]) {
+							a.subtract(old == Node.Null ? a.function.base()
+									: old.value, values);
+						}
+
+						inPlace &= old.value instanceof Accumulator;
 					}
 				}
 
 				if (view.query.hasAggregates
-						&& (view.query.groupingExpressions.isEmpty() || ((Integer) expressions
-								.get(view.aggregateOffset).evaluate(true)) != 0)) {
-					blaze(index).value = makeTree(stack, view.columns,
-							expressions);
+						&& (view.query.groupingExpressions.isEmpty() || count(aggregates
+								.get(0)) != 0)) {
+					if (!inPlace) {
+						blaze(index).value = makeTree(stack, view,
+								expressions);
+					}
 				} else {
 					delete(index);
 				}
@@ -510,7 +635,7 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 						a.value = a.aggregate.function.base();
 					}
 
-					n.value = makeTree(stack, view.columns, expressions);
+					n.value = makeTree(stack, view, expressions);
 
 					for (AggregateAdapter a : aggregates) {
 						a.value = Compare.Undefined;
@@ -544,10 +669,21 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 							+ Constants.IndexDataBodyDepth;
 
 					int columnOffset = view.aggregateOffset;
+					boolean boxed = false;
 					for (AggregateAdapter a : aggregates) {
 						a.value = Node.find((Node) find(index).value,
 								view.columns.get(columnOffset++),
 								Compare.ColumnComparator).value;
+
+						boxed |= a.box();
+					}
+
+					if (boxed) {
+						// this is the first row of its group we've seen since
+						// the first pass, so replace the accumulators we folded
+						// rows into with the accumulations they represent and
+						// fill in the columns which depend on them
+						blaze(index).value = makeTree(stack, view, expressions);
 					}
 
 					if (log.isTraceEnabled()) {
@@ -592,6 +728,15 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 		}
 	}
 
+	/**
+	 * Returns the number of rows folded into the specified view count
+	 * aggregate.
+	 */
+	private static long count(AggregateAdapter count) {
+		return count.value instanceof Accumulator ? ((Accumulator) count.value).count
+				: (Integer) count.value;
+	}
+
 	private void checkStacks() {
 		if (indexUpdateIterateStack == null) {
 			indexUpdateIterateStack = new NodeStack();
@@ -605,6 +750,9 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 	}
 
 	private void updateIndexes(View viewToSkip) {
+		// pack first so index data trees share the packed rows
+		pack();
+
 		if (dirtyIndexes && indexBase != result) {
 			checkStacks();
 
@@ -825,7 +973,11 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 
 			checkStacks();
 
+			// rows of the view table itself don't count toward progress
+			AtomicLong counter = rowsVisited;
+			rowsVisited = null;
 			add(Constants.ViewTableIndex);
+			rowsVisited = counter;
 
 			updateViewTree(view, base, indexUpdateBaseStack,
 					indexUpdateForkStack);
@@ -985,6 +1137,277 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 		}
 	}
 
+	private static int[] positions(List<Column<?>> wanted,
+			List<Column<?>> columns) {
+		int[] positions = new int[wanted.size()];
+		for (int i = 0; i < positions.length; ++i) {
+			positions[i] = columns.indexOf(wanted.get(i));
+			if (positions[i] < 0) {
+				return null;
+			}
+		}
+		return positions;
+	}
+
+	private static Object[] project(Object[] row, int[] positions) {
+		Object[] values = new Object[positions.length];
+		for (int i = 0; i < positions.length; ++i) {
+			values[i] = row[positions[i]];
+		}
+		return values;
+	}
+
+	private static Comparator[] comparators(List<Column<?>> columns) {
+		Comparator[] comparators = new Comparator[columns.size()];
+		for (int i = 0; i < comparators.length; ++i) {
+			comparators[i] = columns.get(i).comparator;
+		}
+		return comparators;
+	}
+
+	private static int compareTuples(Object[] a, Object[] b,
+			Comparator[] comparators) {
+		for (int i = 0; i < comparators.length; ++i) {
+			int d = Compare.compare(a[i], b[i], comparators[i]);
+			if (d != 0) {
+				return d;
+			}
+		}
+		return 0;
+	}
+
+	private static void checkRow(List<Column<?>> columns, Object[] row) {
+		if (row.length != columns.size()) {
+			throw new IllegalArgumentException("expected " + columns.size()
+					+ " values per row; got " + row.length);
+		}
+
+		for (int i = 0; i < row.length; ++i) {
+			Column<?> c = columns.get(i);
+			if (row[i] != null && !c.type.isInstance(row[i])) {
+				throw new ClassCastException(row[i].getClass().getName()
+						+ " cannot be cast to " + c.type.getName());
+			}
+		}
+	}
+
+	/**
+	 * Builds a (possibly multi-level) index data tree from the specified
+	 * key tuples, which must be sorted according to the specified
+	 * comparators. The leaves of the bottom level are assigned the
+	 * specified rows.
+	 */
+	private Node buildIndexTree(Object[][] tuples, Object[] trees,
+			Comparator[] comparators, int level, int start, int end) {
+		Object[] keys = new Object[end - start];
+		Object[] values = new Object[end - start];
+		int count = 0;
+		if (level == comparators.length - 1) {
+			for (int i = start; i < end; ++i) {
+				keys[count] = tuples[i][level];
+				values[count++] = trees[i];
+			}
+		} else {
+			int i = start;
+			while (i < end) {
+				int j = i + 1;
+				while (j < end
+						&& Compare.equal(tuples[i][level], tuples[j][level],
+								comparators[level])) {
+					++j;
+				}
+
+				keys[count] = tuples[i][level];
+				values[count++] = buildIndexTree(tuples, trees, comparators,
+						level + 1, i, j);
+				i = j;
+			}
+		}
+		return Node.build(token, keys, values, 0, count);
+	}
+
+	private Node buildIndexTree(Index index, List<Column<?>> columns,
+			List<Object[]> rows, Object[] trees) {
+		final Object[][] tuples = new Object[rows.size()][];
+		int[] positions = positions(index.columns, columns);
+		for (int i = 0; i < tuples.length; ++i) {
+			tuples[i] = project(rows.get(i), positions);
+		}
+
+		final Comparator[] comparators = comparators(index.columns);
+
+		Integer[] order = new Integer[tuples.length];
+		for (int i = 0; i < order.length; ++i) {
+			order[i] = i;
+		}
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return compareTuples(tuples[a], tuples[b], comparators);
+			}
+		});
+
+		Object[][] sortedTuples = new Object[order.length][];
+		Object[] sortedTrees = new Object[order.length];
+		for (int i = 0; i < order.length; ++i) {
+			sortedTuples[i] = tuples[order[i]];
+			sortedTrees[i] = trees[order[i]];
+		}
+
+		return buildIndexTree(sortedTuples, sortedTrees, comparators, 0, 0,
+				order.length);
+	}
+
+	private void insertRows(Table table, List<Column<?>> columns,
+			int[] keyPositions, Iterator<Object[]> rows) {
+		Object[] path = new Object[keyPositions.length + 3];
+		path[0] = table;
+		while (rows.hasNext()) {
+			Object[] row = rows.next();
+			checkRow(columns, row);
+
+			for (int i = 0; i < keyPositions.length; ++i) {
+				path[i + 1] = row[keyPositions[i]];
+			}
+
+			insert(DuplicateKeyResolution.Throw, path, 0,
+					keyPositions.length + 1);
+
+			for (int i = 0; i < row.length; ++i) {
+				Column<?> c = columns.get(i);
+				if (!table.primaryKey.columns.contains(c)) {
+					path[path.length - 2] = c;
+					path[path.length - 1] = row[i];
+					insert(DuplicateKeyResolution.Overwrite, path);
+				}
+			}
+		}
+	}
+
+	private void bulkLoadRows(Table table, List<Column<?>> columns,
+			Iterator<Object[]> rows) {
+		if (Sets.newHashSet(columns).size() != columns.size()) {
+			throw new IllegalArgumentException("duplicate column in "
+					+ columns);
+		}
+
+		List<Column<?>> keyColumns = table.primaryKey.columns;
+		int[] keyPositions = positions(keyColumns, columns);
+		if (keyPositions == null) {
+			throw new IllegalArgumentException(
+					"columns must include every primary key column of "
+							+ table);
+		}
+
+		if (Node.find(result.root, table, Compare.TableComparator) != Node.Null) {
+			// the table already has rows, so we can't build its trees from
+			// scratch
+			insertRows(table, columns, keyPositions, rows);
+			return;
+		}
+
+		Comparator[] keyComparators = comparators(keyColumns);
+		List<Object[]> list = new ArrayList<Object[]>();
+		List<Object[]> keyTuples = new ArrayList<Object[]>();
+		while (rows.hasNext()) {
+			Object[] row = rows.next();
+			checkRow(columns, row);
+
+			Object[] tuple = project(row, keyPositions);
+			if (!keyTuples.isEmpty()
+					&& compareTuples(keyTuples.get(keyTuples.size() - 1),
+							tuple, keyComparators) >= 0) {
+				throw new IllegalArgumentException(
+						"rows must be sorted by primary key without duplicates");
+			}
+
+			list.add(row);
+			keyTuples.add(tuple);
+		}
+
+		if (list.isEmpty()) {
+			return;
+		}
+
+		List<Index> indexes = new ArrayList<Index>();
+		for (NodeIterator it = new NodeIterator(new NodeStack(), Node.pathFind(
+				result.root, Constants.IndexTable, Compare.TableComparator,
+				Constants.IndexTable.primaryKey, Compare.IndexComparator,
+				table, Constants.TableColumn.comparator)); it.hasNext();) {
+			Index index = (Index) it.next().key;
+			if (positions(index.columns, columns) == null) {
+				// this index can't be built from the rows alone
+				insertRows(table, columns, keyPositions, list.iterator());
+				return;
+			}
+			indexes.add(index);
+		}
+
+		List<View> views = new ArrayList<View>();
+		for (NodeIterator it = new NodeIterator(new NodeStack(), Node.pathFind(
+				result.root, Constants.ViewTable, Compare.TableComparator,
+				Constants.ViewTable.primaryKey, Compare.IndexComparator, table,
+				Constants.TableColumn.comparator)); it.hasNext();) {
+			views.add((View) it.next().key);
+		}
+
+		// flush any pending index updates so we can build this table's
+		// indexes directly and consider them up-to-date afterward
+		updateIndexes();
+		prepareForUpdate(table);
+
+		DefaultRevision before = result;
+
+		Column<?>[] sortedColumns = columns.toArray(new Column<?>[columns
+				.size()]);
+		Arrays.sort(sortedColumns, Compare.ColumnComparator);
+		int[] sortedPositions = positions(Arrays.asList(sortedColumns),
+				columns);
+
+		Object[] trees = new Object[list.size()];
+		for (int i = 0; i < trees.length; ++i) {
+			Object[] values = project(list.get(i), sortedPositions);
+			trees[i] = table.packed ? PackedRow.pack(sortedColumns, values)
+					: Node.build(token, sortedColumns, values, 0,
+							sortedColumns.length);
+		}
+
+		indexes.add(table.primaryKey);
+		Collections.sort(indexes, Compare.IndexComparator);
+
+		Object[] indexTrees = new Object[indexes.size()];
+		for (int i = 0; i < indexTrees.length; ++i) {
+			Index index = indexes.get(i);
+			if (index == table.primaryKey) {
+				indexTrees[i] = buildIndexTree(
+						keyTuples.toArray(new Object[keyTuples.size()][]),
+						trees, keyComparators, 0, 0, trees.length);
+			} else {
+				indexTrees[i] = buildIndexTree(index, columns, list, trees);
+			}
+		}
+
+		insertOrUpdate(Constants.TableDataDepth, table,
+				Compare.TableComparator, Node.build(token, indexes.toArray(),
+						indexTrees, 0, indexTrees.length));
+
+		// we've replaced the table's subtree wholesale, so any cached
+		// paths below the root are stale
+		max = -1;
+
+		if (!views.isEmpty()) {
+			checkStacks();
+
+			for (View view : views) {
+				updateViewTree(view, before, indexUpdateBaseStack,
+						indexUpdateForkStack);
+			}
+		}
+
+		dirtyIndexes = false;
+		indexBase = result;
+	}
+
 	private class MyTableBuilder implements TableBuilder {
 		private class MyRowBuilder implements RowBuilder {
 			private Object[] path;
@@ -1203,6 +1626,18 @@ class DefaultRevisionBuilder implements RevisionBuilder {
 		return insert(duplicateKeyResolution, path, 0, path.length);
 	}
 
+	public RevisionBuilder bulkLoad(Table table, List<Column<?>> columns,
+			Iterator<Object[]> rows) {
+		try {
+			bulkLoadRows(table, columns, rows);
+		} catch (RuntimeException e) {
+			token = null;
+			throw e;
+		}
+
+		return this;
+	}
+
 	public RevisionBuilder add(Index index) {
 		try {
 			addIndex(index);
@@ -25,8 +25,8 @@ class DeleteTemplateAdapter implements PatchTemplateAdapter {
 
     ExpressionContext expressionContext = new ExpressionContext(parameters, null);
 
-    ExpressionAdapter test = ExpressionAdapterFactory.makeAdapter
-      (expressionContext, delete.test);
+    ExpressionAdapter test = CompiledExpression.compile
+      (ExpressionAdapterFactory.makeAdapter(expressionContext, delete.test));
 
     builder.setKey
       (Constants.TableDataDepth, delete.tableReference.table,
@@ -71,20 +71,20 @@ class DeleteTemplateAdapter implements PatchTemplateAdapter {
           builder.setToken(deleteToken = new Object());
         }
 
-        Node tree = (Node) iterator.pair.fork.value;
+        Object row = iterator.pair.fork.value;
 
         int i = 0;
         for (; i < keyColumns.size() - 1; ++i) {
           Column c = keyColumns.get(i);
           builder.setKey
-            (i + Constants.IndexDataBodyDepth,
-             Node.find(tree, c, Compare.ColumnComparator).value, c.comparator);
+            (i + Constants.IndexDataBodyDepth, PackedRow.find(row, c),
+             c.comparator);
         }
 
         Column c = keyColumns.get(i);
         builder.deleteKey
-          (i + Constants.IndexDataBodyDepth,
-           Node.find(tree, c, Compare.ColumnComparator).value, c.comparator);
+          (i + Constants.IndexDataBodyDepth, PackedRow.find(row, c),
+           c.comparator);
       } break;
 
       default:
@@ -22,8 +22,12 @@ class DiffIterator {
   private final Iterator<Interval> intervalIterator;
   private final boolean visitUnchanged;
   public final Comparator comparator;
+  // used instead of base and fork for trees of WideNodes
+  private final WideNode.Cursor baseCursor;
+  private final WideNode.Cursor forkCursor;
   private Interval currentInterval;
   private boolean foundStart;
+  public long visited;
 
   public DiffIterator(Node baseRoot,
                       NodeStack base,
@@ -41,6 +45,14 @@ class DiffIterator {
     this.visitUnchanged = visitUnchanged;
     this.comparator = comparator;
     this.currentInterval = intervalIterator.next();
+
+    if (WideNode.wide(baseRoot, forkRoot)) {
+      baseCursor = new WideNode.Cursor();
+      forkCursor = new WideNode.Cursor();
+    } else {
+      baseCursor = null;
+      forkCursor = null;
+    }
   }
   
   private static int compareForDescent(Node n,
@@ -69,7 +81,6 @@ class DiffIterator {
         }
 
         if (n == Node.Null) {
-          // todo: cache this result so we don't have to loop every time
           return 0;
         } else {
           return 1;
@@ -113,12 +124,33 @@ class DiffIterator {
     base.push(baseRoot);
     fork.push(forkRoot);
 
+    // compareForDescent may loop down the right spine of a node's
+    // left subtree, so we only call it when the respective stack has
+    // actually moved since the last iteration
+    Node baseTop = base.top;
+    int baseDifference = compareForDescent
+      (baseTop, interval.low, interval.lowBoundType, false, comparator);
+
+    Node forkTop = fork.top;
+    int forkDifference = compareForDescent
+      (forkTop, interval.low, interval.lowBoundType, false, comparator);
+
+    visited += 2;
+
     while (true) {
-      int baseDifference = compareForDescent
-        (base.top, interval.low, interval.lowBoundType, false, comparator);
+      if (base.top != baseTop) {
+        baseTop = base.top;
+        baseDifference = compareForDescent
+          (baseTop, interval.low, interval.lowBoundType, false, comparator);
+        ++ visited;
+      }
 
-      int forkDifference = compareForDescent
-        (fork.top, interval.low, interval.lowBoundType, false, comparator);
+      if (fork.top != forkTop) {
+        forkTop = fork.top;
+        forkDifference = compareForDescent
+          (forkTop, interval.low, interval.lowBoundType, false, comparator);
+        ++ visited;
+      }
 
       if (baseDifference == 0) {
         if (forkDifference == 0) {
@@ -193,6 +225,10 @@ class DiffIterator {
   }
 
   private boolean next(Interval interval, DiffPair pair) {
+    if (baseCursor != null) {
+      return nextWide(interval, pair);
+    }
+
     if (! foundStart) {
       findStart(interval);
         
@@ -200,6 +236,8 @@ class DiffIterator {
     }
 
     while (true) {
+      ++ visited;
+
       int baseDifference = base.top == null ? 1 : Compare.compare
         (base.top.key, interval.high, interval.highBoundType, true,
          comparator);
@@ -261,6 +299,76 @@ class DiffIterator {
     }
   }
 
+  private boolean nextWide(Interval interval, DiffPair pair) {
+    if (! foundStart) {
+      baseCursor.seek
+        (baseRoot, interval.low, interval.lowBoundType, comparator);
+      forkCursor.seek
+        (forkRoot, interval.low, interval.lowBoundType, comparator);
+      visited += 2;
+
+      foundStart = true;
+    }
+
+    while (true) {
+      ++ visited;
+
+      Node base = baseCursor.entry();
+      Node fork = forkCursor.entry();
+
+      int baseDifference = base == null ? 1 : Compare.compare
+        (base.key, interval.high, interval.highBoundType, true, comparator);
+
+      int forkDifference = fork == null ? 1 : Compare.compare
+        (fork.key, interval.high, interval.highBoundType, true, comparator);
+
+      if (baseDifference > 0) {
+        base = null;
+      }
+      if (forkDifference > 0) {
+        fork = null;
+      }
+
+      if (base == null && fork == null) {
+        pair.base = null;
+        pair.fork = null;
+        return false;
+      }
+
+      int difference;
+      if (base == fork) {
+        if (visitUnchanged) {
+          difference = 0;
+        } else {
+          WideNode.Cursor.skipShared(baseCursor, forkCursor);
+          continue;
+        }
+      } else if (base == null) {
+        difference = 1;
+      } else if (fork == null) {
+        difference = -1;
+      } else {
+        difference = Compare.compare(base.key, fork.key, comparator);
+      }
+
+      if (difference > 0) {
+        pair.base = null;
+        pair.fork = fork;
+        forkCursor.next();
+      } else if (difference < 0) {
+        pair.base = base;
+        pair.fork = null;
+        baseCursor.next();
+      } else {
+        pair.base = base;
+        pair.fork = fork;
+        baseCursor.next();
+        forkCursor.next();
+      }
+      return true;
+    }
+  }
+
   public static class DiffPair {
     public Node base;
     public Node fork;
@@ -30,10 +30,11 @@ class ExpressionAdapterFactory {
 					ExpressionAdapter adapter = context.adapters
 							.get(expression);
 					if (adapter == null) {
-						context.adapters
-								.put(expression,
-										adapter = new ConstantAdapter(
-												context.parameters[context.parameterIndex++]));
+						ParameterAdapter pa = new ParameterAdapter(
+								context.parameters[context.parameterIndex++]);
+						context.adapters.put(expression, pa);
+						context.parameterAdapters.add(pa);
+						adapter = pa;
 					}
 
 					return adapter;
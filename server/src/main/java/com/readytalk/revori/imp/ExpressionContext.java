@@ -7,6 +7,7 @@
 
 package com.readytalk.revori.imp;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -22,6 +23,8 @@ class ExpressionContext {
   public final Set<ColumnReferenceAdapter> columnReferences = new HashSet<ColumnReferenceAdapter>();
   public final Object[] parameters;
   public final List<ExpressionAdapter> queryExpressions;
+  public final List<ParameterAdapter> parameterAdapters = new ArrayList<ParameterAdapter>();
+  public final IndexCache indexCache = new IndexCache();
   public int parameterIndex;
 
   public ExpressionContext(@Nullable Object[] parameters, @Nullable List<ExpressionAdapter> queryExpressions) {
@@ -0,0 +1,48 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import javax.annotation.concurrent.Immutable;
+
+import com.readytalk.revori.Reducer;
+
+/**
+ * Reducers behind Foldables.min and Foldables.max.  Their
+ * accumulations are PersistentMultisets, which are opaque outside
+ * this package.
+ */
+@Immutable
+public abstract class Extremum implements Reducer<Object, Comparable> {
+  public static final Extremum Min = new Extremum() {
+      public Comparable result(Object accumulation) {
+        return ((PersistentMultiset) accumulation).first();
+      }
+    };
+
+  public static final Extremum Max = new Extremum() {
+      public Comparable result(Object accumulation) {
+        return ((PersistentMultiset) accumulation).last();
+      }
+    };
+
+  private Extremum() { }
+
+  public Object base() {
+    return PersistentMultiset.Empty;
+  }
+
+  public Object add(Object accumulation, Object ... values) {
+    return values[0] == null ? accumulation
+      : ((PersistentMultiset) accumulation).add((Comparable) values[0]);
+  }
+
+  public Object subtract(Object accumulation, Object ... values) {
+    return values[0] == null ? accumulation
+      : ((PersistentMultiset) accumulation).remove((Comparable) values[0]);
+  }
+}
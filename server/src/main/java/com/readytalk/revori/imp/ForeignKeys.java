@@ -129,8 +129,8 @@ class ForeignKeys {
             result.skip();
           }
         } else if (depth == bottom) {
-          Node baseTree = result.baseTree();
-          Node forkTree = result.forkTree();
+          Object baseTree = result.baseTree();
+          Object forkTree = result.forkTree();
 
           if (baseTree != Node.Null) {
             int i = 0;
@@ -147,8 +147,7 @@ class ForeignKeys {
               // new and updated rows
 
               ForeignKey constraint = (ForeignKey)
-                Node.find(forkTree, Constants.ForeignKeyColumn,
-                          Compare.ColumnComparator).value;
+                PackedRow.find(forkTree, Constants.ForeignKeyColumn);
 
               checkForeignKeys
                 (new NodeStack(), DefaultRevision.Empty,
@@ -219,11 +218,11 @@ class ForeignKeys {
     return list;
   }
 
-  private static void fillRow(Object[] row, List<Column<?>> columns, Node tree)
+  private static void fillRow(Object[] row, List<Column<?>> columns,
+                              Object tree)
   {
     for (int i = 0; i < row.length; ++i) {
-      Node n = Node.find(tree, columns.get(i), Compare.ColumnComparator);
-      row[i] = n == Node.Null ? null : n.value;
+      row[i] = PackedRow.value(tree, columns.get(i));
     }
   }
 
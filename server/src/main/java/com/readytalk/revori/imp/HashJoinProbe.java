@@ -0,0 +1,100 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.readytalk.revori.QueryResult;
+
+/**
+ * JoinProbe which hashes the rows of the right side of a join by
+ * their join key the first time it is probed.  Since the join test
+ * compares keys using Object.equals, a row can only match a left row
+ * if their keys hash to the same bucket.
+ */
+class HashJoinProbe extends JoinProbe {
+  private final DefaultRevision base;
+  private final DefaultRevision fork;
+  private final ExpressionContext expressionContext;
+  private Map<Object, List<Row>> buckets;
+
+  public HashJoinProbe(JoinPlan plan,
+                       DefaultRevision base,
+                       DefaultRevision fork,
+                       ExpressionAdapter test,
+                       ExpressionContext expressionContext)
+  {
+    super(plan, test, expressionContext);
+
+    this.base = base;
+    this.fork = fork;
+    this.expressionContext = expressionContext;
+  }
+
+  protected List<Row> rows(Object key) {
+    if (buckets == null) {
+      buckets = build();
+    }
+
+    List<Row> rows = buckets.get(key);
+    if (rows == null) {
+      return Collections.emptyList();
+    } else {
+      return rows;
+    }
+  }
+
+  private Map<Object, List<Row>> build() {
+    Object[] values = unbindLeft();
+
+    Map<Object, List<Row>> buckets = new HashMap<Object, List<Row>>();
+
+    TableIterator iterator = (TableIterator) plan.join.right.iterator
+      (base, new NodeStack(), fork, new NodeStack(), test, expressionContext,
+       true);
+
+    while (true) {
+      undefineLeft();
+      QueryResult.Type type = iterator.nextRow();
+      if (type == QueryResult.Type.End) {
+        break;
+      }
+
+      Row row = row(iterator, type);
+
+      // the key of a row may differ between the base and fork even
+      // if TableIterator considers it unchanged, in which case the
+      // row may match either key
+      Object baseKey = key(row.base);
+      Object forkKey = key(row.fork);
+      add(buckets, baseKey, row);
+      if (forkKey != null && ! forkKey.equals(baseKey)) {
+        add(buckets, forkKey, row);
+      }
+    }
+
+    rebindLeft(values);
+
+    return buckets;
+  }
+
+  private static void add(Map<Object, List<Row>> buckets, Object key, Row row)
+  {
+    if (key != null) {
+      List<Row> rows = buckets.get(key);
+      if (rows == null) {
+        buckets.put(key, rows = new ArrayList<Row>());
+      }
+      rows.add(row);
+    }
+  }
+}
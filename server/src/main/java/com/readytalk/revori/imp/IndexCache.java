@@ -0,0 +1,80 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.readytalk.revori.Index;
+import com.readytalk.revori.Table;
+
+/**
+ * Cache of the secondary indexes found by Plan.indexes for each table
+ * referenced by a query, keyed by the identity of the subtrees of
+ * Constants.IndexTable listing the indexes of that table in the base
+ * and fork revisions.  Since those subtrees are immutable and are
+ * replaced whenever an index is added or removed, an entry is valid
+ * for as long as both subtrees are the same objects, which lets a
+ * prepared query skip walking them on every execution.
+ */
+class IndexCache {
+  private final Map<Table, Entry> entries = new HashMap<Table, Entry>();
+
+  public List<Index> indexes(DefaultRevision base,
+                             NodeStack baseStack,
+                             DefaultRevision fork,
+                             NodeStack forkStack,
+                             Table table)
+  {
+    Node baseIndexes = Plan.indexTree(base, table);
+    Node forkIndexes = Plan.indexTree(fork, table);
+    boolean baseEmpty
+      = Node.find(base.root, table, Compare.TableComparator) == Node.Null;
+    boolean forkEmpty
+      = Node.find(fork.root, table, Compare.TableComparator) == Node.Null;
+
+    Entry entry = entries.get(table);
+    if (entry == null
+        || entry.baseIndexes != baseIndexes
+        || entry.forkIndexes != forkIndexes
+        || entry.baseEmpty != baseEmpty
+        || entry.forkEmpty != forkEmpty)
+    {
+      entry = new Entry
+        (baseIndexes, forkIndexes, baseEmpty, forkEmpty, Plan.indexes
+         (baseIndexes, baseStack, baseEmpty, forkIndexes, forkStack,
+          forkEmpty, table));
+
+      entries.put(table, entry);
+    }
+
+    return entry.indexes;
+  }
+
+  private static class Entry {
+    public final Node baseIndexes;
+    public final Node forkIndexes;
+    public final boolean baseEmpty;
+    public final boolean forkEmpty;
+    public final List<Index> indexes;
+
+    public Entry(Node baseIndexes,
+                 Node forkIndexes,
+                 boolean baseEmpty,
+                 boolean forkEmpty,
+                 List<Index> indexes)
+    {
+      this.baseIndexes = baseIndexes;
+      this.forkIndexes = forkIndexes;
+      this.baseEmpty = baseEmpty;
+      this.forkEmpty = forkEmpty;
+      this.indexes = indexes;
+    }
+  }
+}
@@ -65,8 +65,10 @@ class InsertTemplateAdapter implements PatchTemplateAdapter {
     Node n = builder.blaze
       (i + Constants.IndexDataBodyDepth, map.get(c), c.comparator);
 
+    Object row = insert.table.packed ? PackedRow.pack(tree) : tree;
+
     if (n.value == Node.Null) {
-      n.value = tree;
+      n.value = row;
       return 1;
     } else {
       switch (insert.duplicateKeyResolution) {
@@ -74,7 +76,7 @@ class InsertTemplateAdapter implements PatchTemplateAdapter {
         return 0;
 
       case Overwrite:
-        n.value = tree;
+        n.value = row;
         return 1;
 
       case Throw:
@@ -0,0 +1,37 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import com.readytalk.revori.QueryResult;
+
+/**
+ * Iterator which visits only the rows inserted by the iterator it
+ * wraps, reporting each as new.  This matches the result of diffing
+ * a temporary view populated from the same rows, and is used when an
+ * ordered query is answered directly from an index instead.
+ */
+class InsertedRowIterator implements SourceIterator {
+  private final SourceIterator iterator;
+
+  public InsertedRowIterator(SourceIterator iterator) {
+    this.iterator = iterator;
+  }
+
+  public QueryResult.Type nextRow() {
+    while (true) {
+      QueryResult.Type type = iterator.nextRow();
+      if (type != QueryResult.Type.Deleted) {
+        return type;
+      }
+    }
+  }
+
+  public boolean rowUpdated() {
+    return false;
+  }
+}
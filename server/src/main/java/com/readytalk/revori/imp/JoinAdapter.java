@@ -32,8 +32,50 @@ class JoinAdapter implements SourceAdapter {
                                  boolean visitUnchanged)
   {
     return new JoinIterator
-      (this, base, baseStack, fork, forkStack, test, expressionContext,
-       visitUnchanged);
+      (JoinPlan.choose(this, base, fork, test, expressionContext), base,
+       baseStack, fork, forkStack, test, expressionContext, visitUnchanged);
+  }
+
+  public void explain(DefaultRevision base,
+                      DefaultRevision fork,
+                      ExpressionAdapter test,
+                      ExpressionContext expressionContext,
+                      StringBuilder out,
+                      int depth)
+  {
+    JoinPlan plan = JoinPlan.choose(this, base, fork, test, expressionContext);
+
+    Plan.indent(out, depth).append(plan).append("\n");
+
+    plan.join.left.explain
+      (base, fork, test, expressionContext, out, depth + 1);
+
+    switch (plan.strategy) {
+    case NestedLoop:
+      // the right side is planned once per row on the left, when the
+      // left columns are known, so we mark them as such (but with
+      // unknown values) while explaining it
+      JoinPlan.bind(plan.join.left, expressionContext, Compare.Dummy);
+
+      plan.join.right.explain
+        (base, fork, test, expressionContext, out, depth + 1);
+
+      JoinPlan.bind(plan.join.left, expressionContext, Compare.Undefined);
+      break;
+
+    case Hash:
+      plan.join.right.explain
+        (base, fork, test, expressionContext, out, depth + 1);
+      break;
+
+    case Merge:
+      Plan.indent(out, depth + 1).append(plan.rightPlan(base, fork))
+        .append("\n");
+      break;
+
+    default: throw new RuntimeException
+        ("unexpected strategy: " + plan.strategy);
+    }
   }
 
   public void visit(SourceAdapterVisitor visitor) {
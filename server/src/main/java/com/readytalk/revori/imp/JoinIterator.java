@@ -14,6 +14,7 @@ import com.readytalk.revori.QueryResult;
 
 public class JoinIterator implements SourceIterator {
   private final JoinAdapter join;
+  private final JoinProbe probe;
   private final DefaultRevision base;
   private final DefaultRevision fork;
   public final ExpressionAdapter test;
@@ -30,7 +31,7 @@ public class JoinIterator implements SourceIterator {
   private boolean sawRightEnd;
   private boolean setUndefinedReferences;
 
-  public JoinIterator(JoinAdapter join,
+  public JoinIterator(JoinPlan plan,
                       DefaultRevision base,
                       NodeStack baseStack,
                       DefaultRevision fork,
@@ -39,7 +40,7 @@ public class JoinIterator implements SourceIterator {
                       ExpressionContext expressionContext,
                       boolean visitUnchanged)
   {
-    this.join = join;
+    this.join = plan.join;
     this.base = base;
     this.fork = fork;
     this.test = test;
@@ -47,6 +48,7 @@ public class JoinIterator implements SourceIterator {
     this.visitUnchanged = visitUnchanged;
     this.leftIterator = join.left.iterator
       (base, baseStack, fork, forkStack, test, expressionContext, true);
+    this.probe = plan.probe(base, fork, test, expressionContext);
   }
 
   private void setUndefinedReferences() {
@@ -81,10 +83,19 @@ public class JoinIterator implements SourceIterator {
 
       if (rightIterator == null) {
         leftType = leftIterator.nextRow();
-        switch (leftType) {
-        case End:
+        if (leftType == QueryResult.Type.End) {
           return QueryResult.Type.End;
+        }
 
+        if (probe != null) {
+          rightIterator = probe.iterator
+            (leftType, leftType != QueryResult.Type.Unchanged || visitUnchanged
+             || join.type == Join.Type.LeftOuter);
+        }
+      }
+
+      if (rightIterator == null) {
+        switch (leftType) {
         case Unchanged:
           if (rightBaseStack == null) {
             rightBaseStack = new NodeStack();
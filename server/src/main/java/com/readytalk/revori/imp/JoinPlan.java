@@ -0,0 +1,344 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.readytalk.revori.BinaryOperation;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.Join;
+import com.readytalk.revori.TableReference;
+
+/**
+ * Strategy for evaluating a join, chosen by comparing the estimated
+ * number of rows each would visit:<p>
+ *
+ * <ul><li>a nested loop re-runs the right source for each row on the
+ * left, which is cheap if the right side can be narrowed by an index
+ * using the columns of the left side,</li>
+ *
+ * <li>a hash join hashes the rows of the right table by the join key
+ * and probes that table for each row on the left, and</li>
+ *
+ * <li>a merge join scans the left and right tables in step using
+ * indexes whose first column is the join key.</li></ul><p>
+ *
+ * The latter two require the test to include an equality between a
+ * column of the left side and a column of the right table.  Inner
+ * joins of two tables may also be swapped so the smaller table is
+ * on the right when diffing against an empty revision.
+ */
+class JoinPlan {
+  public enum Strategy {
+    NestedLoop, Hash, Merge;
+  }
+
+  // the cost, in rows, of choosing a plan and creating a new iterator
+  // for the right side of a nested loop
+  private static final long ProbeCost = 8;
+
+  // the cost per row of building a hash table
+  private static final long BuildCost = 2;
+
+  public final JoinAdapter join;
+  public final Strategy strategy;
+  public final ColumnReferenceAdapter leftKey;
+  public final ColumnReferenceAdapter rightKey;
+  public final Index rightIndex;
+  public final long cost;
+  public final long rows;
+
+  private JoinPlan(JoinAdapter join,
+                   Strategy strategy,
+                   @Nullable ColumnReferenceAdapter leftKey,
+                   @Nullable ColumnReferenceAdapter rightKey,
+                   @Nullable Index rightIndex,
+                   long cost,
+                   long rows)
+  {
+    this.join = join;
+    this.strategy = strategy;
+    this.leftKey = leftKey;
+    this.rightKey = rightKey;
+    this.rightIndex = rightIndex;
+    this.cost = cost;
+    this.rows = rows;
+  }
+
+  public static JoinPlan choose(JoinAdapter join,
+                                DefaultRevision base,
+                                DefaultRevision fork,
+                                ExpressionAdapter test,
+                                ExpressionContext expressionContext)
+  {
+    JoinPlan best = plan(join, base, fork, test, expressionContext);
+
+    // TableIterator considers a row unchanged if the query expressions
+    // evaluate to the same values in the base and fork, even if the
+    // join key differs, so the sides are only swapped if the base is
+    // empty and there are no unchanged rows on the left to mislead us
+    if (join.type == Join.Type.Inner
+        && base.root == Node.Null
+        && join.left instanceof TableAdapter
+        && join.right instanceof TableAdapter)
+    {
+      JoinPlan swapped = plan
+        (new JoinAdapter(join.type, join.right, join.left), base, fork, test,
+         expressionContext);
+
+      if (swapped.cost < best.cost) {
+        best = swapped;
+      }
+    }
+
+    return best;
+  }
+
+  private static JoinPlan plan(JoinAdapter join,
+                               DefaultRevision base,
+                               DefaultRevision fork,
+                               ExpressionAdapter test,
+                               ExpressionContext expressionContext)
+  {
+    Plan leftPlan = null;
+    long leftRows;
+    if (join.left instanceof TableAdapter) {
+      leftPlan = Plan.choosePlan
+        (base, new NodeStack(), fork, new NodeStack(), test,
+         ((TableAdapter) join.left).tableReference,
+         expressionContext.indexCache);
+      leftRows = leftPlan.cost();
+    } else {
+      leftRows = rows(join.left, base, fork, test, expressionContext);
+    }
+
+    // estimate the cost of each nested loop probe as explained in
+    // JoinAdapter.explain
+    bind(join.left, expressionContext, Compare.Dummy);
+    long probeRows = rows(join.right, base, fork, test, expressionContext);
+    bind(join.left, expressionContext, Compare.Undefined);
+
+    long rows = multiply(leftRows, probeRows);
+
+    JoinPlan best = new JoinPlan
+      (join, Strategy.NestedLoop, null, null, null,
+       multiply(leftRows, ProbeCost + probeRows), rows);
+
+    if (! (join.right instanceof TableAdapter)) {
+      return best;
+    }
+
+    TableReference rightTable = ((TableAdapter) join.right).tableReference;
+
+    KeyFinder finder = new KeyFinder(rightTable);
+    join.left.visit(expressionContext, finder);
+    finder.find(test);
+
+    if (finder.leftKey == null) {
+      return best;
+    }
+
+    long rightRows = rows(join.right, base, fork, test, expressionContext);
+    long cost = leftRows + multiply(rightRows, BuildCost);
+    if (cost < best.cost) {
+      best = new JoinPlan
+        (join, Strategy.Hash, finder.leftKey, finder.rightKey, null, cost,
+         rows);
+    }
+
+    Column leftColumn = finder.leftKey.column;
+    Column rightColumn = finder.rightKey.column;
+    if (leftPlan != null
+        && leftPlan.index.columns.get(0).equals(leftColumn)
+        && Compare.isNatural(leftColumn.type, leftColumn.comparator)
+        && leftColumn.type == rightColumn.type
+        && leftColumn.comparator == rightColumn.comparator)
+    {
+      Index rightIndex = null;
+      if (rightTable.table.primaryKey.columns.get(0).equals(rightColumn)) {
+        rightIndex = rightTable.table.primaryKey;
+      } else {
+        for (Index index: expressionContext.indexCache.indexes
+               (base, new NodeStack(), fork, new NodeStack(),
+                rightTable.table))
+        {
+          if (index.columns.get(0).equals(rightColumn)) {
+            rightIndex = index;
+            break;
+          }
+        }
+      }
+
+      if (rightIndex != null) {
+        cost = leftRows + scan(rightIndex, base, fork).cost();
+        if (cost < best.cost) {
+          best = new JoinPlan
+            (join, Strategy.Merge, finder.leftKey, finder.rightKey,
+             rightIndex, cost, rows);
+        }
+      }
+    }
+
+    return best;
+  }
+
+  /**
+   * Returns the estimated number of rows visited by the specified
+   * source.
+   */
+  public static long rows(SourceAdapter source,
+                          DefaultRevision base,
+                          DefaultRevision fork,
+                          ExpressionAdapter test,
+                          ExpressionContext expressionContext)
+  {
+    if (source instanceof TableAdapter) {
+      return Plan.choosePlan
+        (base, new NodeStack(), fork, new NodeStack(), test,
+         ((TableAdapter) source).tableReference,
+         expressionContext.indexCache).cost();
+    } else {
+      return choose
+        ((JoinAdapter) source, base, fork, test, expressionContext).rows;
+    }
+  }
+
+  public static void bind(SourceAdapter source,
+                          ExpressionContext expressionContext,
+                          final Object value)
+  {
+    source.visit(expressionContext, new ColumnReferenceAdapterVisitor() {
+        public void visit(ColumnReferenceAdapter r) {
+          r.value = value;
+        }
+      });
+  }
+
+  private static long multiply(long a, long b) {
+    if (a != 0 && b > Long.MAX_VALUE / a) {
+      return Long.MAX_VALUE;
+    } else {
+      return a * b;
+    }
+  }
+
+  /**
+   * Returns a plan which visits every row of the right table in the
+   * order of rightIndex, for use by a merge join.
+   */
+  public Plan rightPlan(DefaultRevision base, DefaultRevision fork) {
+    return scan(rightIndex, base, fork);
+  }
+
+  private static Plan scan(Index index,
+                           DefaultRevision base,
+                           DefaultRevision fork)
+  {
+    Plan plan = new Plan
+      (index, Node.pathFind(base.root, index.table, Compare.TableComparator),
+       Node.pathFind(fork.root, index.table, Compare.TableComparator));
+
+    for (int i = 0; i < plan.size; ++i) {
+      plan.scans[i] = IntervalScan.Unbounded;
+    }
+
+    return plan;
+  }
+
+  public @Nullable JoinProbe probe(DefaultRevision base,
+                                   DefaultRevision fork,
+                                   ExpressionAdapter test,
+                                   ExpressionContext expressionContext)
+  {
+    switch (strategy) {
+    case NestedLoop:
+      return null;
+
+    case Hash:
+      return new HashJoinProbe(this, base, fork, test, expressionContext);
+
+    case Merge:
+      return new MergeJoinProbe(this, base, fork, test, expressionContext);
+
+    default: throw new RuntimeException("unexpected strategy: " + strategy);
+    }
+  }
+
+  public String toString() {
+    switch (strategy) {
+    case NestedLoop:
+      return "nested loop join (" + join.type + ")";
+
+    case Hash:
+      return "hash join (" + join.type + ") on " + leftKey.column + " = "
+        + rightKey.column;
+
+    case Merge:
+      return "merge join (" + join.type + ") on " + leftKey.column + " = "
+        + rightKey.column;
+
+    default: throw new RuntimeException("unexpected strategy: " + strategy);
+    }
+  }
+
+  /**
+   * Finds an equality between a column of the left side of a join and
+   * a column of the right table which must hold for the test to pass,
+   * i.e. one which is not nested in anything but conjunctions.
+   */
+  private static class KeyFinder implements ColumnReferenceAdapterVisitor {
+    public final TableReference rightTable;
+    public final Set<ColumnReferenceAdapter> leftReferences
+      = new HashSet<ColumnReferenceAdapter>();
+    public ColumnReferenceAdapter leftKey;
+    public ColumnReferenceAdapter rightKey;
+
+    public KeyFinder(TableReference rightTable) {
+      this.rightTable = rightTable;
+    }
+
+    public void visit(ColumnReferenceAdapter r) {
+      leftReferences.add(r);
+    }
+
+    public void find(ExpressionAdapter e) {
+      e = CompiledExpression.source(e);
+
+      if (leftKey != null) {
+        return;
+      } else if (e instanceof BooleanBinaryAdapter) {
+        BooleanBinaryAdapter a = (BooleanBinaryAdapter) e;
+        if (a.type == BinaryOperation.Type.And) {
+          find(a.left);
+          find(a.right);
+        }
+      } else if (e instanceof ComparisonAdapter) {
+        ComparisonAdapter a = (ComparisonAdapter) e;
+        if (a.type == BinaryOperation.Type.Equal) {
+          match(a.left, a.right);
+          match(a.right, a.left);
+        }
+      }
+    }
+
+    private void match(ExpressionAdapter left, ExpressionAdapter right) {
+      if (leftKey == null
+          && leftReferences.contains(left)
+          && right instanceof ColumnReferenceAdapter
+          && ((ColumnReferenceAdapter) right).tableReference == rightTable)
+      {
+        leftKey = (ColumnReferenceAdapter) left;
+        rightKey = (ColumnReferenceAdapter) right;
+      }
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.readytalk.revori.QueryResult;
+
+/**
+ * Source of the rows of the right side of a join which may match a
+ * given key, used by JoinIterator in place of re-running the right
+ * source for each row on the left.  Rows are collected from a diff of
+ * the right table (with the columns of the left side undefined, so
+ * only conditions on the right table itself exclude anything) and
+ * replayed with the full test once the left row is known.
+ */
+abstract class JoinProbe {
+  protected final JoinPlan plan;
+  protected final ExpressionAdapter test;
+  protected final List<ColumnReferenceAdapter> leftReferences
+    = new ArrayList<ColumnReferenceAdapter>();
+  protected final List<ColumnReferenceAdapter> rightReferences
+    = new ArrayList<ColumnReferenceAdapter>();
+
+  public JoinProbe(JoinPlan plan,
+                   ExpressionAdapter test,
+                   ExpressionContext expressionContext)
+  {
+    this.plan = plan;
+    this.test = test;
+
+    plan.join.left.visit
+      (expressionContext, new ColumnReferenceAdapterVisitor() {
+          public void visit(ColumnReferenceAdapter r) {
+            leftReferences.add(r);
+          }
+        });
+
+    plan.join.right.visit
+      (expressionContext, new ColumnReferenceAdapterVisitor() {
+          public void visit(ColumnReferenceAdapter r) {
+            rightReferences.add(r);
+          }
+        });
+  }
+
+  /**
+   * Returns the rows which may match the specified key, or null if
+   * they cannot be determined by this probe, in which case the caller
+   * should fall back to a nested loop.
+   */
+  protected abstract @Nullable List<Row> rows(Object key);
+
+  /**
+   * Returns an iterator which visits the rows matching the current
+   * row on the left, as if by a TableIterator over the right table.
+   * The type of the left row determines which revisions are visited:
+   * Unchanged visits the diff from base to fork, Inserted visits only
+   * the fork, and Deleted visits only the base, just as JoinIterator
+   * does for nested loops.
+   */
+  public @Nullable SourceIterator iterator(QueryResult.Type leftType,
+                                           boolean visitUnchanged)
+  {
+    Object key = plan.leftKey.value;
+    List<Row> rows;
+    if (key == null || key == Compare.Undefined || key == Compare.Dummy) {
+      rows = Collections.emptyList();
+    } else {
+      rows = rows(key);
+      if (rows == null) {
+        return null;
+      }
+    }
+
+    return new RowIterator(rows, leftType, visitUnchanged);
+  }
+
+  /**
+   * Sets the column references of the left side of the join to
+   * undefined and returns their previous values, so rows may be
+   * collected without regard to the current left row.
+   */
+  protected Object[] unbindLeft() {
+    Object[] values = new Object[leftReferences.size()];
+    for (int i = 0; i < values.length; ++i) {
+      values[i] = leftReferences.get(i).value;
+    }
+    undefineLeft();
+    return values;
+  }
+
+  /**
+   * Sets the column references of the left side of the join to
+   * undefined.  This must be done before each row is requested from
+   * the right side, since TableIterator may populate every column
+   * reference in the expression context when comparing rows, and the
+   * two sides may share columns.
+   */
+  protected void undefineLeft() {
+    for (ColumnReferenceAdapter r: leftReferences) {
+      r.value = Compare.Undefined;
+    }
+  }
+
+  protected void rebindLeft(Object[] values) {
+    for (int i = 0; i < values.length; ++i) {
+      leftReferences.get(i).value = values[i];
+    }
+  }
+
+  /**
+   * Converts the current result of the specified iterator to a row.
+   * Rows which changed between the base and fork are visited by
+   * TableIterator as a deletion followed by an insertion, so each
+   * half becomes a separate row here, and only unchanged rows have
+   * both a base and a fork.
+   */
+  protected static Row row(TableIterator iterator, QueryResult.Type type) {
+    switch (type) {
+    case Unchanged:
+      return new Row(iterator.pair.base.value, iterator.pair.fork.value);
+
+    case Deleted:
+      return new Row(iterator.pair.base.value, null);
+
+    case Inserted:
+      return new Row(null, iterator.pair.fork.value);
+
+    default: throw new RuntimeException("unexpected result type: " + type);
+    }
+  }
+
+  protected Object key(@Nullable Object row) {
+    return row == null ? null : PackedRow.value(row, plan.rightKey.column);
+  }
+
+  protected static class Row {
+    public final Object base;
+    public final Object fork;
+
+    public Row(@Nullable Object base, @Nullable Object fork) {
+      this.base = base;
+      this.fork = fork;
+    }
+  }
+
+  private class RowIterator implements SourceIterator {
+    private final List<Row> rows;
+    private final QueryResult.Type leftType;
+    private final boolean visitUnchanged;
+    private int index;
+
+    public RowIterator(List<Row> rows,
+                       QueryResult.Type leftType,
+                       boolean visitUnchanged)
+    {
+      this.rows = rows;
+      this.leftType = leftType;
+      this.visitUnchanged = visitUnchanged;
+    }
+
+    public QueryResult.Type nextRow() {
+      while (index < rows.size()) {
+        Row row = rows.get(index++);
+
+        Object base;
+        Object fork;
+        switch (leftType) {
+        case Unchanged:
+          base = row.base;
+          fork = row.fork;
+          break;
+
+        case Inserted:
+          base = null;
+          fork = row.fork;
+          break;
+
+        case Deleted:
+          base = null;
+          fork = row.base;
+          break;
+
+        default: throw new RuntimeException
+            ("unexpected result type: " + leftType);
+        }
+
+        // the base and fork of an unchanged row may differ in columns
+        // which are not part of the query expressions, so each must be
+        // tested separately against the left row
+        boolean inFork = test(fork);
+        if (test(base)) {
+          if (! inFork) {
+            return QueryResult.Type.Deleted;
+          } else if (visitUnchanged) {
+            return QueryResult.Type.Unchanged;
+          }
+        } else if (inFork) {
+          test(fork);
+          return QueryResult.Type.Inserted;
+        }
+      }
+
+      for (ColumnReferenceAdapter r: rightReferences) {
+        r.value = Compare.Undefined;
+      }
+
+      return QueryResult.Type.End;
+    }
+
+    public boolean rowUpdated() {
+      return false;
+    }
+
+    private boolean test(Object row) {
+      if (row != null) {
+        for (ColumnReferenceAdapter r: rightReferences) {
+          TableIterator.setValue(r, row);
+        }
+
+        return test.evaluate(false) != Boolean.FALSE;
+      } else {
+        return false;
+      }
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import com.readytalk.revori.QueryResult;
+
+/**
+ * Iterator which skips the specified number of rows of the iterator
+ * it wraps and then visits at most the specified number of rows (or
+ * all remaining rows, if limit is -1).  Once the limit is reached,
+ * the wrapped iterator is not advanced any further, so a scan which
+ * visits rows in the requested order stops as soon as it has found
+ * enough of them.<p>
+ *
+ * An updated row is visited as a Deleted row for which rowUpdated
+ * returns true followed by an Inserted one.  The pair counts as a
+ * single row, so a page never ends between its two halves.
+ */
+class LimitIterator implements SourceIterator {
+  private final SourceIterator iterator;
+  private int skip;
+  private int remaining;
+  private boolean updating;
+
+  public LimitIterator(SourceIterator iterator, int offset, int limit) {
+    this.iterator = iterator;
+    this.skip = offset;
+    this.remaining = limit;
+  }
+
+  public QueryResult.Type nextRow() {
+    if (updating) {
+      // the second half of an update we've already counted
+      updating = false;
+      return iterator.nextRow();
+    }
+
+    if (remaining == 0) {
+      return QueryResult.Type.End;
+    }
+
+    while (true) {
+      QueryResult.Type type = iterator.nextRow();
+      if (type == QueryResult.Type.End) {
+        remaining = 0;
+        return type;
+      }
+
+      boolean update = type == QueryResult.Type.Deleted
+        && iterator.rowUpdated();
+
+      if (skip > 0) {
+        -- skip;
+        if (update) {
+          iterator.nextRow();
+        }
+      } else {
+        if (remaining > 0) {
+          -- remaining;
+        }
+        updating = update;
+        return type;
+      }
+    }
+  }
+
+  public boolean rowUpdated() {
+    return iterator.rowUpdated();
+  }
+}
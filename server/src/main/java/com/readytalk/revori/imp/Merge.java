@@ -7,17 +7,31 @@
 
 package com.readytalk.revori.imp;
 
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Nullable;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.readytalk.revori.Column;
 import com.readytalk.revori.ConflictResolver;
 import com.readytalk.revori.ForeignKeyResolver;
 import com.readytalk.revori.Index;
+import com.readytalk.revori.Join;
+import com.readytalk.revori.Source;
 import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
 import com.readytalk.revori.View;
 
 class Merge {
@@ -28,6 +42,27 @@ class Merge {
      ConflictResolver conflictResolver,
      ForeignKeyResolver foreignKeyResolver)
   {
+    return mergeRevisions
+      (base, left, right, conflictResolver, foreignKeyResolver, null);
+  }
+
+  /**
+   * Merges the specified revisions as described in Revision.merge.
+   * If an executor is specified, the primary key data trees of each
+   * table changed in both forks are merged as separate tasks, as are
+   * the updates to each index and view data tree, and the results are
+   * stitched together on the calling thread.  In that case, calls to
+   * the conflict resolver may be made from executor threads, although
+   * never concurrently.
+   */
+  public static DefaultRevision mergeRevisions
+    (DefaultRevision base,
+     DefaultRevision left,
+     DefaultRevision right,
+     ConflictResolver conflictResolver,
+     ForeignKeyResolver foreignKeyResolver,
+     @Nullable Executor executor)
+  {
 
     if (base.equals(right) || left.equals(right)) {
       return left;
@@ -49,7 +84,8 @@ class Merge {
     //  2. Update non-primary-key index and view data trees, removing
     //     obsolete rows and adding new or updated ones.
     //
-    //  3. Build data trees for any new indexes and views added.
+    //  3. Build data trees for any new indexes and views added,
+    //     starting from those in the right revision where possible.
     //
     //  4. Verify foreign key constraints.
 
@@ -62,6 +98,109 @@ class Merge {
     Set<View> views = new TreeSet<View>();
     Set<View> newViews = new TreeSet<View>();
 
+    List<TableMerge> tableMerges = executor == null
+      ? null : new ArrayList<TableMerge>();
+
+    if (executor != null && conflictResolver != null) {
+      conflictResolver = new SerialConflictResolver(conflictResolver);
+    }
+
+    NodeStack baseStack = new NodeStack();
+    NodeStack leftStack = new NodeStack();
+    NodeStack rightStack = new NodeStack();
+
+    mergeTables(base, left, right, builder, conflictResolver, executor,
+                tableMerges, indexes, newIndexes, views, newViews);
+
+    findNewViews(builder, left, views, newViews);
+
+    // pack any rows we merged column by column before they're copied
+    // into index data trees
+    builder.pack();
+
+    if (executor != null) {
+      for (TableMerge merge: tableMerges) {
+        merge.stitch(builder);
+      }
+
+      updateIndexTrees
+        (builder, executor, left, right, indexes, newIndexes, views,
+         newViews);
+    } else {
+      // Update non-primary-key index data trees
+      for (Index index: indexes) {
+        builder.updateIndexTree(index, left, leftStack, baseStack);
+      }
+
+      // Update view data trees
+      for (View view: views) {
+        builder.updateViewTree(view, left, leftStack, baseStack);
+      }
+
+      // build data trees for any new indexes
+      for (Index index: newIndexes) {
+        builder.updateIndexTree
+          (index, graft(builder, right, index, null), leftStack, baseStack);
+      }
+
+      // build data trees for any new views
+      for (View view: newViews) {
+        builder.updateViewTree
+          (view, graft(builder, right, view.table.primaryKey, view),
+           leftStack, baseStack);
+      }
+    }
+
+    // verify all foreign key constraints
+    ForeignKeys.checkForeignKeys
+      (leftStack, left, baseStack, builder, rightStack, foreignKeyResolver,
+       null);
+
+    ForeignKeys.checkForeignKeys
+      (rightStack, right, baseStack, builder, leftStack, foreignKeyResolver,
+       null);
+
+    builder.pack();
+
+    // System.out.println("merge base");
+    // Node.dump(base.root, System.out, 1);
+    // System.out.println("merge left");
+    // Node.dump(left.root, System.out, 1);
+    // System.out.println("merge right");
+    // Node.dump(right.root, System.out, 1);
+    // System.out.println("merge result");
+    // Node.dump(builder.result.root, System.out, 1);
+    // System.out.println();
+
+    if (left.equals(builder.result)) {
+      return left;
+    } else if (base.equals(builder.result)) {
+      return base;
+    } else {
+      return builder.result;
+    }
+  }
+
+  /**
+   * Merges the primary key data trees of each table, deleting obsolete
+   * index and view data trees and collecting the indexes and views
+   * which must be updated or built afterward.  If tableMerges is
+   * non-null, the primary key data trees of tables changed in both
+   * forks are merged using the specified executor instead of here, and
+   * the pending merges are added to that list.
+   */
+  private static void mergeTables(DefaultRevision base,
+                                  DefaultRevision left,
+                                  DefaultRevision right,
+                                  DefaultRevisionBuilder builder,
+                                  ConflictResolver conflictResolver,
+                                  @Nullable Executor executor,
+                                  @Nullable List<TableMerge> tableMerges,
+                                  Set<Index> indexes,
+                                  Set<Index> newIndexes,
+                                  Set<View> views,
+                                  Set<View> newViews)
+  {
     NodeStack baseStack = new NodeStack();
     NodeStack leftStack = new NodeStack();
     NodeStack rightStack = new NodeStack();
@@ -97,6 +236,8 @@ class Merge {
               }
             } else if (triple.right == null) {
               // do nothing -- left already has insert
+            } else if (triple.left.value == triple.right.value) {
+              // do nothing -- inserts match and left already has them
             } else if (depth == bottom) {
               if (Compare.equal(triple.left.value, triple.right.value)) {
                 // do nothing -- inserts match and left already has it
@@ -108,14 +249,21 @@ class Merge {
             }
           } else if (triple.left != null) {
             if (triple.right != null) {
-              if (triple.left == triple.base) {
+              // note that we compare values by identity as well as
+              // nodes, since rebalancing and changes elsewhere in a
+              // tree may produce distinct nodes sharing a subtree
+              if (triple.left == triple.base
+                  || triple.left.value == triple.base.value)
+              {
                 if(depth == Constants.IndexDataDepth) {
                   indexes.remove(triple.right.key);
                 }
                 builder.insertOrUpdate
                   (depth, triple.right.key, comparator,
                    triple.right.value);
-              } else if (triple.right == triple.base) {
+              } else if (triple.right == triple.base
+                         || triple.right.value == triple.base.value)
+              {
                 // do nothing -- left already has update
               } else if (depth == bottom) {
                 if (Compare.equal(triple.left.value, triple.right.value)
@@ -134,12 +282,19 @@ class Merge {
               } else {
                 descend = true;
               }
-            } else if (depth != bottom) {
+            } else if (depth != bottom
+                       && (depth <= Constants.IndexDataDepth
+                           || triple.left.value != triple.base.value))
+            {
               descend = true;
             } else {
+              // right deleted this row or column, and left left it
+              // unchanged
               builder.deleteKey(depth, triple.left.key, comparator);
             }
-          } else if (depth != bottom) {
+          } else if (depth != bottom && triple.right != null
+                     && triple.right.value != triple.base.value)
+          {
             descend = true;
           } else {
             // do nothing -- left already has delete
@@ -272,6 +427,16 @@ class Merge {
               Index index = (Index) key;
 
               if (Compare.equal(index, table.primaryKey, comparator)) {
+                if (tableMerges != null) {
+                  // merge the rows of this table in a separate task
+                  TableMerge merge = new TableMerge
+                    (table, triple.base, triple.left, triple.right,
+                     conflictResolver);
+                  submit(executor, merge.task);
+                  tableMerges.add(merge);
+                  continue;
+                }
+
                 bottom = index.columns.size() + Constants.IndexDataBodyDepth;
               } else {
                 // skip non-primary-key index data trees -- we'll handle
@@ -292,11 +457,14 @@ class Merge {
             ++ depth;
 
             iterators[depth] = new MergeIterator
-              (triple.base == null ? Node.Null : (Node) triple.base.value,
+              (triple.base == null ? Node.Null
+               : PackedRow.tree(triple.base.value),
                baseStack = new NodeStack(baseStack),
-               triple.left == null ? Node.Null : (Node) triple.left.value,
+               triple.left == null ? Node.Null
+               : PackedRow.tree(triple.left.value),
                leftStack = new NodeStack(leftStack),
-               triple.right == null ? Node.Null : (Node) triple.right.value,
+               triple.right == null ? Node.Null
+               : PackedRow.tree(triple.right.value),
                rightStack = new NodeStack(rightStack),
                nextComparator);
           }
@@ -313,52 +481,398 @@ class Merge {
         }
       }
     }
+  }
 
-    // Update non-primary-key index data trees
-    for (Index index: indexes) {
-      builder.updateIndexTree(index, left, leftStack, baseStack);
+  /**
+   * Updates the data trees of the specified indexes and views, each
+   * as a separate task.  Each task starts with a snapshot of the
+   * merged revision and yields a new data tree for one index or view,
+   * which we then graft into the merge result.  Views are updated
+   * after indexes so they can see the updated indexes, and only in
+   * parallel if none of them queries the table of another.
+   */
+  private static void updateIndexTrees(DefaultRevisionBuilder builder,
+                                       Executor executor,
+                                       DefaultRevision left,
+                                       DefaultRevision right,
+                                       Set<Index> indexes,
+                                       Set<Index> newIndexes,
+                                       Set<View> views,
+                                       Set<View> newViews)
+  {
+    // graft any trees from the right revision before taking the
+    // snapshots the updates start from, since the builder may modify
+    // nodes of those snapshots in place
+    List<DefaultRevision> sources = new ArrayList<DefaultRevision>();
+    for (Index index: newIndexes) {
+      sources.add(graft(builder, right, index, null));
     }
 
-    // Update view data trees
-    for (View view: views) {
-      builder.updateViewTree(view, left, leftStack, baseStack);
+    List<TreeUpdate> updates = new ArrayList<TreeUpdate>();
+    for (Index index: indexes) {
+      updates.add(new TreeUpdate(builder.result, index, null, left));
     }
-
-    // build data trees for any new indexes
-    for (Index index: newIndexes) {
-      builder.updateIndexTree(index, DefaultRevision.Empty, leftStack, baseStack);
+    { int i = 0;
+      for (Index index: newIndexes) {
+        updates.add(new TreeUpdate
+                    (builder.result, index, null, sources.get(i++)));
+      }
     }
+    run(executor, updates, builder);
 
-    // build data trees for any new views
+    sources.clear();
     for (View view: newViews) {
-      builder.updateViewTree(view, DefaultRevision.Empty, leftStack, baseStack);
+      sources.add(graft(builder, right, view.table.primaryKey, view));
     }
 
-    // verify all foreign key constraints
-    ForeignKeys.checkForeignKeys
-      (leftStack, left, baseStack, builder, rightStack, foreignKeyResolver,
-       null);
+    if (independent(views, newViews)) {
+      for (View view: views) {
+        updates.add(new TreeUpdate
+                    (builder.result, view.table.primaryKey, view, left));
+      }
+      int i = 0;
+      for (View view: newViews) {
+        updates.add(new TreeUpdate
+                    (builder.result, view.table.primaryKey, view,
+                     sources.get(i++)));
+      }
+      run(executor, updates, builder);
+    } else {
+      for (View view: views) {
+        builder.updateViewTree(view, left, new NodeStack(), new NodeStack());
+      }
+      int i = 0;
+      for (View view: newViews) {
+        builder.updateViewTree
+          (view, sources.get(i++), new NodeStack(), new NodeStack());
+      }
+    }
+  }
 
-    ForeignKeys.checkForeignKeys
-      (rightStack, right, baseStack, builder, leftStack, foreignKeyResolver,
-       null);
+  /**
+   * Adds to newViews any views defined in the merge result but not in
+   * the left revision which mergeTables did not find.  It only finds
+   * those selecting from a table both revisions changed, but a view
+   * added by the right revision must also be brought up to date if
+   * only the left revision changed the tables it selects from.
+   */
+  private static void findNewViews(DefaultRevisionBuilder builder,
+                                   DefaultRevision left,
+                                   Set<View> views,
+                                   Set<View> newViews)
+  {
+    DiffIterator tableIterator = new DiffIterator
+      (Node.pathFind
+       (left.root, Constants.ViewTable, Compare.TableComparator,
+        Constants.ViewTable.primaryKey, Compare.IndexComparator),
+       new NodeStack(),
+       Node.pathFind
+       (builder.result.root, Constants.ViewTable, Compare.TableComparator,
+        Constants.ViewTable.primaryKey, Compare.IndexComparator),
+       new NodeStack(),
+       Lists.newArrayList(Interval.Unbounded).iterator(),
+       false, Constants.TableColumn.comparator);
+
+    DiffIterator.DiffPair tablePair = new DiffIterator.DiffPair();
+    while (tableIterator.next(tablePair)) {
+      if (tablePair.fork != null) {
+        DiffIterator viewIterator = new DiffIterator
+          (tablePair.base == null ? Node.Null : (Node) tablePair.base.value,
+           new NodeStack(),
+           (Node) tablePair.fork.value,
+           new NodeStack(),
+           Lists.newArrayList(Interval.Unbounded).iterator(),
+           false, Constants.ViewColumn.comparator);
+
+        DiffIterator.DiffPair pair = new DiffIterator.DiffPair();
+        while (viewIterator.next(pair)) {
+          if (pair.base == null && pair.fork != null) {
+            View view = (View) pair.fork.key;
+            if (! views.contains(view)) {
+              newViews.add(view);
+            }
+          }
+        }
+      }
+    }
+  }
 
-    // System.out.println("merge base");
-    // Node.dump(base.root, System.out, 1);
-    // System.out.println("merge left");
-    // Node.dump(left.root, System.out, 1);
-    // System.out.println("merge right");
-    // Node.dump(right.root, System.out, 1);
-    // System.out.println("merge result");
-    // Node.dump(builder.result.root, System.out, 1);
-    // System.out.println();
+  /**
+   * Prepares to build the data tree of the specified new index (or
+   * of the specified new view, whose primary key it is) in the merge
+   * result, returning the revision to update that tree from.  If the
+   * index or view is defined in the right revision, its tree there is
+   * copied into the result, so only rows which differ between the
+   * right revision and the result need be visited.  Otherwise, the
+   * tree is built from scratch.  This makes publishing an index or
+   * view built in the background against an older revision cheap.
+   */
+  private static DefaultRevision graft(DefaultRevisionBuilder builder,
+                                       DefaultRevision right,
+                                       Index index,
+                                       @Nullable View view)
+  {
+    boolean defined;
+    if (view == null) {
+      defined = Node.pathFind
+        (right.root, Constants.IndexTable, Compare.TableComparator,
+         Constants.IndexTable.primaryKey, Compare.IndexComparator,
+         index.table, Constants.TableColumn.comparator,
+         index, Constants.IndexColumn.comparator) != Node.Null;
+    } else {
+      Set<Table> tables = new HashSet<Table>();
+      addTables(view.query.source, tables);
+      defined = ! tables.isEmpty() && Node.pathFind
+        (right.root, Constants.ViewTable, Compare.TableComparator,
+         Constants.ViewTable.primaryKey, Compare.IndexComparator,
+         tables.iterator().next(), Constants.TableColumn.comparator,
+         view, Constants.ViewColumn.comparator) != Node.Null;
+    }
 
-    if (left.equals(builder.result)) {
-      return left;
-    } else if (base.equals(builder.result)) {
-      return base;
+    if (defined) {
+      stitch(builder, index, Node.Null, find(right, index));
+      return right;
     } else {
-      return builder.result;
+      return DefaultRevision.Empty;
+    }
+  }
+
+  private static void run(Executor executor,
+                          List<TreeUpdate> updates,
+                          DefaultRevisionBuilder builder)
+  {
+    for (TreeUpdate update: updates) {
+      submit(executor, update.task);
+    }
+
+    // wait for every task before stitching, since stitching may modify
+    // nodes of the snapshot in place
+    Node[] trees = new Node[updates.size()];
+    for (int i = 0; i < trees.length; ++i) {
+      trees[i] = get(updates.get(i).task);
+    }
+
+    for (int i = 0; i < trees.length; ++i) {
+      TreeUpdate update = updates.get(i);
+      stitch(builder, update.index, update.original, trees[i]);
+    }
+
+    updates.clear();
+  }
+
+  private static boolean independent(Set<View> views, Set<View> newViews) {
+    Set<Table> written = new HashSet<Table>();
+    Set<Table> read = new HashSet<Table>();
+    for (View view: Iterables.concat(views, newViews)) {
+      written.add(view.table);
+      addTables(view.query.source, read);
+    }
+
+    for (Table table: read) {
+      if (written.contains(table)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void addTables(Source source, Set<Table> tables) {
+    if (source instanceof TableReference) {
+      tables.add(((TableReference) source).table);
+    } else if (source instanceof Join) {
+      addTables(((Join) source).left, tables);
+      addTables(((Join) source).right, tables);
+    }
+  }
+
+  /**
+   * Replaces the data tree of the specified index in the merge result
+   * with the specified tree, unless it is unchanged.
+   */
+  private static void stitch(DefaultRevisionBuilder builder,
+                             Index index,
+                             Node original,
+                             Node tree)
+  {
+    if (tree != original) {
+      builder.setKey
+        (Constants.TableDataDepth, index.table, Compare.TableComparator);
+
+      if (tree == Node.Null) {
+        builder.deleteKey
+          (Constants.IndexDataDepth, index, Compare.IndexComparator);
+      } else {
+        builder.insertOrUpdate
+          (Constants.IndexDataDepth, index, Compare.IndexComparator, tree);
+      }
+    }
+  }
+
+  private static Node find(DefaultRevision revision, Index index) {
+    return Node.pathFind
+      (revision.root, index.table, Compare.TableComparator, index,
+       Compare.IndexComparator);
+  }
+
+  /**
+   * Returns a revision containing only the specified primary key data
+   * tree of the specified table, or the empty revision if the tree is
+   * null.
+   */
+  private static DefaultRevision tableRevision(Table table,
+                                               @Nullable Node index)
+  {
+    DefaultRevisionBuilder builder = new DefaultRevisionBuilder
+      (new Object(), DefaultRevision.Empty, new NodeStack());
+
+    if (index != null) {
+      builder.setKey
+        (Constants.TableDataDepth, table, Compare.TableComparator);
+      builder.insertOrUpdate
+        (Constants.IndexDataDepth, table.primaryKey, Compare.IndexComparator,
+         index.value);
+    }
+
+    return builder.result;
+  }
+
+  /**
+   * Hands the specified task to the specified executor, or leaves it
+   * for get to run on the calling thread if the executor won't take
+   * it.
+   */
+  private static void submit(Executor executor, FutureTask<?> task) {
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      // get will run it
+    }
+  }
+
+  /**
+   * Returns the result of the specified task, first running it on
+   * the calling thread if no other thread has started it yet.  That
+   * way a merge never waits on tasks queued behind it, e.g. because
+   * it is itself running on a thread of a saturated executor.
+   */
+  private static <T> T get(FutureTask<T> task) {
+    // this does nothing if the task has already been started
+    task.run();
+
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new RuntimeException(cause);
+      }
+    }
+  }
+
+  /**
+   * A merge of the primary key data trees of a single table, which
+   * works on revisions containing only that table so it is
+   * independent of the rest of the merge.
+   */
+  private static class TableMerge {
+    public final Table table;
+    public final Node original;
+    public final FutureTask<Node> task;
+
+    public TableMerge(final Table table,
+                      @Nullable final Node base,
+                      @Nullable final Node left,
+                      @Nullable final Node right,
+                      final ConflictResolver conflictResolver)
+    {
+      this.table = table;
+      this.original = left == null ? Node.Null : (Node) left.value;
+      this.task = new FutureTask<Node>(new Callable<Node>() {
+          public Node call() {
+            DefaultRevision myLeft = tableRevision(table, left);
+            DefaultRevisionBuilder builder = new DefaultRevisionBuilder
+              (new Object(), myLeft, new NodeStack());
+
+            mergeTables
+              (tableRevision(table, base), myLeft,
+               tableRevision(table, right), builder, conflictResolver, null,
+               null, new TreeSet<Index>(), new TreeSet<Index>(),
+               new TreeSet<View>(), new TreeSet<View>());
+
+            builder.pack();
+
+            return find(builder.result, table.primaryKey);
+          }
+        });
+    }
+
+    public void stitch(DefaultRevisionBuilder builder) {
+      Merge.stitch(builder, table.primaryKey, original, get(task));
+    }
+  }
+
+  /**
+   * An update of the data tree of a single index or view, starting
+   * from a snapshot of the merge result.
+   */
+  private static class TreeUpdate {
+    public final Index index;
+    public final Node original;
+    public final FutureTask<Node> task;
+
+    public TreeUpdate(final DefaultRevision result,
+                      final Index index,
+                      @Nullable final View view,
+                      final DefaultRevision base)
+    {
+      this.index = index;
+      this.original = find(result, index);
+      this.task = new FutureTask<Node>(new Callable<Node>() {
+          public Node call() {
+            DefaultRevisionBuilder builder = new DefaultRevisionBuilder
+              (new Object(), result, new NodeStack());
+
+            if (view == null) {
+              builder.updateIndexTree
+                (index, base, new NodeStack(), new NodeStack());
+            } else {
+              builder.updateViewTree
+                (view, base, new NodeStack(), new NodeStack());
+            }
+
+            return find(builder.result, index);
+          }
+        });
+    }
+  }
+
+  /**
+   * Serializes calls to a conflict resolver which may be made from
+   * several threads at once during a parallel merge.
+   */
+  private static class SerialConflictResolver implements ConflictResolver {
+    private final ConflictResolver resolver;
+
+    public SerialConflictResolver(ConflictResolver resolver) {
+      this.resolver = resolver;
+    }
+
+    public synchronized Object resolveConflict(Table table,
+                                               Column column,
+                                               Object[] primaryKeyValues,
+                                               @Nullable Object baseValue,
+                                               Object leftValue,
+                                               Object rightValue)
+    {
+      return resolver.resolveConflict
+        (table, column, primaryKeyValues, baseValue, leftValue, rightValue);
     }
   }
 }
@@ -17,6 +17,10 @@ class MergeIterator {
   public final NodeStack left;
   public final NodeStack right;
   public final Comparator comparator;
+  // used instead of base, left and right for trees of WideNodes
+  private final WideNode.Cursor baseCursor;
+  private final WideNode.Cursor leftCursor;
+  private final WideNode.Cursor rightCursor;
 
   public MergeIterator(Node baseRoot,
                        NodeStack base,
@@ -31,6 +35,20 @@ class MergeIterator {
     this.right = right;
     this.comparator = comparator;
 
+    if (WideNode.wide(baseRoot, leftRoot, rightRoot)) {
+      baseCursor = new WideNode.Cursor();
+      leftCursor = new WideNode.Cursor();
+      rightCursor = new WideNode.Cursor();
+      baseCursor.first(baseRoot);
+      leftCursor.first(leftRoot);
+      rightCursor.first(rightRoot);
+      return;
+    }
+
+    baseCursor = null;
+    leftCursor = null;
+    rightCursor = null;
+
     if (baseRoot != Node.Null) {
       base.push(baseRoot);
     }
@@ -171,6 +189,10 @@ class MergeIterator {
   }
 
   public boolean next(MergeTriple triple) {
+    if (baseCursor != null) {
+      return nextWide(triple);
+    }
+
     while (true) {
       int leftBase = compareForMerge(left.top, base.top, comparator);
       if (leftBase > 0) {
@@ -314,6 +336,53 @@ class MergeIterator {
     }
   }
 
+  private boolean nextWide(MergeTriple triple) {
+    while (true) {
+      Node base = baseCursor.entry();
+      Node left = leftCursor.entry();
+      Node right = rightCursor.entry();
+
+      if (base != null && base == left && base == right) {
+        // no need to look any closer -- there aren't any changes
+        WideNode.Cursor.skipShared(baseCursor, leftCursor, rightCursor);
+        continue;
+      }
+
+      Object key = null;
+      if (base != null) {
+        key = base.key;
+      }
+      if (left != null
+          && (key == null || Compare.compare(left.key, key, comparator) < 0))
+      {
+        key = left.key;
+      }
+      if (right != null
+          && (key == null || Compare.compare(right.key, key, comparator) < 0))
+      {
+        key = right.key;
+      }
+
+      if (key == null) {
+        return false;
+      }
+
+      triple.base = take(baseCursor, base, key);
+      triple.left = take(leftCursor, left, key);
+      triple.right = take(rightCursor, right, key);
+      return true;
+    }
+  }
+
+  private Node take(WideNode.Cursor cursor, Node n, Object key) {
+    if (n != null && Compare.compare(n.key, key, comparator) == 0) {
+      cursor.next();
+      return n;
+    } else {
+      return null;
+    }
+  }
+
   public static class MergeTriple {
     public Node base;
     public Node left;
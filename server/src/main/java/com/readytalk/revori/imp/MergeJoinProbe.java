@@ -0,0 +1,103 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import com.readytalk.revori.QueryResult;
+
+/**
+ * JoinProbe which scans an index of the right side of a join whose
+ * first column is the join key in step with the left side, which must
+ * visit its rows in the same order.  Only the rows sharing the most
+ * recently probed key are retained.
+ */
+class MergeJoinProbe extends JoinProbe {
+  private final TableIterator iterator;
+  private final Comparator comparator;
+  private Object groupKey;
+  private List<Row> group;
+  private Row pending;
+  private Object pendingKey;
+  private boolean done;
+
+  public MergeJoinProbe(JoinPlan plan,
+                        DefaultRevision base,
+                        DefaultRevision fork,
+                        ExpressionAdapter test,
+                        ExpressionContext expressionContext)
+  {
+    super(plan, test, expressionContext);
+
+    this.comparator = plan.rightKey.column.comparator;
+
+    Object[] values = unbindLeft();
+
+    this.iterator = new TableIterator
+      (plan.rightKey.tableReference, base, new NodeStack(),
+       fork, new NodeStack(), test, expressionContext,
+       plan.rightPlan(base, fork), true);
+
+    rebindLeft(values);
+  }
+
+  protected List<Row> rows(Object key) {
+    if (group != null) {
+      int difference = Compare.compare(key, groupKey, comparator);
+      if (difference == 0) {
+        return group;
+      } else if (difference < 0) {
+        // the left side is not in order after all
+        return null;
+      }
+    }
+
+    Object[] values = unbindLeft();
+
+    groupKey = key;
+    group = new ArrayList<Row>();
+
+    while (true) {
+      if (pending == null) {
+        if (done) {
+          break;
+        }
+
+        undefineLeft();
+        QueryResult.Type type = iterator.nextRow();
+        if (type == QueryResult.Type.End) {
+          done = true;
+          break;
+        }
+
+        // rows are visited in order of the first column of the index,
+        // so the base and fork of a row must have the same key
+        pending = row(iterator, type);
+        pendingKey = key(pending.base == null ? pending.fork : pending.base);
+      }
+
+      int difference = pendingKey == null
+        ? -1 : Compare.compare(pendingKey, key, comparator);
+
+      if (difference < 0) {
+        pending = null;
+      } else if (difference == 0) {
+        group.add(pending);
+        pending = null;
+      } else {
+        break;
+      }
+    }
+
+    rebindLeft(values);
+
+    return group;
+  }
+}
@@ -15,22 +15,43 @@ import javax.annotation.Nullable;
 
 import com.google.common.collect.Lists;
 
+/**
+ * Node of a persistent red-black tree, and the entry type and common
+ * interface for trees of WideNodes.<p>
+ *
+ * Revisions are trees of trees: each node's value may be the root of
+ * another tree, down to the column values of each row.  The static
+ * methods here accept the root of either kind of tree and dispatch on
+ * its type, and DiffIterator, MergeIterator and NodeIterator do the
+ * same, so callers may treat roots as opaque and entries as key/value
+ * pairs.  Which kind is created for a new tree is selected per
+ * process by the com.readytalk.revori.tree system property, which may
+ * be "binary" (the default) or "wide".  Both kinds of tree must not
+ * be mixed within one revision.
+ */
 class Node {
   private static final boolean Debug = false;
 
   public static final Node Null = new Node(new Object(), null);
 
+  public static final boolean Wide = wide
+    (System.getProperty("com.readytalk.revori.tree", "binary"));
+
   static {
     Null.left = Null;
     Null.right = Null;
     Null.value = Null;
   }
 
-  private final Object token;
+  final Object token;
   public Object key;
   public Object value;
   public Node left;
   public Node right;
+  public int size;
+  // the total weight of the entries of this subtree, or zero if not
+  // yet computed; see total
+  int total;
   private boolean red;
     
   public Node(Object token, @Nullable Node basis) {
@@ -41,10 +62,22 @@ class Node {
       value = basis.value;
       left = basis.left;
       right = basis.right;
+      size = basis.size;
       red = basis.red;
     }
   }
 
+  private static boolean wide(String tree) {
+    if ("wide".equals(tree)) {
+      return true;
+    } else if ("binary".equals(tree)) {
+      return false;
+    } else {
+      throw new IllegalArgumentException
+        ("unknown com.readytalk.revori.tree: " + tree);
+    }
+  }
+
   public static Node getNode(Object token, Node basis) {
     if (basis.token == token) {
       return basis;
@@ -55,12 +88,87 @@ class Node {
 
   public static Node pathFind(Node root, Object ... path) {
     for (int i = 0; i < path.length && root != Null; ++i) {
-      root = (Node) find(root, path[i], (Comparator) path[++i]).value;
+      root = PackedRow.tree(find(root, path[i], (Comparator) path[++i]).value);
     }
     return root;
   }
 
   public static Node find(Node n, Object key, Comparator comparator) {
+    if (n instanceof WideNode) {
+      return WideNode.find((WideNode) n, key, comparator);
+    }
+
+    if (key != null && Compare.isNatural(key.getClass(), comparator)) {
+      if (key instanceof Integer) {
+        return find(n, ((Integer) key).intValue(), comparator);
+      } else if (key instanceof Long) {
+        return find(n, ((Long) key).longValue(), comparator);
+      } else {
+        return find(n, (String) key, comparator);
+      }
+    }
+
+    return findGeneric(n, key, comparator);
+  }
+
+  // The following specializations of find fall back to findGeneric if
+  // they encounter a key of some other type (e.g. Compare.Dummy).
+
+  private static Node find(Node n, int key, Comparator comparator) {
+    while (n != Null) {
+      Object k = n.key;
+      if (k.getClass() != Integer.class) {
+        return findGeneric(n, key, comparator);
+      }
+      int v = ((Integer) k).intValue();
+      if (key < v) {
+        n = n.left;
+      } else if (key > v) {
+        n = n.right;
+      } else {
+        return n;
+      }
+    }
+    return Null;
+  }
+
+  private static Node find(Node n, long key, Comparator comparator) {
+    while (n != Null) {
+      Object k = n.key;
+      if (k.getClass() != Long.class) {
+        return findGeneric(n, key, comparator);
+      }
+      long v = ((Long) k).longValue();
+      if (key < v) {
+        n = n.left;
+      } else if (key > v) {
+        n = n.right;
+      } else {
+        return n;
+      }
+    }
+    return Null;
+  }
+
+  private static Node find(Node n, String key, Comparator comparator) {
+    while (n != Null) {
+      Object k = n.key;
+      if (k.getClass() != String.class) {
+        return findGeneric(n, key, comparator);
+      }
+      int difference = key.compareTo((String) k);
+      if (difference < 0) {
+        n = n.left;
+      } else if (difference > 0) {
+        n = n.right;
+      } else {
+        return n;
+      }
+    }
+    return Null;
+  }
+
+  private static Node findGeneric(Node n, Object key, Comparator comparator) {
     while (n != Null) {
       int difference = Compare.compare(key, n.key, comparator);
       if (difference < 0) {
@@ -74,11 +182,179 @@ class Node {
     return Null;
   }
 
+  /**
+   * Returns the number of keys in the specified tree which sort
+   * before the specified low bound (if high is false) or no later than
+   * the specified high bound (if high is true).
+   */
+  public static int rank(Node n,
+                         Object bound,
+                         Interval.BoundType boundType,
+                         boolean high,
+                         Comparator comparator)
+  {
+    if (n instanceof WideNode) {
+      return WideNode.rank((WideNode) n, bound, boundType, high, comparator);
+    }
+
+    int rank = 0;
+    while (n != Null) {
+      int difference = Compare.compare
+        (n.key, bound, boundType, high, comparator);
+      if (difference < 0 || (high && difference == 0)) {
+        rank += n.left.size + 1;
+        n = n.right;
+      } else {
+        n = n.left;
+      }
+    }
+    return rank;
+  }
+
+  /**
+   * Returns a node near the middle of the specified tree, i.e. the
+   * root of a red-black tree, or Null if it is empty.
+   */
+  public static Node middle(Node n) {
+    return n instanceof WideNode ? WideNode.middle((WideNode) n) : n;
+  }
+
+  /**
+   * Returns the node with the specified zero-based rank in the
+   * specified tree, or Null if there is no such node.
+   */
+  public static Node select(Node n, int rank) {
+    if (n instanceof WideNode) {
+      return WideNode.select((WideNode) n, rank);
+    }
+
+    while (n != Null) {
+      int difference = rank - n.left.size;
+      if (difference < 0) {
+        n = n.left;
+      } else if (difference > 0) {
+        rank = difference - 1;
+        n = n.right;
+      } else {
+        return n;
+      }
+    }
+    return Null;
+  }
+
+  /**
+   * Assigns a weight to each entry of a tree, e.g. the number of rows
+   * of an index beneath each key of one of its columns.  The weight of
+   * an entry must depend only on the entry and the trees beneath it.
+   */
+  interface Weight {
+    public int of(Node entry);
+  }
+
+  /**
+   * Returns the total weight of the entries of the specified tree.
+   * The totals of its subtrees are memoized in their nodes, so the
+   * first call visits every entry, but later calls for this tree and
+   * for trees derived from it by inserting or deleting entries take
+   * logarithmic time.  The tree must not be modified afterward, so
+   * this may only be used with the trees of committed revisions, and
+   * always with the same weight for a given tree.
+   */
+  public static int total(Node n, Weight weight) {
+    if (n == Null) {
+      return 0;
+    } else if (n instanceof WideNode) {
+      return WideNode.total((WideNode) n, weight);
+    }
+
+    // racy but benign, as for String.hashCode
+    int total = n.total;
+    if (total == 0) {
+      total = total(n.left, weight) + weight.of(n) + total(n.right, weight);
+      n.total = total;
+    }
+    return total;
+  }
+
+  /**
+   * Like rank, but returns the total weight of the entries preceding
+   * the bound rather than their number.  See total.
+   */
+  public static int rank(Node n,
+                         Object bound,
+                         Interval.BoundType boundType,
+                         boolean high,
+                         Comparator comparator,
+                         Weight weight)
+  {
+    if (n instanceof WideNode) {
+      return WideNode.rank
+        ((WideNode) n, bound, boundType, high, comparator, weight);
+    }
+
+    int rank = 0;
+    while (n != Null) {
+      int difference = Compare.compare
+        (n.key, bound, boundType, high, comparator);
+      if (difference < 0 || (high && difference == 0)) {
+        rank += total(n.left, weight) + weight.of(n);
+        n = n.right;
+      } else {
+        n = n.left;
+      }
+    }
+    return rank;
+  }
+
+  public static class SelectResult {
+    public Node node;
+    public int offset;
+  }
+
+  /**
+   * Like select, but treats each entry as occupying as many ranks as
+   * its weight.  Sets result.node to the entry occupying the
+   * specified rank (or Null if there is none) and result.offset to
+   * the position of the rank within that entry.  See total.
+   */
+  public static void select(SelectResult result,
+                            Node n,
+                            int rank,
+                            Weight weight)
+  {
+    if (n instanceof WideNode) {
+      WideNode.select(result, (WideNode) n, rank, weight);
+      return;
+    }
+
+    while (n != Null && rank >= 0) {
+      int left = total(n.left, weight);
+      if (rank < left) {
+        n = n.left;
+      } else {
+        rank -= left;
+        int w = weight.of(n);
+        if (rank < w) {
+          result.node = n;
+          result.offset = rank;
+          return;
+        }
+        rank -= w;
+        n = n.right;
+      }
+    }
+
+    result.node = Null;
+    result.offset = 0;
+  }
+
   private static Node leftRotate(Object token, Node n) {
     if (Debug) checkArgument(n.token == token);
     Node child = getNode(token, n.right);
     n.right = child.left;
     child.left = n;
+    resize(n);
+    resize(child);
     return child;
   }
 
@@ -87,9 +363,29 @@ class Node {
     Node child = getNode(token, n.left);
     n.left = child.right;
     child.right = n;
+    resize(n);
+    resize(child);
     return child;
   }
 
+  private static void resize(Node n) {
+    n.size = n.left.size + n.right.size + 1;
+  }
+
+  /**
+   * Adds the specified delta to the size of each node on the
+   * specified stack, which must contain only nodes owned by the
+   * current token.
+   */
+  private static void resize(NodeStack stack, int delta) {
+    for (int i = stack.base; i < stack.index; ++i) {
+      stack.array[i].size += delta;
+    }
+    if (stack.top != null) {
+      stack.top.size += delta;
+    }
+  }
+
   public static class BlazeResult {
     public Node node;
   }
@@ -107,6 +403,10 @@ class Node {
       root = Null;
     }
 
+    if (root instanceof WideNode || (root == Null && Wide)) {
+      return WideNode.blaze(result, token, root, key, comparator);
+    }
+
     if (Debug) {
       token = new Object();
       validate(null, root);
@@ -138,8 +438,11 @@ class Node {
     }
 
     new_.key = key;
+    new_.size = 1;
     result.node = new_;
 
+    resize(stack, 1);
+
     // rebalance
     new_.red = true;
 
@@ -225,6 +528,65 @@ class Node {
     return newRoot;
   }
 
+  /**
+   * Builds a tree containing the specified keys and values, which
+   * must already be sorted in ascending order without duplicates.
+   * The result is perfectly balanced and is built in linear time
+   * without any rotations: nodes on the deepest level are colored red
+   * if that level is incomplete, and all others are black.
+   */
+  public static Node build(Object token,
+                           Object[] keys,
+                           Object[] values,
+                           int start,
+                           int end)
+  {
+    if (Wide) {
+      return WideNode.build(token, keys, values, start, end);
+    }
+
+    int size = end - start;
+    if (size == 0) {
+      return Null;
+    }
+
+    int height = 32 - Integer.numberOfLeadingZeros(size);
+    int redDepth = ((size + 1) & size) == 0 ? -1 : height - 1;
+
+    Node root = build(token, keys, values, start, end, 0, redDepth);
+
+    if (Debug) {
+      validate(null, root);
+    }
+
+    return root;
+  }
+
+  private static Node build(Object token,
+                            Object[] keys,
+                            Object[] values,
+                            int start,
+                            int end,
+                            int depth,
+                            int redDepth)
+  {
+    if (start == end) {
+      return Null;
+    }
+
+    int middle = (start + end) >>> 1;
+    if (keys[middle] == null) throw new NullPointerException();
+
+    Node n = new Node(token, null);
+    n.key = keys[middle];
+    n.value = values[middle];
+    n.left = build(token, keys, values, start, middle, depth + 1, redDepth);
+    n.right = build(token, keys, values, middle + 1, end, depth + 1, redDepth);
+    n.size = end - start;
+    n.red = depth == redDepth;
+    return n;
+  }
+
   private static void minimum(Object token,
                               Node n,
                               NodeStack stack)
@@ -259,6 +621,10 @@ class Node {
                             Node root,
                             Object key,
                             Comparator comparator) {
+    if (root instanceof WideNode) {
+      return WideNode.delete(token, root, key, comparator);
+    }
+
     if (Debug) {
       token = new Object();
       validate(null, root);
@@ -326,6 +692,8 @@ class Node {
       child = Null;
     }
 
+    resize(stack, -1);
+
     if (stack.top == null) {
       child.red = false;
       stack.popStack();
@@ -492,6 +860,11 @@ class Node {
   }
 
   public static void validate(@Nullable Node original, Node n) {
+    if (n instanceof WideNode) {
+      WideNode.validate((WideNode) n);
+      return;
+    }
+
     if (original != null) {
       validate(null, original);
     }
@@ -503,7 +876,8 @@ class Node {
     if (Null.left != Null
         || Null.right != Null
         || Null.value != Null
-        || Null.key != null)
+        || Null.key != null
+        || Null.size != 0)
     {
       trouble(original, n, new RuntimeException("corrupted null!"));
     }
@@ -530,6 +904,10 @@ class Node {
         validate(original, (Node) x.value);
       }
 
+      if (x.size != x.left.size + x.right.size + 1) {
+        trouble(original, n, new RuntimeException("inconsistent size!"));
+      }
+
       if (x.red && (x.left.red || x.right.red)) {
         trouble(original, n, new RuntimeException
                 ("red node has red child(ren)!"));
@@ -613,7 +991,9 @@ class Node {
   public static void dump(Node node, java.io.PrintWriter out, int depth,
                           int subtreeDepth)
   {
-    if (node == Null) {
+    if (node instanceof WideNode) {
+      WideNode.dump((WideNode) node, out, depth, subtreeDepth);
+    } else if (node == Null) {
       return;
     } else {
       dump(node.left, out, depth + 1, subtreeDepth);
@@ -11,18 +11,26 @@ import java.util.NoSuchElementException;
 
 class NodeIterator {
   public NodeStack stack; // not final only so we can assign to null (for safety)
+  private final WideNode.Cursor cursor;
   private boolean hasNext;
     
   public NodeIterator(NodeStack stack,
                       Node root)
   {
-    if (root != Node.Null) {
+    if (root instanceof WideNode) {
+      this.stack = null;
+      this.cursor = new WideNode.Cursor();
+      cursor.first(root);
+      hasNext = true;
+    } else if (root != Node.Null) {
+      this.cursor = null;
       this.stack = new NodeStack(stack);
       this.stack.push(root);
       this.stack.descendToLeftmost();
       hasNext = true;
     } else {
       this.stack = null;
+      this.cursor = null;
       hasNext = false;
     }
   }
@@ -36,6 +44,13 @@ class NodeIterator {
       throw new NoSuchElementException();
     }
 
+    if (cursor != null) {
+      Node n = cursor.entry();
+      cursor.next();
+      hasNext = cursor.entry() != null;
+      return n;
+    }
+
     Node n = stack.top;
     stack.next();
       
@@ -0,0 +1,237 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.readytalk.revori.Column;
+
+/**
+ * Immutable row stored as an array of values indexed by the ordinal
+ * of each column in a shared, sorted column layout, used in place of
+ * a tree of column nodes for tables defined with Table.packed set.<p>
+ *
+ * The value of a leaf in a primary key or index data tree may be
+ * either a Node tree keyed by Column or an instance of this class,
+ * so code which reads rows should use the static methods here rather
+ * than assuming either representation.  DefaultRevisionBuilder
+ * expands packed rows into trees when it needs to modify them and
+ * packs them again before the revision is published.
+ */
+class PackedRow {
+  // token used for transient trees created by tree(Object), which no
+  // builder will ever own
+  private static final Object Token = new Object();
+
+  private static final Interner<Layout> layouts
+    = Interners.newWeakInterner();
+
+  private final Layout layout;
+  private final Object[] values;
+
+  private PackedRow(Layout layout, Object[] values) {
+    this.layout = layout;
+    this.values = values;
+  }
+
+  /**
+   * Returns a packed row containing the specified values, indexed by
+   * the specified columns, which must already be sorted according to
+   * Compare.ColumnComparator.  Neither array is copied.
+   */
+  public static PackedRow pack(Column<?>[] columns, Object[] values) {
+    return new PackedRow(layouts.intern(new Layout(columns)), values);
+  }
+
+  /**
+   * Returns a packed row containing the columns and values of the
+   * specified tree.
+   */
+  public static PackedRow pack(Node tree) {
+    List<Column<?>> columns = new ArrayList<Column<?>>();
+    List<Object> values = new ArrayList<Object>();
+    for (NodeIterator it = new NodeIterator(new NodeStack(), tree);
+         it.hasNext();)
+    {
+      Node n = it.next();
+      columns.add((Column<?>) n.key);
+      values.add(n.value);
+    }
+
+    return pack(columns.toArray(new Column<?>[columns.size()]),
+                values.toArray());
+  }
+
+  /**
+   * Returns the value of the specified column in the specified row,
+   * or Node.Null if it has no such column, just as
+   * Node.find(row, column, Compare.ColumnComparator).value would for
+   * a tree.
+   */
+  public static Object find(Object row, Column<?> column) {
+    if (row instanceof PackedRow) {
+      PackedRow packed = (PackedRow) row;
+      int i = packed.layout.ordinal(column);
+      return i < 0 ? Node.Null : packed.values[i];
+    } else {
+      return Node.find((Node) row, column, Compare.ColumnComparator).value;
+    }
+  }
+
+  /**
+   * Returns the value of the specified column in the specified row,
+   * or null if it has no such column.
+   */
+  public static Object value(Object row, Column<?> column) {
+    Object v = find(row, column);
+    return v == Node.Null ? null : v;
+  }
+
+  /**
+   * Returns the specified row as a tree of column nodes.  If the row
+   * is packed, the tree is built on demand and is not retained.
+   */
+  public static Node tree(Object row) {
+    if (row instanceof PackedRow) {
+      return ((PackedRow) row).expand(Token);
+    } else {
+      return (Node) row;
+    }
+  }
+
+  /**
+   * Returns a tree of column nodes containing the values of this row
+   * which is owned by the specified token.
+   */
+  public Node expand(Object token) {
+    return Node.build(token, layout.columns, values, 0, values.length);
+  }
+
+  /**
+   * Returns true if the specified rows contain equal values for the
+   * same columns.
+   */
+  public static boolean equal(NodeStack baseStack,
+                              Object base,
+                              NodeStack forkStack,
+                              Object fork)
+  {
+    if (base instanceof PackedRow && fork instanceof PackedRow) {
+      PackedRow a = (PackedRow) base;
+      PackedRow b = (PackedRow) fork;
+      if (a.layout != b.layout) {
+        return false;
+      }
+
+      for (int i = 0; i < a.values.length; ++i) {
+        if (! Compare.equal(a.values[i], b.values[i])) {
+          return false;
+        }
+      }
+      return true;
+    } else {
+      return Node.treeEqual(baseStack, tree(base), forkStack, tree(fork),
+                            Compare.ColumnComparator);
+    }
+  }
+
+  /**
+   * Returns a copy of this row with the specified column set to the
+   * specified value, or removed if the value is null.
+   */
+  public PackedRow with(Column<?> column, @Nullable Object value) {
+    int i = layout.ordinal(column);
+    if (i >= 0) {
+      if (value == null) {
+        Column<?>[] columns = new Column<?>[values.length - 1];
+        Object[] newValues = new Object[values.length - 1];
+        System.arraycopy(layout.columns, 0, columns, 0, i);
+        System.arraycopy(layout.columns, i + 1, columns, i,
+                         columns.length - i);
+        System.arraycopy(values, 0, newValues, 0, i);
+        System.arraycopy(values, i + 1, newValues, i, newValues.length - i);
+        return pack(columns, newValues);
+      } else {
+        Object[] newValues = values.clone();
+        newValues[i] = value;
+        return new PackedRow(layout, newValues);
+      }
+    } else if (value == null) {
+      return this;
+    } else {
+      i = -(i + 1);
+      Column<?>[] columns = new Column<?>[values.length + 1];
+      Object[] newValues = new Object[values.length + 1];
+      System.arraycopy(layout.columns, 0, columns, 0, i);
+      System.arraycopy(layout.columns, i, columns, i + 1, values.length - i);
+      System.arraycopy(values, 0, newValues, 0, i);
+      System.arraycopy(values, i, newValues, i + 1, values.length - i);
+      columns[i] = column;
+      newValues[i] = value;
+      return pack(columns, newValues);
+    }
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder("row[");
+    for (int i = 0; i < values.length; ++i) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(layout.columns[i]).append(": ").append(values[i]);
+    }
+    return sb.append("]").toString();
+  }
+
+  /**
+   * Sorted set of columns shared by every packed row containing
+   * exactly those columns.
+   */
+  private static class Layout {
+    public final Column<?>[] columns;
+    private final int hashCode;
+
+    public Layout(Column<?>[] columns) {
+      this.columns = columns;
+      this.hashCode = Arrays.hashCode(columns);
+    }
+
+    /**
+     * Returns the index of the specified column, or (-(insertion
+     * point) - 1) if it is not present, as Arrays.binarySearch does.
+     */
+    public int ordinal(Column<?> column) {
+      // rows are usually narrow and queried using the same Column
+      // instances they were built with, so try a linear scan by
+      // identity before resorting to comparisons
+      for (int i = 0; i < columns.length; ++i) {
+        if (columns[i] == column) {
+          return i;
+        }
+      }
+
+      return Arrays.binarySearch
+        (columns, column, Compare.ColumnComparator);
+    }
+
+    public int hashCode() {
+      return hashCode;
+    }
+
+    public boolean equals(Object o) {
+      return o instanceof Layout
+        && Arrays.equals(columns, ((Layout) o).columns);
+    }
+  }
+}
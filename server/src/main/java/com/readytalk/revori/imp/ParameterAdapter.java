@@ -0,0 +1,44 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+/**
+ * Adapter for a Parameter, which behaves like a ConstantAdapter
+ * except that its value may be rebound so the adapters for a
+ * template can be reused with different parameters (see
+ * PreparedQuery).
+ */
+class ParameterAdapter implements ExpressionAdapter {
+  public Object value;
+
+  public ParameterAdapter(Object value) {
+    this.value = value;
+  }
+
+  public Object evaluate(boolean convertDummyToNull) {
+    return value;
+  }
+
+  public Scan makeScan(ColumnReferenceAdapter reference) {
+    if (Boolean.TRUE.equals(value)) {
+      return IntervalScan.Unbounded;
+    } else if (Boolean.FALSE.equals(value)) {
+      return IntervalScan.Empty;
+    } else {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  public void visit(ExpressionAdapterVisitor visitor) {
+    visitor.visit(this);
+  }
+
+  public Class<? extends Object> type() {
+    return value == null ? null : value.getClass();
+  }
+}
@@ -0,0 +1,143 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import java.util.Comparator;
+
+import javax.annotation.concurrent.Immutable;
+
+import com.readytalk.revori.Comparators;
+
+/**
+ * Sorted multiset of Comparable values which is never modified once
+ * created.  Adding or removing a value returns a new instance sharing
+ * all but a logarithmic number of nodes with the original, and the
+ * least and greatest values are found in logarithmic time.  This is
+ * used as the accumulation of the Min and Max aggregates so a group's
+ * extremum can be found again when the current one is removed.
+ */
+@Immutable
+final class PersistentMultiset {
+  public static final PersistentMultiset Empty
+    = new PersistentMultiset(Node.Null, 0);
+
+  private static final Comparator Comparator = Comparators.Ascending;
+
+  // maps each distinct value to the number of times it occurs
+  private final Node root;
+  private final int size;
+
+  private PersistentMultiset(Node root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  /**
+   * Returns the number of values in this multiset, counting each
+   * occurrence of a value separately.
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public PersistentMultiset add(Comparable value) {
+    Node.BlazeResult result = new Node.BlazeResult();
+    Node root = Node.blaze
+      (result, new Object(), new NodeStack(), this.root, value, Comparator);
+
+    result.node.value = result.node.value == Node.Null
+      ? 1 : (Integer) result.node.value + 1;
+
+    return new PersistentMultiset(root, size + 1);
+  }
+
+  /**
+   * Returns a multiset with one fewer occurrence of the specified
+   * value than this one, or this one if it contains no occurrence.
+   */
+  public PersistentMultiset remove(Comparable value) {
+    Node n = Node.find(root, value, Comparator);
+    if (n == Node.Null) {
+      return this;
+    }
+
+    int count = (Integer) n.value;
+    Node root;
+    if (count == 1) {
+      root = Node.delete
+        (new Object(), new NodeStack(), this.root, value, Comparator);
+    } else {
+      Node.BlazeResult result = new Node.BlazeResult();
+      root = Node.blaze
+        (result, new Object(), new NodeStack(), this.root, value, Comparator);
+      result.node.value = count - 1;
+    }
+
+    return new PersistentMultiset(root, size - 1);
+  }
+
+  /**
+   * Returns the least value in this multiset, or null if it is empty.
+   */
+  public Comparable first() {
+    return isEmpty() ? null : (Comparable) Node.select(root, 0).key;
+  }
+
+  /**
+   * Returns the greatest value in this multiset, or null if it is
+   * empty.
+   */
+  public Comparable last() {
+    return isEmpty() ? null : (Comparable) Node.select(root, root.size - 1).key;
+  }
+
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    } else if (o instanceof PersistentMultiset) {
+      PersistentMultiset other = (PersistentMultiset) o;
+      return size == other.size
+        && Node.treeEqual
+        (new NodeStack(), root, new NodeStack(), other.root, Comparator);
+    } else {
+      return false;
+    }
+  }
+
+  public int hashCode() {
+    int h = 0;
+    for (NodeIterator it = new NodeIterator(new NodeStack(), root);
+         it.hasNext();)
+    {
+      Node n = it.next();
+      h += n.key.hashCode() ^ (Integer) n.value;
+    }
+    return h;
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder("[");
+    for (NodeIterator it = new NodeIterator(new NodeStack(), root);
+         it.hasNext();)
+    {
+      Node n = it.next();
+      sb.append(n.key);
+      if ((Integer) n.value != 1) {
+        sb.append(" x").append(n.value);
+      }
+      if (it.hasNext()) {
+        sb.append(", ");
+      }
+    }
+    return sb.append("]").toString();
+  }
+}
@@ -7,9 +7,19 @@
 
 package com.readytalk.revori.imp;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
 import com.google.common.collect.Lists;
 import com.readytalk.revori.Column;
+import com.readytalk.revori.ColumnReference;
+import com.readytalk.revori.Comparators;
 import com.readytalk.revori.Index;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Table;
 import com.readytalk.revori.TableReference;
 
 class Plan {
@@ -18,15 +28,120 @@ class Plan {
   public final ColumnReferenceAdapter[] references;
   public final Scan[] scans;
   public final DiffIterator[] iterators;
+  private final Node base;
+  private final Node fork;
   private boolean match;
   private boolean complete = true;
+  private long cost = -1;
 
-  public Plan(Index index) {
+  public Plan(Index index, Node base, Node fork) {
     this.index = index;
     this.size = index.columns.size();
     this.references = new ColumnReferenceAdapter[size];
     this.scans = new Scan[size];
     this.iterators = new DiffIterator[size];
+    this.base = base;
+    this.fork = fork;
+  }
+
+  /**
+   * Returns the estimated number of rows this plan will visit, summed
+   * over the base and fork trees.  The estimate is computed on first
+   * use, and must be computed while the column references of the
+   * table being planned are undefined.
+   */
+  public long cost() {
+    if (cost < 0) {
+      cost = estimate
+        (Node.pathFind(base, index, Compare.IndexComparator), 0, true)
+        + estimate
+        (Node.pathFind(fork, index, Compare.IndexComparator), 0, true);
+    }
+    return cost;
+  }
+
+  /**
+   * Estimates the number of rows in the specified table of the
+   * specified revision, extrapolating as described below if the
+   * primary key has more than one column.
+   */
+  public static long estimateRows(DefaultRevision revision, Table table) {
+    return new Plan(table.primaryKey, Node.Null, Node.Null).estimate
+      (Node.pathFind(revision.root, table, Compare.TableComparator,
+                     table.primaryKey, Compare.IndexComparator), 0, false);
+  }
+
+  /**
+   * Estimates the number of rows this plan will visit in the specified
+   * index tree using the subtree sizes maintained by Node.  At each
+   * level, the number of keys falling within each interval is counted
+   * exactly in logarithmic time.  If only one key matches, we descend
+   * into it and continue narrowing; otherwise the number of rows
+   * beneath the matching keys is extrapolated from the total number
+   * beneath the first of them, since the intervals for the remaining
+   * columns may select very different fractions of each.
+   */
+  private long estimate(Node tree, int depth, boolean narrow) {
+    if (tree == Node.Null) {
+      return 0;
+    }
+
+    Comparator comparator = index.columns.get(depth).comparator;
+    long estimate = 0;
+    Scan scan = narrow ? scans[depth] : IntervalScan.Unbounded;
+    for (Interval interval: scan.evaluate()) {
+      Node first;
+      int count;
+      if (interval.low == Compare.Dummy && interval.high == Compare.Dummy) {
+        // the bounds depend on values which are not known yet (e.g. a
+        // column of the outer table of a join), so assume a single
+        // key matches
+        first = Node.middle(tree);
+        count = 1;
+      } else {
+        int start = Node.rank
+          (tree, bound(interval.low), interval.lowBoundType, false,
+           comparator);
+        count = Node.rank
+          (tree, bound(interval.high), interval.highBoundType, true,
+           comparator) - start;
+        first = count > 0 ? Node.select(tree, start) : null;
+      }
+
+      if (count > 0) {
+        if (depth == size - 1) {
+          estimate += count;
+        } else {
+          estimate += count * estimate
+            ((Node) first.value, depth + 1, narrow && count == 1);
+        }
+      }
+    }
+
+    return estimate;
+  }
+
+  private static Object bound(Object value) {
+    return value == Compare.Dummy ? Compare.Undefined : value;
+  }
+
+  public static StringBuilder indent(StringBuilder out, int depth) {
+    for (int i = 0; i < depth; ++i) {
+      out.append("  ");
+    }
+    return out;
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder("scan ").append(index);
+    for (int i = 0; i < size; ++i) {
+      if (scans[i].isUseful()) {
+        sb.append(" ").append(index.columns.get(i)).append(" in ")
+          .append(scans[i].evaluate());
+      }
+    }
+    return sb.append(" (estimated rows: ").append(cost()).append(")")
+      .toString();
   }
 
   private static ColumnReferenceAdapter findColumnReference
@@ -43,9 +158,11 @@ class Plan {
   private static Plan improvePlan(Plan best,
                                   Index index,
                                   ExpressionAdapter test,
-                                  TableReference tableReference)
+                                  TableReference tableReference,
+                                  Node base,
+                                  Node fork)
   {
-    Plan plan = new Plan(index);
+    Plan plan = new Plan(index, base, fork);
 
     for (int i = 0; i < plan.size; ++i) {
       Column<?> column = index.columns.get(i);
@@ -83,13 +200,23 @@ class Plan {
       }
     }
             
-    if (best == null
-        || (plan.match && (! best.match))
-        || (plan.complete && (! best.complete)))
-    {
+    // among plans which narrow the scan, prefer the one expected to
+    // visit the fewest rows, falling back to the one which matches
+    // more of the test if the estimates are equal.  Note that we
+    // never prefer a full scan of a secondary index over one of the
+    // primary key, since the former may not be up-to-date if we're
+    // being called from a RevisionBuilder.
+    if (best == null || (plan.match && (! best.match))) {
       best = plan;
+    } else if (plan.match) {
+      long difference = plan.cost() - best.cost();
+      if (difference < 0
+          || (difference == 0 && plan.complete && (! best.complete)))
+      {
+        best = plan;
+      }
     }
-    
+
     return best;
   }
 
@@ -100,29 +227,193 @@ class Plan {
                                 ExpressionAdapter test,
                                 TableReference tableReference)
   {
+    return choosePlan
+      (base, baseStack, fork, forkStack, test, tableReference, null);
+  }
+
+  /**
+   * Chooses a plan as above, consulting the specified cache (if
+   * non-null) for the list of secondary indexes to consider.
+   */
+  public static Plan choosePlan(DefaultRevision base,
+                                NodeStack baseStack,
+                                DefaultRevision fork,
+                                NodeStack forkStack,
+                                ExpressionAdapter test,
+                                TableReference tableReference,
+                                @Nullable IndexCache indexCache)
+  {
+    Node baseTable = Node.pathFind
+      (base.root, tableReference.table, Compare.TableComparator);
+
+    Node forkTable = Node.pathFind
+      (fork.root, tableReference.table, Compare.TableComparator);
+
     Plan best = improvePlan
-      (null, tableReference.table.primaryKey, test, tableReference);
+      (null, tableReference.table.primaryKey, test, tableReference,
+       baseTable, forkTable);
+
+    List<Index> indexes = indexCache == null
+      ? indexes(base, baseStack, fork, forkStack, tableReference.table)
+      : indexCache.indexes
+      (base, baseStack, fork, forkStack, tableReference.table);
+
+    for (Index index: indexes) {
+      best = improvePlan
+        (best, index, test, tableReference, baseTable, forkTable);
+    }
+
+    return best;
+  }
+
+  /**
+   * Chooses a plan which scans the specified index, regardless of
+   * whether another index would visit fewer rows.
+   */
+  public static Plan choosePlan(DefaultRevision base,
+                                DefaultRevision fork,
+                                ExpressionAdapter test,
+                                TableReference tableReference,
+                                Index index)
+  {
+    return improvePlan
+      (null, index, test, tableReference,
+       Node.pathFind(base.root, tableReference.table, Compare.TableComparator),
+       Node.pathFind(fork.root, tableReference.table, Compare.TableComparator));
+  }
+
+  /**
+   * Returns an index defined in both of the specified revisions which
+   * visits the rows of the table referenced by the specified template
+   * in the order given by its order-by expressions, breaking ties in
+   * ascending primary key order as a View would.  Returns null if
+   * there is no such index, or if the template has aggregates or
+   * does not select from a single table.
+   */
+  public static Index orderedIndex(DefaultRevision base,
+                                   DefaultRevision fork,
+                                   QueryTemplate template)
+  {
+    if (template.hasAggregates
+        || template.orderByExpressions.isEmpty()
+        || (! (template.source instanceof TableReference)))
+    {
+      return null;
+    }
+
+    TableReference tableReference = (TableReference) template.source;
+    Table table = tableReference.table;
+
+    List<Column<?>> columns = new ArrayList<Column<?>>();
+    List<Comparator> comparators = new ArrayList<Comparator>();
+    for (QueryTemplate.OrderExpression e: template.orderByExpressions) {
+      if (! (e.expression instanceof ColumnReference)) {
+        return null;
+      }
+
+      ColumnReference<?> reference = (ColumnReference<?>) e.expression;
+      if (reference.tableReference != tableReference) {
+        return null;
+      }
+
+      addOrderColumn(columns, comparators, reference.column, e.comparator);
+    }
+
+    for (Column<?> c: table.primaryKey.columns) {
+      addOrderColumn(columns, comparators, c, Comparators.Ascending);
+    }
+
+    if (ordered(table.primaryKey, columns, comparators)) {
+      return table.primaryKey;
+    }
+
+    for (Index index: indexes
+           (base, new NodeStack(), fork, new NodeStack(), table))
+    {
+      if (ordered(index, columns, comparators)) {
+        return index;
+      }
+    }
+
+    return null;
+  }
+
+  private static void addOrderColumn(List<Column<?>> columns,
+                                     List<Comparator> comparators,
+                                     Column<?> column,
+                                     Comparator comparator)
+  {
+    // a column which appears again later in the order has no effect
+    // on it
+    if (! columns.contains(column)) {
+      columns.add(column);
+      comparators.add(comparator);
+    }
+  }
+
+  private static boolean ordered(Index index,
+                                 List<Column<?>> columns,
+                                 List<Comparator> comparators)
+  {
+    if (! index.columns.equals(columns)) {
+      return false;
+    }
+
+    for (int i = 0; i < columns.size(); ++i) {
+      if (! index.columns.get(i).comparator.equals(comparators.get(i))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns the secondary indexes of the specified table which are
+   * defined in both of the specified revisions (or in either one, if
+   * the table is empty in the other).
+   */
+  public static List<Index> indexes(DefaultRevision base,
+                                    NodeStack baseStack,
+                                    DefaultRevision fork,
+                                    NodeStack forkStack,
+                                    Table table)
+  {
+    return indexes
+      (indexTree(base, table), baseStack,
+       Node.find(base.root, table, Compare.TableComparator) == Node.Null,
+       indexTree(fork, table), forkStack,
+       Node.find(fork.root, table, Compare.TableComparator) == Node.Null,
+       table);
+  }
+
+  /**
+   * Returns the subtree of Constants.IndexTable listing the indexes
+   * defined for the specified table in the specified revision.
+   */
+  public static Node indexTree(DefaultRevision revision, Table table) {
+    return Node.pathFind
+      (revision.root, Constants.IndexTable, Compare.TableComparator,
+       Constants.IndexTable.primaryKey, Compare.IndexComparator,
+       table, Constants.TableColumn.comparator);
+  }
+
+  public static List<Index> indexes(Node baseIndexes,
+                                    NodeStack baseStack,
+                                    boolean baseEmpty,
+                                    Node forkIndexes,
+                                    NodeStack forkStack,
+                                    boolean forkEmpty,
+                                    Table table)
+  {
+    List<Index> indexes = new ArrayList<Index>();
 
     DiffIterator indexIterator = new DiffIterator
-      (Node.pathFind(base.root, Constants.IndexTable, Compare.TableComparator,
-                     Constants.IndexTable.primaryKey, Compare.IndexComparator,
-                     tableReference.table, Constants.TableColumn.comparator),
-       baseStack = new NodeStack(baseStack),
-       Node.pathFind(fork.root, Constants.IndexTable, Compare.TableComparator,
-                     Constants.IndexTable.primaryKey, Compare.IndexComparator,
-                     tableReference.table, Constants.TableColumn.comparator),
-       forkStack = new NodeStack(forkStack),
+      (baseIndexes, baseStack = new NodeStack(baseStack),
+       forkIndexes, forkStack = new NodeStack(forkStack),
        Lists.newArrayList(Interval.Unbounded).iterator(),
        true, Compare.IndexComparator);
 
-    boolean baseEmpty
-      = Node.find(base.root, tableReference.table, Compare.TableComparator)
-      == Node.Null;
-
-    boolean forkEmpty
-      = Node.find(fork.root, tableReference.table, Compare.TableComparator)
-      == Node.Null;
-
     DiffIterator.DiffPair pair = new DiffIterator.DiffPair();
     while (indexIterator.next(pair)) {
       if ((pair.base == null && ! baseEmpty)
@@ -134,15 +425,15 @@ class Plan {
       Index index = (Index)
         (pair.base == null ? pair.fork.key : pair.base.key);
 
-      if (! index.equals(tableReference.table.primaryKey)) {
-        best = improvePlan(best, index, test, tableReference);
+      if (! index.equals(table.primaryKey)) {
+        indexes.add(index);
       }
     }
 
     baseStack.popStack();
     forkStack.popStack();
 
-    return best;
+    return indexes;
   }
 
   private static class ColumnReferenceFinder
@@ -0,0 +1,172 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.QueryTemplate;
+
+/**
+ * The adapters for a QueryTemplate, which may be reused to execute
+ * that template repeatedly with different parameters and revisions.
+ * Creating them involves visiting every expression of the template,
+ * building the adapter graph and compiling the test, and the plan
+ * choices made while executing it are sped up by the IndexCache
+ * retained in its ExpressionContext.<p>
+ *
+ * The adapters hold the state of a query in progress, so each
+ * instance may be used by only one DefaultQueryResult at a time.
+ * Instances are pooled per template via acquire and release, with
+ * the pool keyed by the identity of the template and discarded when
+ * the template is no longer reachable.  Pooled instances must
+ * therefore not refer to the template itself, or the pool would keep
+ * it reachable; each refers to the queue it is released into
+ * instead.
+ */
+class PreparedQuery {
+  // number of idle instances retained per template, enough for a few
+  // threads executing the same template concurrently
+  private static final int MaxIdle = 4;
+
+  private static final LoadingCache<QueryTemplate, Queue<PreparedQuery>>
+    pool = makePool();
+
+  private static final LoadingCache<QueryTemplate, Queue<PreparedQuery>>
+    forcedPool = makePool();
+
+  private final Queue<PreparedQuery> idle;
+  public final boolean force;
+  public final SourceAdapter source;
+  public final List<ExpressionAdapter> expressions;
+  public final ExpressionContext expressionContext;
+  public final ExpressionAdapter test;
+  private final Class[] parameterTypes;
+
+  private PreparedQuery(QueryTemplate template,
+                        Object[] parameters,
+                        boolean force,
+                        Queue<PreparedQuery> idle)
+  {
+    this.idle = idle;
+    this.force = force;
+
+    source = SourceAdapterFactory.makeAdapter(template.source);
+
+    expressions = new ArrayList<ExpressionAdapter>
+      (template.expressions.size());
+
+    expressionContext = new ExpressionContext
+      (parameters, force ? null : expressions);
+
+    for (Expression e: template.expressions) {
+      expressions.add
+        (ExpressionAdapterFactory.makeAdapter(expressionContext, e));
+    }
+
+    test = CompiledExpression.compile
+      (ExpressionAdapterFactory.makeAdapter
+       (expressionContext, template.test));
+
+    List<ParameterAdapter> parameterAdapters
+      = expressionContext.parameterAdapters;
+    parameterTypes = new Class[parameterAdapters.size()];
+    for (int i = 0; i < parameterTypes.length; ++i) {
+      parameterTypes[i] = parameterAdapters.get(i).type();
+    }
+  }
+
+  private static LoadingCache<QueryTemplate, Queue<PreparedQuery>> makePool()
+  {
+    return CacheBuilder.newBuilder().weakKeys().build
+      (new CacheLoader<QueryTemplate, Queue<PreparedQuery>>() {
+        public Queue<PreparedQuery> load(QueryTemplate template) {
+          return new ConcurrentLinkedQueue<PreparedQuery>();
+        }
+      });
+  }
+
+  /**
+   * Returns a prepared query for the specified template bound to the
+   * specified parameters, reusing an idle instance if possible.
+   */
+  public static PreparedQuery acquire(QueryTemplate template,
+                                      Object[] parameters,
+                                      boolean force)
+  {
+    Queue<PreparedQuery> idle = (force ? forcedPool : pool).getUnchecked
+      (template);
+
+    PreparedQuery query;
+    while ((query = idle.poll()) != null) {
+      if (query.bind(parameters)) {
+        return query;
+      }
+    }
+
+    return new PreparedQuery(template, parameters, force, idle);
+  }
+
+  /**
+   * Returns true if this instance was prepared for the specified
+   * template with the specified force flag.
+   */
+  public boolean preparedFor(QueryTemplate template, boolean force) {
+    return this.force == force
+      && idle == (force ? forcedPool : pool).getIfPresent(template);
+  }
+
+  /**
+   * Returns this instance to the pool for its template.  The caller
+   * must not use it afterward.
+   */
+  public void release() {
+    if (idle.size() < MaxIdle) {
+      idle.offer(this);
+    }
+  }
+
+  /**
+   * Binds the parameter adapters of this query to the specified
+   * values and returns all other adapters to their initial state,
+   * returning true on success.  Returns false if any value has a
+   * different type than the one this query was prepared with, since
+   * the adapters were type-checked using the original types.
+   */
+  public boolean bind(Object[] parameters) {
+    List<ParameterAdapter> parameterAdapters
+      = expressionContext.parameterAdapters;
+
+    for (int i = 0; i < parameterTypes.length; ++i) {
+      Object value = parameters[i];
+      if ((value == null ? null : value.getClass()) != parameterTypes[i]) {
+        return false;
+      }
+    }
+
+    for (int i = 0; i < parameterTypes.length; ++i) {
+      parameterAdapters.get(i).value = parameters[i];
+    }
+
+    for (ExpressionAdapter a: expressionContext.adapters.values()) {
+      if (a instanceof ColumnReferenceAdapter) {
+        ((ColumnReferenceAdapter) a).value = Compare.Undefined;
+      } else if (a instanceof AggregateAdapter) {
+        ((AggregateAdapter) a).value = Compare.Undefined;
+      }
+    }
+
+    return true;
+  }
+}
@@ -74,31 +74,30 @@ public class ReferentForeignKeyAdapter {
       (referentColumnReferences, referent, referentTest);
   }
 
-  private Object[] parameters(List<Column<?>> columns, Node tree) {
+  private Object[] parameters(List<Column<?>> columns, Object row) {
     Object[] parameters = new Object[columns.size()];
     for (int i = 0; i < parameters.length; ++i) {
-      Node n = Node.find(tree, columns.get(i), Compare.ColumnComparator);
-      parameters[i] = n == Node.Null ? null : n.value;
+      parameters[i] = PackedRow.value(row, columns.get(i));
     }
     return parameters;
   }
 
   private QueryResult query(QueryTemplate query,
-                            Revision revision, List<Column<?>> columns, Node tree)
+                            Revision revision, List<Column<?>> columns, Object row)
   {
-    return DefaultRevision.Empty.diff(revision, query, parameters(columns, tree));
+    return DefaultRevision.Empty.diff(revision, query, parameters(columns, row));
   }
 
-  public void visitBrokenReferences(Revision revision, Node tree,
+  public void visitBrokenReferences(Revision revision, Object row,
                                     Visitor visitor)
   {
-    if (query(referentQuery, revision, constraint.referentColumns, tree)
+    if (query(referentQuery, revision, constraint.referentColumns, row)
         .nextRow() == QueryResult.Type.End)
     {
       QueryResult result = query
-        (refererQuery, revision, constraint.referentColumns, tree);
+        (refererQuery, revision, constraint.referentColumns, row);
       
-      Object[] row = new Object
+      Object[] key = new Object
         [constraint.refererTable.primaryKey.columns.size()];
 
       while (true) {
@@ -108,10 +107,10 @@ public class ReferentForeignKeyAdapter {
           return;
 
         case Inserted:
-          for (int i = 0; i < row.length; ++i) {
-            row[i] = result.nextItem();
+          for (int i = 0; i < key.length; ++i) {
+            key[i] = result.nextItem();
           }
-          visitor.visit(row);
+          visitor.visit(key);
           break;
 
         default:
@@ -47,22 +47,22 @@ public class RefererForeignKeyAdapter {
        referentTest);
   }
 
-  private Object[] parametersOrNull(List<Column<?>> columns, Node tree) {
+  private Object[] parametersOrNull(List<Column<?>> columns, Object row) {
     Object[] parameters = new Object[columns.size()];
     for (int i = 0; i < parameters.length; ++i) {
-      Node n = Node.find(tree, columns.get(i), Compare.ColumnComparator);
-      if(n == Node.Null) {
+      Object v = PackedRow.find(row, columns.get(i));
+      if(v == Node.Null) {
         return null;
       }
-      parameters[i] = n.value;
+      parameters[i] = v;
     }
     return parameters;
   }
 
   private boolean queryEmptyAndNotNull(QueryTemplate query,
-                            Revision revision, List<Column<?>> columns, Node tree)
+                            Revision revision, List<Column<?>> columns, Object row)
   {
-    Object[] params = parametersOrNull(columns, tree);
+    Object[] params = parametersOrNull(columns, row);
     if (params == null) {
       throw new NullPointerException();
     }
@@ -71,13 +71,13 @@ public class RefererForeignKeyAdapter {
       (revision, query, params).nextRow() == QueryResult.Type.End;
   }
 
-  public void handleInsert(DefaultRevisionBuilder builder, Node tree) {
-    if (queryEmptyAndNotNull(query, builder.result, constraint.refererColumns, tree)) {
+  public void handleInsert(DefaultRevisionBuilder builder, Object row) {
+    if (queryEmptyAndNotNull(query, builder.result, constraint.refererColumns, row)) {
       throw new ForeignKeyException();
     }
   }
 
-  public boolean isBrokenReference(Revision revision, Node tree) {
-    return queryEmptyAndNotNull(query, revision, constraint.refererColumns, tree);
+  public boolean isBrokenReference(Revision revision, Object row) {
+    return queryEmptyAndNotNull(query, revision, constraint.refererColumns, row);
   }
 }
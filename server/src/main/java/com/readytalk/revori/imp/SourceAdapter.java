@@ -15,6 +15,12 @@ interface SourceAdapter {
                                  ExpressionAdapter test,
                                  ExpressionContext expressionContext,
                                  boolean visitUnchanged);
+  public void explain(DefaultRevision base,
+                      DefaultRevision fork,
+                      ExpressionAdapter test,
+                      ExpressionContext expressionContext,
+                      StringBuilder out,
+                      int depth);
   public void visit(SourceAdapterVisitor visitor);
   public void visit(ExpressionContext expressionContext,
                     ColumnReferenceAdapterVisitor visitor);
@@ -29,6 +29,20 @@ class TableAdapter implements SourceAdapter {
        expressionContext, visitUnchanged);
   }
 
+  public void explain(DefaultRevision base,
+                      DefaultRevision fork,
+                      ExpressionAdapter test,
+                      ExpressionContext expressionContext,
+                      StringBuilder out,
+                      int depth)
+  {
+    Plan.indent(out, depth).append
+      (Plan.choosePlan
+       (base, new NodeStack(), fork, new NodeStack(), test, tableReference,
+        expressionContext.indexCache))
+      .append("\n");
+  }
+
   public void visit(SourceAdapterVisitor visitor) {
     visitor.visit(this);
   }
@@ -99,7 +99,8 @@ class TableIterator implements SourceIterator {
   {
     this(tableReference, base, baseStack, fork, forkStack, test,
          expressionContext, Plan.choosePlan
-         (base, baseStack, fork, forkStack, test, tableReference),
+         (base, baseStack, fork, forkStack, test, tableReference,
+          expressionContext.indexCache),
          visitUnchanged);
   }
 
@@ -120,13 +121,12 @@ class TableIterator implements SourceIterator {
               return QueryResult.Type.Deleted;
             } else if (pair.base == pair.fork
                        || (expressionContext.queryExpressions == null
-                           ? Node.treeEqual(baseStack, (Node) pair.base.value,
-                                            forkStack, (Node) pair.fork.value,
-                                            plan.iterators[depth].comparator)
+                           ? PackedRow.equal(baseStack, pair.base.value,
+                                             forkStack, pair.fork.value)
                            : valuesEqual(expressionContext.queryExpressions,
                                          expressionContext.columnReferences,
-                                         (Node) pair.base.value,
-                                         (Node) pair.fork.value)))
+                                         pair.base.value,
+                                         pair.fork.value)))
                        
             {
               if (visitUnchanged) {
@@ -194,8 +194,8 @@ class TableIterator implements SourceIterator {
     return v;
   }
 
-  private static void setValue(ColumnReferenceAdapter r, Node tree) {
-    Object v = Node.find(tree, r.column, Compare.ColumnComparator).value();
+  static void setValue(ColumnReferenceAdapter r, Object row) {
+    Object v = PackedRow.value(row, r.column);
     if (v != null && ! r.column.type.isInstance(v)) {
       throw new ClassCastException
         (v.getClass().getName() + " cannot be cast to "
@@ -206,10 +206,10 @@ class TableIterator implements SourceIterator {
 
   private static Object[] evaluate
     (List<ExpressionAdapter> expressions,
-     Set<ColumnReferenceAdapter> columnReferences, Node tree)
+     Set<ColumnReferenceAdapter> columnReferences, Object row)
   {
     for (ColumnReferenceAdapter r: columnReferences) {
-      setValue(r, tree);
+      setValue(r, row);
     }
 
     Object[] values = new Object[expressions.size()];
@@ -223,7 +223,7 @@ class TableIterator implements SourceIterator {
 
   private static boolean valuesEqual
     (List<ExpressionAdapter> expressions,
-     Set<ColumnReferenceAdapter> columnReferences, Node base, Node fork)
+     Set<ColumnReferenceAdapter> columnReferences, Object base, Object fork)
   {
     Object[] forkValues = evaluate(expressions, columnReferences, fork);
     Object[] baseValues = evaluate(expressions, columnReferences, base);
@@ -236,10 +236,10 @@ class TableIterator implements SourceIterator {
 
   private boolean test(Node node) {
     if (node != null) {
-      Node tree = (Node) node.value;
+      Object row = node.value;
         
       for (ColumnReferenceAdapter r: columnReferences) {
-        setValue(r, tree);
+        setValue(r, row);
       }
 
       Object result = test.evaluate(false);
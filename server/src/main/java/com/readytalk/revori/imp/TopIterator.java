@@ -0,0 +1,206 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.ColumnReference;
+import com.readytalk.revori.Comparators;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.QueryResult;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Source;
+import com.readytalk.revori.SourceVisitor;
+import com.readytalk.revori.TableReference;
+
+/**
+ * Iterator which visits the first rows inserted by the iterator it
+ * wraps in the order given by the order-by expressions of a template
+ * with a limit, breaking ties in ascending primary key order as a
+ * View would.  Only as many rows as the offset and limit require are
+ * retained, in a bounded heap, so this is used instead of a
+ * temporary view when no index supplies the requested order.<p>
+ *
+ * The wrapped iterator must be executing the template returned by
+ * sortTemplate, whose expressions are those of the original template
+ * followed by the sort keys.
+ */
+class TopIterator implements SourceIterator {
+  private static final LoadingCache<QueryTemplate, QueryTemplate>
+    sortTemplates = CacheBuilder.newBuilder().weakKeys().build
+    (new CacheLoader<QueryTemplate, QueryTemplate>() {
+      public QueryTemplate load(QueryTemplate template) {
+        return makeSortTemplate(template);
+      }
+    });
+
+  private final SourceIterator iterator;
+  private final List<ExpressionAdapter> expressions;
+  private final int width;
+  private final RowComparator comparator;
+  private final int capacity;
+  private Object[][] rows;
+  private int index = -1;
+
+  public TopIterator(SourceIterator iterator,
+                     List<ExpressionAdapter> expressions,
+                     QueryTemplate template)
+  {
+    this.iterator = iterator;
+    this.expressions = expressions;
+    this.width = template.expressions.size();
+    this.comparator = new RowComparator(width, comparators(template));
+    this.capacity = (int) Math.min
+      (Integer.MAX_VALUE, (long) template.offset + template.limit);
+  }
+
+  /**
+   * Returns a template which selects the expressions of the specified
+   * one followed by its sort keys, without ordering or limiting the
+   * result.
+   */
+  public static QueryTemplate sortTemplate(QueryTemplate template) {
+    return sortTemplates.getUnchecked(template);
+  }
+
+  private static QueryTemplate makeSortTemplate(QueryTemplate template) {
+    final List<Expression> expressions = new ArrayList<Expression>
+      (template.expressions);
+
+    for (QueryTemplate.OrderExpression e: template.orderByExpressions) {
+      expressions.add(e.expression);
+    }
+
+    template.source.visit(new SourceVisitor() {
+        public void visit(Source source) {
+          if (source instanceof TableReference) {
+            TableReference tableReference = (TableReference) source;
+            for (Column<?> c: tableReference.table.primaryKey.columns) {
+              expressions.add(new ColumnReference(tableReference, c));
+            }
+          }
+        }
+      });
+
+    return new QueryTemplate(expressions, template.source, template.test);
+  }
+
+  private static List<Comparator> comparators(QueryTemplate template) {
+    final List<Comparator> comparators = new ArrayList<Comparator>();
+
+    for (QueryTemplate.OrderExpression e: template.orderByExpressions) {
+      comparators.add(e.comparator);
+    }
+
+    template.source.visit(new SourceVisitor() {
+        public void visit(Source source) {
+          if (source instanceof TableReference) {
+            for (int i = ((TableReference) source).table.primaryKey.columns
+                   .size(); i > 0; --i)
+            {
+              comparators.add(Comparators.Ascending);
+            }
+          }
+        }
+      });
+
+    return comparators;
+  }
+
+  public QueryResult.Type nextRow() {
+    if (rows == null) {
+      rows = collect();
+    }
+
+    if (index + 1 < rows.length) {
+      ++ index;
+      return QueryResult.Type.Inserted;
+    } else {
+      index = rows.length;
+      return QueryResult.Type.End;
+    }
+  }
+
+  private Object[][] collect() {
+    if (capacity == 0) {
+      return new Object[0][];
+    }
+
+    // the heap is ordered with the greatest row first, so it can be
+    // replaced when a smaller one is found once the heap is full
+    PriorityQueue<Object[]> heap = new PriorityQueue<Object[]>
+      (Math.min(capacity, 64), new Comparator<Object[]>() {
+        public int compare(Object[] a, Object[] b) {
+          return comparator.compare(b, a);
+        }
+      });
+
+    QueryResult.Type type;
+    while ((type = iterator.nextRow()) != QueryResult.Type.End) {
+      if (type == QueryResult.Type.Inserted) {
+        Object[] row = new Object[expressions.size()];
+        for (int i = 0; i < row.length; ++i) {
+          row[i] = expressions.get(i).evaluate(true);
+        }
+
+        if (heap.size() < capacity) {
+          heap.add(row);
+        } else if (comparator.compare(row, heap.peek()) < 0) {
+          heap.poll();
+          heap.add(row);
+        }
+      }
+    }
+
+    Object[][] rows = heap.toArray(new Object[heap.size()][]);
+    Arrays.sort(rows, comparator);
+    return rows;
+  }
+
+  /**
+   * Returns the value of the specified expression of the original
+   * template for the current row.
+   */
+  public Object item(int index) {
+    return rows[this.index][index];
+  }
+
+  public boolean rowUpdated() {
+    return false;
+  }
+
+  private static class RowComparator implements Comparator<Object[]> {
+    private final int offset;
+    private final Comparator[] comparators;
+
+    public RowComparator(int offset, List<Comparator> comparators) {
+      this.offset = offset;
+      this.comparators = comparators.toArray
+        (new Comparator[comparators.size()]);
+    }
+
+    public int compare(Object[] a, Object[] b) {
+      for (int i = 0; i < comparators.length; ++i) {
+        int d = Compare.compare
+          (a[offset + i], b[offset + i], comparators[i]);
+        if (d != 0) {
+          return d;
+        }
+      }
+      return 0;
+    }
+  }
+}
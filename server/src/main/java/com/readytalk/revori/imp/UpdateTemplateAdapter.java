@@ -28,8 +28,8 @@ class UpdateTemplateAdapter implements PatchTemplateAdapter {
 
     ExpressionContext expressionContext = new ExpressionContext(parameters, null);
 
-    ExpressionAdapter test = ExpressionAdapterFactory.makeAdapter
-      (expressionContext, update.test);
+    ExpressionAdapter test = CompiledExpression.compile
+      (ExpressionAdapterFactory.makeAdapter(expressionContext, update.test));
 
     List<ExpressionAdapter> valueAdapters = new ArrayList<ExpressionAdapter>
       (update.values.size());
@@ -105,7 +105,7 @@ class UpdateTemplateAdapter implements PatchTemplateAdapter {
           values[i] = valueAdapters.get(i).evaluate(false);
         }
 
-        Node original = (Node) iterator.pair.fork.value;
+        Object original = iterator.pair.fork.value;
 
         boolean keyValuesChanged = false;
         if (keyColumnsUpdated != null) {
@@ -116,8 +116,8 @@ class UpdateTemplateAdapter implements PatchTemplateAdapter {
           for (int columnIndex: keyColumnsUpdated) {
             Column c = keyColumns.get(columnIndex);
             if (! Compare.equal
-                (values[columnIndex], Node.find
-                 (original, c, Compare.ColumnComparator).value, c.comparator))
+                (values[columnIndex], PackedRow.find(original, c),
+                 c.comparator))
             {
               keyValuesChanged = true;
               break;
@@ -136,51 +136,62 @@ class UpdateTemplateAdapter implements PatchTemplateAdapter {
           for (; i < keyColumns.size() - 1; ++i) {
             Column c = keyColumns.get(i);
             builder.setKey
-              (i + Constants.IndexDataBodyDepth,
-               Node.find(original, c, Compare.ColumnComparator).value,
+              (i + Constants.IndexDataBodyDepth, PackedRow.find(original, c),
                c.comparator);
           }
 
           Column c = keyColumns.get(i);
           builder.deleteKey
-            (i + Constants.IndexDataBodyDepth,
-             Node.find(original, c, Compare.ColumnComparator).value,
+            (i + Constants.IndexDataBodyDepth, PackedRow.find(original, c),
              c.comparator);
         }
 
-        Node tree = original;
-
-        for (int i = 0; i < update.columns.size(); ++i) {
-          Column<?> column = update.columns.get(i);
-          Object value = Compare.validate(values[i], column.type);
-
-          if (value == null) {
-            tree = Node.delete
-              (builder.token, builder.stack, tree, column,
-               Compare.ColumnComparator);
-          } else {
-            tree = Node.blaze
-              (result, builder.token, builder.stack, tree, column,
-               Compare.ColumnComparator);
-            result.node.value = value;
+        Object row;
+        if (original instanceof PackedRow) {
+          PackedRow packed = (PackedRow) original;
+          for (int i = 0; i < update.columns.size(); ++i) {
+            Column<?> column = update.columns.get(i);
+            packed = packed.with
+              (column, Compare.validate(values[i], column.type));
           }
+          row = packed;
+        } else {
+          Node tree = (Node) original;
+
+          for (int i = 0; i < update.columns.size(); ++i) {
+            Column<?> column = update.columns.get(i);
+            Object value = Compare.validate(values[i], column.type);
+
+            if (value == null) {
+              tree = Node.delete
+                (builder.token, builder.stack, tree, column,
+                 Compare.ColumnComparator);
+            } else {
+              tree = Node.blaze
+                (result, builder.token, builder.stack, tree, column,
+                 Compare.ColumnComparator);
+              result.node.value = value;
+            }
+          }
+
+          row = table.packed ? PackedRow.pack(tree) : tree;
         }
 
         int i = 0;
         for (; i < keyColumns.size() - 1; ++i) {
             Column c = keyColumns.get(i);
           builder.setKey
-            (i + Constants.IndexDataBodyDepth,
-             Node.find(tree, c, Compare.ColumnComparator).value, c.comparator);
+            (i + Constants.IndexDataBodyDepth, PackedRow.find(row, c),
+             c.comparator);
         }
 
         Column c = keyColumns.get(i);
         Node n = builder.blaze
-          (i + Constants.IndexDataBodyDepth,
-           Node.find(tree, c, Compare.ColumnComparator).value, c.comparator);
+          (i + Constants.IndexDataBodyDepth, PackedRow.find(row, c),
+           c.comparator);
 
         if (n.value == Node.Null || (! keyValuesChanged)) {
-          n.value = tree;
+          n.value = row;
         } else {
           throw new DuplicateKeyException();
         }
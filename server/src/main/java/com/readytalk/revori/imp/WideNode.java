@@ -0,0 +1,893 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Comparator;
+
+/**
+ * Page of a persistent B+-tree with up to Fanout children per page,
+ * used in place of Node's red-black tree when Node.Wide is set.<p>
+ *
+ * The root page of such a tree stands in for the root Node of a
+ * red-black tree, so it may be stored as the value of an entry in a
+ * tree one level up, and its size field holds the number of entries
+ * beneath it.  The entries themselves are ordinary Nodes, whose key
+ * and value fields callers read and (via Node.blaze) write exactly
+ * as they would for a red-black tree; they are referenced only from
+ * leaf pages and never have children.  Leaf pages also hold a copy
+ * of each entry's key, and interior pages hold the least key beneath
+ * each child and the number of entries beneath it, so searches, rank
+ * and select touch only one array pair per level.<p>
+ *
+ * Pages and entries follow the same ownership rules as Nodes: each
+ * is owned by the token it was created with and may only be modified
+ * in place by an operation using that token, which otherwise copies
+ * it first.  Pages and entries which are unaffected by an update are
+ * shared by reference between the old and new trees, which
+ * DiffIterator and MergeIterator (via Cursor) use to skip identical
+ * ranges without comparing them.<p>
+ *
+ * The static methods here are called from the corresponding methods
+ * of Node, which dispatch on the type of the root, so other code
+ * need not know which kind of tree it is handling.
+ */
+final class WideNode extends Node {
+  private static final boolean Debug = false;
+
+  public static final int Fanout = 32;
+
+  private static final int MinCount = Fanout / 2;
+
+  // a tree with 2^31 entries and the minimum fanout of two at its
+  // root and MinCount elsewhere is no deeper than this
+  private static final int MaxHeight = 10;
+
+  // for a leaf, the key of each entry; otherwise, the least key
+  // beneath each child
+  private Object[] keys;
+
+  // for a leaf, the entries; otherwise, the child pages
+  private Node[] children;
+
+  // the number of entries beneath each child, or null for a leaf
+  private int[] sizes;
+
+  private int count;
+
+  private WideNode(Object token, boolean leaf, int capacity) {
+    super(token, null);
+    keys = new Object[capacity];
+    children = new Node[capacity];
+    sizes = leaf ? null : new int[capacity];
+  }
+
+  private WideNode(Object token, WideNode basis, int capacity) {
+    super(token, null);
+    keys = new Object[capacity];
+    children = new Node[capacity];
+    System.arraycopy(basis.keys, 0, keys, 0, basis.count);
+    System.arraycopy(basis.children, 0, children, 0, basis.count);
+    if (basis.sizes != null) {
+      sizes = new int[capacity];
+      System.arraycopy(basis.sizes, 0, sizes, 0, basis.count);
+    }
+    count = basis.count;
+    size = basis.size;
+  }
+
+  private boolean leaf() {
+    return sizes == null;
+  }
+
+  private static WideNode getPage(Object token, WideNode basis) {
+    if (basis.token == token) {
+      return basis;
+    } else {
+      // leave room for one more child, since we are most likely
+      // copying this page in order to insert something
+      return new WideNode
+        (token, basis, Math.min(basis.count + 1, Fanout + 1));
+    }
+  }
+
+  private static Node entry(Object token, Object key, Object value) {
+    if (key == null) throw new NullPointerException();
+
+    Node n = new Node(token, Null);
+    n.key = key;
+    n.value = value;
+    n.size = 1;
+    return n;
+  }
+
+  /**
+   * Returns the index of the specified key in the specified page, or
+   * (-(insertion point) - 1) if it is not present, as
+   * java.util.Arrays.binarySearch does.
+   */
+  private static int search(WideNode n, Object key, Comparator comparator) {
+    Object[] keys = n.keys;
+    int low = 0;
+    int high = n.count - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int difference = Compare.compare(key, keys[middle], comparator);
+      if (difference > 0) {
+        low = middle + 1;
+      } else if (difference < 0) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -(low + 1);
+  }
+
+  /**
+   * Returns the index of the child of an interior page which would
+   * contain the key whose search result is specified.
+   */
+  private static int child(int index) {
+    return index >= 0 ? index : Math.max(0, -index - 2);
+  }
+
+  public static Node find(WideNode n, Object key, Comparator comparator) {
+    while (true) {
+      int index = search(n, key, comparator);
+      if (n.leaf()) {
+        return index >= 0 ? n.children[index] : Null;
+      } else {
+        n = (WideNode) n.children[child(index)];
+      }
+    }
+  }
+
+  /**
+   * Returns the number of keys in the specified page which precede
+   * the specified bound, as defined by Node.rank.
+   */
+  private static int preceding(WideNode n,
+                               Object bound,
+                               Interval.BoundType boundType,
+                               boolean high,
+                               Comparator comparator)
+  {
+    int low = 0;
+    int limit = n.count;
+    while (low < limit) {
+      int middle = (low + limit) >>> 1;
+      int difference = Compare.compare
+        (n.keys[middle], bound, boundType, high, comparator);
+      if (difference < 0 || (high && difference == 0)) {
+        low = middle + 1;
+      } else {
+        limit = middle;
+      }
+    }
+    return low;
+  }
+
+  public static int rank(WideNode n,
+                         Object bound,
+                         Interval.BoundType boundType,
+                         boolean high,
+                         Comparator comparator)
+  {
+    int rank = 0;
+    while (true) {
+      int preceding = preceding(n, bound, boundType, high, comparator);
+      if (n.leaf()) {
+        return rank + preceding;
+      } else if (preceding == 0) {
+        return rank;
+      } else {
+        // every child before the last one whose least key precedes
+        // the bound lies entirely before it
+        for (int i = 0; i < preceding - 1; ++i) {
+          rank += n.sizes[i];
+        }
+        n = (WideNode) n.children[preceding - 1];
+      }
+    }
+  }
+
+  public static Node select(WideNode n, int rank) {
+    if (rank < 0 || rank >= n.size) {
+      return Null;
+    }
+
+    while (! n.leaf()) {
+      int i = 0;
+      while (rank >= n.sizes[i]) {
+        rank -= n.sizes[i++];
+      }
+      n = (WideNode) n.children[i];
+    }
+
+    return n.children[rank];
+  }
+
+  /**
+   * See Node.total.  Each page memoizes the total weight of the
+   * entries beneath it.
+   */
+  public static int total(WideNode n, Node.Weight weight) {
+    // racy but benign, as for String.hashCode
+    int total = n.total;
+    if (total == 0) {
+      for (int i = 0; i < n.count; ++i) {
+        total += weight(n, i, weight);
+      }
+      n.total = total;
+    }
+    return total;
+  }
+
+  private static int weight(WideNode n, int index, Node.Weight weight) {
+    return n.leaf() ? weight.of(n.children[index])
+      : total((WideNode) n.children[index], weight);
+  }
+
+  public static int rank(WideNode n,
+                         Object bound,
+                         Interval.BoundType boundType,
+                         boolean high,
+                         Comparator comparator,
+                         Node.Weight weight)
+  {
+    int rank = 0;
+    while (true) {
+      int preceding = preceding(n, bound, boundType, high, comparator);
+      if (n.leaf()) {
+        for (int i = 0; i < preceding; ++i) {
+          rank += weight.of(n.children[i]);
+        }
+        return rank;
+      } else if (preceding == 0) {
+        return rank;
+      } else {
+        for (int i = 0; i < preceding - 1; ++i) {
+          rank += total((WideNode) n.children[i], weight);
+        }
+        n = (WideNode) n.children[preceding - 1];
+      }
+    }
+  }
+
+  public static void select(Node.SelectResult result,
+                            WideNode n,
+                            int rank,
+                            Node.Weight weight)
+  {
+    if (rank >= 0) {
+      while (true) {
+        int i = 0;
+        int w = 0;
+        for (; i < n.count; ++i) {
+          w = weight(n, i, weight);
+          if (rank < w) {
+            break;
+          }
+          rank -= w;
+        }
+
+        if (i == n.count) {
+          break;
+        } else if (n.leaf()) {
+          result.node = n.children[i];
+          result.offset = rank;
+          return;
+        } else {
+          n = (WideNode) n.children[i];
+        }
+      }
+    }
+
+    result.node = Null;
+    result.offset = 0;
+  }
+
+  /**
+   * Returns the entry in the middle of the specified tree.
+   */
+  public static Node middle(WideNode n) {
+    return select(n, n.size >>> 1);
+  }
+
+  private void insert(int index, Object key, Node child, int childSize) {
+    if (count == keys.length) {
+      int capacity = Math.min(Fanout + 1, Math.max(count + 1, count * 2));
+
+      Object[] newKeys = new Object[capacity];
+      System.arraycopy(keys, 0, newKeys, 0, count);
+      keys = newKeys;
+
+      Node[] newChildren = new Node[capacity];
+      System.arraycopy(children, 0, newChildren, 0, count);
+      children = newChildren;
+
+      if (sizes != null) {
+        int[] newSizes = new int[capacity];
+        System.arraycopy(sizes, 0, newSizes, 0, count);
+        sizes = newSizes;
+      }
+    }
+
+    int tail = count - index;
+    System.arraycopy(keys, index, keys, index + 1, tail);
+    System.arraycopy(children, index, children, index + 1, tail);
+    keys[index] = key;
+    children[index] = child;
+    if (sizes != null) {
+      System.arraycopy(sizes, index, sizes, index + 1, tail);
+      sizes[index] = childSize;
+    }
+
+    ++ count;
+    size += childSize;
+  }
+
+  private void remove(int index) {
+    int tail = count - index - 1;
+    size -= sizes == null ? 1 : sizes[index];
+    System.arraycopy(keys, index + 1, keys, index, tail);
+    System.arraycopy(children, index + 1, children, index, tail);
+    if (sizes != null) {
+      System.arraycopy(sizes, index + 1, sizes, index, tail);
+    }
+
+    -- count;
+    keys[count] = null;
+    children[count] = null;
+  }
+
+  private int childSize(int index) {
+    return sizes == null ? 1 : sizes[index];
+  }
+
+  /**
+   * Moves the upper half of the specified page, which must be owned
+   * by the specified token, to a new page, which is returned.
+   */
+  private static WideNode split(Object token, WideNode n) {
+    int start = n.count >>> 1;
+    int moved = n.count - start;
+    WideNode sibling = new WideNode(token, n.leaf(), moved + 1);
+
+    System.arraycopy(n.keys, start, sibling.keys, 0, moved);
+    System.arraycopy(n.children, start, sibling.children, 0, moved);
+    int movedSize = moved;
+    if (n.sizes != null) {
+      System.arraycopy(n.sizes, start, sibling.sizes, 0, moved);
+      movedSize = 0;
+      for (int i = 0; i < moved; ++i) {
+        movedSize += sibling.sizes[i];
+      }
+    }
+
+    for (int i = start; i < n.count; ++i) {
+      n.keys[i] = null;
+      n.children[i] = null;
+    }
+
+    sibling.count = moved;
+    sibling.size = movedSize;
+    n.count = start;
+    n.size -= movedSize;
+
+    return sibling;
+  }
+
+  public static Node blaze(Node.BlazeResult result,
+                           Object token,
+                           Node root,
+                           Object key,
+                           Comparator comparator)
+  {
+    if (key == null) throw new NullPointerException();
+
+    if (root == Null) {
+      WideNode n = new WideNode(token, true, 2);
+      result.node = entry(token, key, Null);
+      n.insert(0, key, result.node, 1);
+      return n;
+    }
+
+    WideNode n = blaze(result, token, (WideNode) root, key, comparator);
+    if (n.count > Fanout) {
+      WideNode sibling = split(token, n);
+      WideNode parent = new WideNode(token, false, 3);
+      parent.insert(0, n.keys[0], n, n.size);
+      parent.insert(1, sibling.keys[0], sibling, sibling.size);
+      n = parent;
+    }
+
+    if (Debug) {
+      validate(n);
+    }
+
+    return n;
+  }
+
+  private static WideNode blaze(Node.BlazeResult result,
+                                Object token,
+                                WideNode n,
+                                Object key,
+                                Comparator comparator)
+  {
+    n = getPage(token, n);
+    int index = search(n, key, comparator);
+    if (n.leaf()) {
+      if (index >= 0) {
+        result.node = n.children[index]
+          = Node.getNode(token, n.children[index]);
+      } else {
+        result.node = entry(token, key, Null);
+        n.insert(-index - 1, key, result.node, 1);
+      }
+    } else {
+      int i = child(index);
+      WideNode child = (WideNode) n.children[i];
+      int oldSize = child.size;
+
+      child = blaze(result, token, child, key, comparator);
+
+      n.children[i] = child;
+      n.keys[i] = child.keys[0];
+      n.sizes[i] = child.size;
+      n.size += child.size - oldSize;
+
+      if (child.count > Fanout) {
+        WideNode sibling = split(token, child);
+        n.sizes[i] = child.size;
+        n.size -= sibling.size;
+        n.insert(i + 1, sibling.keys[0], sibling, sibling.size);
+      }
+    }
+    return n;
+  }
+
+  public static Node delete(Object token,
+                            Node root,
+                            Object key,
+                            Comparator comparator)
+  {
+    if (root == Null || find((WideNode) root, key, comparator) == Null) {
+      return root;
+    }
+
+    WideNode n = delete(token, (WideNode) root, key, comparator);
+    if (n.count == 0) {
+      return Null;
+    } else if (n.count == 1 && ! n.leaf()) {
+      n = (WideNode) n.children[0];
+    }
+
+    if (Debug) {
+      validate(n);
+    }
+
+    return n;
+  }
+
+  private static WideNode delete(Object token,
+                                 WideNode n,
+                                 Object key,
+                                 Comparator comparator)
+  {
+    n = getPage(token, n);
+    int index = search(n, key, comparator);
+    if (n.leaf()) {
+      n.remove(index);
+    } else {
+      int i = child(index);
+      WideNode child = delete(token, (WideNode) n.children[i], key,
+                              comparator);
+
+      n.children[i] = child;
+      n.sizes[i] = child.size;
+      -- n.size;
+      if (child.count > 0) {
+        n.keys[i] = child.keys[0];
+      }
+
+      if (child.count < MinCount) {
+        rebalance(token, n, i);
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Refills the specified child of the specified page, which must be
+   * owned by the specified token, by borrowing from or merging with
+   * one of its siblings.
+   */
+  private static void rebalance(Object token, WideNode parent, int index) {
+    if (parent.count < 2) {
+      // no siblings; the caller will collapse the root
+      return;
+    }
+
+    int leftIndex = index > 0 ? index - 1 : index;
+    WideNode left = getPage
+      (token, (WideNode) parent.children[leftIndex]);
+    WideNode right = getPage
+      (token, (WideNode) parent.children[leftIndex + 1]);
+    parent.children[leftIndex] = left;
+    parent.children[leftIndex + 1] = right;
+
+    if (left.count + right.count <= Fanout) {
+      // merge right into left
+      for (int i = 0; i < right.count; ++i) {
+        left.insert(left.count, right.keys[i], right.children[i],
+                    right.childSize(i));
+      }
+      parent.sizes[leftIndex] = left.size;
+      parent.remove(leftIndex + 1);
+      parent.size += right.size;
+    } else if (left.count < right.count) {
+      // move the first child of right to the end of left
+      int moved = right.childSize(0);
+      left.insert(left.count, right.keys[0], right.children[0], moved);
+      right.remove(0);
+      parent.keys[leftIndex + 1] = right.keys[0];
+      parent.sizes[leftIndex] = left.size;
+      parent.sizes[leftIndex + 1] = right.size;
+    } else {
+      // move the last child of left to the start of right
+      int last = left.count - 1;
+      right.insert(0, left.keys[last], left.children[last],
+                   left.childSize(last));
+      left.remove(last);
+      parent.keys[leftIndex + 1] = right.keys[0];
+      parent.sizes[leftIndex] = left.size;
+      parent.sizes[leftIndex + 1] = right.size;
+    }
+  }
+
+  /**
+   * Builds a tree containing the specified keys and values, which
+   * must already be sorted in ascending order without duplicates.
+   * Each level is divided into as few pages as possible, with the
+   * children spread evenly among them.
+   */
+  public static Node build(Object token,
+                           Object[] keys,
+                           Object[] values,
+                           int start,
+                           int end)
+  {
+    int size = end - start;
+    if (size == 0) {
+      return Null;
+    }
+
+    int pageCount = (size + Fanout - 1) / Fanout;
+    WideNode[] pages = new WideNode[pageCount];
+    int offset = start;
+    for (int i = 0; i < pageCount; ++i) {
+      int n = size / pageCount + (i < size % pageCount ? 1 : 0);
+      WideNode page = new WideNode(token, true, n);
+      for (int j = 0; j < n; ++j) {
+        page.keys[j] = keys[offset + j];
+        page.children[j] = entry(token, keys[offset + j],
+                                 values[offset + j]);
+      }
+      page.count = n;
+      page.size = n;
+      pages[i] = page;
+      offset += n;
+    }
+
+    while (pages.length > 1) {
+      int childCount = pages.length;
+      pageCount = (childCount + Fanout - 1) / Fanout;
+      WideNode[] parents = new WideNode[pageCount];
+      offset = 0;
+      for (int i = 0; i < pageCount; ++i) {
+        int n = childCount / pageCount + (i < childCount % pageCount ? 1 : 0);
+        WideNode page = new WideNode(token, false, n);
+        for (int j = 0; j < n; ++j) {
+          WideNode child = pages[offset + j];
+          page.keys[j] = child.keys[0];
+          page.children[j] = child;
+          page.sizes[j] = child.size;
+          page.size += child.size;
+        }
+        page.count = n;
+        parents[i] = page;
+        offset += n;
+      }
+      pages = parents;
+    }
+
+    if (Debug) {
+      validate(pages[0]);
+    }
+
+    return pages[0];
+  }
+
+  /**
+   * Position within a tree of WideNodes, which may be advanced one
+   * entry at a time or past the remainder of any page on its path.
+   */
+  static class Cursor {
+    private final WideNode[] pages = new WideNode[MaxHeight];
+    private final int[] indexes = new int[MaxHeight];
+    // depth of the leaf on the current path, or -1 if the cursor is
+    // past the last entry
+    private int height = -1;
+
+    /**
+     * Positions this cursor at the first entry of the specified tree
+     * whose key does not precede the specified bound.
+     */
+    public void seek(Node root,
+                     Object low,
+                     Interval.BoundType boundType,
+                     Comparator comparator)
+    {
+      height = -1;
+      if (root == Null) {
+        return;
+      }
+
+      WideNode n = (WideNode) root;
+      int depth = 0;
+      while (true) {
+        pages[depth] = n;
+        int preceding = preceding(n, low, boundType, false, comparator);
+        if (n.leaf()) {
+          indexes[depth] = preceding;
+          height = depth;
+          normalize(depth);
+          return;
+        } else {
+          int i = Math.max(0, preceding - 1);
+          indexes[depth] = i;
+          n = (WideNode) n.children[i];
+          ++ depth;
+        }
+      }
+    }
+
+    /**
+     * Positions this cursor at the first entry of the specified tree.
+     */
+    public void first(Node root) {
+      height = -1;
+      if (root == Null) {
+        return;
+      }
+
+      pages[0] = (WideNode) root;
+      indexes[0] = 0;
+      descend(0);
+    }
+
+    private void descend(int depth) {
+      WideNode n = pages[depth];
+      while (! n.leaf()) {
+        n = (WideNode) n.children[indexes[depth]];
+        pages[++ depth] = n;
+        indexes[depth] = 0;
+      }
+      height = depth;
+    }
+
+    /**
+     * Moves up from the specified depth past any exhausted pages, and
+     * then down to the next entry.
+     */
+    private void normalize(int depth) {
+      while (indexes[depth] >= pages[depth].count) {
+        pages[depth] = null;
+        if (depth == 0) {
+          height = -1;
+          return;
+        }
+        ++ indexes[-- depth];
+      }
+      descend(depth);
+    }
+
+    /**
+     * Returns the entry at the current position, or null if the
+     * cursor has passed the last entry.
+     */
+    public Node entry() {
+      return height < 0 ? null : pages[height].children[indexes[height]];
+    }
+
+    public void next() {
+      if (height >= 0) {
+        ++ indexes[height];
+        normalize(height);
+      }
+    }
+
+    /**
+     * Advances past every remaining entry beneath the page at the
+     * specified number of levels above the leaf.
+     */
+    private void skip(int level) {
+      int depth = height - level;
+      indexes[depth] = pages[depth].count;
+      normalize(depth);
+    }
+
+    /**
+     * Returns the number of levels above their leaves (counting the
+     * leaves themselves) for which the specified cursors, which must
+     * be positioned at the same entry, are on identical pages.
+     */
+    private static int shared(Cursor a, Cursor b) {
+      int level = 0;
+      while (level <= a.height && level <= b.height
+             && a.pages[a.height - level] == b.pages[b.height - level])
+      {
+        ++ level;
+      }
+      return level;
+    }
+
+    /**
+     * Advances both specified cursors, which must be positioned at
+     * the same entry, past that entry and past whatever else they
+     * can tell is shared between the two trees.
+     */
+    public static void skipShared(Cursor a, Cursor b) {
+      int level = shared(a, b);
+      if (level == 0) {
+        a.next();
+        b.next();
+      } else {
+        a.skip(level - 1);
+        b.skip(level - 1);
+      }
+    }
+
+    /**
+     * Like skipShared(Cursor, Cursor), but for three cursors.
+     */
+    public static void skipShared(Cursor a, Cursor b, Cursor c) {
+      int level = Math.min(shared(a, b), shared(a, c));
+      if (level == 0) {
+        a.next();
+        b.next();
+        c.next();
+      } else {
+        a.skip(level - 1);
+        b.skip(level - 1);
+        c.skip(level - 1);
+      }
+    }
+  }
+
+  /**
+   * Returns true if either of the specified trees is a tree of
+   * WideNodes, in which case the other must be too unless it is
+   * empty.
+   */
+  public static boolean wide(Node a, Node b) {
+    boolean wide = a instanceof WideNode || b instanceof WideNode;
+    if (wide) {
+      checkArgument((a == Null || a instanceof WideNode)
+                    && (b == Null || b instanceof WideNode),
+                    "cannot mix wide and red-black trees");
+    }
+    return wide;
+  }
+
+  /**
+   * Like {@link #wide(Node, Node)}, but checks all three trees
+   * against each other.
+   */
+  public static boolean wide(Node a, Node b, Node c) {
+    boolean wide = a instanceof WideNode || b instanceof WideNode
+      || c instanceof WideNode;
+    if (wide) {
+      checkArgument((a == Null || a instanceof WideNode)
+                    && (b == Null || b instanceof WideNode)
+                    && (c == Null || c instanceof WideNode),
+                    "cannot mix wide and red-black trees");
+    }
+    return wide;
+  }
+
+  public static void validate(WideNode root) {
+    validate(root, true);
+  }
+
+  private static int validate(WideNode n, boolean root) {
+    if (n.count == 0 || n.count > Fanout
+        || (! root && n.count < MinCount)
+        || (root && ! n.leaf() && n.count < 2))
+    {
+      throw new RuntimeException("bad page count " + n.count);
+    }
+
+    int size = 0;
+    int childHeight = -1;
+    for (int i = 0; i < n.count; ++i) {
+      if (n.keys[i] == null) {
+        throw new RuntimeException("null key!");
+      }
+
+      if (n.leaf()) {
+        Node entry = n.children[i];
+        if (entry.key != n.keys[i] || entry.size != 1
+            || entry.left != Null || entry.right != Null)
+        {
+          throw new RuntimeException("bad entry!");
+        }
+
+        if (entry.value instanceof WideNode) {
+          validate((WideNode) entry.value);
+        }
+
+        ++ size;
+      } else {
+        WideNode child = (WideNode) n.children[i];
+        if (child.keys[0] != n.keys[i]) {
+          throw new RuntimeException("bad separator!");
+        }
+
+        if (child.size != n.sizes[i]) {
+          throw new RuntimeException("inconsistent child size!");
+        }
+
+        int h = validate(child, false);
+        if (childHeight == -1) {
+          childHeight = h;
+        } else if (h != childHeight) {
+          throw new RuntimeException("unbalanced!");
+        }
+
+        size += child.size;
+      }
+    }
+
+    if (size != n.size) {
+      throw new RuntimeException("inconsistent size!");
+    }
+
+    return childHeight + 1;
+  }
+
+  public static void dump(WideNode node, java.io.PrintWriter out, int depth,
+                          int subtreeDepth)
+  {
+    for (int i = 0; i < node.count; ++i) {
+      if (node.leaf()) {
+        Node entry = node.children[i];
+        for (int j = 0; j < depth; ++j) {
+          out.print("  ");
+        }
+        out.print(subtreeDepth);
+        out.print(" ");
+        if (entry.value instanceof Node) {
+          out.println(entry.key + ": subtree");
+          Node.dump((Node) entry.value, out, depth + 2, subtreeDepth + 1);
+        } else {
+          out.println(entry.key + ": " + entry.value);
+        }
+      } else {
+        for (int j = 0; j < depth; ++j) {
+          out.print("  ");
+        }
+        out.println("[" + node.keys[i] + " (" + node.sizes[i] + ")]");
+        dump((WideNode) node.children[i], out, depth + 1, subtreeDepth);
+      }
+    }
+  }
+}
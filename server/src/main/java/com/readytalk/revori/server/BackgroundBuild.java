@@ -0,0 +1,178 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.server;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.Source;
+import com.readytalk.revori.SourceVisitor;
+import com.readytalk.revori.TableReference;
+import com.readytalk.revori.View;
+import com.readytalk.revori.imp.DefaultRevision;
+
+/**
+ * Adds an index or view to the head of a revision server without
+ * blocking commits to it while the index or view is populated.<p>
+ *
+ * The index or view is populated on the specified executor from a
+ * snapshot of the head taken when the build starts.  Meanwhile, other
+ * threads may continue to commit to the server.  When population
+ * finishes, the result is merged into the current head, which applies
+ * the changes committed since the snapshot to the new index or view
+ * incrementally, and publishes it atomically with respect to those
+ * commits.  Until then, queries against the head neither see nor use
+ * it.<p>
+ *
+ * Progress may be polled using state, rowsVisited, and
+ * estimatedRows, and completion observed using future.
+ */
+@ThreadSafe
+public class BackgroundBuild {
+  public enum State {
+    Pending, Building, Publishing, Done, Failed
+  }
+
+  private final RevisionServer server;
+  private final Index index;
+  private final View view;
+  private final AtomicLong rowsVisited = new AtomicLong();
+  private final SettableFuture<Revision> future = SettableFuture.create();
+  private volatile State state = State.Pending;
+  private volatile long estimatedRows = -1;
+
+  private BackgroundBuild(RevisionServer server, Index index, View view) {
+    this.server = server;
+    this.index = index;
+    this.view = view;
+  }
+
+  /**
+   * Starts adding the specified index to the head of the specified
+   * server using the specified executor.
+   */
+  public static BackgroundBuild add(RevisionServer server,
+                                    Index index,
+                                    Executor executor)
+  {
+    return start
+      (new BackgroundBuild
+       (Preconditions.checkNotNull(server), Preconditions.checkNotNull(index),
+        null), executor);
+  }
+
+  /**
+   * Starts adding the specified view to the head of the specified
+   * server using the specified executor.
+   */
+  public static BackgroundBuild add(RevisionServer server,
+                                    View view,
+                                    Executor executor)
+  {
+    return start
+      (new BackgroundBuild
+       (Preconditions.checkNotNull(server), null,
+        Preconditions.checkNotNull(view)), executor);
+  }
+
+  private static BackgroundBuild start(final BackgroundBuild build,
+                                       Executor executor)
+  {
+    executor.execute(new Runnable() {
+        public void run() {
+          try {
+            Revision result = build.run();
+            build.state = State.Done;
+            build.future.set(result);
+          } catch (Throwable e) {
+            build.state = State.Failed;
+            build.future.setException(e);
+          }
+        }
+      });
+
+    return build;
+  }
+
+  private Revision run() {
+    state = State.Building;
+
+    Revision snapshot = server.head();
+    if (! (snapshot instanceof DefaultRevision)) {
+      throw new IllegalArgumentException
+        ("revision not created by this implementation");
+    }
+    final DefaultRevision myBase = (DefaultRevision) snapshot;
+
+    Revision built;
+    if (index != null) {
+      estimatedRows = myBase.estimateRows(index.table);
+
+      built = myBase.withIndex(index, rowsVisited);
+    } else {
+      final long[] estimate = new long[1];
+      view.query.source.visit(new SourceVisitor() {
+          public void visit(Source source) {
+            if (source instanceof TableReference) {
+              estimate[0] += myBase.estimateRows
+                (((TableReference) source).table);
+            }
+          }
+        });
+      estimatedRows = estimate[0];
+
+      built = myBase.withView(view, rowsVisited);
+    }
+
+    state = State.Publishing;
+
+    // any revisions committed since the snapshot are merged into the
+    // result here, updating the new index or view to match them
+    server.merge(snapshot, built);
+
+    return server.head();
+  }
+
+  public State state() {
+    return state;
+  }
+
+  /**
+   * Returns the number of rows visited so far while populating the
+   * index or view from the snapshot.
+   */
+  public long rowsVisited() {
+    return rowsVisited.get();
+  }
+
+  /**
+   * Returns an estimate of the number of rows which will be visited
+   * while populating the index or view from the snapshot (for a view,
+   * the sum of the sizes of the tables it selects from), or -1 if the
+   * build has not started yet.
+   */
+  public long estimatedRows() {
+    return estimatedRows;
+  }
+
+  /**
+   * Returns a future which yields the head of the server immediately
+   * after the index or view was published, or the exception which
+   * caused the build to fail.
+   */
+  public ListenableFuture<Revision> future() {
+    return future;
+  }
+}
@@ -0,0 +1,243 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.server;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.readytalk.revori.Revision;
+
+/**
+ * Flushes BufferServers according to their FlushPolicy.<p>
+ *
+ * If an executor is specified, flushDue is run on it periodically,
+ * and whenever a buffer's policy is satisfied by a merge.  Otherwise,
+ * the application is expected to call flushDue itself, although
+ * merges which fill a buffer still cause it to be called on the
+ * merging thread.<p>
+ *
+ * Buffers are flushed in batches: the changes of every buffer which
+ * wraps a given server are merged together and pushed to that server
+ * with a single merge, rather than one per buffer.  While a batch is
+ * being pushed, merges to the buffers it includes wait for it to
+ * finish.
+ */
+@ThreadSafe
+public class BufferFlusher implements Closeable {
+  private static final Logger log = LoggerFactory.getLogger
+    (BufferFlusher.class);
+
+  private final Set<BufferServer> dirtySet = Collections.newSetFromMap
+    (new ConcurrentHashMap<BufferServer, Boolean>());
+  private final ScheduledExecutorService executor;
+  private final Ticker ticker;
+  private final AtomicBoolean flushRequested = new AtomicBoolean();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong buffersFlushed = new AtomicLong();
+  private final ScheduledFuture<?> task;
+
+  /**
+   * Creates a flusher which checks for buffers due to be flushed at
+   * the specified interval using the specified executor, or only when
+   * flushDue is called if the executor is null.
+   */
+  public BufferFlusher(@Nullable ScheduledExecutorService executor,
+                       long interval,
+                       TimeUnit unit)
+  {
+    this(executor, interval, unit, Ticker.systemTicker());
+  }
+
+  public BufferFlusher(@Nullable ScheduledExecutorService executor,
+                       long interval,
+                       TimeUnit unit,
+                       Ticker ticker)
+  {
+    this.executor = executor;
+    this.ticker = Preconditions.checkNotNull(ticker);
+
+    if (executor == null) {
+      task = null;
+    } else {
+      task = executor.scheduleWithFixedDelay(new Runnable() {
+          public void run() {
+            flushDueAndLog();
+          }
+        }, interval, interval, unit);
+    }
+  }
+
+  /**
+   * Returns the set of buffers which hold unflushed changes.
+   */
+  public Set<BufferServer> dirtySet() {
+    return dirtySet;
+  }
+
+  Ticker ticker() {
+    return ticker;
+  }
+
+  /**
+   * Returns the number of merges pushed to wrapped servers so far.
+   */
+  public long batchCount() {
+    return batches.get();
+  }
+
+  /**
+   * Returns the number of times a buffer has been flushed so far.
+   * The ratio of this to batchCount indicates how many upstream
+   * merges batching has saved.
+   */
+  public long bufferFlushCount() {
+    return buffersFlushed.get();
+  }
+
+  void requestFlush() {
+    if (executor == null) {
+      flushDue();
+    } else if (flushRequested.compareAndSet(false, true)) {
+      executor.execute(new Runnable() {
+          public void run() {
+            flushRequested.set(false);
+            flushDueAndLog();
+          }
+        });
+    }
+  }
+
+  private void flushDueAndLog() {
+    try {
+      flushDue();
+    } catch (Throwable e) {
+      log.warn("unable to flush buffers", e);
+    }
+  }
+
+  /**
+   * Flushes every buffer which is due according to its policy.
+   */
+  public void flushDue() {
+    flush(false);
+  }
+
+  /**
+   * Flushes every dirty buffer regardless of policy.
+   */
+  public void flushAll() {
+    flush(true);
+  }
+
+  // Only one thread flushes at a time, so the buffer locks are always
+  // acquired by a single thread in a consistent order, and other
+  // threads never hold more than one of them.
+  private synchronized void flush(boolean all) {
+    Map<RevisionServer, List<BufferServer>> groups
+      = new IdentityHashMap<RevisionServer, List<BufferServer>>();
+
+    for (BufferServer buffer: dirtySet) {
+      List<BufferServer> group = groups.get(buffer.server());
+      if (group == null) {
+        groups.put(buffer.server(), group = new ArrayList<BufferServer>());
+      }
+      group.add(buffer);
+    }
+
+    RuntimeException error = null;
+    for (Map.Entry<RevisionServer, List<BufferServer>> e: groups.entrySet()) {
+      try {
+        flush(e.getKey(), e.getValue(), all);
+      } catch (RuntimeException ex) {
+        error = ex;
+      }
+    }
+
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  private void flush(RevisionServer server, List<BufferServer> group,
+                     boolean all)
+  {
+    List<BufferServer> locked = new ArrayList<BufferServer>(group.size());
+    try {
+      long now = ticker.read();
+      boolean due = all;
+      for (BufferServer buffer: group) {
+        buffer.lock.lock();
+        locked.add(buffer);
+        due = due || buffer.due(now);
+      }
+
+      // once any buffer wrapping a server is due, flush the others
+      // along with it, since doing so costs little extra
+      if (! due) {
+        return;
+      }
+
+      Revision serverBase = server.head();
+      Revision result = serverBase;
+      List<BufferServer> flushed = new ArrayList<BufferServer>();
+      for (BufferServer buffer: locked) {
+        Revision base = buffer.base();
+        if (base != null) {
+          result = base.merge
+            (result, buffer.bufferedHead(), buffer.conflictResolver,
+             buffer.foreignKeyResolver);
+          flushed.add(buffer);
+        }
+      }
+
+      if (! flushed.isEmpty()) {
+        server.merge(serverBase, result);
+        batches.incrementAndGet();
+        buffersFlushed.addAndGet(flushed.size());
+      }
+
+      for (BufferServer buffer: locked) {
+        buffer.clean();
+        dirtySet.remove(buffer);
+      }
+    } finally {
+      for (BufferServer buffer: locked) {
+        buffer.lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Stops checking for buffers due to be flushed.  Any dirty buffers
+   * remain dirty; call flushAll first to push their changes.
+   */
+  public void close() {
+    if (task != null) {
+      task.cancel(false);
+    }
+  }
+}
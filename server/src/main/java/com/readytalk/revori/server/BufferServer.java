@@ -1,66 +1,184 @@
 package com.readytalk.revori.server;
 
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.base.Preconditions;
 import com.readytalk.revori.ConflictResolver;
+import com.readytalk.revori.DiffResult;
 import com.readytalk.revori.ForeignKeyResolver;
 import com.readytalk.revori.Revision;
 import com.readytalk.revori.subscribe.Subscription;
 
+/**
+ * RevisionServer which buffers merges locally, pushing them to the
+ * server it wraps only when flushed.<p>
+ *
+ * A buffer created with a BufferFlusher is flushed automatically
+ * according to its FlushPolicy: the flusher periodically flushes
+ * every buffer which is due, pushing the changes of all the buffers
+ * wrapping a given server to that server in a single merge, and a
+ * merge which fills the buffer prompts the flusher to do so
+ * immediately.  Otherwise, the buffer is added to dirtySet when it
+ * becomes dirty, and its owner is responsible for flushing it.
+ */
+@ThreadSafe
 public class BufferServer implements RevisionServer {
   private final Set<BufferServer> dirtySet;
   private final RevisionServer server;
+  private final BufferFlusher flusher;
+  private final FlushPolicy policy;
+  final ReentrantLock lock = new ReentrantLock();
   private boolean dirty;
   private Revision base;
   private Revision head;
-  private Revision updateBase;
-  ConflictResolver conflictResolver;
-  ForeignKeyResolver foreignKeyResolver;
+  private long dirtySince;
+  private int merges;
+  private long diffSize;
+  final ConflictResolver conflictResolver;
+  final ForeignKeyResolver foreignKeyResolver;
 
   public BufferServer(Set<BufferServer> dirtySet,
                       RevisionServer server,
-                      ConflictResolver conflictResolver,
-                      ForeignKeyResolver foreignKeyResolver)
+                      @Nullable ConflictResolver conflictResolver,
+                      @Nullable ForeignKeyResolver foreignKeyResolver)
+  {
+    this(dirtySet, null, FlushPolicy.Manual, server, conflictResolver,
+         foreignKeyResolver);
+  }
+
+  /**
+   * Creates a buffer which is flushed by the specified flusher
+   * according to the specified policy.
+   */
+  public BufferServer(BufferFlusher flusher,
+                      FlushPolicy policy,
+                      RevisionServer server,
+                      @Nullable ConflictResolver conflictResolver,
+                      @Nullable ForeignKeyResolver foreignKeyResolver)
   {
-    this.dirtySet = dirtySet;
-    this.server = server;
+    this(flusher.dirtySet(), flusher, Preconditions.checkNotNull(policy),
+         server, conflictResolver, foreignKeyResolver);
+  }
+
+  private BufferServer(Set<BufferServer> dirtySet,
+                       @Nullable BufferFlusher flusher,
+                       FlushPolicy policy,
+                       RevisionServer server,
+                       @Nullable ConflictResolver conflictResolver,
+                       @Nullable ForeignKeyResolver foreignKeyResolver)
+  {
+    this.dirtySet = Preconditions.checkNotNull(dirtySet);
+    this.flusher = flusher;
+    this.policy = policy;
+    this.server = Preconditions.checkNotNull(server);
+    this.conflictResolver = conflictResolver;
+    this.foreignKeyResolver = foreignKeyResolver;
   }
 
   public RevisionServer server() {
     return server;
   }
 
+  public FlushPolicy policy() {
+    return policy;
+  }
+
+  /**
+   * Returns the head of this buffer after bringing it up to date with
+   * the head of the server it wraps.  If the latter has not changed
+   * since this buffer last saw it, this simply returns the current
+   * head, and if this buffer holds no unflushed changes, it simply
+   * adopts the server's head, so a merge is done only when both
+   * have changed.
+   */
   public Revision latestHead() {
-    if (base == null) {
-      base = head = server.head();
-    } else {
+    lock.lock();
+    try {
       Revision serverHead = server.head();
-      merge(base, serverHead);
-      base = serverHead;
+      if (base == null || ! dirty) {
+        base = head = serverHead;
+      } else if (base != serverHead) {
+        head = base.merge
+          (head, serverHead, conflictResolver, foreignKeyResolver);
+        base = serverHead;
+      }
+      return head;
+    } finally {
+      lock.unlock();
     }
-    return head;
   }
 
   public Revision head() {
-    if (base == null) {
-      base = head = server.head();
+    lock.lock();
+    try {
+      if (base == null) {
+        base = head = server.head();
+      }
+      return head;
+    } finally {
+      lock.unlock();
     }
-    return head;
   }
 
   public void merge(Revision base, Revision fork) {
-    head = base.merge(head, fork, conflictResolver, foreignKeyResolver);
+    boolean full;
+    lock.lock();
+    try {
+      if (this.base == null) {
+        this.base = head = server.head();
+      }
+
+      head = base.merge(head, fork, conflictResolver, foreignKeyResolver);
+
+      if (! dirty) {
+        dirty = true;
+        dirtySince = flusher == null ? 0 : flusher.ticker().read();
+        dirtySet.add(this);
+      }
 
-    if (! dirty) {
-      dirty = true;
-      dirtySet.add(this);
+      ++ merges;
+      if (policy.limitsDiffSize() && diffSize < policy.maxDiffSize) {
+        diffSize += estimateDiffSize
+          (base, fork, policy.maxDiffSize - diffSize);
+      }
+
+      full = policy.full(merges, diffSize);
+    } finally {
+      lock.unlock();
+    }
+
+    // this must be done without holding the lock, since the flusher
+    // may need to acquire the locks of several buffers
+    if (full && flusher != null) {
+      flusher.requestFlush();
     }
   }
 
+  private static long estimateDiffSize(Revision base, Revision fork,
+                                       long limit)
+  {
+    DiffResult result = base.diff(fork, false);
+    while (result.nodesChanged() < limit
+           && result.next() != DiffResult.Type.End)
+    { }
+    return result.nodesChanged();
+  }
+
   public void flush(boolean remove) {
-    server.merge(base, head);
-    base = head = null;
-    dirty = false;
+    lock.lock();
+    try {
+      if (base != null) {
+        server.merge(base, head);
+      }
+      clean();
+    } finally {
+      lock.unlock();
+    }
+
     if (remove) {
       dirtySet.remove(this);
     }
@@ -70,6 +188,42 @@ public class BufferServer implements RevisionServer {
     flush(true);
   }
 
+  /**
+   * Returns true if this buffer should be flushed according to its
+   * policy, given the current time as read from the flusher's ticker.
+   * The caller must hold the lock.
+   */
+  boolean due(long now) {
+    return dirty && policy.due(now - dirtySince, merges, diffSize);
+  }
+
+  /**
+   * Returns the revision this buffer's changes are relative to, or
+   * null if it has none.  The caller must hold the lock.
+   */
+  Revision base() {
+    return dirty ? base : null;
+  }
+
+  /**
+   * Returns the head of this buffer without refreshing it.  The
+   * caller must hold the lock.
+   */
+  Revision bufferedHead() {
+    return head;
+  }
+
+  /**
+   * Discards the state of this buffer after its changes have been
+   * pushed to the server it wraps.  The caller must hold the lock.
+   */
+  void clean() {
+    base = head = null;
+    dirty = false;
+    merges = 0;
+    diffSize = 0;
+  }
+
   public Subscription registerListener(Runnable listener) {
     throw new UnsupportedOperationException();
   }
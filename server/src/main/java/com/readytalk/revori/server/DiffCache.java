@@ -0,0 +1,169 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.server.protocol.WriteContext;
+import com.readytalk.revori.util.BufferOutputStream;
+
+/**
+ * Remembers the DiffEncoding of recently written pairs of revisions,
+ * so that a diff sent to several nodes is computed and serialized
+ * only once.  The total size of the encodings retained is bounded by
+ * a capacity in bytes, and the least recently written are discarded
+ * first.  Revisions are compared by identity, and are only
+ * weakly referenced, so the cache never keeps a revision reachable
+ * after its EpidemicServer has released it.<p>
+ *
+ * Each diff is encoded with a WriteContext of its own, so the bytes
+ * do not depend on anything written before them and may be copied
+ * into any message.  The reader must likewise decode them with a
+ * fresh ReadContext; see EpidemicServer.IndependentDiff.
+ */
+@ThreadSafe
+class DiffCache {
+  private final Map<Key, BufferOutputStream> entries
+    = new LinkedHashMap<Key, BufferOutputStream>(16, 0.75f, true);
+  private final AtomicLong encoded = new AtomicLong();
+  private final AtomicLong reused = new AtomicLong();
+  private int capacity;
+  private long size;
+
+  public DiffCache(int capacity) {
+    setCapacity(capacity);
+  }
+
+  /**
+   * Specifies the number of bytes of encodings to retain.  An
+   * encoding larger than this is written but not retained.
+   */
+  public synchronized void setCapacity(int capacity) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("capacity must not be negative");
+    }
+
+    this.capacity = capacity;
+    trim();
+  }
+
+  /**
+   * Returns the number of diffs encoded so far.
+   */
+  public long encodedCount() {
+    return encoded.get();
+  }
+
+  /**
+   * Returns the number of times a previously encoded diff has been
+   * reused so far.
+   */
+  public long reusedCount() {
+    return reused.get();
+  }
+
+  /**
+   * Writes the diff between the specified revisions to the specified
+   * stream, encoding it only if it is not already cached.
+   */
+  public void write(OutputStream out, Revision base, Revision fork)
+    throws IOException
+  {
+    Key key = new Key(base, fork);
+    BufferOutputStream buffer;
+    synchronized (this) {
+      buffer = entries.get(key);
+    }
+
+    if (buffer == null) {
+      encoded.incrementAndGet();
+      buffer = new BufferOutputStream();
+      DiffEncoding.write(new WriteContext(buffer), base, fork);
+
+      synchronized (this) {
+        for (Iterator<Map.Entry<Key, BufferOutputStream>> it
+               = entries.entrySet().iterator(); it.hasNext();)
+        {
+          Map.Entry<Key, BufferOutputStream> e = it.next();
+          if (e.getKey().cleared()) {
+            size -= e.getValue().size();
+            it.remove();
+          }
+        }
+
+        if (buffer.size() <= capacity) {
+          BufferOutputStream old = entries.put(key, buffer);
+          if (old != null) {
+            size -= old.size();
+          }
+          size += buffer.size();
+          trim();
+        }
+      }
+    } else {
+      reused.incrementAndGet();
+    }
+
+    out.write(buffer.getBuffer(), 0, buffer.size());
+  }
+
+  // discards the least recently written encodings until the rest fit
+  // within the capacity
+  private void trim() {
+    for (Iterator<BufferOutputStream> it = entries.values().iterator();
+         size > capacity && it.hasNext();)
+    {
+      size -= it.next().size();
+      it.remove();
+    }
+  }
+
+  private static class Key {
+    public final WeakReference<Revision> base;
+    public final WeakReference<Revision> fork;
+    public final int hashCode;
+
+    public Key(Revision base, Revision fork) {
+      this.base = new WeakReference<Revision>(base);
+      this.fork = new WeakReference<Revision>(fork);
+      this.hashCode = System.identityHashCode(base)
+        ^ System.identityHashCode(fork);
+    }
+
+    public boolean cleared() {
+      return base.get() == null || fork.get() == null;
+    }
+
+    public int hashCode() {
+      return hashCode;
+    }
+
+    public boolean equals(Object o) {
+      if (o == this) {
+        return true;
+      } else if (o instanceof Key) {
+        Key k = (Key) o;
+        Revision base = this.base.get();
+        Revision fork = this.fork.get();
+        return base != null && fork != null
+          && k.base.get() == base && k.fork.get() == fork;
+      } else {
+        return false;
+      }
+    }
+  }
+}
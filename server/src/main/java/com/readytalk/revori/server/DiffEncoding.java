@@ -0,0 +1,208 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.annotation.concurrent.Immutable;
+
+import com.readytalk.revori.DiffResult;
+import com.readytalk.revori.DuplicateKeyResolution;
+import com.readytalk.revori.ForeignKeyResolver;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.imp.Constants;
+import com.readytalk.revori.server.protocol.Protocol;
+import com.readytalk.revori.server.protocol.ReadContext;
+import com.readytalk.revori.server.protocol.WriteContext;
+
+/**
+ * Tree-walk encoding of the difference between two revisions, as
+ * used by EpidemicServer to replicate revisions and by DurableServer
+ * to persist them.  The encoding is a sequence of single-byte flags,
+ * some followed by a value written using Protocol.write, and is
+ * terminated by End.
+ */
+@Immutable
+class DiffEncoding {
+  public static final int End = 0;
+  public static final int Descend = 1;
+  public static final int Ascend = 2;
+  public static final int Key = 3;
+  public static final int Delete = 4;
+  public static final int Insert = 5;
+
+  /**
+   * Writes the serializable differences between the specified
+   * revisions to the specified context.
+   */
+  public static void write(WriteContext context, Revision base, Revision fork)
+    throws IOException
+  {
+    DiffResult result = base.diff(fork, true);
+    Table table = null;
+    int depth = 0;
+    while (true) {
+      DiffResult.Type type = result.next();
+      switch (type) {
+      case End:
+        context.out.write(End);
+        return;
+
+      case Descend: {
+        ++ depth;
+        context.out.write(Descend);
+      } break;
+
+      case Ascend: {
+        -- depth;
+        context.out.write(Ascend);
+      } break;
+
+      case Key: {
+        Object forkKey = result.fork();
+        if (forkKey != null) {
+          if (depth == 0) table = (Table) forkKey;
+
+          if (Constants.serializable(table, forkKey, depth)) {
+            context.out.write(Key);
+            Protocol.write(context, forkKey);
+          } else {
+            result.skip();
+          }
+        } else {
+          Object baseKey = result.base();
+
+          if (depth == 0) table = (Table) baseKey;
+
+          if (Constants.serializable(table, baseKey, depth)) {
+            context.out.write(Delete);
+            Protocol.write(context, baseKey);
+          }
+          result.skip();
+        }
+      } break;
+
+      case Value: {
+        context.out.write(Insert);
+        Protocol.write(context, result.fork());
+      } break;
+
+      default:
+        throw new RuntimeException("unexpected result type: " + type);
+      }
+    }
+  }
+
+  /**
+   * Reads a difference from the specified context and applies it to
+   * the specified base revision, returning the result.
+   */
+  public static Revision apply(ReadContext context,
+                               Revision base,
+                               ForeignKeyResolver foreignKeyResolver)
+    throws IOException
+  {
+    InputStream in = context.in;
+    RevisionBuilder builder = base.builder();
+    final int MaxDepth = 16;
+    Object[] path = new Object[MaxDepth];
+    int depth = 0;
+    boolean visitedColumn = true;
+
+    while (true) {
+      int flag = in.read();
+      switch (flag) {
+      case -1:
+        throw new EOFException();
+
+      case End:
+        return builder.commit(foreignKeyResolver);
+
+      case Descend:
+        visitedColumn = true;
+        ++ depth;
+        break;
+
+      case Ascend:
+        if (! visitedColumn) {
+          visitedColumn = true;
+          builder.insert(DuplicateKeyResolution.Overwrite, path, 0,
+                         depth + 1);
+        }
+
+        path[depth--] = null;
+        break;
+
+      case Key:
+        if (! visitedColumn) {
+          builder.insert(DuplicateKeyResolution.Overwrite, path, 0,
+                         depth + 1);
+        } else {
+          visitedColumn = false;
+        }
+
+        path[depth] = Protocol.read(context);
+        break;
+
+      case Delete:
+        visitedColumn = true;
+        path[depth] = Protocol.read(context);
+        builder.delete(path, 0, depth + 1);
+        break;
+
+      case Insert:
+        visitedColumn = true;
+        path[depth + 1] = Protocol.read(context);
+        builder.insert(DuplicateKeyResolution.Overwrite, path, 0, depth + 2);
+        break;
+
+      default:
+        throw new RuntimeException("unexpected flag: " + flag);
+      }
+    }
+  }
+
+  /**
+   * Copies a difference from one context to another without
+   * interpreting it.
+   */
+  public static void copy(ReadContext from, WriteContext to)
+    throws IOException
+  {
+    while (true) {
+      int flag = from.in.read();
+      switch (flag) {
+      case -1:
+        throw new EOFException();
+
+      case End:
+        to.out.write(flag);
+        return;
+
+      case Descend:
+      case Ascend:
+        to.out.write(flag);
+        break;
+
+      case Key:
+      case Delete:
+      case Insert:
+        to.out.write(flag);
+        Protocol.write(to, Protocol.read(from));
+        break;
+
+      default:
+        throw new RuntimeException("unexpected flag: " + flag);
+      }
+    }
+  }
+}
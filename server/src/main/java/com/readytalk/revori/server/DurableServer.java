@@ -0,0 +1,665 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.ByteStreams;
+import com.readytalk.revori.ForeignKeyResolver;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.server.protocol.ReadContext;
+import com.readytalk.revori.server.protocol.WriteContext;
+import com.readytalk.revori.subscribe.Subscription;
+import com.readytalk.revori.util.BufferOutputStream;
+
+/**
+ * RevisionServer decorator which persists the head of the server it
+ * wraps to a directory so that it survives process restarts.<p>
+ *
+ * Each merge is recorded in a write-ahead log as the difference
+ * between the last logged revision and the new head, using the same
+ * encoding EpidemicServer uses to replicate revisions, and merge does
+ * not return until that record has been forced to disk.  Concurrent
+ * merges are committed as a group: whichever thread finds the log
+ * idle writes a single record covering every merge completed so far
+ * and forces it once, while the others wait for it.<p>
+ *
+ * The log is split into segments of roughly segmentSize bytes.  Every
+ * snapshotInterval records, a full snapshot of the logged revision is
+ * streamed to a file, after which the segments it supersedes are
+ * deleted.  By default, the snapshot is written by the thread whose
+ * merge triggered it; see setSnapshotExecutor.  Before anything is
+ * deleted, the directory itself is forced to disk so that a crash
+ * cannot leave the deletions durable but the snapshot's rename
+ * not.<p>
+ *
+ * On construction, the most recent readable snapshot is loaded, any
+ * later log records are replayed, and the result is merged into the
+ * wrapped server.  A partially written record at the end of the log
+ * (e.g. due to a crash mid-write) is discarded.
+ */
+@ThreadSafe
+public class DurableServer implements RevisionServer, Closeable {
+  private static final Logger log = LoggerFactory.getLogger
+    (DurableServer.class);
+
+  public static final long DefaultSegmentSize = 64 * 1024 * 1024;
+  public static final int DefaultSnapshotInterval = 1024;
+
+  private static final String LogPrefix = "log-";
+  private static final String LogSuffix = ".log";
+  private static final String SnapshotPrefix = "snapshot-";
+  private static final String SnapshotSuffix = ".snapshot";
+  private static final String TemporarySuffix = ".tmp";
+
+  // length and sequence number
+  private static final int HeaderSize = 4 + 8;
+  // length and sequence number, where the length may exceed 2GB
+  private static final int SnapshotHeaderSize = 8 + 8;
+  // CRC32 of sequence number and body
+  private static final int TrailerSize = 4;
+
+  private static final int ChunkSize = 64 * 1024;
+
+  private static final boolean Windows = System.getProperty
+    ("os.name", "").startsWith("Windows");
+
+  private final RevisionServer server;
+  private final File directory;
+  private final ForeignKeyResolver foreignKeyResolver;
+  private final long segmentSize;
+  private final int snapshotInterval;
+  private final Object lock = new Object();
+  private volatile Executor snapshotExecutor;
+
+  // the following are guarded by lock:
+
+  private long requested;
+  private long durable;
+  private boolean writing;
+  private boolean snapshotting;
+  private boolean closed;
+  private IOException failure;
+
+  // the following are only accessed by the thread which set writing
+  // to true, or during construction:
+
+  private final BufferOutputStream buffer = new BufferOutputStream();
+  private Revision logged;
+  private long sequenceNumber;
+  private long snapshotSequenceNumber;
+  private RandomAccessFile segment;
+
+  public DurableServer(RevisionServer server,
+                       File directory,
+                       @Nullable ForeignKeyResolver foreignKeyResolver,
+                       long segmentSize,
+                       int snapshotInterval)
+    throws IOException
+  {
+    if (segmentSize <= 0) throw new IllegalArgumentException();
+    if (snapshotInterval <= 0) throw new IllegalArgumentException();
+
+    this.server = server;
+    this.directory = directory;
+    this.foreignKeyResolver = foreignKeyResolver;
+    this.segmentSize = segmentSize;
+    this.snapshotInterval = snapshotInterval;
+
+    recover();
+  }
+
+  public DurableServer(RevisionServer server,
+                       File directory,
+                       @Nullable ForeignKeyResolver foreignKeyResolver)
+    throws IOException
+  {
+    this(server, directory, foreignKeyResolver, DefaultSegmentSize,
+         DefaultSnapshotInterval);
+  }
+
+  /**
+   * Specifies the executor on which to write snapshots, or null to
+   * write them on the thread whose merge triggered them.  This
+   * affects only subsequent snapshots.
+   */
+  public void setSnapshotExecutor(@Nullable Executor executor) {
+    this.snapshotExecutor = executor;
+  }
+
+  public RevisionServer server() {
+    return server;
+  }
+
+  public Revision head() {
+    return server.head();
+  }
+
+  /**
+   * Merges the specified revisions into the wrapped server and waits
+   * until the resulting head has been logged.
+   */
+  public void merge(Revision base, Revision fork) {
+    server.merge(base, fork);
+    sync();
+  }
+
+  /**
+   * Waits until the head of the wrapped server, as of the time of
+   * this call, has been logged.  This is useful when the wrapped
+   * server may be updated by means other than this object's merge
+   * method.
+   */
+  public void sync() {
+    long target;
+    synchronized (lock) {
+      target = ++ requested;
+    }
+
+    while (true) {
+      long batch;
+      synchronized (lock) {
+        while (writing && durable < target) {
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+          }
+        }
+
+        if (durable >= target) {
+          return;
+        }
+
+        if (failure != null) {
+          throw new RuntimeException("log unavailable", failure);
+        }
+
+        if (closed) {
+          throw new IllegalStateException("closed");
+        }
+
+        writing = true;
+        batch = requested;
+      }
+
+      Revision snapshot = null;
+      long snapshotNumber = 0;
+      try {
+        // every merge counted in batch completed before we read the
+        // head here, so this record covers all of them
+        append(server.head());
+
+        synchronized (lock) {
+          durable = batch;
+
+          if (sequenceNumber - snapshotSequenceNumber >= snapshotInterval
+              && ! snapshotting)
+          {
+            snapshotting = true;
+            snapshot = logged;
+            snapshotNumber = sequenceNumber;
+          }
+        }
+      } catch (IOException e) {
+        synchronized (lock) {
+          failure = e;
+        }
+        throw new RuntimeException("unable to write log", e);
+      } finally {
+        synchronized (lock) {
+          writing = false;
+          lock.notifyAll();
+        }
+      }
+
+      if (snapshot != null) {
+        final Revision revision = snapshot;
+        final long number = snapshotNumber;
+        Runnable task = new Runnable() {
+            public void run() {
+              snapshot(revision, number);
+            }
+          };
+
+        Executor executor = snapshotExecutor;
+        if (executor == null) {
+          task.run();
+        } else {
+          try {
+            executor.execute(task);
+          } catch (RuntimeException e) {
+            synchronized (lock) {
+              snapshotting = false;
+              lock.notifyAll();
+            }
+            log.warn("unable to schedule snapshot", e);
+          }
+        }
+      }
+    }
+  }
+
+  private void snapshot(Revision revision, long number) {
+    try {
+      writeSnapshot(revision, number);
+    } catch (IOException e) {
+      // the log still has everything we need, so just try again next
+      // time
+      log.warn("unable to write snapshot", e);
+    } finally {
+      synchronized (lock) {
+        snapshotting = false;
+        lock.notifyAll();
+      }
+    }
+  }
+
+  public Subscription registerListener(Runnable listener) {
+    return server.registerListener(listener);
+  }
+
+  public void close() throws IOException {
+    synchronized (lock) {
+      while (writing || snapshotting) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException(e);
+        }
+      }
+
+      closed = true;
+
+      if (segment != null) {
+        segment.close();
+        segment = null;
+      }
+    }
+  }
+
+  private void append(Revision head) throws IOException {
+    if (head == logged) {
+      return;
+    }
+
+    long number = sequenceNumber + 1;
+
+    buffer.reset();
+    DiffEncoding.write(new WriteContext(buffer), logged, head);
+
+    boolean created = false;
+    if (segment == null || segment.length() >= segmentSize) {
+      if (segment != null) {
+        segment.close();
+      }
+
+      segment = new RandomAccessFile
+        (new File(directory, name(LogPrefix, number, LogSuffix)), "rw");
+      created = true;
+    }
+
+    ByteBuffer record = ByteBuffer.allocate
+      (HeaderSize + buffer.size() + TrailerSize);
+    record.putInt(buffer.size());
+    record.putLong(number);
+    record.put(buffer.getBuffer(), 0, buffer.size());
+    record.putInt(checksum(number, buffer.getBuffer(), 0, buffer.size()));
+    record.flip();
+
+    FileChannel channel = segment.getChannel();
+    channel.position(segment.length());
+    while (record.hasRemaining()) {
+      channel.write(record);
+    }
+    channel.force(false);
+
+    if (created) {
+      // the record is not durable until the segment's directory entry
+      // is
+      syncDirectory();
+    }
+
+    logged = head;
+    sequenceNumber = number;
+  }
+
+  private void writeSnapshot(Revision revision, long number)
+    throws IOException
+  {
+    File file = new File(directory, name(SnapshotPrefix, number,
+                                         SnapshotSuffix));
+    File temporary = new File(directory, file.getName() + TemporarySuffix);
+
+    RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+    try {
+      raf.setLength(0);
+
+      // stream the body after room for the header, which we fill in
+      // once we know the length
+      FileChannel channel = raf.getChannel();
+      channel.position(SnapshotHeaderSize);
+
+      CRC32 crc = new CRC32();
+      update(crc, number);
+      OutputStream out = new BufferedOutputStream
+        (new CheckedOutputStream(Channels.newOutputStream(channel), crc),
+         ChunkSize);
+      DiffEncoding.write(new WriteContext(out), Revisions.Empty, revision);
+      out.flush();
+
+      long length = channel.position() - SnapshotHeaderSize;
+
+      ByteBuffer trailer = ByteBuffer.allocate(TrailerSize);
+      trailer.putInt((int) crc.getValue());
+      trailer.flip();
+      write(channel, trailer, channel.position());
+
+      ByteBuffer header = ByteBuffer.allocate(SnapshotHeaderSize);
+      header.putLong(length);
+      header.putLong(number);
+      header.flip();
+      write(channel, header, 0);
+
+      channel.force(true);
+    } finally {
+      raf.close();
+    }
+
+    if (! temporary.renameTo(file)) {
+      throw new IOException("unable to rename " + temporary + " to " + file);
+    }
+
+    // make the rename durable before deleting anything it supersedes
+    syncDirectory();
+
+    synchronized (lock) {
+      snapshotSequenceNumber = Math.max(snapshotSequenceNumber, number);
+    }
+
+    // delete older snapshots and any log segments containing only
+    // records which the new snapshot supersedes
+
+    for (File f: list(SnapshotPrefix, SnapshotSuffix)) {
+      if (number(f, SnapshotPrefix, SnapshotSuffix) < number) {
+        delete(f);
+      }
+    }
+
+    File[] segments = list(LogPrefix, LogSuffix);
+    for (int i = 0; i < segments.length - 1; ++i) {
+      if (number(segments[i + 1], LogPrefix, LogSuffix) <= number + 1) {
+        delete(segments[i]);
+      }
+    }
+  }
+
+  private void recover() throws IOException {
+    if (! (directory.isDirectory() || directory.mkdirs())) {
+      throw new IOException("unable to create " + directory);
+    }
+
+    for (File f: directory.listFiles()) {
+      if (f.getName().endsWith(TemporarySuffix)) {
+        delete(f);
+      }
+    }
+
+    Revision revision = Revisions.Empty;
+    long number = 0;
+
+    File[] snapshots = list(SnapshotPrefix, SnapshotSuffix);
+    for (int i = snapshots.length - 1; i >= 0; --i) {
+      try {
+        revision = readSnapshot(snapshots[i]);
+        number = number(snapshots[i], SnapshotPrefix, SnapshotSuffix);
+        break;
+      } catch (IOException e) {
+        log.warn("unable to read snapshot " + snapshots[i], e);
+      }
+    }
+
+    snapshotSequenceNumber = number;
+
+    File[] segments = list(LogPrefix, LogSuffix);
+    for (int i = 0; i < segments.length; ++i) {
+      File file = segments[i];
+      boolean last = i == segments.length - 1;
+
+      DataInputStream in = new DataInputStream
+        (new BufferedInputStream(new FileInputStream(file)));
+      long position = 0;
+      try {
+        while (true) {
+          int length;
+          long entryNumber;
+          byte[] body;
+          try {
+            length = in.readInt();
+            entryNumber = in.readLong();
+            if (length < 0 || length > file.length()) {
+              throw new EOFException();
+            }
+            body = new byte[length];
+            in.readFully(body);
+            if (in.readInt() != checksum(entryNumber, body, 0, length)) {
+              throw new EOFException();
+            }
+          } catch (EOFException e) {
+            if (position == file.length()) {
+              break;
+            } else if (last) {
+              log.warn("discarding partial record at " + position + " in "
+                       + file);
+              truncate(file, position);
+              break;
+            } else {
+              throw new IOException("corrupt record at " + position + " in "
+                                    + file);
+            }
+          }
+
+          position += HeaderSize + length + TrailerSize;
+
+          if (entryNumber > number) {
+            if (entryNumber != number + 1) {
+              throw new IOException
+                ("missing records " + (number + 1) + " through "
+                 + (entryNumber - 1) + " before " + file);
+            }
+
+            revision = DiffEncoding.apply
+              (new ReadContext(new ByteArrayInputStream(body)),
+               revision, foreignKeyResolver);
+            number = entryNumber;
+          }
+        }
+      } finally {
+        in.close();
+      }
+    }
+
+    logged = revision;
+    sequenceNumber = number;
+
+    if (segments.length > 0) {
+      segment = new RandomAccessFile(segments[segments.length - 1], "rw");
+    }
+
+    server.merge(Revisions.Empty, revision);
+  }
+
+  private Revision readSnapshot(File file) throws IOException {
+    long length;
+
+    // verify the checksum before decoding anything
+    DataInputStream in = new DataInputStream
+      (new BufferedInputStream(new FileInputStream(file), ChunkSize));
+    try {
+      long number;
+      try {
+        length = in.readLong();
+        number = in.readLong();
+      } catch (EOFException e) {
+        throw new IOException("malformed snapshot " + file, e);
+      }
+
+      if (length < 0
+          || file.length() != SnapshotHeaderSize + length + TrailerSize
+          || number != number(file, SnapshotPrefix, SnapshotSuffix))
+      {
+        throw new IOException("malformed snapshot " + file);
+      }
+
+      CRC32 crc = new CRC32();
+      update(crc, number);
+      byte[] chunk = new byte[ChunkSize];
+      for (long remaining = length; remaining > 0;) {
+        int n = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+        if (n < 0) {
+          throw new EOFException();
+        }
+        crc.update(chunk, 0, n);
+        remaining -= n;
+      }
+
+      if (in.readInt() != (int) crc.getValue()) {
+        throw new IOException("checksum mismatch in " + file);
+      }
+    } finally {
+      in.close();
+    }
+
+    InputStream body = new BufferedInputStream
+      (new FileInputStream(file), ChunkSize);
+    try {
+      ByteStreams.skipFully(body, SnapshotHeaderSize);
+
+      return DiffEncoding.apply
+        (new ReadContext(ByteStreams.limit(body, length)), Revisions.Empty,
+         foreignKeyResolver);
+    } finally {
+      body.close();
+    }
+  }
+
+  private static void write(FileChannel channel, ByteBuffer buffer,
+                            long position)
+    throws IOException
+  {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  /**
+   * Forces changes to the directory's entries, e.g. files created or
+   * renamed in it, to disk.  Windows does not allow a directory to be
+   * opened this way, but NTFS journals such changes in order, so
+   * nothing is lost there by skipping this.
+   */
+  private void syncDirectory() throws IOException {
+    if (Windows) {
+      return;
+    }
+
+    FileChannel channel = FileChannel.open
+      (directory.toPath(), StandardOpenOption.READ);
+    try {
+      channel.force(true);
+    } finally {
+      channel.close();
+    }
+  }
+
+  private static void truncate(File file, long length) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(length);
+      raf.getChannel().force(true);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static void delete(File file) {
+    if (! file.delete()) {
+      log.warn("unable to delete " + file);
+    }
+  }
+
+  private static String name(String prefix, long number, String suffix) {
+    return prefix + String.format("%016x", number) + suffix;
+  }
+
+  private static long number(File file, String prefix, String suffix) {
+    String name = file.getName();
+    return Long.parseLong
+      (name.substring(prefix.length(), name.length() - suffix.length()), 16);
+  }
+
+  private File[] list(final String prefix, final String suffix) {
+    File[] files = directory.listFiles(new FilenameFilter() {
+        public boolean accept(File dir, String name) {
+          return name.startsWith(prefix) && name.endsWith(suffix);
+        }
+      });
+
+    if (files == null) {
+      return new File[0];
+    }
+
+    // names are zero-padded, so this sorts by sequence number
+    Arrays.sort(files);
+    return files;
+  }
+
+  private static int checksum(long number, byte[] body, int offset,
+                              int length)
+  {
+    CRC32 crc = new CRC32();
+    update(crc, number);
+    crc.update(body, offset, length);
+    return (int) crc.getValue();
+  }
+
+  private static void update(CRC32 crc, long v) {
+    for (int i = 56; i >= 0; i -= 8) {
+      crc.update((int) (v >>> i) & 0xFF);
+    }
+  }
+}
@@ -8,17 +8,21 @@
 package com.readytalk.revori.server;
 
 import java.io.ByteArrayInputStream;
-import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 
 import org.slf4j.Logger;
@@ -29,14 +33,10 @@ import org.slf4j.MarkerFactory;
 import com.google.common.collect.ObjectArrays;
 import com.readytalk.revori.Column;
 import com.readytalk.revori.ConflictResolver;
-import com.readytalk.revori.DiffResult;
-import com.readytalk.revori.DuplicateKeyResolution;
 import com.readytalk.revori.ForeignKeyResolver;
 import com.readytalk.revori.Revision;
-import com.readytalk.revori.RevisionBuilder;
 import com.readytalk.revori.Revisions;
 import com.readytalk.revori.Table;
-import com.readytalk.revori.imp.Constants;
 import com.readytalk.revori.server.protocol.Protocol;
 import com.readytalk.revori.server.protocol.ReadContext;
 import com.readytalk.revori.server.protocol.Readable;
@@ -64,18 +64,26 @@ public class EpidemicServer implements NetworkServer {
 	private static final Marker DEBUG_UPDATE = MarkerFactory
 			.getMarker("debug_update");
 
+	private static final int MinReleaseThreshold = 32;
+
+	/**
+	 * The original protocol, in which the body of a Diff message is
+	 * encoded using the same WriteContext as the rest of the message.
+	 */
+	public static final int ProtocolVersion1 = 1;
+
+	/**
+	 * Adds VersionedHello and IndependentDiff, whose body is encoded
+	 * with a WriteContext of its own so the same bytes may be sent in
+	 * several messages.
+	 */
+	public static final int ProtocolVersion2 = 2;
+
 	private static final UUID DefaultInstance = UUID
 			.fromString("1c8f9a38-aad4-0d8c-8d62-b52500a8dfa1");
 
-	private static final int End = 0;
-	private static final int Descend = 1;
-	private static final int Ascend = 2;
-	private static final int Key = 3;
-	private static final int Delete = 4;
-	private static final int Insert = 5;
-
 	private String id;
-	private final Set<Runnable> listeners = new HashSet<Runnable>();
+	private final Notifier notifier = new Notifier();
 	private final NodeConflictResolver conflictResolver;
 	private final ForeignKeyResolver foreignKeyResolver;
 	private final Network network;
@@ -84,6 +92,12 @@ public class EpidemicServer implements NetworkServer {
 	private final Map<NodeID, NodeState> directlyConnectedStates = new HashMap<NodeID, NodeState>();
 	private final NodeState localNode;
 	private long nextLocalSequenceNumber = 1;
+	private Executor mergeExecutor;
+	private DiffCache diffCache;
+	private int maxHistory = Integer.MAX_VALUE;
+	private int historySize;
+	private int releaseThreshold = MinReleaseThreshold;
+	private int protocolVersion = ProtocolVersion1;
 
 	public EpidemicServer(NodeConflictResolver conflictResolver,
 			ForeignKeyResolver foreignKeyResolver, Network network,
@@ -140,15 +154,8 @@ public class EpidemicServer implements NetworkServer {
 	}
 
 	@Override
-	public synchronized Subscription registerListener(final Runnable listener) {
-		listeners.add(listener);
-		listener.run();
-		return new Subscription() {
-			@Override
-			public void cancel() {
-				listeners.remove(listener);
-			}
-		};
+	public Subscription registerListener(Runnable listener) {
+		return notifier.register(listener);
 	}
 
 	// listeners are removed after being run
@@ -166,6 +173,108 @@ public class EpidemicServer implements NetworkServer {
 		this.id = id;
 	}
 
+	/**
+	 * Specifies the executor on which to run listeners registered using
+	 * registerListener, or null to run them synchronously whenever the
+	 * local head changes.  When an executor is specified, notifications
+	 * are coalesced as described in Notifier, so a burst of updates
+	 * (e.g. when syncing with a newly connected node) results in a
+	 * single run of each listener rather than one per update.
+	 */
+	public void setNotificationExecutor(@Nullable Executor executor) {
+		notifier.setExecutor(executor);
+	}
+
+	/**
+	 * Returns the notifier used to run listeners, which may be queried
+	 * for notification lag.
+	 */
+	public Notifier notifier() {
+		return notifier;
+	}
+
+	/**
+	 * Specifies an executor to be used to merge independent tables in
+	 * parallel when catching up with revisions received from other
+	 * nodes, or null to merge sequentially on the receiving thread.
+	 * The executor must not be the one this server's receivers run
+	 * on; see Revision.merge.
+	 */
+	public void setMergeExecutor(@Nullable Executor mergeExecutor) {
+		synchronized (lock) {
+			this.mergeExecutor = mergeExecutor;
+		}
+	}
+
+	/**
+	 * Specifies a cache of encoded diffs to share with other servers,
+	 * so a diff sent by several of them is encoded only once.
+	 */
+	void setDiffCache(@Nullable DiffCache diffCache) {
+		synchronized (lock) {
+			this.diffCache = diffCache;
+		}
+	}
+
+	/**
+	 * Specifies the highest protocol version to advertise to peers.
+	 * Each connection uses the highest version advertised by both
+	 * sides.  The default, ProtocolVersion1, is understood by every
+	 * release.  ProtocolVersion2 allows a diff sent to several peers
+	 * to be encoded once (see TreeServer), but is advertised using a
+	 * handshake message which releases predating it cannot read, so it
+	 * should only be enabled once every peer has been upgraded.  This
+	 * affects connections established after it is called.
+	 */
+	public void setProtocolVersion(int version) {
+		if (version < ProtocolVersion1 || version > ProtocolVersion2) {
+			throw new IllegalArgumentException("unsupported protocol version: "
+					+ version);
+		}
+
+		synchronized (lock) {
+			this.protocolVersion = version;
+		}
+	}
+
+	/**
+	 * Specifies the number of revisions of each node's history to
+	 * retain on behalf of other nodes which have not yet acknowledged
+	 * them, whether those nodes are disconnected, connected but slow,
+	 * or only reached via another node, e.g. in a TreeServer.  Once a
+	 * node's history grows longer than this, nodes which are further
+	 * behind lose their claim on it.  A directly connected peer is then
+	 * sent a snapshot of that node's oldest retained revision, which it
+	 * merges into its head using the revision it last acknowledged as
+	 * the base, so rows deleted in the meantime are deleted there too.
+	 * Other nodes catch up via whichever peer still has the history
+	 * they need.<p>
+	 *
+	 * The default is to retain history without limit.  Either way,
+	 * history is released once every node has acknowledged it.
+	 */
+	public void setMaxHistory(int maxHistory) {
+		if (maxHistory < 1) {
+			throw new IllegalArgumentException("maxHistory must be positive");
+		}
+
+		synchronized (lock) {
+			this.maxHistory = maxHistory;
+		}
+	}
+
+	/**
+	 * Returns the total number of revisions currently retained for all
+	 * known nodes.  Released revisions are counted until the next time
+	 * history is trimmed, which happens whenever this has doubled since
+	 * the last time.
+	 */
+	public int historySize() {
+		synchronized (lock) {
+			return historySize;
+		}
+	}
+
 	@Override
 	public void updateView(Set<NodeID> directlyConnectedNodes) {
 		debugMessage(DEBUG_VIEW, "update view to {}", directlyConnectedNodes);
@@ -186,7 +295,6 @@ public class EpidemicServer implements NetworkServer {
 				NodeState state = directlyConnectedStates.get(node);
 				if (state == null) {
 					state = new NodeState(new NodeKey(node, DefaultInstance));
-					state.head = tail(state);
 					directlyConnectedStates.put(node, state);
 				}
 
@@ -268,38 +376,44 @@ public class EpidemicServer implements NetworkServer {
 	}
 
 	private Record tail(NodeState state) {
-		// todo: switch from weak references to reference counting to
-		// ensure that we don't follow the chain of records back
-		// further than we need to.
-		Record tail = state.head;
-		if (tail == null) {
-			return new Record(state.key, Revisions.Empty, 0, null);
-		}
-
-		Record previous;
-		while (tail.previous != null
-				&& (previous = tail.previous.get()) != null) {
-			tail = previous;
-		}
-
-		if (tail.merged != null && tail.merged.node == state.key) {
-			tail = tail.merged;
-		}
+		Record tail = state.tail;
 
 		Record r;
 		if (tail.sequenceNumber == 0) {
 			r = tail;
 		} else {
-			r = new Record(state.key, Revisions.Empty, 0, null);
-			r.next = tail;
+			r = snapshotBase(Revisions.Empty, tail);
 		}
 
 		return r;
 	}
 
-	private void initState(NodeState state) {
-		state.head = tail(state);
+	/**
+	 * Returns a placeholder record from which the specified record may
+	 * be sent as a snapshot, i.e. a diff from the empty revision.  The
+	 * placeholder's revision is the last one we know the recipient to
+	 * have acknowledged, which it will use as the base when merging the
+	 * snapshot, so we use it too when reproducing that merge.
+	 */
+	private static Record snapshotBase(Revision acknowledged, Record record) {
+		Record r = new Record(record.node, acknowledged, 0, null);
+		r.detached = true;
+		r.next = record;
+		return r;
+	}
 
+	/**
+	 * Returns a placeholder for a record which has been released, for
+	 * use as the record merged by an acknowledger's revision when we
+	 * have already merged it on the acknowledger's behalf.
+	 */
+	private static Record released(NodeKey node, long sequenceNumber) {
+		Record r = new Record(node, Revisions.Empty, sequenceNumber, null);
+		r.detached = true;
+		return r;
+	}
+
+	private void initState(NodeState state) {
 		for (NodeState s : states.values()) {
 			debugMessage(DEBUG_STATE, "{} sees {} at 0 {}", s.key, state.key,
 					state.head.hashCode());
@@ -342,7 +456,9 @@ public class EpidemicServer implements NetworkServer {
 			state.connectionState.sentHello = true;
 
 			debugMessage(DEBUG_HELLO, "hello to {}", state.key);
-			send(state, new Hello(localNode.key.instance));
+			send(state, protocolVersion == ProtocolVersion1 ? new Hello(
+					localNode.key.instance) : new VersionedHello(
+					localNode.key.instance, protocolVersion));
 			return;
 		}
 
@@ -408,7 +524,10 @@ public class EpidemicServer implements NetworkServer {
 					(record == null ? "(null)" : String.valueOf(record
 							.hashCode())));
 
-			if (record.merged != null) {
+			// a merge record can only be sent as an ack if the recipient
+			// has the record before it, which is not the case when
+			// sending a snapshot
+			if (record.merged != null && !lastSent.detached) {
 				if (needsUpdate(state, record.merged)) {
 					target = record.merged;
 					continue;
@@ -421,15 +540,19 @@ public class EpidemicServer implements NetworkServer {
 				send(state, new Ack(record.node, record.sequenceNumber,
 						record.merged.node, record.merged.sequenceNumber));
 			} else if (!target.node.equals(state.key)) {
-				RevisionDiffBody body = new RevisionDiffBody(lastSent.revision,
-						record.revision);
+				boolean independent = state.connectionState.version >= ProtocolVersion2;
+				RevisionDiffBody body = new RevisionDiffBody(
+						lastSent.detached ? Revisions.Empty : lastSent.revision,
+						record.revision, independent, diffCache);
 
 				debugMessage(DEBUG_SEND, "send diff to {}: {} {} {} body {}",
 						state.key, target.node, lastSent.sequenceNumber,
 						record.sequenceNumber, body);
 
-				send(state, new Diff(target.node, lastSent.sequenceNumber,
-						record.sequenceNumber, body));
+				send(state, independent ? new IndependentDiff(target.node,
+						lastSent.sequenceNumber, record.sequenceNumber, body)
+						: new Diff(target.node, lastSent.sequenceNumber,
+								record.sequenceNumber, body));
 			}
 
 			state.connectionState.lastSent.put(target.node, record);
@@ -471,12 +594,13 @@ public class EpidemicServer implements NetworkServer {
 		}
 	}
 
-	private void acceptHello(NodeKey origin) {
-		debugMessage(DEBUG_HELLO, "hello from {} ", origin);
+	private void acceptHello(NodeKey origin, int version) {
+		debugMessage(DEBUG_HELLO, "hello from {} version {}", origin, version);
 
 		NodeState state = accept(origin);
 
 		state.connectionState.gotHello = true;
+		state.connectionState.version = Math.min(version, protocolVersion);
 		sendNext(state);
 	}
 
@@ -489,11 +613,24 @@ public class EpidemicServer implements NetworkServer {
 		debugMessage(DEBUG_RECEIVE, "accept diff {} {} {} head {} body {}",
 				origin, startSequenceNumber, endSequenceNumber, head, body);
 
-		if (startSequenceNumber <= head.sequenceNumber) {
+		Record acknowledged = localNode.acknowledged.get(origin);
+		if (startSequenceNumber == 0
+				&& endSequenceNumber > head.sequenceNumber
+				&& acknowledged != null && acknowledged.sequenceNumber > 0) {
+			// the sender no longer has the history we need, so it has sent
+			// a snapshot instead.  We still have the revision we last
+			// acknowledged, which acceptAck will use as the base when
+			// merging the snapshot; see setMaxHistory.
+			debugMessage(DEBUG_RECEIVE, "accept snapshot {} {}", origin,
+					endSequenceNumber);
+
+			acceptRevision(state, endSequenceNumber,
+					body.apply(this, Revisions.Empty));
+		} else if (startSequenceNumber <= head.sequenceNumber) {
 			Record record = head;
 			while (record != null && endSequenceNumber != record.sequenceNumber
 					&& startSequenceNumber < record.sequenceNumber) {
-				record = record.previous.get();
+				record = record.previous;
 			}
 
 			if (record != null) {
@@ -527,7 +664,7 @@ public class EpidemicServer implements NetworkServer {
 				record.hashCode());
 
 		while (sequenceNumber < record.sequenceNumber) {
-			record = record.previous.get();
+			record = record.previous;
 		}
 
 		if (sequenceNumber != record.sequenceNumber) {
@@ -535,7 +672,7 @@ public class EpidemicServer implements NetworkServer {
 			Record newRecord = new Record(state.key, revision, sequenceNumber,
 					merged);
 			record.next = newRecord;
-			newRecord.previous = new WeakReference<Record>(record);
+			newRecord.previous = record;
 			debugMessage(DEBUG_STATE, "link {} {} to {} {}",
 					record.sequenceNumber, record.hashCode(),
 					newRecord.sequenceNumber, newRecord.hashCode());
@@ -546,10 +683,15 @@ public class EpidemicServer implements NetworkServer {
 						+next.sequenceNumber, next.hashCode());
 
 				newRecord.next = next;
-				next.previous = new WeakReference<Record>(newRecord);
+				next.previous = newRecord;
 			}
 
 			record = newRecord;
+
+			++state.length;
+			if (++historySize >= releaseThreshold) {
+				releaseHistory();
+			}
 		}
 
 		if (state.head.sequenceNumber < record.sequenceNumber) {
@@ -558,11 +700,9 @@ public class EpidemicServer implements NetworkServer {
 			if (state == localNode) {
 				debugMessage(DEBUG_STATE, "notify listeners {}", head());
 
-				// tell everyone we have updates!
-				// TODO: don't notify people twice for each update.
-				for (Runnable listener : listeners) {
-					listener.run();
-				}
+				// tell everyone we have updates!  Synchronous listeners are
+				// run once per update; see setNotificationExecutor.
+				notifier.notifyListeners();
 			}
 		}
 
@@ -572,6 +712,176 @@ public class EpidemicServer implements NetworkServer {
 
 	}
 
+	// A record is retained if it is pinned by a directly connected
+	// peer's acknowledged or lastSent map, or by another node's
+	// acknowledged map (since we'll need it to merge that node's next
+	// ack), or if it is the head of its node's history.  Since a merge
+	// record following a retained one may be sent as an ack naming the
+	// record it merged, that record and those following it are also
+	// retained.  Each node's history is thus trimmed up to the oldest
+	// record retained, and released records are unreachable.  This is
+	// done whenever the total size of the history has doubled since it
+	// was last done, so the cost is amortized over the records added.
+	//
+	// Nodes whose pins would leave more than maxHistory records of some
+	// node's history retained lose all their pins, and any which are
+	// then older than what is retained are replaced with snapshot
+	// placeholders.
+
+	private void releaseHistory() {
+		Map<NodeKey, Record> oldest = oldestRetained(Collections
+				.<NodeState> emptySet());
+
+		Map<NodeKey, Record> limit = new HashMap<NodeKey, Record>();
+		for (NodeState state : states.values()) {
+			Record record = oldest.get(state.key);
+			int excess = state.length - distance(state.tail, record)
+					- maxHistory;
+			if (excess > 0) {
+				while (excess-- > 0) {
+					record = record.next;
+				}
+				limit.put(state.key, record);
+			}
+		}
+
+		Set<NodeState> lagging = new HashSet<NodeState>();
+		if (!limit.isEmpty()) {
+			for (NodeState s : states.values()) {
+				if (s != localNode
+						&& (pinsBefore(s.acknowledged, limit) || (s.connectionState != null
+								&& pinsBefore(s.connectionState.lastSent, limit)))) {
+					lagging.add(s);
+				}
+			}
+		}
+
+		if (!lagging.isEmpty()) {
+			oldest = oldestRetained(lagging);
+
+			// nodes which have fallen too far behind will need to start
+			// over with a snapshot of every node they are behind on, so
+			// that nothing they are sent afterward refers to history we
+			// no longer have.  Diffs already sent to a connected peer are
+			// still delivered ahead of the snapshot.
+			for (NodeState s : lagging) {
+				for (Map.Entry<NodeKey, Record> e : s.acknowledged.entrySet()) {
+					Record record = oldest.get(e.getKey());
+					Record pinned = attached(e.getValue());
+					if (record != null && pinned != null
+							&& pinned.sequenceNumber < record.sequenceNumber) {
+						debugMessage(DEBUG_STATE, "resync {} for {} at {}",
+								s.key, e.getKey(), record.sequenceNumber);
+
+						Record base = snapshotBase(e.getValue().revision, record);
+						e.setValue(base);
+
+						if (s.connectionState != null) {
+							Record lastSent = attached(s.connectionState.lastSent
+									.get(e.getKey()));
+							if (lastSent != null
+									&& lastSent.sequenceNumber < record.sequenceNumber) {
+								s.connectionState.lastSent.put(e.getKey(), base);
+							}
+						}
+					}
+				}
+			}
+		}
+
+		historySize = 0;
+		for (NodeState state : states.values()) {
+			Record record = oldest.get(state.key);
+			state.length -= distance(state.tail, record);
+			historySize += state.length;
+
+			if (record != state.tail) {
+				debugMessage(DEBUG_STATE, "release {} up to {}", state.key,
+						record.sequenceNumber);
+
+				record.previous = null;
+				state.tail = record;
+			}
+		}
+
+		releaseThreshold = Math.max(historySize * 2, MinReleaseThreshold);
+	}
+
+	private Map<NodeKey, Record> oldestRetained(Set<NodeState> excluded) {
+		Map<NodeKey, Record> oldest = new HashMap<NodeKey, Record>();
+		List<Record> pending = new ArrayList<Record>();
+		for (NodeState state : states.values()) {
+			pending.add(state.head);
+			if (!excluded.contains(state)) {
+				pin(pending, state.acknowledged.values());
+			}
+		}
+
+		for (NodeState state : directlyConnectedStates.values()) {
+			if (state.connectionState != null && !excluded.contains(state)) {
+				pin(pending, state.connectionState.lastSent.values());
+			}
+		}
+
+		while (!pending.isEmpty()) {
+			Record record = pending.remove(pending.size() - 1);
+			Record old = oldest.get(record.node);
+			if (old == null || record.sequenceNumber < old.sequenceNumber) {
+				oldest.put(record.node, record);
+
+				for (Record r = record.next; r != null; r = r.next) {
+					Record merged = attached(r.merged);
+					if (merged != null) {
+						pending.add(merged);
+					}
+
+					if (r == old) {
+						break;
+					}
+				}
+			}
+		}
+
+		return oldest;
+	}
+
+	private static void pin(List<Record> pending, Collection<Record> records) {
+		for (Record record : records) {
+			record = attached(record);
+			if (record != null) {
+				pending.add(record);
+			}
+		}
+	}
+
+	private static boolean pinsBefore(Map<NodeKey, Record> pins,
+			Map<NodeKey, Record> limit) {
+		for (Map.Entry<NodeKey, Record> e : pins.entrySet()) {
+			Record pinned = attached(e.getValue());
+			Record record = limit.get(e.getKey());
+			if (pinned != null && record != null
+					&& pinned.sequenceNumber < record.sequenceNumber) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Record attached(Record record) {
+		while (record != null && record.detached) {
+			record = record.next;
+		}
+		return record;
+	}
+
+	private static int distance(Record from, Record to) {
+		int distance = 0;
+		for (Record r = from; r != to; r = r.next) {
+			++distance;
+		}
+		return distance;
+	}
+
 	private Revision merge(Record base, Record head, Record fork,
 			NodeKey headKey, NodeKey forkKey) {
 		MyConflictResolver resolver = new MyConflictResolver(headKey.id,
@@ -580,9 +890,14 @@ public class EpidemicServer implements NetworkServer {
 		Revision result = head.revision;
 		Record record = base.next;
 		while (base != fork) {
-			if (record.merged == null) {
-				result = base.revision.merge(result, record.revision, resolver,
-						foreignKeyResolver);
+			// a record following a snapshot placeholder was sent as a
+			// snapshot rather than an ack, so it is merged even if it is
+			// itself a merge record
+			if (record.merged == null || base.detached) {
+				result = mergeExecutor == null ? base.revision.merge(result,
+						record.revision, resolver, foreignKeyResolver)
+						: base.revision.merge(result, record.revision, resolver,
+								foreignKeyResolver, mergeExecutor);
 			}
 
 			base = record;
@@ -603,14 +918,28 @@ public class EpidemicServer implements NetworkServer {
 
 		Record record = state.acknowledged.get(diffOrigin);
 
-		if (record.sequenceNumber < diffSequenceNumber) {
+		if (acknowledgerSequenceNumber <= state.head.sequenceNumber) {
+			// obsolete ack -- ignore
+		} else if (record.sequenceNumber < diffSequenceNumber) {
 			Record base = record;
 			while (record != null && record.sequenceNumber < diffSequenceNumber) {
 				record = record.next;
 			}
 
-			if (record != null && record.sequenceNumber == diffSequenceNumber) {
-				if (record.merged == null) {
+			if (record != null
+					&& (record.sequenceNumber == diffSequenceNumber || base.detached)) {
+				// If the acknowledger merged a record we released when we
+				// resynced it (see setMaxHistory), we can't reproduce that
+				// merge.  Instead, we merge everything up to the next record
+				// we still have on its behalf, since we'll send it that soon
+				// anyway, and treat its acks of anything before that as
+				// already merged.  Either way, a record following
+				// a snapshot placeholder was sent as a snapshot, so the
+				// acknowledger merged it even if it is a merge record.
+				boolean merged = record.merged == null
+						|| (base.detached && base.next == record);
+
+				if (merged) {
 					insertRevision(
 							state,
 							acknowledgerSequenceNumber,
@@ -620,7 +949,7 @@ public class EpidemicServer implements NetworkServer {
 
 				state.acknowledged.put(diffOrigin, record);
 
-				if (record.merged == null) {
+				if (merged) {
 					acceptAck(localNode.key, nextLocalSequenceNumber++,
 							acknowledger, acknowledgerSequenceNumber);
 				}
@@ -628,7 +957,12 @@ public class EpidemicServer implements NetworkServer {
 				throw new RuntimeException("missed a diff");
 			}
 		} else {
-			// obsolete ack -- ignore
+			// we've already merged the record acknowledged on the
+			// acknowledger's behalf, as described above, so its revision
+			// is unchanged
+			insertRevision(state, acknowledgerSequenceNumber,
+					state.head.revision,
+					released(diffOrigin, diffSequenceNumber));
 		}
 
 		sendNext();
@@ -637,12 +971,15 @@ public class EpidemicServer implements NetworkServer {
 	private static class NodeState {
 		public final NodeKey key;
 		public Record head;
+		public Record tail;
+		public int length = 1;
 		public final Map<NodeKey, Record> acknowledged = new HashMap<NodeKey, Record>();
 		public Set<Runnable> syncListeners = new HashSet<Runnable>();
 		public ConnectionState connectionState;
 
 		public NodeState(NodeKey key) {
 			this.key = key;
+			this.head = this.tail = new Record(key, Revisions.Empty, 0, null);
 		}
 	}
 
@@ -651,6 +988,7 @@ public class EpidemicServer implements NetworkServer {
 		public boolean readyToReceive;
 		public boolean sentHello;
 		public boolean gotHello;
+		public int version = ProtocolVersion1;
 		public boolean sentSync;
 		public boolean gotSync;
 	}
@@ -660,8 +998,9 @@ public class EpidemicServer implements NetworkServer {
 		public final Revision revision;
 		public final long sequenceNumber;
 		public final Record merged;
-		public WeakReference<Record> previous;
+		public Record previous;
 		public Record next;
+		public boolean detached;
 
 		public Record(NodeKey node, Revision revision, long sequenceNumber,
 				Record merged) {
@@ -752,11 +1091,15 @@ public class EpidemicServer implements NetworkServer {
 			origin = new NodeKey(StreamUtil.readString(context.in));
 			startSequenceNumber = StreamUtil.readLong(context.in);
 			endSequenceNumber = StreamUtil.readLong(context.in);
-			BufferDiffBody list = new BufferDiffBody();
+			BufferDiffBody list = new BufferDiffBody(independent());
 			list.readFrom(context);
 			body = list;
 		}
 
+		protected boolean independent() {
+			return false;
+		}
+
 		@Override
 		public void deliver(NodeID source, EpidemicServer server) {
 			server.debugMessage(DEBUG_RECEIVE, "diff from {}", source);
@@ -771,6 +1114,29 @@ public class EpidemicServer implements NetworkServer {
 		}
 	}
 
+	/**
+	 * A Diff whose body is encoded with a WriteContext of its own rather
+	 * than the message's, so the same bytes may be shared between
+	 * messages by a DiffCache.  Only sent to peers which have advertised
+	 * ProtocolVersion2.
+	 */
+	// public for deserialization
+	public static class IndependentDiff extends Diff {
+		private IndependentDiff(NodeKey origin, long startSequenceNumber,
+				long endSequenceNumber, DiffBody body) {
+			super(origin, startSequenceNumber, endSequenceNumber, body);
+		}
+
+		// for deserialization
+		public IndependentDiff() {
+		}
+
+		@Override
+		protected boolean independent() {
+			return true;
+		}
+	}
+
 	private static abstract class UUIDMessage implements Message {
 		public UUID instance;
 
@@ -803,7 +1169,42 @@ public class EpidemicServer implements NetworkServer {
 
 		@Override
 		public void deliver(NodeID source, EpidemicServer server) {
-			server.acceptHello(new NodeKey(source, instance));
+			server.acceptHello(new NodeKey(source, instance), ProtocolVersion1);
+		}
+	}
+
+	/**
+	 * A Hello which also advertises the highest protocol version the
+	 * sender supports.  Sent instead of Hello when a version above
+	 * ProtocolVersion1 is enabled; see setProtocolVersion.
+	 */
+	// public for deserialization
+	public static class VersionedHello extends UUIDMessage {
+		private int version;
+
+		public VersionedHello() {
+		}
+
+		public VersionedHello(UUID instance, int version) {
+			super(instance);
+			this.version = version;
+		}
+
+		@Override
+		public void writeTo(WriteContext context) throws IOException {
+			super.writeTo(context);
+			StreamUtil.writeInt(context.out, version);
+		}
+
+		@Override
+		public void readFrom(ReadContext context) throws IOException {
+			super.readFrom(context);
+			version = StreamUtil.readInt(context.in);
+		}
+
+		@Override
+		public void deliver(NodeID source, EpidemicServer server) {
+			server.acceptHello(new NodeKey(source, instance), version);
 		}
 	}
 
@@ -829,10 +1230,15 @@ public class EpidemicServer implements NetworkServer {
 	private static class RevisionDiffBody implements DiffBody, Writable {
 		public final Revision base;
 		public final Revision fork;
+		public final boolean independent;
+		public final DiffCache cache;
 
-		public RevisionDiffBody(Revision base, Revision fork) {
+		public RevisionDiffBody(Revision base, Revision fork,
+				boolean independent, @Nullable DiffCache cache) {
 			this.base = base;
 			this.fork = fork;
+			this.independent = independent;
+			this.cache = cache;
 		}
 
 		@Override
@@ -840,67 +1246,17 @@ public class EpidemicServer implements NetworkServer {
 			return fork;
 		}
 
+		// an independent diff is encoded with a context of its own rather
+		// than the message's, so its bytes may be shared between messages
+		// by a DiffCache
 		@Override
 		public void writeTo(WriteContext context) throws IOException {
-			DiffResult result = base.diff(fork, true);
-			Table table = null;
-			int depth = 0;
-			while (true) {
-				DiffResult.Type type = result.next();
-				switch (type) {
-				case End:
-					context.out.write(End);
-					return;
-
-				case Descend: {
-					++depth;
-					context.out.write(Descend);
-				}
-					break;
-
-				case Ascend: {
-					--depth;
-					context.out.write(Ascend);
-				}
-					break;
-
-				case Key: {
-					Object forkKey = result.fork();
-					if (forkKey != null) {
-						if (depth == 0)
-							table = (Table) forkKey;
-
-						if (Constants.serializable(table, forkKey, depth)) {
-							context.out.write(Key);
-							Protocol.write(context, forkKey);
-						} else {
-							result.skip();
-						}
-					} else {
-						Object baseKey = result.base();
-
-						if (depth == 0)
-							table = (Table) baseKey;
-
-						if (Constants.serializable(table, baseKey, depth)) {
-							context.out.write(Delete);
-							Protocol.write(context, baseKey);
-						}
-						result.skip();
-					}
-				}
-					break;
-
-				case Value: {
-					context.out.write(Insert);
-					Protocol.write(context, result.fork());
-				}
-					break;
-
-				default:
-					throw new RuntimeException("unexpected result type: "
-							+ type);
-				}
+			if (!independent) {
+				DiffEncoding.write(context, base, fork);
+			} else if (cache == null) {
+				DiffEncoding.write(new WriteContext(context.out), base, fork);
+			} else {
+				cache.write(context.out, base, fork);
 			}
 		}
 
@@ -912,17 +1268,16 @@ public class EpidemicServer implements NetworkServer {
 	}
 
 	private static class BufferDiffBody implements DiffBody, Readable {
+		public final boolean independent;
 		public BufferOutputStream buffer;
 		public InputStream input;
 
+		public BufferDiffBody(boolean independent) {
+			this.independent = independent;
+		}
+
 		@Override
 		public Revision apply(EpidemicServer server, Revision base) {
-			RevisionBuilder builder = base.builder();
-			final int MaxDepth = 16;
-			Object[] path = new Object[MaxDepth];
-			int depth = 0;
-			boolean visitedColumn = true;
-
 			try {
 				InputStream in;
 				if (input == null) {
@@ -932,57 +1287,9 @@ public class EpidemicServer implements NetworkServer {
 					in = input;
 					in.reset();
 				}
-				ReadContext readContext = new ReadContext(in);
-
-				while (true) {
-					int flag = in.read();
-					switch (flag) {
-					case End:
-						return builder.commit(server.foreignKeyResolver);
-
-					case Descend:
-						visitedColumn = true;
-						++depth;
-						break;
 
-					case Ascend:
-						if (!visitedColumn) {
-							visitedColumn = true;
-							builder.insert(DuplicateKeyResolution.Overwrite,
-									path, 0, depth + 1);
-						}
-
-						path[depth--] = null;
-						break;
-
-					case Key:
-						if (!visitedColumn) {
-							builder.insert(DuplicateKeyResolution.Overwrite,
-									path, 0, depth + 1);
-						} else {
-							visitedColumn = false;
-						}
-
-						path[depth] = Protocol.read(readContext);
-						break;
-
-					case Delete:
-						visitedColumn = true;
-						path[depth] = Protocol.read(readContext);
-						builder.delete(path, 0, depth + 1);
-						break;
-
-					case Insert:
-						visitedColumn = true;
-						path[depth + 1] = Protocol.read(readContext);
-						builder.insert(DuplicateKeyResolution.Overwrite, path,
-								0, depth + 2);
-						break;
-
-					default:
-						throw new RuntimeException("unexpected flag: " + flag);
-					}
-				}
+				return DiffEncoding.apply(new ReadContext(in), base,
+						server.foreignKeyResolver);
 			} catch (IOException e) {
 				throw new RuntimeException(e);
 			}
@@ -995,33 +1302,8 @@ public class EpidemicServer implements NetworkServer {
 				input = context.in;
 			} else {
 				buffer = new BufferOutputStream();
-				WriteContext writeContext = new WriteContext(buffer);
-				while (true) {
-					int flag = context.in.read();
-					switch (flag) {
-					case -1:
-						throw new EOFException();
-
-					case End:
-						buffer.write(flag);
-						return;
-
-					case Descend:
-					case Ascend:
-						buffer.write(flag);
-						break;
-
-					case Key:
-					case Delete:
-					case Insert:
-						buffer.write(flag);
-						Protocol.write(writeContext, Protocol.read(context));
-						break;
-
-					default:
-						throw new RuntimeException("unexpected flag: " + flag);
-					}
-				}
+				DiffEncoding.copy(independent ? new ReadContext(context.in)
+						: context, new WriteContext(buffer));
 			}
 		}
 
@@ -1048,15 +1330,15 @@ public class EpidemicServer implements NetworkServer {
 				while (true) {
 					int flag = in.read();
 					switch (flag) {
-					case End:
+					case DiffEncoding.End:
 						return sb.toString();
 
-					case Descend:
+					case DiffEncoding.Descend:
 						visitedColumn = true;
 						++depth;
 						break;
 
-					case Ascend:
+					case DiffEncoding.Ascend:
 						if (!visitedColumn) {
 							visitedColumn = true;
 							sb.append("insert");
@@ -1067,7 +1349,7 @@ public class EpidemicServer implements NetworkServer {
 						path[depth--] = null;
 						break;
 
-					case Key:
+					case DiffEncoding.Key:
 						if (!visitedColumn) {
 							sb.append("insert");
 							sb.append(Util.toString(path, 0, depth + 1));
@@ -1079,7 +1361,7 @@ public class EpidemicServer implements NetworkServer {
 						path[depth] = Protocol.read(readContext);
 						break;
 
-					case Delete:
+					case DiffEncoding.Delete:
 						visitedColumn = true;
 						path[depth] = Protocol.read(readContext);
 						sb.append("delete");
@@ -1087,7 +1369,7 @@ public class EpidemicServer implements NetworkServer {
 						sb.append("\n");
 						break;
 
-					case Insert:
+					case DiffEncoding.Insert:
 						visitedColumn = true;
 						path[depth + 1] = Protocol.read(readContext);
 						sb.append("insert");
@@ -0,0 +1,101 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.server;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.concurrent.Immutable;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Specifies when a BufferServer should push its buffered merges to
+ * the server it wraps: once the oldest buffered merge reaches a given
+ * age, once a given number of merges have been buffered, or once the
+ * estimated size of the buffered changes reaches a given limit,
+ * whichever comes first.<p>
+ *
+ * The size of the changes introduced by each merge is estimated as the
+ * number of keys (tables, primary key values and columns) which differ
+ * between the base and fork, so a row updated by several merges is
+ * counted several times.  Estimating it costs time proportional to the
+ * size of the change, so it is only done if a size limit is
+ * specified.
+ */
+@Immutable
+public final class FlushPolicy {
+  /**
+   * Policy which never flushes automatically.
+   */
+  public static final FlushPolicy Manual = new FlushPolicy
+    (Long.MAX_VALUE, TimeUnit.NANOSECONDS, Integer.MAX_VALUE, Long.MAX_VALUE);
+
+  public final long maxAgeNanos;
+  public final int maxMerges;
+  public final long maxDiffSize;
+
+  /**
+   * Defines a policy with the specified limits, any of which may be
+   * Long.MAX_VALUE or Integer.MAX_VALUE to indicate no limit.
+   */
+  public FlushPolicy(long maxAge, TimeUnit unit, int maxMerges,
+                     long maxDiffSize)
+  {
+    Preconditions.checkArgument(maxAge >= 0, "negative maxAge");
+    Preconditions.checkArgument(maxMerges > 0, "non-positive maxMerges");
+    Preconditions.checkArgument(maxDiffSize > 0, "non-positive maxDiffSize");
+
+    this.maxAgeNanos = unit.toNanos(maxAge);
+    this.maxMerges = maxMerges;
+    this.maxDiffSize = maxDiffSize;
+  }
+
+  public static FlushPolicy maxAge(long maxAge, TimeUnit unit) {
+    return new FlushPolicy(maxAge, unit, Integer.MAX_VALUE, Long.MAX_VALUE);
+  }
+
+  public static FlushPolicy maxMerges(int maxMerges) {
+    return new FlushPolicy
+      (Long.MAX_VALUE, TimeUnit.NANOSECONDS, maxMerges, Long.MAX_VALUE);
+  }
+
+  public static FlushPolicy maxDiffSize(long maxDiffSize) {
+    return new FlushPolicy
+      (Long.MAX_VALUE, TimeUnit.NANOSECONDS, Integer.MAX_VALUE, maxDiffSize);
+  }
+
+  public boolean limitsDiffSize() {
+    return maxDiffSize != Long.MAX_VALUE;
+  }
+
+  /**
+   * Returns true if a buffer whose oldest unflushed merge is ageNanos
+   * old, and which has buffered the specified number of merges of
+   * the specified estimated size, should be flushed.
+   */
+  public boolean due(long ageNanos, int merges, long diffSize) {
+    return ageNanos >= maxAgeNanos
+      || merges >= maxMerges
+      || diffSize >= maxDiffSize;
+  }
+
+  /**
+   * Like due(long, int, long), but ignores age.  This is used to
+   * decide whether a merge should trigger a flush immediately rather
+   * than waiting for the next periodic check.
+   */
+  public boolean full(int merges, long diffSize) {
+    return merges >= maxMerges || diffSize >= maxDiffSize;
+  }
+
+  public String toString() {
+    return "flushPolicy[maxAgeNanos: " + maxAgeNanos
+      + " maxMerges: " + maxMerges
+      + " maxDiffSize: " + maxDiffSize + "]";
+  }
+}
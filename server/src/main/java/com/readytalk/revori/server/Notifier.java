@@ -0,0 +1,292 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.server;
+
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Sets;
+import com.readytalk.revori.subscribe.Subscription;
+
+/**
+ * Set of revision server listeners which may be notified either
+ * synchronously or asynchronously.<p>
+ *
+ * By default, notifyListeners runs each listener on the calling
+ * thread.  If an executor is specified, it instead schedules each
+ * listener to run on that executor and returns immediately.  In that
+ * case, notifications are coalesced: a listener has at most one run
+ * pending at a time, so a burst of notifications results in a single
+ * run, and a notification which arrives while the listener is running
+ * causes it to be run again afterward.  Since listeners query the head
+ * of the server when they run, each run observes the latest head.  A
+ * given listener is never run concurrently with itself.  Exceptions
+ * thrown by a listener run on the executor are logged and otherwise
+ * ignored.<p>
+ *
+ * The lag of a run is the time from the earliest notification it
+ * covers until it starts.  The counts and lags reported are updated
+ * without synchronization, so they may be slightly out of date when
+ * read concurrently with notifications.
+ */
+@ThreadSafe
+public class Notifier {
+  private static final Logger log = LoggerFactory.getLogger(Notifier.class);
+
+  private static final int Idle = 0;
+  private static final int Scheduled = 1;
+  private static final int Running = 2;
+  private static final int RunningAndScheduled = 3;
+
+  private final Set<Entry> entries = Sets.newCopyOnWriteArraySet();
+  private final Ticker ticker;
+  private final AtomicLong notifications = new AtomicLong();
+  private final AtomicLong runs = new AtomicLong();
+  private final AtomicLong totalLag = new AtomicLong();
+  private final AtomicLong maxLag = new AtomicLong();
+  private volatile Executor executor;
+
+  public Notifier() {
+    this(null, Ticker.systemTicker());
+  }
+
+  public Notifier(@Nullable Executor executor) {
+    this(executor, Ticker.systemTicker());
+  }
+
+  public Notifier(@Nullable Executor executor, Ticker ticker) {
+    this.executor = executor;
+    this.ticker = Preconditions.checkNotNull(ticker);
+  }
+
+  /**
+   * Specifies the executor on which to run listeners, or null to run
+   * them synchronously.  This affects only subsequent notifications.
+   */
+  public void setExecutor(@Nullable Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Adds the specified listener and notifies it, as
+   * RevisionServer.registerListener requires.
+   */
+  public Subscription register(Runnable listener) {
+    return register(listener, true);
+  }
+
+  /**
+   * Adds the specified listener, notifying it immediately only if
+   * notify is true.  Listeners are compared using equals, so
+   * registering a listener equal to one already registered has no
+   * effect (aside from any notification), and cancelling either
+   * subscription removes it.
+   */
+  public Subscription register(Runnable listener, boolean notify) {
+    final Entry key = new Entry(Preconditions.checkNotNull(listener));
+    Entry entry = key;
+    while (! entries.add(entry)) {
+      Entry existing = find(key);
+      if (existing != null) {
+        entry = existing;
+        break;
+      }
+    }
+
+    if (notify) {
+      notify(entry);
+    }
+
+    return new Subscription() {
+      public void cancel() {
+        Entry registered = find(key);
+        if (registered != null) {
+          registered.cancelled = true;
+          entries.remove(registered);
+        }
+      }
+    };
+  }
+
+  @Nullable
+  private Entry find(Entry entry) {
+    for (Entry e: entries) {
+      if (e.equals(entry)) {
+        return e;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Notifies every registered listener.
+   */
+  public void notifyListeners() {
+    for (Entry entry: entries) {
+      notify(entry);
+    }
+  }
+
+  /**
+   * Returns the number of notifications delivered to individual
+   * listeners so far, whether or not they were coalesced.
+   */
+  public long notificationCount() {
+    return notifications.get();
+  }
+
+  /**
+   * Returns the number of listener runs so far.  The difference
+   * between this and notificationCount is the number of
+   * notifications which were coalesced, plus any still pending.
+   */
+  public long runCount() {
+    return runs.get();
+  }
+
+  /**
+   * Returns the mean lag of the listener runs so far, in nanoseconds.
+   */
+  public long averageLagNanos() {
+    long runs = this.runs.get();
+    return runs == 0 ? 0 : totalLag.get() / runs;
+  }
+
+  /**
+   * Returns the greatest lag of any listener run so far, in
+   * nanoseconds.
+   */
+  public long maxLagNanos() {
+    return maxLag.get();
+  }
+
+  /**
+   * Returns the time, in nanoseconds, since the earliest notification
+   * which has not yet been followed by a run of the listener it was
+   * delivered to, or zero if there is no such notification.  Unlike
+   * maxLagNanos, this reflects listeners which are falling behind
+   * before they get a chance to run.
+   */
+  public long pendingLagNanos() {
+    long now = ticker.read();
+    long lag = 0;
+    for (Entry entry: entries) {
+      int state = entry.state.get();
+      if (state == Scheduled || state == RunningAndScheduled) {
+        lag = Math.max(lag, now - entry.pendingSince);
+      }
+    }
+    return lag;
+  }
+
+  private void notify(Entry entry) {
+    notifications.incrementAndGet();
+
+    Executor executor = this.executor;
+    if (executor == null) {
+      record(0);
+      entry.listener.run();
+      return;
+    }
+
+    long now = ticker.read();
+    while (true) {
+      switch (entry.state.get()) {
+      case Idle:
+        if (entry.state.compareAndSet(Idle, Scheduled)) {
+          entry.pendingSince = now;
+          submit(executor, entry);
+          return;
+        }
+        break;
+
+      case Running:
+        if (entry.state.compareAndSet(Running, RunningAndScheduled)) {
+          entry.pendingSince = now;
+          return;
+        }
+        break;
+
+      default:
+        // a run is already pending and will observe whatever
+        // prompted this notification
+        return;
+      }
+    }
+  }
+
+  private void submit(Executor executor, Entry entry) {
+    entry.executor = executor;
+    try {
+      executor.execute(entry);
+    } catch (RuntimeException e) {
+      entry.state.set(Idle);
+      throw e;
+    }
+  }
+
+  private void record(long lag) {
+    runs.incrementAndGet();
+    totalLag.addAndGet(lag);
+
+    long max;
+    while (lag > (max = maxLag.get()) && ! maxLag.compareAndSet(max, lag)) { }
+  }
+
+  private class Entry implements Runnable {
+    public final Runnable listener;
+    public final AtomicInteger state = new AtomicInteger(Idle);
+    public volatile Executor executor;
+    public volatile long pendingSince;
+    public volatile boolean cancelled;
+
+    public Entry(Runnable listener) {
+      this.listener = listener;
+    }
+
+    public int hashCode() {
+      return listener.hashCode();
+    }
+
+    public boolean equals(Object o) {
+      return o instanceof Entry && listener.equals(((Entry) o).listener);
+    }
+
+    public void run() {
+      // notifications arriving from here on will schedule another run
+      state.set(Running);
+
+      if (! cancelled) {
+        record(ticker.read() - pendingSince);
+
+        try {
+          listener.run();
+        } catch (Throwable e) {
+          log.warn("exception thrown by listener " + listener, e);
+        }
+      }
+
+      if (! state.compareAndSet(Running, Idle)) {
+        // we were notified while running, so run again on the same
+        // executor even if it has since been changed
+        state.set(Scheduled);
+        submit(executor, this);
+      }
+    }
+  }
+}
@@ -15,6 +15,7 @@ import static com.readytalk.revori.util.Util.set;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -22,20 +23,25 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.net.InetSocketAddress;
-import java.nio.channels.Channels;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
@@ -71,6 +77,7 @@ import com.readytalk.revori.Table;
 import com.readytalk.revori.TableReference;
 import com.readytalk.revori.UnaryOperation;
 import com.readytalk.revori.UpdateTemplate;
+import com.readytalk.revori.server.protocol.Protocol;
 import com.readytalk.revori.server.protocol.Stringable;
 import com.readytalk.revori.server.simple.SimpleRevisionServer;
 import com.readytalk.revori.subscribe.Subscription;
@@ -82,19 +89,54 @@ public class SQLServer implements RevisionServer {
 
   private static final Logger log = LoggerFactory.getLogger(SQLServer.class);
 
-  private enum Request {
-    Execute, Complete;
+  public enum Request {
+    Execute, Complete, Negotiate;
   }
 
   public enum Response {
-    RowSet, NewDatabase, CopySuccess, Success, Error;
+    RowSet, NewDatabase, CopySuccess, Success, Error, BinaryRowSet;
   }
 
   public enum RowSetFlag {
-    InsertedRow, DeletedRow, End, Item;
+    InsertedRow, DeletedRow, End, Item, Null;
   }
 
-  private static final int ThreadPoolSize = 256;
+  /**
+   * The encoding used for the results of select and diff statements,
+   * chosen by a client using a Negotiate request whose argument is the
+   * name of the format.<p>
+   *
+   * Text results are written as a RowSet response where each item is
+   * converted to a string and prefixed by its length as a four byte
+   * integer.<p>
+   *
+   * Binary results are written as a BinaryRowSet response, followed by
+   * the number of columns and the ColumnType ordinal of each column.
+   * Each item is then either RowSetFlag.Null or RowSetFlag.Item followed
+   * by the value encoded as by Protocol.writeInteger, writeLong or
+   * writeString according to its type, with booleans written as a
+   * single byte and Text values as strings.
+   */
+  public enum RowFormat {
+    Text, Binary;
+  }
+
+  public enum ColumnType {
+    Int32, Int64, String, Boolean, Text;
+  }
+
+  // the size of the buffer used to read requests from a client, which
+  // grows as necessary up to MaxRequestSize
+  private static final int InitialRequestBufferSize = 8 * 1024;
+
+  private static final int MaxRequestSize = 16 * 1024 * 1024;
+
+  // the number of bytes of a row set to produce before waiting for the
+  // client to read them
+  private static final int RowSetChunkSize = 64 * 1024;
+
+  // the number of threads used by main to execute requests
+  private static final int WorkerThreadCount = 8;
 
   private static final Tree Nothing = new Nothing();
 
@@ -455,7 +497,7 @@ public class SQLServer implements RevisionServer {
     }
   }
 
-  private static class Client implements Runnable {
+  private static class Client {
     public final Server server;
     @Nullable
     public final SocketChannel channel;
@@ -463,6 +505,21 @@ public class SQLServer implements RevisionServer {
     public Transaction transaction;
     public Database database;
     public CopyContext copyContext;
+    public RowFormat rowFormat = RowFormat.Text;
+    @Nullable
+    public RowSetWriter rowSet;
+    private ByteBuffer input;
+    @Nullable
+    private ByteBuffer output;
+    private SelectionKey key;
+    private boolean endOfInput;
+    // the following are handed between the selector thread and a
+    // worker via Listener.finished, which orders access to them
+    private boolean busy;
+    @Nullable
+    private BufferOutputStream response;
+    @Nullable
+    private Exception failure;
 
     public Client(Server server,
                   @Nullable SocketChannel channel)
@@ -471,27 +528,321 @@ public class SQLServer implements RevisionServer {
       this.channel = channel;
     }
 
-    public void run() {
-      try {
-        try {
-          InputStream in = new BufferedInputStream
-            (Channels.newInputStream(channel));
+    /**
+     * Reads whatever is available from the channel.  Must be called
+     * on the selector thread.
+     */
+    private void read() throws IOException {
+      if (input == null) {
+        input = ByteBuffer.allocate(InitialRequestBufferSize);
+      } else if (! input.hasRemaining()) {
+        ByteBuffer b = ByteBuffer.allocate(input.capacity() * 2);
+        input.flip();
+        b.put(input);
+        input = b;
+      }
 
-          OutputStream out = new BufferedOutputStream
-            (Channels.newOutputStream(channel));
+      if (channel.read(input) == -1) {
+        endOfInput = true;
+      }
+    }
 
-          while (channel.isOpen()) {
-            handleRequest(this, in, out);
-          }
-        } finally {
-          channel.close();
+    /**
+     * Writes as much pending output as the channel will accept and,
+     * once it has all been written, hands the next chunk of rows or the
+     * next complete request to a worker.  While a worker is busy with
+     * this client, and while output is pending, we stop reading
+     * requests and producing rows, so a slow client cannot make us
+     * buffer an arbitrarily large response, and requests are handled
+     * in the order they were sent.  Returns false if the connection
+     * should be closed.  Must be called on the selector thread.
+     */
+    private boolean serve(final Listener listener) throws IOException {
+      if (busy) {
+        return true;
+      }
+
+      if (! flush()) {
+        key.interestOps(SelectionKey.OP_WRITE);
+        return true;
+      }
+
+      final byte[] request = rowSet == null ? takeRequest() : null;
+      if (rowSet != null || request != null) {
+        busy = true;
+        key.interestOps(0);
+        listener.workers.execute(new Runnable() {
+            public void run() {
+              BufferOutputStream out = new BufferOutputStream();
+              try {
+                if (request == null) {
+                  writeRowSet(out);
+                } else {
+                  handleRequest
+                    (Client.this, new ByteArrayInputStream(request), out);
+                }
+              } catch (Exception e) {
+                failure = e;
+              }
+              response = out;
+              listener.finished(Client.this);
+            }
+          });
+        return true;
+      }
+
+      if (endOfInput) {
+        return false;
+      }
+
+      key.interestOps(SelectionKey.OP_READ);
+      return true;
+    }
+
+    /**
+     * Queues the response produced by a worker for writing and serves
+     * the next request, if any.  Returns false if the connection
+     * should be closed.  Must be called on the selector thread.
+     */
+    private boolean finish(Listener listener) throws IOException {
+      busy = false;
+      write(response);
+      response = null;
+
+      if (failure != null) {
+        log.warn("Problem handling request.", failure);
+        return false;
+      }
+
+      return serve(listener);
+    }
+
+    private boolean flush() throws IOException {
+      if (output != null) {
+        channel.write(output);
+        if (output.hasRemaining()) {
+          return false;
+        }
+        output = null;
+      }
+      return true;
+    }
+
+    private void write(BufferOutputStream out) {
+      if (out.size() > 0) {
+        output = ByteBuffer.wrap(out.getBuffer(), 0, out.size());
+      }
+    }
+
+    private void writeRowSet(BufferOutputStream out) throws IOException {
+      try {
+        if (rowSet.write(out, RowSetChunkSize)) {
+          rowSet = null;
         }
       } catch (Exception e) {
-        log.error("Problem with channel.", e);
+        rowSet = null;
+        writeError(out, e);
+        log.warn("Problem executing request.", e);
+      }
+    }
+
+    /**
+     * Removes the first request from the input buffer and returns it,
+     * or returns null if it has not yet been read in its entirety.
+     * Each request is a one byte request type followed by a string,
+     * which is itself prefixed by its length.
+     */
+    @Nullable
+    private byte[] takeRequest() throws IOException {
+      if (input == null || input.position() < 5) {
+        return null;
+      }
+
+      int length = input.getInt(1);
+      if (length < 0 || length > MaxRequestSize) {
+        throw new IOException("invalid request length: " + length);
+      }
+
+      int size = 5 + length;
+      if (input.position() < size) {
+        return null;
+      }
+
+      // copy the request before compacting, since that moves any
+      // request following it to the start of the buffer
+      byte[] request = Arrays.copyOf(input.array(), size);
+
+      input.flip();
+      input.position(size);
+      input.compact();
+
+      return request;
+    }
+  }
+
+  /**
+   * Writes the rows of a query result to a stream as a RowSet or
+   * BinaryRowSet response, either all at once or incrementally.
+   */
+  private static class RowSetWriter {
+    private final QueryResult result;
+    private final int expressionCount;
+    @Nullable
+    private final ColumnType[] columnTypes;
+    private boolean wroteSentinal;
+
+    public RowSetWriter(QueryResult result,
+                        int expressionCount,
+                        @Nullable ColumnType[] columnTypes)
+    {
+      this.result = result;
+      this.expressionCount = expressionCount;
+      this.columnTypes = columnTypes;
+    }
+
+    /**
+     * Writes rows until either the result is exhausted, in which case
+     * this returns true, or at least the specified number of bytes
+     * have been written, in which case this returns false.
+     */
+    public boolean write(BufferOutputStream out, int limit)
+      throws IOException
+    {
+      while (out.size() < limit) {
+        if (writeRow(out)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Writes all the rows, flushing the stream after each chunk so the
+     * client may start reading them before we have visited them all.
+     */
+    public void writeAll(OutputStream out) throws IOException {
+      BufferOutputStream chunk = new BufferOutputStream();
+      boolean done;
+      do {
+        done = write(chunk, RowSetChunkSize);
+        chunk.writeTo(out);
+        chunk.reset();
+        out.flush();
+      } while (! done);
+    }
+
+    private void writeSentinal(OutputStream out) throws IOException {
+      if (columnTypes == null) {
+        out.write(Response.RowSet.ordinal());
+      } else {
+        out.write(Response.BinaryRowSet.ordinal());
+        Protocol.writeInteger(out, columnTypes.length);
+        for (ColumnType type: columnTypes) {
+          out.write(type.ordinal());
+        }
+      }
+    }
+
+    private void writeItems(OutputStream out) throws IOException {
+      for (int i = 0; i < expressionCount; ++i) {
+        Object value = result.nextItem();
+        if (columnTypes == null) {
+          out.write(RowSetFlag.Item.ordinal());
+          writeString(out, String.valueOf(value));
+        } else if (value == null) {
+          out.write(RowSetFlag.Null.ordinal());
+        } else {
+          out.write(RowSetFlag.Item.ordinal());
+          writeItem(out, columnTypes[i], value);
+        }
+      }
+    }
+
+    private boolean writeRow(OutputStream out) throws IOException {
+      QueryResult.Type resultType = result.nextRow();
+
+      if (! wroteSentinal) {
+        writeSentinal(out);
+        wroteSentinal = true;
+      }
+
+      switch (resultType) {
+      case Inserted:
+        out.write(RowSetFlag.InsertedRow.ordinal());
+        writeItems(out);
+        return false;
+
+      case Deleted:
+        out.write(RowSetFlag.DeletedRow.ordinal());
+        writeItems(out);
+        return false;
+
+      case End:
+        out.write(RowSetFlag.End.ordinal());
+        return true;
+
+      default:
+        throw new RuntimeException("unexpected result type: " + resultType);
       }
     }
   }
 
+  private static ColumnType columnType(Expression expression) {
+    Class type;
+    if (expression instanceof ColumnReference) {
+      type = ((ColumnReference) expression).column.type;
+    } else if (expression instanceof Constant
+               && ((Constant) expression).value != null)
+    {
+      type = ((Constant) expression).value.getClass();
+    } else {
+      return ColumnType.Text;
+    }
+
+    if (type == Integer.class) {
+      return ColumnType.Int32;
+    } else if (type == Long.class) {
+      return ColumnType.Int64;
+    } else if (type == String.class) {
+      return ColumnType.String;
+    } else if (type == Boolean.class) {
+      return ColumnType.Boolean;
+    } else {
+      return ColumnType.Text;
+    }
+  }
+
+  private static void writeItem(OutputStream out,
+                                ColumnType type,
+                                Object value)
+    throws IOException
+  {
+    switch (type) {
+    case Int32:
+      Protocol.writeInteger(out, (Integer) value);
+      break;
+
+    case Int64:
+      Protocol.writeLong(out, (Long) value);
+      break;
+
+    case String:
+      Protocol.writeString(out, (String) value);
+      break;
+
+    case Boolean:
+      out.write(((Boolean) value) ? 1 : 0);
+      break;
+
+    case Text:
+      Protocol.writeString(out, String.valueOf(value));
+      break;
+
+    default:
+      throw new RuntimeException("unexpected column type: " + type);
+    }
+  }
+
   private enum NameType {
     Database, Table, Column, Tag;
   }
@@ -1023,6 +1374,22 @@ public class SQLServer implements RevisionServer {
     }
   }
 
+  private static int makeLimit(Tree tree) {
+    if (tree == Nothing) {
+      return -1;
+    } else {
+      return Integer.parseInt(((Literal) tree.get(1)).value);
+    }
+  }
+
+  private static int makeOffset(Tree tree) {
+    if (tree == Nothing || tree.get(2) == Nothing) {
+      return 0;
+    } else {
+      return Integer.parseInt(((Literal) tree.get(2).get(1)).value);
+    }
+  }
+
   private static Expression andExpressions(Expression expression,
                                            List<Expression> expressions)
   {
@@ -1056,7 +1423,9 @@ public class SQLServer implements RevisionServer {
            makeExpressionFromWhere(client.server, tree.get(4), tableReferences),
            tests)),
          makeExpressionsFromGroupBy(client.server, tree.get(5), tableReferences),
-         makeOrderExpressionsFromOrderBy(client.server, tree.get(6), tableReferences));
+         makeOrderExpressionsFromOrderBy(client.server, tree.get(6), tableReferences),
+         makeLimit(tree.get(7)),
+         makeOffset(tree.get(7)));
   }
 
   private static MyColumn findColumn(MyTable table,
@@ -1377,49 +1746,31 @@ public class SQLServer implements RevisionServer {
     }
   }
 
-  private static void diff(Revision base,
+  private static void diff(Client client,
+                           Revision base,
                            Revision fork,
                            QueryTemplate template,
                            int expressionCount,
                            OutputStream out)
     throws IOException
   {
-    QueryResult result = base.diff(fork, template);
-
-    boolean wroteSentinal = false;
-
-    while (true) {
-      QueryResult.Type resultType = result.nextRow();
-
-      if (! wroteSentinal) {
-        out.write(Response.RowSet.ordinal());
-        wroteSentinal = true;
+    ColumnType[] columnTypes = null;
+    if (client.rowFormat == RowFormat.Binary) {
+      columnTypes = new ColumnType[expressionCount];
+      for (int i = 0; i < expressionCount; ++i) {
+        columnTypes[i] = columnType(template.expressions.get(i));
       }
+    }
 
-      switch (resultType) {
-      case Inserted:
-        out.write(RowSetFlag.InsertedRow.ordinal());
-        for (int i = 0; i < expressionCount; ++i) {
-          out.write(RowSetFlag.Item.ordinal());
-          writeString(out, String.valueOf(result.nextItem()));
-        }
-        break;
-
-      case Deleted:
-        out.write(RowSetFlag.DeletedRow.ordinal());
-        for (int i = 0; i < expressionCount; ++i) {
-          out.write(RowSetFlag.Item.ordinal());
-          writeString(out, String.valueOf(result.nextItem()));
-        }
-        break;
-
-      case End:
-        out.write(RowSetFlag.End.ordinal());
-        return;
+    RowSetWriter writer = new RowSetWriter
+      (base.diff(fork, template), expressionCount, columnTypes);
 
-      default:
-        throw new RuntimeException("unexpected result type: " + resultType);
-      }
+    if (client.channel == null) {
+      writer.writeAll(out);
+    } else {
+      // let the client write the rows as fast as the other end reads
+      // them
+      client.rowSet = writer;
     }
   }
 
@@ -2127,7 +2478,9 @@ public class SQLServer implements RevisionServer {
           optional(sequence(terminal("group"), terminal("by"),
               list(expression()))),
           optional(sequence(terminal("order"), terminal("by"),
-              list(sequence(expression(), optional(or(terminal("desc"), terminal("asc")))))))),
+              list(sequence(expression(), optional(or(terminal("desc"), terminal("asc"))))))),
+          optional(sequence(terminal("limit"), numberLiteral(),
+              optional(sequence(terminal("offset"), numberLiteral()))))),
          new Task() {
            public void run(Client client,
                            Tree tree,
@@ -2137,7 +2490,7 @@ public class SQLServer implements RevisionServer {
            {
              int[] expressionCount = new int[1];
              SQLServer.diff
-               (Revisions.Empty, head(client), makeQueryTemplate
+               (client, Revisions.Empty, head(client), makeQueryTemplate
                 (client, tree, expressionCount), expressionCount[0], out);
            }           
          });
@@ -2159,7 +2512,7 @@ public class SQLServer implements RevisionServer {
            {
              int[] expressionCount = new int[1];
              SQLServer.diff
-               (findTag(client, ((Name) tree.get(1)).value).revision,
+               (client, findTag(client, ((Name) tree.get(1)).value).revision,
                 findTag(client, ((Name) tree.get(2)).value).revision,
                 makeQueryTemplate
                 (client, tree.get(3), expressionCount), expressionCount[0],
@@ -2606,13 +2959,19 @@ public class SQLServer implements RevisionServer {
         applyCopy(client, s, out);
       }
     } catch (Exception e) {
-      out.write(Response.Error.ordinal());
-      String message = e.getMessage();
-      writeString(out, message == null ? e.getClass().getName() : message); 
+      writeError(out, e);
       log.warn("Problem executing request.", e);
     }
   }
 
+  private static void writeError(OutputStream out, Exception e)
+    throws IOException
+  {
+    out.write(Response.Error.ordinal());
+    String message = e.getMessage();
+    writeString(out, message == null ? e.getClass().getName() : message); 
+  }
+
   private static void completeRequest(Client client,
                                       InputStream in,
                                       OutputStream out)
@@ -2641,6 +3000,25 @@ public class SQLServer implements RevisionServer {
     }
   }
 
+  private static void negotiateRequest(Client client,
+                                       InputStream in,
+                                       OutputStream out)
+    throws IOException
+  {
+    String s = readString(in);
+    for (RowFormat format: RowFormat.values()) {
+      if (format.name().equalsIgnoreCase(s)) {
+        client.rowFormat = format;
+        out.write(Response.Success.ordinal());
+        writeString(out, "using " + s + " row format");
+        return;
+      }
+    }
+
+    out.write(Response.Error.ordinal());
+    writeString(out, "unknown row format: " + s);
+  }
+
   private static boolean handleRequest(Client client,
                                        InputStream in,
                                        OutputStream out)
@@ -2665,6 +3043,11 @@ public class SQLServer implements RevisionServer {
       out.flush();
       break;
 
+    case Negotiate:
+      negotiateRequest(client, in, out);
+      out.flush();
+      break;
+
     default:
       throw new RuntimeException("unexpected request type: " + requestType);
     }
@@ -2672,25 +3055,141 @@ public class SQLServer implements RevisionServer {
     return true;
   }
 
-  private static void listen(String address,
-                             int port)
-    throws IOException
-  {
-    ServerSocketChannel serverChannel = ServerSocketChannel.open();
-    serverChannel.socket().bind(new InetSocketAddress(address, port));
+  /**
+   * Serves SQL clients over TCP.  A single selector thread reads
+   * requests and writes responses for every connection without
+   * blocking, while the requests themselves are executed, and row sets
+   * produced, on a small pool of worker threads, so a slow query or
+   * merge delays only the connection which issued it.
+   */
+  public static class Listener implements Closeable {
+    private final Server server = new Server();
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService workers;
+    private final Queue<Client> finished = new ConcurrentLinkedQueue<Client>();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    public Listener(String address, int port, int workerCount)
+      throws IOException
+    {
+      selector = Selector.open();
+
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.configureBlocking(false);
+      serverChannel.socket().bind(new InetSocketAddress(address, port));
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+      workers = Executors.newFixedThreadPool(workerCount);
+
+      thread = new Thread(new Runnable() {
+          public void run() {
+            try {
+              select();
+            } catch (IOException e) {
+              log.error("Problem with selector.", e);
+            }
+          }
+        }, "SQLServer selector");
+      thread.start();
+    }
+
+    /**
+     * Returns the port this listener is bound to, which is useful if
+     * it was created with port zero.
+     */
+    public int port() {
+      return serverChannel.socket().getLocalPort();
+    }
+
+    private void finished(Client client) {
+      finished.add(client);
+      selector.wakeup();
+    }
 
-    ThreadPoolExecutor executor = new ThreadPoolExecutor
-      (ThreadPoolSize,       // core thread count
-       ThreadPoolSize,       // maximum thread count
-       60, TimeUnit.SECONDS, // maximum thread idle time
-       new LinkedBlockingQueue<Runnable>());
+    private void select() throws IOException {
+      try {
+        while (! closed) {
+          selector.select();
+
+          Client client;
+          while ((client = finished.poll()) != null) {
+            boolean open = false;
+            try {
+              open = client.finish(this);
+            } catch (Exception e) {
+              log.error("Problem with channel.", e);
+            }
+
+            if (! open) {
+              disconnect(client);
+            }
+          }
+
+          for (Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+               it.hasNext();)
+          {
+            SelectionKey key = it.next();
+            it.remove();
+
+            if (! key.isValid()) {
+              continue;
+            }
+
+            if (key.isAcceptable()) {
+              SocketChannel channel = serverChannel.accept();
+              if (channel != null) {
+                channel.configureBlocking(false);
+                client = new Client(server, channel);
+                client.key = channel.register
+                  (selector, SelectionKey.OP_READ, client);
+              }
+            } else {
+              client = (Client) key.attachment();
+              boolean open = false;
+              try {
+                if (key.isReadable()) {
+                  client.read();
+                }
+                open = client.serve(this);
+              } catch (Exception e) {
+                log.error("Problem with channel.", e);
+              }
 
-    executor.allowCoreThreadTimeOut(true);
+              if (! open) {
+                disconnect(client);
+              }
+            }
+          }
+        }
+      } finally {
+        for (SelectionKey key: selector.keys()) {
+          key.channel().close();
+        }
+        selector.close();
+        workers.shutdown();
+      }
+    }
 
-    Server server = new Server();
+    private static void disconnect(Client client) throws IOException {
+      client.key.cancel();
+      client.channel.close();
+    }
 
-    while (true) {
-      executor.execute(new Client(server, serverChannel.accept()));
+    /**
+     * Stops accepting connections and closes those already accepted.
+     * Requests being executed when this is called are allowed to
+     * finish, but their responses are discarded.
+     */
+    public void close() throws IOException {
+      closed = true;
+      selector.wakeup();
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
     }
   }
 
@@ -2702,9 +3201,14 @@ public class SQLServer implements RevisionServer {
   }
 
   public Connection makeConnection() {
-    return new Connection() {
-      private final Client client = new Client(server, null);
+    return makeConnection(RowFormat.Text);
+  }
+
+  public Connection makeConnection(RowFormat rowFormat) {
+    final Client client = new Client(server, null);
+    client.rowFormat = rowFormat;
 
+    return new Connection() {
       public InputStream execute(String command) {
         BufferOutputStream buffer = new BufferOutputStream();
         BufferOutputStream out = new BufferOutputStream();
@@ -2804,7 +3308,7 @@ public class SQLServer implements RevisionServer {
 
   public static void main(String[] args) throws IOException {
     if (args.length == 2) {
-      listen(args[0], Integer.parseInt(args[1]));
+      new Listener(args[0], Integer.parseInt(args[1]), WorkerThreadCount);
     } else {
       System.err.println("usage: java " + SQLServer.class.getName()
                          + " <address> <port>");
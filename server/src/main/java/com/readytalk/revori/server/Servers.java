@@ -7,10 +7,9 @@
 
 package com.readytalk.revori.server;
 
-import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
-import com.google.common.collect.Lists;
 import com.readytalk.revori.ConflictResolver;
 import com.readytalk.revori.ForeignKeyResolver;
 import com.readytalk.revori.Revision;
@@ -72,7 +71,7 @@ public class Servers {
     protected final RevisionServer server;
     private final ConflictResolver conflictResolver;
     private final ForeignKeyResolver foreignKeyResolver;
-    private final List<Runnable> listeners = Lists.newArrayList();
+    private final Notifier notifier;
     private Revision head;
     private Revision base;
 
@@ -88,6 +87,14 @@ public class Servers {
 
       head = base = server.head();
 
+      // listeners are run as tasks of their own rather than by the
+      // caller of merge or by pull, so bursts of updates are coalesced
+      notifier = new Notifier(new Executor() {
+          public void execute(Runnable task) {
+            handler.handleTask(task);
+          }
+        });
+
       server.registerListener(new Runnable() {
           public void run() {
             //            new Exception().printStackTrace();
@@ -108,9 +115,7 @@ public class Servers {
       if (base != fork || base != head) {
         head = base.merge(head, fork, conflictResolver, foreignKeyResolver);
 
-        for (Runnable listener: listeners) {
-          listener.run();
-        }
+        notifier.notifyListeners();
 
         server.merge(this.base, head);
 
@@ -124,20 +129,14 @@ public class Servers {
         head = base = base.merge
           (head, fork, conflictResolver, foreignKeyResolver);
 
-        for (Runnable listener: listeners) {
-          listener.run();
-        }
+        notifier.notifyListeners();
       }
     }
 
-    public Subscription registerListener(final Runnable listener) {
-      listeners.add(listener);
-
-      return new Subscription() {
-        public void cancel() {
-          listeners.remove(listener);
-        }
-      };
+    // unlike the servers it wraps, this does not run the listener
+    // when it is registered
+    public Subscription registerListener(Runnable listener) {
+      return notifier.register(listener, false);
     }
   }
 
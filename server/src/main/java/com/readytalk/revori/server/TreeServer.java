@@ -14,24 +14,55 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.readytalk.revori.Column;
 import com.readytalk.revori.ConflictResolver;
 import com.readytalk.revori.ForeignKeyResolver;
 import com.readytalk.revori.Revision;
+import com.readytalk.revori.Revisions;
 import com.readytalk.revori.Table;
 import com.readytalk.revori.server.protocol.Readable;
 import com.readytalk.revori.server.simple.SimpleRevisionServer;
 import com.readytalk.revori.subscribe.Subscription;
 
+/**
+ * NetworkServer which treats each directly connected node as the
+ * root of a separate subtree, exchanging revisions with each using a
+ * separate EpidemicServer which holds the state of that connection.<p>
+ *
+ * Each revision of the local server is fanned out to every
+ * neighbour's EpidemicServer by a single listener.  A neighbour which
+ * has nothing of its own left to merge simply adopts the revision,
+ * so the servers of all such neighbours record the same revision
+ * instances, and their histories share every revision but those
+ * received from their own neighbour.  The diffs they send are
+ * encoded using a DiffCache shared by all of them, so a diff from a
+ * local revision to its successor is computed and serialized once,
+ * and the same bytes are sent to every neighbour which has
+ * acknowledged the former.<p>
+ *
+ * Sharing requires each neighbour to understand
+ * EpidemicServer.ProtocolVersion2, which TreeServer advertises by
+ * default.  A neighbour which only understands the original protocol
+ * is sent diffs encoded for it alone, but releases predating
+ * ProtocolVersion2 cannot read the handshake which advertises it, so
+ * setProtocolVersion(EpidemicServer.ProtocolVersion1) must be called
+ * before connecting to them.
+ */
 public class TreeServer implements NetworkServer {
+  private static final int DefaultDiffCacheCapacity = 4 * 1024 * 1024;
+
   private final RevisionServer localServer;
+  private final DiffCache diffCache
+    = new DiffCache(DefaultDiffCacheCapacity);
   private final Map<NodeID,ServerState> serverStates = Maps.newHashMap();
   private final NodeConflictResolver conflictResolver;
   private final ForeignKeyResolver foreignKeyResolver;
   private final Network network;
   private final NodeID self;
   private final UUID instance;
+  private int protocolVersion = EpidemicServer.ProtocolVersion2;
 
   public TreeServer(final NodeConflictResolver conflictResolver,
                     ForeignKeyResolver foreignKeyResolver,
@@ -73,6 +104,55 @@ public class TreeServer implements NetworkServer {
     this.network = network;
     this.self = self;
     this.instance = instance;
+
+    localServer.registerListener(new Runnable() {
+        public void run() {
+          fanOut();
+        }
+      });
+  }
+
+  /**
+   * Specifies the highest protocol version to advertise to neighbours
+   * connected after this is called; see
+   * EpidemicServer.setProtocolVersion.  The default is
+   * EpidemicServer.ProtocolVersion2.
+   */
+  public void setProtocolVersion(int version) {
+    if (version < EpidemicServer.ProtocolVersion1
+        || version > EpidemicServer.ProtocolVersion2)
+    {
+      throw new IllegalArgumentException
+        ("unsupported protocol version: " + version);
+    }
+
+    this.protocolVersion = version;
+  }
+
+  /**
+   * Specifies the number of bytes of encoded diffs to retain for
+   * sending to other neighbours.  The least recently sent diffs are
+   * discarded first, and a diff larger than this is never retained.
+   * The default is four megabytes.
+   */
+  public void setDiffCacheCapacity(int capacity) {
+    diffCache.setCapacity(capacity);
+  }
+
+  /**
+   * Returns the number of diffs computed and serialized for sending
+   * to neighbours so far.
+   */
+  public long diffsEncoded() {
+    return diffCache.encodedCount();
+  }
+
+  /**
+   * Returns the number of times a diff already serialized for one
+   * neighbour has been sent to another so far.
+   */
+  public long diffsShared() {
+    return diffCache.reusedCount();
   }
 
   public Revision head() {
@@ -106,24 +186,58 @@ public class TreeServer implements NetworkServer {
     for (NodeID node: directlyConnectedNodes) {
       ServerState s = serverStates.get(node);
       if (s == null) {
-        NetworkServer server = new EpidemicServer
+        EpidemicServer server = new EpidemicServer
           (conflictResolver, foreignKeyResolver, network, self, instance);
 
+        server.setDiffCache(diffCache);
+        server.setProtocolVersion(protocolVersion);
+
         server.updateView(set(node));
 
-        serverStates.put
-          (node, new ServerState(server, Servers.bridge(localServer, server)));
+        final ServerState state = new ServerState(server);
+        serverStates.put(node, state);
+
+        push(state, localServer.head());
+
+        state.subscription = server.registerListener(new Runnable() {
+            public void run() {
+              pull(state);
+            }
+          });
       }
     }
   }
 
+  private void fanOut() {
+    // the head is read for each server in turn, since a merge pulled
+    // from one of them may have advanced it
+    for (ServerState s: Lists.newArrayList(serverStates.values())) {
+      push(s, localServer.head());
+    }
+  }
+
+  private void push(ServerState s, Revision head) {
+    s.server.merge(s.pushed, head);
+    s.pushed = s.server.head();
+  }
+
+  private void pull(ServerState s) {
+    // a revision just pushed to the server needs no merging back
+    Revision head = s.server.head();
+    if (head != localServer.head()) {
+      localServer.merge(s.pulled, head);
+    }
+    s.pulled = localServer.head();
+  }
+
   private static class ServerState {
     public final NetworkServer server;
-    public final Subscription subscription;
+    public Subscription subscription;
+    public Revision pushed = Revisions.Empty;
+    public Revision pulled = Revisions.Empty;
 
-    public ServerState(NetworkServer server, Subscription subscription) {
+    public ServerState(NetworkServer server) {
       this.server = server;
-      this.subscription = subscription;
     }
   }
 }
@@ -7,72 +7,196 @@
 
 package com.readytalk.revori.server.simple;
 
-import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.Sets;
+import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.Atomics;
 import com.readytalk.revori.ConflictResolver;
 import com.readytalk.revori.ForeignKeyResolver;
 import com.readytalk.revori.Revision;
 import com.readytalk.revori.Revisions;
+import com.readytalk.revori.server.Notifier;
 import com.readytalk.revori.server.RevisionServer;
 import com.readytalk.revori.subscribe.Subscription;
 
+/**
+ * Revision server which keeps its head in memory.<p>
+ *
+ * By default, each call to merge retries a compare-and-set of the
+ * head, redoing its three-way merge against the new head whenever
+ * another caller wins.  Under heavy write contention most of those
+ * merges are thrown away, so a server may instead be created in
+ * combining mode, in which concurrent callers queue their requests
+ * and whichever holds the combiner lock folds a batch of queued
+ * requests into the head in turn, publishing the result once for the
+ * whole batch, so each request is merged only once.  The other
+ * callers park until their request has been applied, and only contend
+ * for the lock if it is still pending.<p>
+ *
+ * Listeners are run synchronously by the thread which calls merge
+ * unless an executor is specified using setNotificationExecutor, in
+ * which case they are run on that executor and notifications are
+ * coalesced as described in Notifier.
+ */
 @ThreadSafe
 public class SimpleRevisionServer implements RevisionServer {
+	private static class Request {
+		public final Revision base;
+		public final Revision fork;
+		public final Thread waiter = Thread.currentThread();
+		public volatile boolean done;
+		public Throwable error;
+
+		public Request(Revision base, Revision fork) {
+			this.base = base;
+			this.fork = fork;
+		}
+	}
+
+	// maximum number of requests applied by a combiner before it hands
+	// the lock to the next waiter; without a limit, callers it wakes may
+	// keep queuing new requests and never let it return
+	private static final int MaxBatch = 64;
+
 	private final ConflictResolver conflictResolver;
 	private final ForeignKeyResolver foreignKeyResolver;
+	private final boolean combining;
 	private final AtomicReference<Revision> head = Atomics
 			.newReference(Revisions.Empty);
 
-	private final Set<Runnable> listeners = Sets.newCopyOnWriteArraySet();
+	private final Notifier notifier = new Notifier();
+
+	private final Queue<Request> requests = new ConcurrentLinkedQueue<Request>();
+	private final ReentrantLock combiner = new ReentrantLock();
 
 	@Inject
 	public SimpleRevisionServer(@Nullable ConflictResolver conflictResolver,
 			@Nullable ForeignKeyResolver foreignKeyResolver) {
+		this(conflictResolver, foreignKeyResolver, false);
+	}
+
+	/**
+	 * Creates a server which combines concurrent merges as described
+	 * above if combining is true.
+	 */
+	public SimpleRevisionServer(@Nullable ConflictResolver conflictResolver,
+			@Nullable ForeignKeyResolver foreignKeyResolver, boolean combining) {
 		this.conflictResolver = conflictResolver;
 		this.foreignKeyResolver = foreignKeyResolver;
+		this.combining = combining;
 	}
 	
+	/**
+	 * Specifies the executor on which to run listeners, or null to run
+	 * them on the thread which calls merge.
+	 */
+	public void setNotificationExecutor(@Nullable Executor executor) {
+		notifier.setExecutor(executor);
+	}
+
+	/**
+	 * Returns the notifier used to run listeners, which may be queried
+	 * for notification lag.
+	 */
+	public Notifier notifier() {
+		return notifier;
+	}
+
 	public Revision head() {
 		return head.get();
 	}
 
 	public void merge(Revision base, Revision fork) {
 		if (base != fork || base != head.get()) {
-			while (!head.compareAndSet(base, fork)) {
-				Revision h = head.get();
-				fork = base
-						.merge(h, fork, conflictResolver, foreignKeyResolver);
-				base = h;
+			if (combining) {
+				combine(base, fork);
+			} else {
+				while (!head.compareAndSet(base, fork)) {
+					Revision h = head.get();
+					fork = base.merge(h, fork, conflictResolver,
+							foreignKeyResolver);
+					base = h;
+				}
 			}
 
 			notifyListeners();
 		}
 	}
+
+	private void combine(Revision base, Revision fork) {
+		Request request = new Request(base, fork);
+		requests.add(request);
+
+		// Whoever holds the lock applies a batch of queued requests and
+		// then wakes their callers, so we only try for the lock ourselves
+		// while our request is still pending.
+		while (!request.done) {
+			if (combiner.tryLock()) {
+				Request[] batch = new Request[MaxBatch];
+				int count = 0;
+				try {
+					Revision h = head.get();
+					Request r;
+					while (count < MaxBatch && (r = requests.poll()) != null) {
+						try {
+							h = r.base == h ? r.fork : r.base.merge(h, r.fork,
+									conflictResolver, foreignKeyResolver);
+						} catch (Throwable e) {
+							r.error = e;
+						}
+						batch[count++] = r;
+					}
+
+					// publish before marking the batch done, since each caller
+					// may read the head as soon as it returns
+					head.set(h);
+					for (int i = 0; i < count; ++i) {
+						batch[i].done = true;
+					}
+				} finally {
+					combiner.unlock();
+				}
+
+				// wake callers only after releasing the lock, so that they
+				// may take it over immediately if anything is still queued
+				for (int i = 0; i < count; ++i) {
+					if (batch[i] != request) {
+						LockSupport.unpark(batch[i].waiter);
+					}
+				}
+
+				// Any request still queued belongs to a caller whose tryLock
+				// failed while we held the lock, so wake it to take over.
+				Request next = requests.peek();
+				if (next != null) {
+					LockSupport.unpark(next.waiter);
+				}
+			} else {
+				LockSupport.park(this);
+			}
+		}
+
+		if (request.error != null) {
+			throw Throwables.propagate(request.error);
+		}
+	}
 	
 	@VisibleForTesting
 	protected void notifyListeners() {
-		for (Runnable listener : listeners) {
-			listener.run();
-		}
+		notifier.notifyListeners();
 	}
 
-	public Subscription registerListener(final Runnable listener) {
-		listeners.add(listener);
-
-		listener.run();
-
-		return new Subscription() {
-			public void cancel() {
-				listeners.remove(listener);
-			}
-		};
+	public Subscription registerListener(Runnable listener) {
+		return notifier.register(listener);
 	}
 }
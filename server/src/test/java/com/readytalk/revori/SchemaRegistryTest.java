@@ -0,0 +1,105 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori;
+
+import static com.readytalk.revori.DuplicateKeyResolution.Throw;
+import static com.readytalk.revori.ExpressionFactory.constant;
+import static com.readytalk.revori.ExpressionFactory.reference;
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class SchemaRegistryTest {
+  private static void collect(int tables, int columns)
+    throws InterruptedException
+  {
+    for (int i = 0; i < 50; ++i) {
+      if (Table.registry.size() <= tables
+          && Column.registry.size() <= columns)
+      {
+        return;
+      }
+      System.gc();
+      Thread.sleep(20);
+    }
+  }
+
+  @Test
+  public void testAdHocViewsDoNotAccumulate() throws InterruptedException {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table things = new Table(cols(number));
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    for (int i = 0; i < 10; ++i) {
+      builder.insert(Throw, things, i, name, "thing " + (9 - i));
+    }
+    Revision head = builder.commit();
+
+    TableReference thingsReference = new TableReference(things);
+
+    // ordering by a column with no index makes each query populate
+    // a temporary view with its own table and columns
+    QueryTemplate byName = new QueryTemplate
+      (Lists.newArrayList
+       (reference(thingsReference, number), reference(thingsReference, name)),
+       thingsReference, constant(true),
+       Collections.<Expression>emptySet(),
+       Lists.newArrayList(new QueryTemplate.OrderExpression
+                          (reference(thingsReference, name),
+                           Comparators.Ascending)));
+
+    assertTrue(Revisions.Empty.explain(head, byName)
+               .startsWith("temporary view\n"));
+
+    collect(0, 0);
+    int tables = Table.registry.size();
+    int columns = Column.registry.size();
+
+    for (int i = 0; i < 10000; ++i) {
+      QueryResult result = Revisions.Empty.diff(head, byName);
+      assertEquals(QueryResult.Type.Inserted, result.nextRow());
+      assertEquals(9, result.nextItem());
+      assertEquals("thing 0", result.nextItem());
+    }
+
+    collect(tables + 100, columns + 300);
+
+    assertTrue(Table.registry.size() <= tables + 100);
+    assertTrue(Column.registry.size() <= columns + 300);
+  }
+
+  @Test
+  public void testReregistration() throws InterruptedException {
+    Column<String> a = new Column<String>(String.class, "registry.a");
+    Column<String> c = new Column<String>(String.class, "registry.c");
+    assertTrue(a.compareTo(c) < 0);
+
+    for (int i = 0; i < 1000; ++i) {
+      // nothing retains these, so their entries are dropped and then
+      // registered again between the entries for "a" and "c"
+      Column<String> b1 = new Column<String>(String.class, "registry.b");
+      Column<String> b2 = new Column<String>(String.class, "registry.b");
+      assertTrue(a.compareTo(b1) < 0);
+      assertTrue(b1.compareTo(c) < 0);
+      assertEquals(0, b2.compareTo(b1));
+      assertEquals(b1, b2);
+      assertTrue(b2.compareTo(a) > 0);
+
+      if (i % 100 == 0) {
+        System.gc();
+      }
+    }
+  }
+}
@@ -1,6 +1,10 @@
 package com.readytalk.revori.server.simple;
 
+import static com.readytalk.revori.DuplicateKeyResolution.Overwrite;
+import static com.readytalk.revori.DuplicateKeyResolution.Throw;
+import static com.readytalk.revori.util.Util.cols;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
@@ -10,17 +14,33 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.readytalk.revori.Column;
 import com.readytalk.revori.ConflictResolver;
+import com.readytalk.revori.ConflictResolvers;
 import com.readytalk.revori.ForeignKeyResolver;
 import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
 import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
 
 public class SimpleRevisionServerTest {
 
+	private static final Column<Integer> number = new Column<Integer>(
+			Integer.class, "number");
+	private static final Column<String> name = new Column<String>(
+			String.class, "name");
+	private static final Table numbers = new Table(cols(number), "numbers");
+
 	private final ConflictResolver conflictResolver = mock(ConflictResolver.class);
 	private final ForeignKeyResolver foreignKeyResolver = mock(ForeignKeyResolver.class);
 	private final Revision revision = mock(Revision.class);
@@ -102,4 +122,113 @@ public class SimpleRevisionServerTest {
 		verify(listener, times(1)).run();
 	}
 
+	@Test
+	public void concurrentMergesWithRetry() throws Exception {
+		concurrentMerges(new SimpleRevisionServer(null, null));
+	}
+
+	@Test
+	public void concurrentMergesWithCombining() throws Exception {
+		concurrentMerges(new SimpleRevisionServer(null, null, true));
+	}
+
+	@Test
+	public void combiningConflictFailsOnlyItsCaller() {
+		server = new SimpleRevisionServer(ConflictResolvers.Restrict, null, true);
+
+		Revision base = server.head();
+		RevisionBuilder builder = base.builder();
+		builder.insert(Throw, numbers, 1, name, "one");
+		server.merge(base, builder.commit());
+
+		base = server.head();
+
+		builder = base.builder();
+		builder.insert(Overwrite, numbers, 1, name, "uno");
+		server.merge(base, builder.commit());
+
+		builder = base.builder();
+		builder.insert(Overwrite, numbers, 1, name, "eins");
+		Revision conflicting = builder.commit();
+
+		try {
+			server.merge(base, conflicting);
+			fail("expected conflict");
+		} catch (RuntimeException e) {
+			// expected
+		}
+
+		// the failed merge must not affect the head or later merges
+		assertEquals("uno", server.head().query(numbers.primaryKey, 1, name));
+
+		base = server.head();
+		builder = base.builder();
+		builder.insert(Throw, numbers, 2, name, "two");
+		server.merge(base, builder.commit());
+
+		assertEquals("uno", server.head().query(numbers.primaryKey, 1, name));
+		assertEquals("two", server.head().query(numbers.primaryKey, 2, name));
+	}
+
+	private static void concurrentMerges(final SimpleRevisionServer server)
+			throws Exception {
+		final int threadCount = 16;
+		final int mergeCount = 50;
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final AtomicInteger notifications = new AtomicInteger();
+
+		server.registerListener(new Runnable() {
+			public void run() {
+				notifications.incrementAndGet();
+			}
+		});
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < threadCount; ++i) {
+			final int thread = i;
+			threads.add(new Thread() {
+				public void run() {
+					try {
+						start.await();
+						for (int j = 0; j < mergeCount; ++j) {
+							Revision base = server.head();
+							RevisionBuilder builder = base.builder();
+							int number = (thread * mergeCount) + j;
+							builder.insert(Throw, numbers, number, name, "thread " + thread);
+							server.merge(base, builder.commit());
+
+							// the merge must be visible by the time merge returns
+							assertEquals("thread " + thread, server.head().query(
+									numbers.primaryKey, number, name));
+						}
+					} catch (Throwable e) {
+						error.set(e);
+					}
+				}
+			});
+		}
+
+		for (Thread t : threads) {
+			t.start();
+		}
+		start.countDown();
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		if (error.get() != null) {
+			throw new RuntimeException(error.get());
+		}
+
+		Revision head = server.head();
+		assertEquals(threadCount * mergeCount, head.count(numbers.primaryKey));
+		for (int i = 0; i < threadCount; ++i) {
+			assertEquals("thread " + i, head.query(numbers.primaryKey,
+					(i * mergeCount) + mergeCount - 1, name));
+		}
+
+		// one notification on registration, then one per merge
+		assertEquals(1 + (threadCount * mergeCount), notifications.get());
+	}
 }
@@ -24,6 +24,7 @@ import com.readytalk.revori.server.RevisionServer;
 import com.readytalk.revori.server.Servers;
 import com.readytalk.revori.server.Servers.TaskHandler;
 import com.readytalk.revori.server.simple.SimpleRevisionServer;
+import com.readytalk.revori.subscribe.Subscription;
 
 public class AsynchronousTest {
   @Test
@@ -110,6 +111,50 @@ public class AsynchronousTest {
                  asyncServer.head().query(name, numbers.primaryKey, 12));
   }
 
+  @Test
+  public void testListeners() {
+    RevisionServer rawServer = new SimpleRevisionServer
+      (ConflictResolvers.Restrict, ForeignKeyResolvers.Restrict);
+
+    MyTaskHandler handler = new MyTaskHandler();
+
+    RevisionServer asyncServer = Servers.asynchronousRevisionServer
+      (rawServer, ConflictResolvers.Restrict, ForeignKeyResolvers.Restrict,
+       handler);
+
+    final int[] count = new int[1];
+    Runnable listener = new Runnable() {
+        public void run() {
+          ++ count[0];
+        }
+      };
+
+    // registering does not run the listener, and registering it
+    // again has no effect
+    Subscription subscription = asyncServer.registerListener(listener);
+    asyncServer.registerListener(listener);
+    handler.flush();
+    assertEquals(0, count[0]);
+
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+
+    Revision base = asyncServer.head();
+    asyncServer.merge(base, base.builder().table(numbers).row(1)
+                      .update(name, "one").commit());
+    handler.flush();
+    assertEquals(1, count[0]);
+
+    subscription.cancel();
+
+    base = asyncServer.head();
+    asyncServer.merge(base, base.builder().table(numbers).row(2)
+                      .update(name, "two").commit());
+    handler.flush();
+    assertEquals(1, count[0]);
+  }
+
   private static class MyTaskHandler implements TaskHandler {
     public final List<Runnable> tasks = new ArrayList<Runnable>();
 
@@ -118,10 +163,10 @@ public class AsynchronousTest {
     }
 
     public void flush() {
-      for (Runnable task: tasks) {
-        task.run();
+      // running a task may queue more, e.g. listener runs
+      while (! tasks.isEmpty()) {
+        tasks.remove(0).run();
       }
-      tasks.clear();
     }
   }
 }
@@ -0,0 +1,177 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.DuplicateKeyResolution.Overwrite;
+import static com.readytalk.revori.DuplicateKeyResolution.Throw;
+import static com.readytalk.revori.ExpressionFactory.constant;
+import static com.readytalk.revori.ExpressionFactory.greaterThan;
+import static com.readytalk.revori.ExpressionFactory.reference;
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.QueryResult;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
+import com.readytalk.revori.View;
+import com.readytalk.revori.server.BackgroundBuild;
+import com.readytalk.revori.server.RevisionServer;
+import com.readytalk.revori.server.simple.SimpleRevisionServer;
+import com.readytalk.revori.subscribe.Subscription;
+
+public class BackgroundBuildTest {
+  private static final Column<Integer> number = new Column<Integer>
+    (Integer.class, "number");
+  private static final Column<String> name = new Column<String>
+    (String.class, "name");
+  private static final Table things = new Table(cols(number), "things");
+
+  /**
+   * Server which commits a revision of its own just before the first
+   * merge requested by a client, as if another thread had committed
+   * it while the client was busy.
+   */
+  private static class InterferingServer implements RevisionServer {
+    private final RevisionServer server = new SimpleRevisionServer(null, null);
+    private Revision interference;
+    public Revision latest;
+
+    public Revision head() {
+      return server.head();
+    }
+
+    public void merge(Revision base, Revision fork) {
+      if (interference != null) {
+        Revision head = server.head();
+        server.merge(head, interference);
+        interference = null;
+      }
+      latest = server.head();
+      server.merge(base, fork);
+    }
+
+    public Subscription registerListener(Runnable listener) {
+      return server.registerListener(listener);
+    }
+  }
+
+  private static InterferingServer populate() {
+    InterferingServer server = new InterferingServer();
+
+    RevisionBuilder builder = server.head().builder();
+    for (int i = 0; i < 100; ++i) {
+      builder.insert(Throw, things, i, name, "thing " + (i % 7));
+    }
+    server.merge(server.head(), builder.commit());
+
+    builder = server.head().builder();
+    builder.insert(Throw, things, 100, name, "thing 0");
+    builder.insert(Overwrite, things, 3, name, "thing 9");
+    builder.delete(things, 4);
+    server.interference = builder.commit();
+
+    return server;
+  }
+
+  private static List<Integer> numbers(Revision revision, Index index) {
+    List<Integer> list = new ArrayList<Integer>();
+    for (Iterator<Integer> it = revision.queryAll(number, index);
+         it.hasNext();)
+    {
+      list.add(it.next());
+    }
+    return list;
+  }
+
+  private static List<List<Object>> rows(Revision revision, View view) {
+    TableReference viewReference = new TableReference(view.table);
+
+    QueryResult result = Revisions.Empty.diff
+      (revision, new QueryTemplate
+       (Lists.newArrayList(reference(viewReference, view.columns.get(0)),
+                           reference(viewReference, view.columns.get(1))),
+        viewReference, constant(true)));
+
+    List<List<Object>> rows = new ArrayList<List<Object>>();
+    while (result.nextRow() != QueryResult.Type.End) {
+      rows.add(Lists.newArrayList(result.nextItem(), result.nextItem()));
+    }
+    return rows;
+  }
+
+  @Test
+  public void testIndex() throws Exception {
+    InterferingServer server = populate();
+    Index nameIndex = new Index(things, cols(name));
+
+    BackgroundBuild build = BackgroundBuild.add
+      (server, nameIndex, MoreExecutors.sameThreadExecutor());
+
+    Revision head = build.future().get();
+
+    assertEquals(BackgroundBuild.State.Done, build.state());
+    assertEquals(100, build.rowsVisited());
+    assertEquals(100, build.estimatedRows());
+    assertTrue(head == server.head());
+
+    // the rows committed while the index was being built must be
+    // reflected in it, exactly as if it had been built afterwards
+    Revision expected = server.latest.builder().add(nameIndex).commit();
+
+    assertEquals(numbers(expected, nameIndex), numbers(head, nameIndex));
+    assertEquals(100, numbers(head, nameIndex).size());
+    assertEquals((Integer) 3, numbers(head, nameIndex).get(99));
+
+    assertEquals("thing 9", head.query(name, nameIndex, "thing 9", 3));
+    assertNull(head.query(name, nameIndex, "thing 4", 4));
+  }
+
+  @Test
+  public void testView() throws Exception {
+    InterferingServer server = populate();
+    TableReference thingsReference = new TableReference(things);
+    View view = new View
+      (new QueryTemplate
+       (Lists.newArrayList(reference(thingsReference, number),
+                           reference(thingsReference, name)),
+        thingsReference,
+        greaterThan(reference(thingsReference, number), constant(2))));
+
+    BackgroundBuild build = BackgroundBuild.add
+      (server, view, MoreExecutors.sameThreadExecutor());
+
+    Revision head = build.future().get();
+
+    assertEquals(BackgroundBuild.State.Done, build.state());
+    assertEquals(97, build.rowsVisited());
+    assertEquals(100, build.estimatedRows());
+
+    Revision expected = server.latest.builder().add(view).commit();
+
+    assertEquals(rows(expected, view), rows(head, view));
+    assertEquals(97, rows(head, view).size());
+    assertEquals(Lists.newArrayList((Object) 3, "thing 9"),
+                 rows(head, view).get(0));
+  }
+}
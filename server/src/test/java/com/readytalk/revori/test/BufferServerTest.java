@@ -0,0 +1,197 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.DuplicateKeyResolution.Throw;
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.server.BufferFlusher;
+import com.readytalk.revori.server.BufferServer;
+import com.readytalk.revori.server.FlushPolicy;
+import com.readytalk.revori.server.RevisionServer;
+import com.readytalk.revori.server.simple.SimpleRevisionServer;
+
+public class BufferServerTest {
+  private static final Column<Integer> number = new Column<Integer>
+    (Integer.class, "number");
+  private static final Column<String> name = new Column<String>
+    (String.class, "name");
+  private static final Table numbers = new Table(cols(number), "numbers");
+
+  private static class ManualTicker extends Ticker {
+    public long now;
+
+    public long read() {
+      return now;
+    }
+  }
+
+  private static void insert(RevisionServer server, int key, String value) {
+    Revision base = server.head();
+    RevisionBuilder builder = base.builder();
+    builder.insert(Throw, numbers, key, name, value);
+    server.merge(base, builder.commit());
+  }
+
+  private static String query(RevisionServer server, int key) {
+    return server.head().query(name, numbers.primaryKey, key);
+  }
+
+  @Test
+  public void testMaxMerges() {
+    SimpleRevisionServer upstream = new SimpleRevisionServer(null, null);
+    BufferFlusher flusher = new BufferFlusher
+      (null, 0, TimeUnit.MILLISECONDS);
+    BufferServer buffer = new BufferServer
+      (flusher, FlushPolicy.maxMerges(3), upstream, null, null);
+
+    insert(buffer, 1, "one");
+    insert(buffer, 2, "two");
+
+    assertNull(query(upstream, 1));
+    assertEquals("two", query(buffer, 2));
+    assertEquals(1, flusher.dirtySet().size());
+
+    insert(buffer, 3, "three");
+
+    assertEquals("one", query(upstream, 1));
+    assertEquals("three", query(upstream, 3));
+    assertEquals(0, flusher.dirtySet().size());
+    assertEquals(1, flusher.batchCount());
+  }
+
+  @Test
+  public void testMaxAge() {
+    SimpleRevisionServer upstream = new SimpleRevisionServer(null, null);
+    ManualTicker ticker = new ManualTicker();
+    BufferFlusher flusher = new BufferFlusher
+      (null, 0, TimeUnit.MILLISECONDS, ticker);
+    BufferServer buffer = new BufferServer
+      (flusher, FlushPolicy.maxAge(10, TimeUnit.NANOSECONDS), upstream,
+       null, null);
+
+    insert(buffer, 1, "one");
+    ticker.now += 5;
+    insert(buffer, 2, "two");
+    flusher.flushDue();
+
+    assertNull(query(upstream, 1));
+
+    ticker.now += 5;
+    flusher.flushDue();
+
+    assertEquals("one", query(upstream, 1));
+    assertEquals("two", query(upstream, 2));
+  }
+
+  @Test
+  public void testMaxDiffSize() {
+    SimpleRevisionServer upstream = new SimpleRevisionServer(null, null);
+    BufferFlusher flusher = new BufferFlusher
+      (null, 0, TimeUnit.MILLISECONDS);
+    BufferServer buffer = new BufferServer
+      (flusher, FlushPolicy.maxDiffSize(50), upstream, null, null);
+
+    insert(buffer, 1, "one");
+
+    assertNull(query(upstream, 1));
+
+    Revision base = buffer.head();
+    RevisionBuilder builder = base.builder();
+    for (int i = 2; i < 30; ++i) {
+      builder.insert(Throw, numbers, i, name, "many");
+    }
+    buffer.merge(base, builder.commit());
+
+    assertEquals("one", query(upstream, 1));
+    assertEquals("many", query(upstream, 29));
+  }
+
+  @Test
+  public void testBatch() {
+    SimpleRevisionServer upstream = new SimpleRevisionServer(null, null);
+    BufferFlusher flusher = new BufferFlusher
+      (null, 0, TimeUnit.MILLISECONDS);
+    BufferServer a = new BufferServer
+      (flusher, FlushPolicy.Manual, upstream, null, null);
+    BufferServer b = new BufferServer
+      (flusher, FlushPolicy.Manual, upstream, null, null);
+
+    final int[] merges = new int[1];
+    upstream.registerListener(new Runnable() {
+        public void run() {
+          ++ merges[0];
+        }
+      });
+
+    insert(a, 1, "one");
+    insert(b, 2, "two");
+    insert(a, 3, "three");
+
+    flusher.flushDue();
+
+    assertNull(query(upstream, 1));
+
+    flusher.flushAll();
+
+    assertEquals("one", query(upstream, 1));
+    assertEquals("two", query(upstream, 2));
+    assertEquals("three", query(upstream, 3));
+    assertEquals(1 + 1, merges[0]);
+    assertEquals(1, flusher.batchCount());
+    assertEquals(2, flusher.bufferFlushCount());
+    assertEquals(0, flusher.dirtySet().size());
+  }
+
+  @Test
+  public void testLatestHead() {
+    SimpleRevisionServer upstream = new SimpleRevisionServer(null, null);
+    BufferFlusher flusher = new BufferFlusher
+      (null, 0, TimeUnit.MILLISECONDS);
+    BufferServer buffer = new BufferServer
+      (flusher, FlushPolicy.Manual, upstream, null, null);
+
+    insert(upstream, 1, "one");
+
+    // nothing buffered, so the upstream head is adopted as is
+    assertSame(upstream.head(), buffer.latestHead());
+    assertSame(upstream.head(), buffer.latestHead());
+    assertTrue(flusher.dirtySet().isEmpty());
+
+    insert(buffer, 2, "two");
+    Revision head = buffer.head();
+
+    // upstream unchanged, so no merge is needed
+    assertSame(head, buffer.latestHead());
+
+    insert(upstream, 3, "three");
+
+    assertEquals("three", buffer.latestHead().query
+                 (name, numbers.primaryKey, 3));
+    assertEquals("two", query(buffer, 2));
+    assertNull(query(upstream, 2));
+
+    flusher.flushAll();
+
+    assertEquals("two", query(upstream, 2));
+    assertEquals("three", query(upstream, 3));
+  }
+}
@@ -0,0 +1,214 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.ExpressionFactory.reference;
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.readytalk.revori.BinaryOperation;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.DiffResult;
+import com.readytalk.revori.DuplicateKeyException;
+import com.readytalk.revori.DuplicateKeyResolution;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.Parameter;
+import com.readytalk.revori.QueryResult;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
+
+public class BulkLoadTest {
+  private static List<Object[]> rows(int count) {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for (int i = 0; i < count; ++i) {
+      rows.add(new Object[] { i, "name" + (i % 7), i * 2 });
+    }
+    return rows;
+  }
+
+  @Test
+  public void testLoadMatchesInsert() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Column<Integer> value = new Column<Integer>(Integer.class);
+    Table numbers = new Table(cols(number));
+    Index nameIndex = new Index(numbers, cols(name));
+
+    for (int count: new int[] { 1, 2, 3, 7, 8, 100, 1000 }) {
+      RevisionBuilder builder = Revisions.Empty.builder();
+      builder.add(nameIndex);
+      for (Object[] row: rows(count)) {
+        builder.insert(DuplicateKeyResolution.Throw, numbers, row[0], name,
+                       row[1]);
+        builder.insert(DuplicateKeyResolution.Throw, numbers, row[0], value,
+                       row[2]);
+      }
+      Revision inserted = builder.commit();
+
+      builder = Revisions.Empty.builder();
+      builder.add(nameIndex);
+      builder.bulkLoad(numbers, cols(value, name, number),
+                       reorder(rows(count)).iterator());
+      Revision loaded = builder.commit();
+
+      assertEquals(DiffResult.Type.End,
+                   inserted.diff(loaded, true).next());
+      assertEquals(DiffResult.Type.End,
+                   loaded.diff(inserted, true).next());
+
+      assertEquals("name" + ((count - 1) % 7),
+                   loaded.query(name, numbers.primaryKey, count - 1));
+      assertEquals(Integer.valueOf((count - 1) * 2),
+                   loaded.query(value, numbers.primaryKey, count - 1));
+
+      TableReference numbersReference = new TableReference(numbers);
+      QueryTemplate byName = new QueryTemplate
+        (Lists.newArrayList((Expression) reference(numbersReference, number)),
+         numbersReference,
+         new BinaryOperation
+         (BinaryOperation.Type.Equal,
+          reference(numbersReference, name),
+          new Parameter()));
+
+      QueryResult result = Revisions.Empty.diff(loaded, byName, "name0");
+      for (int i = 0; i < count; i += 7) {
+        assertEquals(QueryResult.Type.Inserted, result.nextRow());
+        assertEquals(i, result.nextItem());
+      }
+      assertEquals(QueryResult.Type.End, result.nextRow());
+
+      // the loaded revision should be usable as a base for further
+      // updates, including index maintenance
+      builder = loaded.builder();
+      builder.insert(DuplicateKeyResolution.Throw, numbers, -1, name,
+                     "name0");
+      builder.delete(numbers, 0);
+      Revision updated = builder.commit();
+
+      result = Revisions.Empty.diff(updated, byName, "name0");
+      assertEquals(QueryResult.Type.Inserted, result.nextRow());
+      assertEquals(-1, result.nextItem());
+      for (int i = 7; i < count; i += 7) {
+        assertEquals(QueryResult.Type.Inserted, result.nextRow());
+        assertEquals(i, result.nextItem());
+      }
+      assertEquals(QueryResult.Type.End, result.nextRow());
+    }
+  }
+
+  private static List<Object[]> reorder(List<Object[]> rows) {
+    List<Object[]> reordered = new ArrayList<Object[]>();
+    for (Object[] row: rows) {
+      reordered.add(new Object[] { row[2], row[1], row[0] });
+    }
+    return reordered;
+  }
+
+  @Test
+  public void testLoadIntoNonEmptyTable() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.insert(DuplicateKeyResolution.Throw, numbers, 5, name, "five");
+    builder.bulkLoad(numbers, cols(number, name), Lists.<Object[]>newArrayList
+                     (new Object[] { 7, "seven" },
+                      new Object[] { 3, "three" }).iterator());
+    Revision revision = builder.commit();
+
+    assertEquals("three", revision.query(name, numbers.primaryKey, 3));
+    assertEquals("five", revision.query(name, numbers.primaryKey, 5));
+    assertEquals("seven", revision.query(name, numbers.primaryKey, 7));
+
+    builder = revision.builder();
+    try {
+      builder.bulkLoad(numbers, cols(number, name), Lists.<Object[]>newArrayList
+                       (new Object[] { 1, "one" },
+                        new Object[] { 5, "five again" }).iterator());
+      fail("expected DuplicateKeyException");
+    } catch (DuplicateKeyException e) { }
+  }
+
+  @Test
+  public void testLoadWithMultiColumnKey() {
+    Column<String> country = new Column<String>(String.class);
+    Column<String> city = new Column<String>(String.class);
+    Column<Integer> population = new Column<Integer>(Integer.class);
+    Table places = new Table(cols(country, city));
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.bulkLoad(places, cols(country, city, population),
+                     Lists.<Object[]>newArrayList
+                     (new Object[] { "China", "Beijing", 20 },
+                      new Object[] { "China", "Shanghai", 24 },
+                      new Object[] { "France", "Paris", 2 },
+                      new Object[] { "USA", "Denver", 1 },
+                      new Object[] { "USA", "New York", 8 }).iterator());
+    Revision revision = builder.commit();
+
+    assertEquals(Integer.valueOf(24),
+                 revision.query(population, places.primaryKey, "China",
+                                "Shanghai"));
+    assertEquals(Integer.valueOf(1),
+                 revision.query(population, places.primaryKey, "USA",
+                                "Denver"));
+    assertNull(revision.query(population, places.primaryKey, "USA",
+                              "Boston"));
+  }
+
+  @Test
+  public void testRejectsUnsortedRows() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+
+    try {
+      Revisions.Empty.builder().bulkLoad
+        (numbers, cols(number, name), Lists.<Object[]>newArrayList
+         (new Object[] { 2, "two" },
+          new Object[] { 1, "one" }).iterator());
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+
+    try {
+      Revisions.Empty.builder().bulkLoad
+        (numbers, cols(number, name), Lists.<Object[]>newArrayList
+         (new Object[] { 1, "one" },
+          new Object[] { 1, "uno" }).iterator());
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+
+    try {
+      Revisions.Empty.builder().bulkLoad
+        (numbers, cols(name), Lists.<Object[]>newArrayList
+         (new Object[] { "one" }).iterator());
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+
+    try {
+      Revisions.Empty.builder().bulkLoad
+        (numbers, cols(number, name), Lists.<Object[]>newArrayList
+         (new Object[] { 1, 1 }).iterator());
+      fail("expected ClassCastException");
+    } catch (ClassCastException e) { }
+  }
+}
@@ -0,0 +1,241 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.readytalk.revori.Column;
+import com.readytalk.revori.DuplicateKeyResolution;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.server.DurableServer;
+import com.readytalk.revori.server.simple.SimpleRevisionServer;
+
+public class DurableTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final Column<Integer> number = new Column<Integer>
+    (Integer.class, "number");
+  private static final Column<String> name = new Column<String>
+    (String.class, "name");
+  private static final Table numbers = new Table(cols(number), "numbers");
+
+  private static DurableServer open(File directory, long segmentSize,
+                                    int snapshotInterval)
+    throws IOException
+  {
+    return new DurableServer
+      (new SimpleRevisionServer(null, null), directory, null, segmentSize,
+       snapshotInterval);
+  }
+
+  private static void insert(DurableServer server, int key, String value) {
+    Revision base = server.head();
+    RevisionBuilder builder = base.builder();
+    builder.insert(DuplicateKeyResolution.Overwrite, numbers, key, name,
+                   value);
+    server.merge(base, builder.commit());
+  }
+
+  private static void delete(DurableServer server, int key) {
+    Revision base = server.head();
+    RevisionBuilder builder = base.builder();
+    builder.delete(numbers, key);
+    server.merge(base, builder.commit());
+  }
+
+  private static String query(DurableServer server, int key) {
+    return server.head().query(name, numbers.primaryKey, key);
+  }
+
+  private static File[] list(File directory, final String suffix) {
+    return directory.listFiles(new FilenameFilter() {
+        public boolean accept(File dir, String name) {
+          return name.endsWith(suffix);
+        }
+      });
+  }
+
+  @Test
+  public void testRecoverFromLog() throws IOException {
+    File directory = folder.newFolder("data");
+
+    DurableServer server = open(directory, DurableServer.DefaultSegmentSize,
+                                DurableServer.DefaultSnapshotInterval);
+    insert(server, 1, "one");
+    insert(server, 2, "two");
+    insert(server, 3, "three");
+    insert(server, 2, "deux");
+    delete(server, 3);
+    server.close();
+
+    server = open(directory, DurableServer.DefaultSegmentSize,
+                  DurableServer.DefaultSnapshotInterval);
+    assertEquals("one", query(server, 1));
+    assertEquals("deux", query(server, 2));
+    assertNull(query(server, 3));
+
+    insert(server, 4, "four");
+    server.close();
+
+    server = open(directory, DurableServer.DefaultSegmentSize,
+                  DurableServer.DefaultSnapshotInterval);
+    assertEquals("one", query(server, 1));
+    assertEquals("deux", query(server, 2));
+    assertNull(query(server, 3));
+    assertEquals("four", query(server, 4));
+    server.close();
+  }
+
+  @Test
+  public void testSnapshotsAndSegments() throws IOException {
+    File directory = folder.newFolder("data");
+
+    // a segment size of one byte forces a new segment per record
+    DurableServer server = open(directory, 1, 4);
+    for (int i = 0; i < 10; ++i) {
+      insert(server, i, "v" + i);
+    }
+    delete(server, 0);
+    server.close();
+
+    assertEquals(1, list(directory, ".snapshot").length);
+    assertTrue(list(directory, ".log").length < 11);
+
+    server = open(directory, 1, 4);
+    assertNull(query(server, 0));
+    for (int i = 1; i < 10; ++i) {
+      assertEquals("v" + i, query(server, i));
+    }
+    server.close();
+  }
+
+  @Test
+  public void testSnapshotExecutor() throws IOException {
+    File directory = folder.newFolder("data");
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      DurableServer server = open(directory, 1, 4);
+      server.setSnapshotExecutor(executor);
+      for (int i = 0; i < 10; ++i) {
+        insert(server, i, "v" + i);
+      }
+      delete(server, 0);
+
+      // close waits for any snapshot still being written
+      server.close();
+    } finally {
+      executor.shutdown();
+    }
+
+    assertEquals(1, list(directory, ".snapshot").length);
+    assertEquals(0, list(directory, ".tmp").length);
+
+    DurableServer server = open(directory, 1, 4);
+    assertNull(query(server, 0));
+    for (int i = 1; i < 10; ++i) {
+      assertEquals("v" + i, query(server, i));
+    }
+    server.close();
+  }
+
+  @Test
+  public void testPartialRecordIsDiscarded() throws IOException {
+    File directory = folder.newFolder("data");
+
+    DurableServer server = open(directory, DurableServer.DefaultSegmentSize,
+                                DurableServer.DefaultSnapshotInterval);
+    insert(server, 1, "one");
+    insert(server, 2, "two");
+    server.close();
+
+    // simulate a crash in the middle of writing a record
+    File[] segments = list(directory, ".log");
+    assertEquals(1, segments.length);
+    FileOutputStream out = new FileOutputStream(segments[0], true);
+    out.write(new byte[] { 0, 0, 1, 0, 0, 0, 0 });
+    out.close();
+
+    server = open(directory, DurableServer.DefaultSegmentSize,
+                  DurableServer.DefaultSnapshotInterval);
+    assertEquals("one", query(server, 1));
+    assertEquals("two", query(server, 2));
+
+    insert(server, 3, "three");
+    server.close();
+
+    server = open(directory, DurableServer.DefaultSegmentSize,
+                  DurableServer.DefaultSnapshotInterval);
+    assertEquals("one", query(server, 1));
+    assertEquals("two", query(server, 2));
+    assertEquals("three", query(server, 3));
+    server.close();
+  }
+
+  @Test
+  public void testConcurrentMerges() throws Exception {
+    File directory = folder.newFolder("data");
+
+    final DurableServer server = open(directory, 4096, 16);
+    final int threadCount = 8;
+    final int mergeCount = 50;
+    List<Thread> threads = new ArrayList<Thread>();
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    for (int i = 0; i < threadCount; ++i) {
+      final int thread = i;
+      Thread t = new Thread() {
+          public void run() {
+            try {
+              for (int j = 0; j < mergeCount; ++j) {
+                int key = (thread * mergeCount) + j;
+                insert(server, key, "v" + key);
+              }
+            } catch (Throwable e) {
+              synchronized (errors) {
+                errors.add(e);
+              }
+            }
+          }
+        };
+      threads.add(t);
+      t.start();
+    }
+
+    for (Thread t: threads) {
+      t.join();
+    }
+    server.close();
+
+    assertEquals(new ArrayList<Throwable>(), errors);
+
+    DurableServer recovered = open(directory, 4096, 16);
+    for (int i = 0; i < threadCount * mergeCount; ++i) {
+      assertEquals("v" + i, query(recovered, i));
+    }
+    recovered.close();
+  }
+}
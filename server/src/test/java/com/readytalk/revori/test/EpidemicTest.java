@@ -13,10 +13,13 @@ import static com.readytalk.revori.util.Util.cols;
 import static com.readytalk.revori.util.Util.set;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -41,6 +44,7 @@ import com.readytalk.revori.server.NetworkServer.Network;
 import com.readytalk.revori.server.NetworkServer.NodeConflictResolver;
 import com.readytalk.revori.server.NetworkServer.NodeID;
 import com.readytalk.revori.server.TreeServer;
+import com.readytalk.revori.server.protocol.Protocol;
 import com.readytalk.revori.server.protocol.ReadContext;
 import com.readytalk.revori.server.protocol.Readable;
 import com.readytalk.revori.server.protocol.Writable;
@@ -582,6 +586,377 @@ public class EpidemicTest {
     assertEquals("bar", n2.server.head().query(name, key, 1, 2, 2));
   }
   
+  @Test
+  public void testHistoryReleased() {
+    NodeConfig config = new NodeConfig
+      (new MyConflictResolver(),
+       ForeignKeyResolvers.Delete,
+       new NodeNetwork(),
+       EpidemicFactory);
+
+    Node n1 = new Node(config, 1);
+    Node n2 = new Node(config, 2);
+
+    n1.server.updateView(set(n2.id));
+    n2.server.updateView(set(n1.id));
+
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Table numbers = new Table(cols(number));
+
+    flush(config.network);
+
+    for (int i = 0; i < 100; ++i) {
+      Node n = i % 2 == 0 ? n1 : n2;
+      Revision base = n.server.head();
+      n.server.merge(base, base.builder().table(numbers).row(i).commit());
+
+      flush(config.network);
+    }
+
+    assertEquals(100, n1.server.head().count(numbers.primaryKey));
+    assertEquals(100, n2.server.head().count(numbers.primaryKey));
+
+    // history acknowledged by both nodes has been released
+    assertTrue(((EpidemicServer) n1.server).historySize() < 32);
+    assertTrue(((EpidemicServer) n2.server).historySize() < 32);
+  }
+
+  @Test
+  public void testMaxHistory() {
+    NodeConfig config = new NodeConfig
+      (new MyConflictResolver(),
+       ForeignKeyResolvers.Delete,
+       new NodeNetwork(),
+       EpidemicFactory);
+
+    Node n1 = new Node(config, 1);
+    Node n2 = new Node(config, 2);
+    ((EpidemicServer) n1.server).setMaxHistory(8);
+
+    n1.server.updateView(set(n2.id));
+    n2.server.updateView(set(n1.id));
+
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+    Index numbersKey = numbers.primaryKey;
+
+    Revision base = n1.server.head();
+    n1.server.merge
+      (base, base.builder().table(numbers).row(0).update(name, "zero")
+       .commit());
+
+    flush(config.network);
+
+    assertEquals("zero", n2.server.head().query(numbersKey, 0, name));
+
+    n1.server.updateView(Collections.<NodeID>emptySet());
+    n2.server.updateView(Collections.<NodeID>emptySet());
+
+    // a row both sides had before disconnecting must stay deleted
+    // once n2 catches up, even though n1 no longer has the history
+    // which deleted it
+    base = n1.server.head();
+    n1.server.merge
+      (base, base.builder().table(numbers).delete(0).commit());
+
+    for (int i = 1; i <= 100; ++i) {
+      base = n1.server.head();
+      n1.server.merge
+        (base, base.builder().table(numbers).row(i).update(name, "n1")
+         .commit());
+    }
+
+    base = n2.server.head();
+    n2.server.merge
+      (base, base.builder().table(numbers).row(1000).update(name, "n2")
+       .commit());
+
+    // n2 has fallen too far behind for n1 to keep the history it needs
+    assertTrue(((EpidemicServer) n1.server).historySize() < 32);
+
+    n1.server.updateView(set(n2.id));
+    n2.server.updateView(set(n1.id));
+
+    flush(config.network);
+
+    for (Node n: Arrays.asList(n1, n2)) {
+      assertEquals(101, n.server.head().count(numbersKey));
+      assertNull(n.server.head().query(numbersKey, 0, name));
+      assertEquals("n1", n.server.head().query(numbersKey, 100, name));
+      assertEquals("n2", n.server.head().query(numbersKey, 1000, name));
+    }
+
+    base = n2.server.head();
+    n2.server.merge
+      (base, base.builder().table(numbers).delete(1).commit());
+
+    flush(config.network);
+
+    for (Node n: Arrays.asList(n1, n2)) {
+      assertEquals(100, n.server.head().count(numbersKey));
+      assertNull(n.server.head().query(numbersKey, 1, name));
+    }
+  }
+
+  @Test
+  public void testMaxHistoryWithSlowPeer() {
+    NodeConfig config = new NodeConfig
+      (new MyConflictResolver(),
+       ForeignKeyResolvers.Delete,
+       new NodeNetwork(),
+       EpidemicFactory);
+
+    Node n1 = new Node(config, 1);
+    Node n2 = new Node(config, 2);
+    ((EpidemicServer) n1.server).setMaxHistory(8);
+
+    n1.server.updateView(set(n2.id));
+    n2.server.updateView(set(n1.id));
+
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+    Index numbersKey = numbers.primaryKey;
+
+    Revision base = n1.server.head();
+    n1.server.merge
+      (base, base.builder().table(numbers).row(0).update(name, "zero")
+       .commit());
+
+    flush(config.network);
+
+    assertEquals("zero", n2.server.head().query(numbersKey, 0, name));
+
+    // n2 stays connected but doesn't process anything n1 sends it
+    base = n1.server.head();
+    n1.server.merge
+      (base, base.builder().table(numbers).delete(0).commit());
+
+    for (int i = 1; i <= 100; ++i) {
+      base = n1.server.head();
+      n1.server.merge
+        (base, base.builder().table(numbers).row(i).update(name, "n1")
+         .commit());
+    }
+
+    assertTrue(((EpidemicServer) n1.server).historySize() < 32);
+
+    flush(config.network);
+
+    for (Node n: Arrays.asList(n1, n2)) {
+      assertEquals(100, n.server.head().count(numbersKey));
+      assertNull(n.server.head().query(numbersKey, 0, name));
+      assertEquals("n1", n.server.head().query(numbersKey, 100, name));
+    }
+
+    base = n2.server.head();
+    n2.server.merge
+      (base, base.builder().table(numbers).delete(1).commit());
+
+    flush(config.network);
+
+    assertNull(n1.server.head().query(numbersKey, 1, name));
+  }
+
+  @Test
+  public void testMaxHistoryWithIndirectPeer() {
+    NodeConfig config = new NodeConfig
+      (new MyConflictResolver(),
+       ForeignKeyResolvers.Delete,
+       new NodeNetwork(),
+       EpidemicFactory);
+
+    Node n1 = new Node(config, 1);
+    Node n2 = new Node(config, 2);
+    Node n3 = new Node(config, 3);
+    ((EpidemicServer) n1.server).setMaxHistory(8);
+
+    // n1 only reaches n3 via n2
+    n1.server.updateView(set(n2.id));
+    n2.server.updateView(set(n1.id, n3.id));
+    n3.server.updateView(set(n2.id));
+
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+    Index numbersKey = numbers.primaryKey;
+
+    Revision base = n1.server.head();
+    n1.server.merge
+      (base, base.builder().table(numbers).row(0).update(name, "zero")
+       .commit());
+
+    flush(config.network);
+
+    assertEquals("zero", n3.server.head().query(numbersKey, 0, name));
+
+    base = n1.server.head();
+    n1.server.merge
+      (base, base.builder().table(numbers).delete(0).commit());
+
+    for (int i = 1; i <= 100; ++i) {
+      base = n1.server.head();
+      n1.server.merge
+        (base, base.builder().table(numbers).row(i).update(name, "n1")
+         .commit());
+
+      flush(config.network, n3.id);
+    }
+
+    // n2 keeps n3's history, so n1 needn't
+    assertTrue(((EpidemicServer) n1.server).historySize() < 32);
+
+    flush(config.network);
+
+    for (Node n: Arrays.asList(n1, n2, n3)) {
+      assertEquals(100, n.server.head().count(numbersKey));
+      assertNull(n.server.head().query(numbersKey, 0, name));
+      assertEquals("n1", n.server.head().query(numbersKey, 100, name));
+    }
+
+    base = n3.server.head();
+    n3.server.merge
+      (base, base.builder().table(numbers).delete(1).commit());
+
+    flush(config.network);
+
+    for (Node n: Arrays.asList(n1, n2, n3)) {
+      assertNull(n.server.head().query(numbersKey, 1, name));
+    }
+  }
+
+  private static final int V1 = EpidemicServer.ProtocolVersion1;
+  private static final int V2 = EpidemicServer.ProtocolVersion2;
+  private static final int DefaultVersion = 0;
+
+  @Test
+  public void testTreeFanOut() {
+    treeFanOut(new NodeNetwork(), V2, true, V2, V2, V2, V2);
+  }
+
+  @Test
+  public void testTreeFanOutOverStreams() {
+    // each connection writes every message, tagged with its class,
+    // through one long-lived context per direction, as a socket
+    // transport would, so encoded diffs must not depend on what was
+    // written before them
+    NodeNetwork network = new NodeNetwork();
+    network.streams = true;
+    treeFanOut(network, V2, true, V2, V2, V2, V2);
+  }
+
+  @Test
+  public void testTreeFanOutOverStreamsWithOriginalProtocol() {
+    // diffs are encoded in each message's context, as they always
+    // were, so nothing is shared
+    NodeNetwork network = new NodeNetwork();
+    network.streams = true;
+    treeFanOut(network, V1, true, V1, V1, V1, V1);
+  }
+
+  @Test
+  public void testTreeFanOutWithMixedProtocolVersions() {
+    // a leaf which doesn't advertise version 2 is still sent diffs it
+    // can read, while the others share theirs
+    NodeNetwork network = new NodeNetwork();
+    network.streams = true;
+    treeFanOut(network, V2, true, V1, V2, V2, V2);
+  }
+
+  @Test
+  public void testTreeFanOutWithDefaultProtocolVersion() {
+    // a tree server advertises version 2 unless told otherwise, so
+    // leaves which also do share diffs
+    NodeNetwork network = new NodeNetwork();
+    network.streams = true;
+    treeFanOut(network, DefaultVersion, true, V2, V1, V2, V2);
+  }
+
+  @Test
+  public void testTreeFanOutWithoutDiffCache() {
+    // diffs too large for the cache are encoded for each leaf in turn
+    NodeNetwork network = new NodeNetwork();
+    network.streams = true;
+    treeFanOut(network, V2, false, V2, V2, V2, V2);
+  }
+
+  private static void treeFanOut(NodeNetwork network, int hubVersion,
+                                 boolean cacheDiffs, int ... leafVersions)
+  {
+    NodeConfig config = new NodeConfig
+      (new MyConflictResolver(),
+       ForeignKeyResolvers.Delete,
+       network,
+       EpidemicFactory);
+
+    NodeID hubID = new NodeID("0");
+    TreeServer hub = new TreeServer
+      (config.conflictResolver, config.foreignKeyResolver, config.network,
+       hubID);
+    if (hubVersion != DefaultVersion) {
+      hub.setProtocolVersion(hubVersion);
+    }
+    if (! cacheDiffs) {
+      hub.setDiffCacheCapacity(0);
+    }
+    config.network.nodes.put(hubID, new Node(hubID, hub));
+
+    int sharing = 0;
+    List<Node> leaves = new ArrayList<Node>();
+    Set<NodeID> ids = new HashSet<NodeID>();
+    for (int i = 1; i <= leafVersions.length; ++i) {
+      Node leaf = new Node(config, i);
+      ((EpidemicServer) leaf.server).setProtocolVersion(leafVersions[i - 1]);
+      if (Math.min(hubVersion == DefaultVersion ? V2 : hubVersion,
+                   leafVersions[i - 1]) >= V2)
+      {
+        ++ sharing;
+      }
+      leaf.server.updateView(set(hubID));
+      leaves.add(leaf);
+      ids.add(leaf.id);
+    }
+    hub.updateView(ids);
+
+    flush(config.network);
+
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+    Index numbersKey = numbers.primaryKey;
+
+    for (int i = 0; i < 3; ++i) {
+      long encoded = hub.diffsEncoded();
+      long shared = hub.diffsShared();
+
+      Revision base = hub.head();
+      hub.merge
+        (base, base.builder().table(numbers).row(i)
+         .update(name, "value " + i).commit());
+
+      flush(config.network);
+
+      for (Node leaf: leaves) {
+        assertEquals("value " + i, leaf.server.head().query
+                     (numbersKey, i, name));
+      }
+
+      // the diff is encoded once and shared with the other leaves
+      // which use version 2
+      if (sharing == 0) {
+        assertEquals(encoded, hub.diffsEncoded());
+        assertEquals(shared, hub.diffsShared());
+      } else if (! cacheDiffs) {
+        assertEquals(encoded + sharing, hub.diffsEncoded());
+        assertEquals(shared, hub.diffsShared());
+      } else {
+        assertEquals(encoded + 1, hub.diffsEncoded());
+        assertEquals(shared + sharing - 1, hub.diffsShared());
+      }
+    }
+  }
+
   private static void flush(NodeNetwork network, NodeID... dontDeliverTo) {
     final int MaxIterations = 100;
     final Set<NodeID> ddt = new HashSet<NodeID>(Arrays.asList(dontDeliverTo));
@@ -603,12 +978,20 @@ public class EpidemicTest {
           try {
             Node destination = network.nodes.get(m.destination);
   
-            BufferOutputStream buffer = new BufferOutputStream();
-            m.body.writeTo(new WriteContext(buffer));
+            Readable result;
+            if (network.streams) {
+              Connection connection = network.connection
+                (m.source, m.destination);
+              Protocol.write(connection.writeContext, m.body);
+              result = (Readable) Protocol.read(connection.readContext);
+            } else {
+              BufferOutputStream buffer = new BufferOutputStream();
+              m.body.writeTo(new WriteContext(buffer));
   
-            Readable result = (Readable) m.body.getClass().newInstance();
-            result.readFrom
-              (new ReadContext(new ByteArrayInputStream(buffer.getBuffer(), 0, buffer.size())));
+              result = (Readable) m.body.getClass().newInstance();
+              result.readFrom
+                (new ReadContext(new ByteArrayInputStream(buffer.getBuffer(), 0, buffer.size())));
+            }
   
             destination.server.accept(m.source, result);
           } catch (InstantiationException e) {
@@ -670,6 +1053,12 @@ public class EpidemicTest {
     private final NodeConfig config;
     public NetworkServer server;
 
+    public Node(NodeID id, NetworkServer server) {
+      this.id = id;
+      this.config = null;
+      this.server = server;
+    }
+
     public Node(NodeConfig config,
                 int id)
     {
@@ -726,9 +1115,34 @@ public class EpidemicTest {
     }
   }
 
+  private static class Connection {
+    public final WriteContext writeContext;
+    public final ReadContext readContext;
+
+    public Connection() throws IOException {
+      PipedOutputStream out = new PipedOutputStream();
+      writeContext = new WriteContext(out);
+      readContext = new ReadContext(new PipedInputStream(out, 1024 * 1024));
+    }
+  }
+
   private static class NodeNetwork implements Network {
     public final Map<NodeID, Node> nodes = new HashMap<NodeID, Node>();
     public final List<Message> messages = new ArrayList<Message>();
+    public final Map<List<NodeID>, Connection> connections
+      = new HashMap<List<NodeID>, Connection>();
+    public boolean streams;
+
+    public Connection connection(NodeID source, NodeID destination)
+      throws IOException
+    {
+      List<NodeID> key = Arrays.asList(source, destination);
+      Connection connection = connections.get(key);
+      if (connection == null) {
+        connections.put(key, connection = new Connection());
+      }
+      return connection;
+    }
 
     public void send(NodeID source, NodeID destination, Writable message) {
       messages.add(new Message(source, destination, message));
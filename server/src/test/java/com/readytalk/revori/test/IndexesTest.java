@@ -11,6 +11,7 @@ import static com.readytalk.revori.ExpressionFactory.reference;
 import static com.readytalk.revori.util.Util.cols;
 import com.google.common.collect.Lists;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import org.junit.Test;
 
@@ -382,4 +383,117 @@ public class IndexesTest {
     first.merge(left, right, ConflictResolvers.Restrict, ForeignKeyResolvers.Restrict);
     
   }
+
+  @Test
+  public void testCountAndRank() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<Integer> digit = new Column<Integer>(Integer.class);
+    Table numbers = new Table(cols(number));
+    Index digits = new Index(numbers, cols(digit));
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.add(digits);
+    for (int i = 0; i < 1000; ++i) {
+      builder.table(numbers).row(i).update(digit, i % 10);
+    }
+    Revision head = builder.commit();
+
+    Index primaryKey = numbers.primaryKey;
+
+    assertEquals(1000, head.count(primaryKey));
+    assertEquals(1, head.count(primaryKey, 42));
+    assertEquals(0, head.count(primaryKey, 1042));
+    assertEquals(100, head.countRange(primaryKey, 100, 200));
+    assertEquals(10, head.countRange(primaryKey, null, 10));
+    assertEquals(5, head.countRange(primaryKey, 995, null));
+    assertEquals(500, head.rank(primaryKey, 500));
+    assertEquals(1000, head.rank(primaryKey, 5000));
+    assertEquals(Lists.<Object>newArrayList(250),
+                 Lists.newArrayList(head.select(primaryKey, 250)));
+    assertNull(head.select(primaryKey, 1000));
+
+    // the digits index is padded with the primary key, so it has two
+    // levels
+    assertEquals(1000, head.count(digits));
+    assertEquals(100, head.count(digits, 3));
+    assertEquals(200, head.countRange(digits, 3, 5));
+    assertEquals(10, head.countRange(digits, 20, 120, 3));
+    assertEquals(301, head.rank(digits, 3, 13));
+    assertEquals(Lists.<Object>newArrayList(3, 13),
+                 Lists.newArrayList(head.select(digits, 301)));
+    assertEquals(Lists.<Object>newArrayList(3, 53),
+                 Lists.newArrayList(head.select(digits, 5, 3)));
+    assertNull(head.select(digits, 100, 3));
+
+    builder = head.builder();
+    builder.delete(numbers, 13);
+    builder.table(numbers).row(1000).update(digit, 3);
+    head = builder.commit();
+
+    assertEquals(1000, head.count(primaryKey));
+    assertEquals(100, head.count(digits, 3));
+    assertEquals(301, head.rank(digits, 3, 23));
+    assertEquals(Lists.<Object>newArrayList(3, 1000),
+                 Lists.newArrayList(head.select(digits, 99, 3)));
+  }
+
+  @Test
+  public void testCountAndRankCompositeKey() {
+    Column<Integer> a = new Column<Integer>(Integer.class);
+    Column<Integer> b = new Column<Integer>(Integer.class);
+    Column<Integer> c = new Column<Integer>(Integer.class);
+    Table things = new Table(cols(a, b, c));
+    Index key = things.primaryKey;
+
+    // rows[i][j] is the number of rows with a = i and b = j, where
+    // those rows have c = 0 .. rows[i][j] - 1
+    int[][] rows = new int[10][10];
+    Revision head = Revisions.Empty;
+    for (int round = 0; round < 3; ++round) {
+      RevisionBuilder builder = head.builder();
+      for (int i = 0; i < 10; ++i) {
+        for (int j = 0; j < 10; ++j) {
+          if ((i + j + round) % 3 == 0) {
+            int n = (i * 7 + j * 3 + round) % 5;
+            for (int k = n; k < rows[i][j]; ++k) {
+              builder.delete(things, i, j, k);
+            }
+            for (int k = rows[i][j]; k < n; ++k) {
+              builder.table(things).row(i, j, k);
+            }
+            rows[i][j] = n;
+          }
+        }
+      }
+      head = builder.commit();
+
+      int total = 0;
+      for (int i = 0; i < 10; ++i) {
+        int sum = 0;
+        for (int j = 0; j < 10; ++j) {
+          assertEquals(rows[i][j], head.count(key, i, j));
+          assertEquals(total + sum, head.rank(key, i, j, 0));
+          assertEquals(sum, head.countRange(key, null, j, i));
+
+          for (int k = 0; k < rows[i][j]; ++k) {
+            assertEquals(Lists.<Object>newArrayList(i, j, k),
+                         Lists.newArrayList(head.select(key, total + sum + k)));
+            assertEquals(Lists.<Object>newArrayList(i, j, k),
+                         Lists.newArrayList(head.select(key, sum + k, i)));
+          }
+
+          sum += rows[i][j];
+        }
+        assertEquals(sum, head.count(key, i));
+        assertEquals(total, head.countRange(key, null, i));
+        assertEquals(total, head.rank(key, i, -1, 0));
+        assertNull(head.select(key, sum, i));
+        total += sum;
+      }
+
+      assertEquals(total, head.count(key));
+      assertEquals(total, head.countRange(key, null, null));
+      assertNull(head.select(key, total));
+    }
+  }
 }
@@ -11,6 +11,7 @@ import static com.readytalk.revori.util.Util.cols;
 import com.google.common.collect.Lists;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
@@ -455,4 +456,175 @@ public class JoinTest {
         assertNull(result.nextItem());
         assertEquals(QueryResult.Type.End, result.nextRow());	
     }
+
+    private static void expect(QueryResult result, QueryResult.Type type,
+                               Object ... items)
+    {
+        assertEquals(type, result.nextRow());
+        for (Object item: items) {
+            assertEquals(item, result.nextItem());
+        }
+    }
+
+    @Test
+    public void testHashJoin(){
+        Column<Integer> id = new Column<Integer>(Integer.class);
+        Column<String> name = new Column<String>(String.class);
+        Table people = new Table(cols(id));
+
+        Column<Integer> petId = new Column<Integer>(Integer.class);
+        Column<String> owner = new Column<String>(String.class);
+        Table pets = new Table(cols(petId));
+
+        RevisionBuilder builder = Revisions.Empty.builder();
+        builder.insert(DuplicateKeyResolution.Throw, people, 1, name, "alice");
+        builder.insert(DuplicateKeyResolution.Throw, people, 2, name, "bob");
+        builder.insert(DuplicateKeyResolution.Throw, people, 3, name, "carol");
+        builder.insert(DuplicateKeyResolution.Throw, pets, 10, owner, "alice");
+        builder.insert(DuplicateKeyResolution.Throw, pets, 11, owner, "bob");
+        builder.insert(DuplicateKeyResolution.Throw, pets, 12, owner, "bob");
+        builder.insert(DuplicateKeyResolution.Throw, pets, 13, owner, "dave");
+        Revision first = builder.commit();
+
+        builder = first.builder();
+        builder.delete(people, 1);
+        builder.insert(DuplicateKeyResolution.Throw, people, 4, name, "dave");
+        builder.insert(DuplicateKeyResolution.Overwrite, pets, 11, owner,
+                       "carol");
+        builder.insert(DuplicateKeyResolution.Throw, pets, 14, owner, "alice");
+        Revision second = builder.commit();
+
+        TableReference peopleReference = new TableReference(people);
+        TableReference petsReference = new TableReference(pets);
+
+        // there is no index on the owner column, so a nested loop would
+        // scan the whole pets table for each person
+        QueryTemplate peopleLeftPets = new QueryTemplate
+          (Lists.newArrayList(reference(peopleReference, id),
+                              reference(petsReference, petId)),
+           new Join(Join.Type.LeftOuter, peopleReference, petsReference),
+           new BinaryOperation
+           (BinaryOperation.Type.Equal,
+            reference(peopleReference, name),
+            reference(petsReference, owner)));
+
+        String plan = first.explain(second, peopleLeftPets);
+        assertTrue(plan, plan.startsWith("hash join (LeftOuter)"));
+
+        QueryResult result = Revisions.Empty.diff(second, peopleLeftPets);
+        expect(result, QueryResult.Type.Inserted, 2, 12);
+        expect(result, QueryResult.Type.Inserted, 3, 11);
+        expect(result, QueryResult.Type.Inserted, 4, 13);
+        assertEquals(QueryResult.Type.End, result.nextRow());
+
+        // pet 11 changes owners without changing any of the query
+        // expressions
+        result = first.diff(second, peopleLeftPets);
+        expect(result, QueryResult.Type.Deleted, 1, 10);
+        expect(result, QueryResult.Type.Deleted, 2, 11);
+        expect(result, QueryResult.Type.Inserted, 3, 11);
+        expect(result, QueryResult.Type.Deleted, 3, null);
+        expect(result, QueryResult.Type.Inserted, 4, 13);
+        assertEquals(QueryResult.Type.End, result.nextRow());
+
+        result = second.diff(first, peopleLeftPets);
+        expect(result, QueryResult.Type.Inserted, 1, 10);
+        expect(result, QueryResult.Type.Inserted, 2, 11);
+        expect(result, QueryResult.Type.Deleted, 3, 11);
+        expect(result, QueryResult.Type.Inserted, 3, null);
+        expect(result, QueryResult.Type.Deleted, 4, 13);
+        assertEquals(QueryResult.Type.End, result.nextRow());
+
+        QueryTemplate peopleInnerPets = new QueryTemplate
+          (Lists.newArrayList(reference(peopleReference, id),
+                              reference(petsReference, petId)),
+           new Join(Join.Type.Inner, peopleReference, petsReference),
+           new BinaryOperation
+           (BinaryOperation.Type.Equal,
+            reference(peopleReference, name),
+            reference(petsReference, owner)));
+
+        result = first.diff(second, peopleInnerPets);
+        expect(result, QueryResult.Type.Deleted, 1, 10);
+        expect(result, QueryResult.Type.Deleted, 2, 11);
+        expect(result, QueryResult.Type.Inserted, 3, 11);
+        expect(result, QueryResult.Type.Inserted, 4, 13);
+        assertEquals(QueryResult.Type.End, result.nextRow());
+    }
+
+    @Test
+    public void testMergeJoin(){
+        Column<Integer> id = new Column<Integer>(Integer.class);
+        Column<String> name = new Column<String>(String.class);
+        Table people = new Table(cols(id));
+
+        Column<Integer> balance = new Column<Integer>(Integer.class);
+        Table accounts = new Table(cols(id));
+
+        RevisionBuilder builder = Revisions.Empty.builder();
+        builder.insert(DuplicateKeyResolution.Throw, people, 1, name, "a");
+        builder.insert(DuplicateKeyResolution.Throw, people, 2, name, "b");
+        builder.insert(DuplicateKeyResolution.Throw, people, 3, name, "c");
+        builder.insert(DuplicateKeyResolution.Throw, accounts, 1, balance, 100);
+        builder.insert(DuplicateKeyResolution.Throw, accounts, 3, balance, 300);
+        builder.insert(DuplicateKeyResolution.Throw, accounts, 4, balance, 400);
+        Revision first = builder.commit();
+
+        builder = first.builder();
+        builder.insert(DuplicateKeyResolution.Throw, people, 4, name, "d");
+        builder.insert(DuplicateKeyResolution.Overwrite, accounts, 1, balance,
+                       150);
+        builder.insert(DuplicateKeyResolution.Throw, accounts, 2, balance, 200);
+        builder.delete(accounts, 3);
+        Revision second = builder.commit();
+
+        TableReference peopleReference = new TableReference(people);
+        TableReference accountsReference = new TableReference(accounts);
+
+        // both tables are keyed by id, so they may be scanned in step
+        QueryTemplate peopleLeftAccounts = new QueryTemplate
+          (Lists.newArrayList(reference(peopleReference, name),
+                              reference(accountsReference, balance)),
+           new Join(Join.Type.LeftOuter, peopleReference, accountsReference),
+           new BinaryOperation
+           (BinaryOperation.Type.Equal,
+            reference(peopleReference, id),
+            reference(accountsReference, id)));
+
+        String plan = first.explain(second, peopleLeftAccounts);
+        assertTrue(plan, plan.startsWith("merge join (LeftOuter)"));
+
+        QueryResult result = first.diff(second, peopleLeftAccounts);
+        expect(result, QueryResult.Type.Deleted, "a", 100);
+        expect(result, QueryResult.Type.Inserted, "a", 150);
+        expect(result, QueryResult.Type.Inserted, "b", 200);
+        expect(result, QueryResult.Type.Deleted, "b", null);
+        expect(result, QueryResult.Type.Deleted, "c", 300);
+        expect(result, QueryResult.Type.Inserted, "c", null);
+        expect(result, QueryResult.Type.Inserted, "d", 400);
+        assertEquals(QueryResult.Type.End, result.nextRow());
+
+        QueryTemplate peopleInnerAccounts = new QueryTemplate
+          (Lists.newArrayList(reference(peopleReference, name),
+                              reference(accountsReference, balance)),
+           new Join(Join.Type.Inner, peopleReference, accountsReference),
+           new BinaryOperation
+           (BinaryOperation.Type.Equal,
+            reference(peopleReference, id),
+            reference(accountsReference, id)));
+
+        result = second.diff(first, peopleInnerAccounts);
+        expect(result, QueryResult.Type.Deleted, "a", 150);
+        expect(result, QueryResult.Type.Inserted, "a", 100);
+        expect(result, QueryResult.Type.Deleted, "b", 200);
+        expect(result, QueryResult.Type.Inserted, "c", 300);
+        expect(result, QueryResult.Type.Deleted, "d", 400);
+        assertEquals(QueryResult.Type.End, result.nextRow());
+
+        result = Revisions.Empty.diff(second, peopleInnerAccounts);
+        expect(result, QueryResult.Type.Inserted, "a", 150);
+        expect(result, QueryResult.Type.Inserted, "b", 200);
+        expect(result, QueryResult.Type.Inserted, "d", 400);
+        assertEquals(QueryResult.Type.End, result.nextRow());
+    }
 }
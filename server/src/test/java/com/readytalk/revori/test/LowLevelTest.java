@@ -12,10 +12,17 @@ import static com.readytalk.revori.DuplicateKeyResolution.Throw;
 import static com.readytalk.revori.util.Util.cols;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import org.junit.Test;
 
 import com.readytalk.revori.Column;
+import com.readytalk.revori.Comparators;
 import com.readytalk.revori.DiffResult;
 import com.readytalk.revori.Revision;
 import com.readytalk.revori.RevisionBuilder;
@@ -403,4 +410,143 @@ public class LowLevelTest {
 
     assertEquals(DiffResult.Type.End, result.next());
   }
+
+  private static List<Object> primaryKeys(Revision revision) {
+    List<Object> keys = new ArrayList<Object>();
+    DiffResult result = Revisions.Empty.diff(revision, false);
+    int depth = 0;
+    while (true) {
+      DiffResult.Type type = result.next();
+      switch (type) {
+      case End:
+        return keys;
+
+      case Descend:
+        ++ depth;
+        break;
+
+      case Ascend:
+        -- depth;
+        break;
+
+      case Key:
+        if (depth == 1) {
+          keys.add(result.fork());
+        }
+        break;
+
+      default:
+        break;
+      }
+    }
+  }
+
+  private static <T> void testKeyOrder(Class<T> type,
+                                       List<T> sorted,
+                                       boolean descending)
+  {
+    Column<T> key = descending
+      ? new Column<T>(type, "key", Comparators.Descending)
+      : new Column<T>(type, "key");
+    Column<String> name = new Column<String>(String.class);
+    Table table = new Table(cols(key));
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    for (int i = sorted.size() - 1; i >= 0; i -= 2) {
+      builder.insert(Throw, table, sorted.get(i), name, "x" + i);
+    }
+    for (int i = sorted.size() - 2; i >= 0; i -= 2) {
+      builder.insert(Throw, table, sorted.get(i), name, "x" + i);
+    }
+    Revision revision = builder.commit();
+
+    List<Object> expected = new ArrayList<Object>(sorted);
+    if (descending) {
+      Collections.reverse(expected);
+    }
+    assertEquals(expected, primaryKeys(revision));
+
+    for (int i = 0; i < sorted.size(); ++i) {
+      assertEquals("x" + i, revision.query(name, table.primaryKey,
+                                           sorted.get(i)));
+    }
+
+    builder = revision.builder();
+    for (int i = 0; i < sorted.size(); i += 2) {
+      builder.delete(table, sorted.get(i));
+    }
+    revision = builder.commit();
+
+    for (int i = 0; i < sorted.size(); ++i) {
+      if (i % 2 == 0) {
+        assertNull(revision.query(name, table.primaryKey, sorted.get(i)));
+      } else {
+        assertEquals("x" + i, revision.query(name, table.primaryKey,
+                                             sorted.get(i)));
+      }
+    }
+  }
+
+  @Test
+  public void testNaturalOrderKeys() {
+    List<Integer> ints = Arrays.asList
+      (Integer.MIN_VALUE, -100, -1, 0, 1, 42, Integer.MAX_VALUE);
+    testKeyOrder(Integer.class, ints, false);
+    testKeyOrder(Integer.class, ints, true);
+
+    List<Long> longs = Arrays.asList
+      (Long.MIN_VALUE, (long) Integer.MIN_VALUE - 1, -1L, 0L, 1L,
+       (long) Integer.MAX_VALUE + 1, Long.MAX_VALUE);
+    testKeyOrder(Long.class, longs, false);
+    testKeyOrder(Long.class, longs, true);
+
+    List<String> strings = Arrays.asList
+      ("", "A", "Z", "a", "aa", "ab", "b", "\u00e9");
+    testKeyOrder(String.class, strings, false);
+    testKeyOrder(String.class, strings, true);
+  }
+
+  @Test
+  public void testDiffSkipsSharedSubtrees() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+
+    final int count = 10000;
+    RevisionBuilder builder = Revisions.Empty.builder();
+    for (int i = 0; i < count; ++i) {
+      builder.insert(Throw, numbers, i, name, "v" + i);
+    }
+    Revision base = builder.commit();
+
+    builder = base.builder();
+    builder.insert(Overwrite, numbers, 4242, name, "changed");
+    builder.delete(numbers, 17);
+    Revision fork = builder.commit();
+
+    DiffResult result = base.diff(fork, false);
+    while (result.next() != DiffResult.Type.End) { }
+
+    // the table, plus each of the two rows and its one column
+    assertEquals(5, result.nodesChanged());
+    assertTrue(result.nodesVisited() < 500);
+
+    // merging small, disjoint changes into a large revision should
+    // produce the same result regardless of order
+
+    builder = base.builder();
+    builder.insert(Overwrite, numbers, 99, name, "ninety-nine");
+    builder.delete(numbers, 5000);
+    Revision other = builder.commit();
+
+    Revision merged = base.merge(fork, other, null, null);
+    assertEquals("changed", merged.query(name, numbers.primaryKey, 4242));
+    assertEquals("ninety-nine", merged.query(name, numbers.primaryKey, 99));
+    assertNull(merged.query(name, numbers.primaryKey, 17));
+    assertNull(merged.query(name, numbers.primaryKey, 5000));
+    assertEquals("v1", merged.query(name, numbers.primaryKey, 1));
+
+    result = merged.diff(base.merge(other, fork, null, null), false);
+    assertEquals(DiffResult.Type.End, result.next());
+  }
 }
@@ -11,6 +11,12 @@ import static com.readytalk.revori.util.Util.cols;
 import com.google.common.collect.Lists;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
@@ -21,6 +27,7 @@ import com.readytalk.revori.ConflictResolver;
 import com.readytalk.revori.ConflictResolvers;
 import com.readytalk.revori.Constant;
 import com.readytalk.revori.DeleteTemplate;
+import com.readytalk.revori.DiffResult;
 import com.readytalk.revori.DuplicateKeyResolution;
 import com.readytalk.revori.Expression;
 import com.readytalk.revori.ForeignKeyResolvers;
@@ -36,6 +43,7 @@ import com.readytalk.revori.Revisions;
 import com.readytalk.revori.Table;
 import com.readytalk.revori.TableReference;
 import com.readytalk.revori.UpdateTemplate;
+import com.readytalk.revori.View;
 
 public class MergeTest {
     
@@ -406,4 +414,131 @@ public class MergeTest {
     assertNull(merged.query(name, key, 1));
     assertEquals("bar", merged.query(name, key, 2));
   }
+
+  @Test
+  public void testParallelMerge() throws Exception {
+    Column<Integer> id = new Column<Integer>(Integer.class, "id");
+    Column<String> name = new Column<String>(String.class, "name");
+    Column<Integer> number = new Column<Integer>(Integer.class, "number");
+    Table first = new Table(cols(id), "first");
+    Table second = new Table(cols(id), "second");
+    Table third = new Table(cols(id), "third");
+    Index firstNames = new Index(first, cols(name));
+    Index secondNames = new Index(second, cols(name));
+
+    TableReference firstReference = new TableReference(first);
+    View view = new View
+      (new QueryTemplate
+       (Lists.newArrayList((Expression) new ColumnReference<String>
+                           (firstReference, name)),
+        firstReference, new Constant(true)));
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.add(firstNames);
+    builder.add(secondNames);
+    builder.add(view);
+    for (int i = 0; i < 100; ++i) {
+      builder.table(first).row(i).update(name, "first " + i)
+        .update(number, i);
+      builder.table(second).row(i).update(name, "second " + i);
+      builder.table(third).row(i).update(number, i);
+    }
+    Revision base = builder.commit();
+
+    // the left fork changes every table, while the right changes only
+    // the first and second, including one conflicting update
+    builder = base.builder();
+    builder.table(first).row(1).update(name, "left");
+    builder.table(first).row(2).update(number, 42);
+    builder.table(second).delete(3);
+    builder.table(third).row(100).update(number, 100);
+    Revision left = builder.commit();
+
+    builder = base.builder();
+    builder.table(first).row(1).update(name, "right");
+    builder.table(first).row(2).update(name, "two");
+    builder.table(first).delete(4);
+    builder.table(second).row(5).update(name, "five");
+    builder.table(third).delete(6);
+    Revision right = builder.commit();
+
+    ConflictResolver resolver = new ConflictResolver() {
+        public Object resolveConflict(Table table,
+                                      Column column,
+                                      Object[] primaryKeyValues,
+                                      Object baseValue,
+                                      Object leftValue,
+                                      Object rightValue)
+        {
+          return leftValue + " " + rightValue;
+        }
+      };
+
+    Revision sequential = base.merge
+      (left, right, resolver, ForeignKeyResolvers.Restrict);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      Revision parallel = base.merge
+        (left, right, resolver, ForeignKeyResolvers.Restrict, executor);
+
+      assertEquals("left right", parallel.query(name, first.primaryKey, 1));
+      assertEquals("two", parallel.query(name, first.primaryKey, 2));
+      assertEquals(Integer.valueOf(42), parallel.query(number, first.primaryKey, 2));
+      assertNull(parallel.query(name, first.primaryKey, 4));
+      assertNull(parallel.query(name, second.primaryKey, 3));
+      assertEquals("five", parallel.query(name, second.primaryKey, 5));
+      assertEquals(Integer.valueOf(100), parallel.query(number, third.primaryKey, 100));
+      assertNull(parallel.query(number, third.primaryKey, 6));
+
+      // indexes and views are updated just as they would be by a
+      // sequential merge
+      assertEquals(Integer.valueOf(1), parallel.query
+                   (id, firstNames, "left right", 1));
+      assertEquals(Integer.valueOf(5), parallel.query
+                   (id, secondNames, "five", 5));
+
+      DiffResult result = sequential.diff(parallel, false);
+      DiffResult.Type type;
+      while ((type = result.next()) != DiffResult.Type.End) {
+        assertTrue(type != DiffResult.Type.Value);
+      }
+
+      result = parallel.diff(sequential, false);
+      while ((type = result.next()) != DiffResult.Type.End) {
+        assertTrue(type != DiffResult.Type.Value);
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    // a merge running on the only thread of its executor runs the
+    // tasks it would otherwise wait for itself
+    final Revision myBase = base;
+    final Revision myLeft = left;
+    final Revision myRight = right;
+    final ConflictResolver myResolver = resolver;
+    final ExecutorService single = Executors.newSingleThreadExecutor();
+    try {
+      Revision nested = single.submit(new Callable<Revision>() {
+          public Revision call() {
+            return myBase.merge
+              (myLeft, myRight, myResolver, ForeignKeyResolvers.Restrict,
+               single);
+          }
+        }).get(30, TimeUnit.SECONDS);
+
+      assertEquals("left right", nested.query(name, first.primaryKey, 1));
+      assertEquals(Integer.valueOf(1), nested.query
+                   (id, firstNames, "left right", 1));
+
+      DiffResult result = sequential.diff(nested, false);
+      DiffResult.Type type;
+      while ((type = result.next()) != DiffResult.Type.End) {
+        assertTrue(type != DiffResult.Type.Value);
+      }
+    } finally {
+      single.shutdown();
+    }
+  }
 }
@@ -0,0 +1,227 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.DuplicateKeyResolution.Throw;
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.server.Notifier;
+import com.readytalk.revori.server.simple.SimpleRevisionServer;
+import com.readytalk.revori.subscribe.Subscription;
+
+public class NotifierTest {
+  private static class Counter implements Runnable {
+    public int count;
+
+    public void run() {
+      ++ count;
+    }
+  }
+
+  private static class QueueExecutor implements Executor {
+    public final List<Runnable> tasks = new ArrayList<Runnable>();
+
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    public void flush() {
+      while (! tasks.isEmpty()) {
+        tasks.remove(0).run();
+      }
+    }
+  }
+
+  private static class ManualTicker extends Ticker {
+    public long now;
+
+    public long read() {
+      return now;
+    }
+  }
+
+  @Test
+  public void testSynchronous() {
+    Notifier notifier = new Notifier();
+    Counter counter = new Counter();
+
+    notifier.register(counter);
+    assertEquals(1, counter.count);
+
+    notifier.notifyListeners();
+    notifier.notifyListeners();
+    assertEquals(3, counter.count);
+    assertEquals(3, notifier.notificationCount());
+    assertEquals(3, notifier.runCount());
+  }
+
+  @Test
+  public void testCoalescing() {
+    QueueExecutor executor = new QueueExecutor();
+    Notifier notifier = new Notifier(executor);
+    Counter counter = new Counter();
+
+    notifier.register(counter);
+    for (int i = 0; i < 5; ++i) {
+      notifier.notifyListeners();
+    }
+
+    assertEquals(0, counter.count);
+    assertEquals(1, executor.tasks.size());
+
+    executor.flush();
+
+    assertEquals(1, counter.count);
+    assertEquals(6, notifier.notificationCount());
+    assertEquals(1, notifier.runCount());
+
+    notifier.notifyListeners();
+    executor.flush();
+
+    assertEquals(2, counter.count);
+  }
+
+  @Test
+  public void testNotifiedWhileRunning() {
+    QueueExecutor executor = new QueueExecutor();
+    final Notifier notifier = new Notifier(executor);
+    final Counter counter = new Counter();
+
+    notifier.register(new Runnable() {
+        public void run() {
+          counter.run();
+          if (counter.count == 1) {
+            notifier.notifyListeners();
+            notifier.notifyListeners();
+          }
+        }
+      });
+
+    executor.tasks.remove(0).run();
+
+    // the notifications received while running are coalesced into a
+    // single additional run
+    assertEquals(1, counter.count);
+    assertEquals(1, executor.tasks.size());
+
+    executor.flush();
+
+    assertEquals(2, counter.count);
+  }
+
+  @Test
+  public void testCancel() {
+    QueueExecutor executor = new QueueExecutor();
+    Notifier notifier = new Notifier(executor);
+    Counter counter = new Counter();
+
+    Subscription subscription = notifier.register(counter);
+    subscription.cancel();
+    executor.flush();
+
+    assertEquals(0, counter.count);
+
+    notifier.notifyListeners();
+
+    assertEquals(0, executor.tasks.size());
+  }
+
+  @Test
+  public void testDuplicateRegistration() {
+    Notifier notifier = new Notifier();
+    Counter counter = new Counter();
+
+    Subscription first = notifier.register(counter, false);
+    assertEquals(0, counter.count);
+
+    // an equal listener is only registered once, though it is still
+    // notified on registration if requested
+    notifier.register(counter);
+    assertEquals(1, counter.count);
+
+    notifier.notifyListeners();
+    assertEquals(2, counter.count);
+
+    // cancelling either subscription removes the listener
+    first.cancel();
+    notifier.notifyListeners();
+    assertEquals(2, counter.count);
+  }
+
+  @Test
+  public void testLag() {
+    QueueExecutor executor = new QueueExecutor();
+    ManualTicker ticker = new ManualTicker();
+    Notifier notifier = new Notifier(executor, ticker);
+
+    notifier.register(new Counter());
+    ticker.now += 100;
+    notifier.notifyListeners();
+    ticker.now += 50;
+
+    assertEquals(150, notifier.pendingLagNanos());
+
+    executor.flush();
+
+    assertEquals(0, notifier.pendingLagNanos());
+    assertEquals(150, notifier.maxLagNanos());
+
+    notifier.notifyListeners();
+    ticker.now += 50;
+    executor.flush();
+
+    assertEquals(150, notifier.maxLagNanos());
+    assertEquals(100, notifier.averageLagNanos());
+  }
+
+  @Test
+  public void testServerListenerSeesLatestHead() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Table numbers = new Table(cols(number));
+
+    QueueExecutor executor = new QueueExecutor();
+    final SimpleRevisionServer server = new SimpleRevisionServer(null, null);
+    server.setNotificationExecutor(executor);
+
+    final List<Revision> heads = new ArrayList<Revision>();
+    server.registerListener(new Runnable() {
+        public void run() {
+          heads.add(server.head());
+        }
+      });
+
+    for (int i = 0; i < 10; ++i) {
+      Revision base = server.head();
+      RevisionBuilder builder = base.builder();
+      builder.insert(Throw, numbers, i);
+      server.merge(base, builder.commit());
+    }
+
+    assertEquals(0, heads.size());
+
+    executor.flush();
+
+    assertEquals(1, heads.size());
+    assertSame(server.head(), heads.get(0));
+    assertEquals(11, server.notifier().notificationCount());
+    assertEquals(1, server.notifier().runCount());
+  }
+}
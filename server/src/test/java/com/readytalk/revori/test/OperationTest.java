@@ -11,6 +11,7 @@ import static com.readytalk.revori.ExpressionFactory.and;
 import static com.readytalk.revori.ExpressionFactory.equal;
 import static com.readytalk.revori.ExpressionFactory.greaterThan;
 import static com.readytalk.revori.ExpressionFactory.greaterThanOrEqual;
+import static com.readytalk.revori.ExpressionFactory.isNull;
 import static com.readytalk.revori.ExpressionFactory.lessThan;
 import static com.readytalk.revori.ExpressionFactory.lessThanOrEqual;
 import static com.readytalk.revori.ExpressionFactory.not;
@@ -461,4 +462,108 @@ public class OperationTest {
         assertEquals("thirteen", result.nextItem());
         assertEquals(QueryResult.Type.End, result.nextRow());	
     }    
+
+    @Test
+    public void testNullsAndMixedOperations() {
+        Column<Integer> number = new Column<Integer>(Integer.class);
+        Column<String> name = new Column<String>(String.class);
+        Column<Long> size = new Column<Long>(Long.class);
+        Table numbers = new Table(cols(number));
+
+        RevisionBuilder builder = Revisions.Empty.builder();
+        builder.insert(DuplicateKeyResolution.Throw, numbers, 1, name, "one");
+        builder.insert(DuplicateKeyResolution.Throw, numbers, 1, size, 10L);
+        builder.insert(DuplicateKeyResolution.Throw, numbers, 2, name, "two");
+        builder.insert(DuplicateKeyResolution.Throw, numbers, 3, size, 30L);
+        builder.insert(DuplicateKeyResolution.Throw, numbers, 4, name, "four");
+        builder.insert(DuplicateKeyResolution.Throw, numbers, 4, size, 40L);
+        Revision first = builder.commit();
+
+        TableReference numbersReference = new TableReference(numbers);
+
+        QueryTemplate noName = new QueryTemplate
+          (Lists.newArrayList(reference(numbersReference, number)),
+           numbersReference,
+           isNull(reference(numbersReference, name)));
+
+        QueryResult result = Revisions.Empty.diff(first, noName);
+        assertEquals(QueryResult.Type.Inserted, result.nextRow());
+        assertEquals(3, result.nextItem());
+        assertEquals(QueryResult.Type.End, result.nextRow());
+
+        QueryTemplate named = new QueryTemplate
+          (Lists.newArrayList(reference(numbersReference, number)),
+           numbersReference,
+           not(isNull(reference(numbersReference, name))));
+
+        result = Revisions.Empty.diff(first, named);
+        assertEquals(QueryResult.Type.Inserted, result.nextRow());
+        assertEquals(1, result.nextItem());
+        assertEquals(QueryResult.Type.Inserted, result.nextRow());
+        assertEquals(2, result.nextItem());
+        assertEquals(QueryResult.Type.Inserted, result.nextRow());
+        assertEquals(4, result.nextItem());
+        assertEquals(QueryResult.Type.End, result.nextRow());
+
+        // comparisons involving a missing value are false, so their
+        // negations are true
+        QueryTemplate notLarge = new QueryTemplate
+          (Lists.newArrayList(reference(numbersReference, number)),
+           numbersReference,
+           not(greaterThan(reference(numbersReference, size), parameter())));
+
+        result = Revisions.Empty.diff(first, notLarge, 20L);
+        assertEquals(QueryResult.Type.Inserted, result.nextRow());
+        assertEquals(1, result.nextItem());
+        assertEquals(QueryResult.Type.Inserted, result.nextRow());
+        assertEquals(2, result.nextItem());
+        assertEquals(QueryResult.Type.End, result.nextRow());
+
+        QueryTemplate largeOrUnnamed = new QueryTemplate
+          (Lists.newArrayList(reference(numbersReference, number)),
+           numbersReference,
+           or(greaterThanOrEqual(reference(numbersReference, size),
+                                 parameter()),
+              isNull(reference(numbersReference, name))));
+
+        result = Revisions.Empty.diff(first, largeOrUnnamed, 40L);
+        assertEquals(QueryResult.Type.Inserted, result.nextRow());
+        assertEquals(3, result.nextItem());
+        assertEquals(QueryResult.Type.Inserted, result.nextRow());
+        assertEquals(4, result.nextItem());
+        assertEquals(QueryResult.Type.End, result.nextRow());
+
+        QueryTemplate namedAndSmall = new QueryTemplate
+          (Lists.newArrayList(reference(numbersReference, name)),
+           numbersReference,
+           and(lessThan(reference(numbersReference, name), parameter()),
+               lessThanOrEqual(reference(numbersReference, size),
+                               parameter())));
+
+        result = Revisions.Empty.diff(first, namedAndSmall, "g", 40L);
+        assertEquals(QueryResult.Type.Inserted, result.nextRow());
+        assertEquals("four", result.nextItem());
+        assertEquals(QueryResult.Type.End, result.nextRow());
+
+        result = Revisions.Empty.diff(first, namedAndSmall, "z", 40L);
+        assertEquals(QueryResult.Type.Inserted, result.nextRow());
+        assertEquals("one", result.nextItem());
+        assertEquals(QueryResult.Type.Inserted, result.nextRow());
+        assertEquals("four", result.nextItem());
+        assertEquals(QueryResult.Type.End, result.nextRow());
+
+        QueryTemplate sized = new QueryTemplate
+          (Lists.newArrayList(reference(numbersReference, number)),
+           numbersReference,
+           and(equal(reference(numbersReference, size), parameter()),
+               notEqual(reference(numbersReference, number), parameter())));
+
+        result = Revisions.Empty.diff(first, sized, 30L, 4);
+        assertEquals(QueryResult.Type.Inserted, result.nextRow());
+        assertEquals(3, result.nextItem());
+        assertEquals(QueryResult.Type.End, result.nextRow());
+
+        result = Revisions.Empty.diff(first, sized, 30L, 3);
+        assertEquals(QueryResult.Type.End, result.nextRow());
+    }
 }
@@ -0,0 +1,220 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.ExpressionFactory.reference;
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.readytalk.revori.BinaryOperation;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.ConflictResolver;
+import com.readytalk.revori.DeleteTemplate;
+import com.readytalk.revori.DiffResult;
+import com.readytalk.revori.DuplicateKeyResolution;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.ForeignKeyResolvers;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.InsertTemplate;
+import com.readytalk.revori.Parameter;
+import com.readytalk.revori.QueryResult;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
+import com.readytalk.revori.UpdateTemplate;
+
+public class PackedRowsTest {
+  private static final Column<Integer> number = new Column<Integer>
+    (Integer.class, "number");
+  private static final Column<String> name = new Column<String>
+    (String.class, "name");
+  private static final Column<Integer> value = new Column<Integer>
+    (Integer.class, "value");
+
+  // these are equal as far as revisions are concerned, differing only
+  // in how their rows are stored
+  private static final Table packed = new Table
+    (cols(number), "numbers", 0, true, true);
+  private static final Table unpacked = new Table(cols(number), "numbers");
+
+  private static void assertSame(Revision a, Revision b) {
+    assertEquals(DiffResult.Type.End, a.diff(b, true).next());
+    assertEquals(DiffResult.Type.End, b.diff(a, true).next());
+  }
+
+  private static Revision populate(Table table, int count) {
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.add(new Index(table, cols(name)));
+    for (int i = 0; i < count; ++i) {
+      builder.insert(DuplicateKeyResolution.Throw, table, i, name,
+                     "name" + (i % 7));
+      builder.insert(DuplicateKeyResolution.Throw, table, i, value, i * 2);
+    }
+    return builder.commit();
+  }
+
+  private static Revision modify(Table table, Revision revision) {
+    TableReference reference = new TableReference(table);
+    RevisionBuilder builder = revision.builder();
+
+    builder.apply
+      (new UpdateTemplate
+       (reference,
+        new BinaryOperation
+        (BinaryOperation.Type.LessThan,
+         reference(reference, number),
+         new Parameter()),
+        cols(value, name),
+        Lists.newArrayList((Expression) new Parameter(), new Parameter())),
+       10, -1, "updated");
+
+    builder.apply
+      (new DeleteTemplate
+       (reference,
+        new BinaryOperation
+        (BinaryOperation.Type.Equal,
+         reference(reference, number),
+         new Parameter())),
+       20);
+
+    builder.apply
+      (new InsertTemplate
+       (table, cols(number, name),
+        Lists.newArrayList((Expression) new Parameter(), new Parameter()),
+        DuplicateKeyResolution.Throw),
+       1000, "inserted");
+
+    builder.delete(table, 30, value);
+    builder.delete(table, 31);
+    builder.insert(DuplicateKeyResolution.Overwrite, table, 32, value, 64);
+    builder.table(table).row(33).update(name, "updated").delete(value);
+
+    return builder.commit();
+  }
+
+  @Test
+  public void testPackedMatchesTree() {
+    Revision packedRevision = populate(packed, 100);
+    Revision unpackedRevision = populate(unpacked, 100);
+    assertSame(packedRevision, unpackedRevision);
+
+    Revision modifiedPacked = modify(packed, packedRevision);
+    Revision modifiedUnpacked = modify(unpacked, unpackedRevision);
+    assertSame(modifiedPacked, modifiedUnpacked);
+
+    // older revisions must be unaffected by updates to newer ones
+    assertSame(packedRevision, unpackedRevision);
+    assertEquals("name5", packedRevision.query(name, packed.primaryKey, 5));
+    assertEquals("updated", modifiedPacked.query(name, packed.primaryKey, 5));
+    assertEquals(Integer.valueOf(-1),
+                 modifiedPacked.query(value, packed.primaryKey, 5));
+    assertNull(modifiedPacked.query(name, packed.primaryKey, 20));
+    assertNull(modifiedPacked.query(value, packed.primaryKey, 30));
+    assertEquals("name2", modifiedPacked.query(name, packed.primaryKey, 30));
+    assertNull(modifiedPacked.query(name, packed.primaryKey, 31));
+    assertNull(modifiedPacked.query(value, packed.primaryKey, 33));
+
+    // secondary indexes see the same rows
+    TableReference reference = new TableReference(packed);
+    QueryTemplate byName = new QueryTemplate
+      (Lists.newArrayList((Expression) reference(reference, number)),
+       reference,
+       new BinaryOperation
+       (BinaryOperation.Type.Equal,
+        reference(reference, name),
+        new Parameter()));
+
+    QueryResult result = Revisions.Empty.diff
+      (modifiedPacked, byName, "inserted");
+    assertEquals(QueryResult.Type.Inserted, result.nextRow());
+    assertEquals(1000, result.nextItem());
+    assertEquals(QueryResult.Type.End, result.nextRow());
+  }
+
+  @Test
+  public void testBulkLoad() {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for (int i = 0; i < 100; ++i) {
+      rows.add(new Object[] { i, "name" + (i % 7), i * 2 });
+    }
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.add(new Index(packed, cols(name)));
+    builder.bulkLoad(packed, cols(number, name, value), rows.iterator());
+    Revision loaded = builder.commit();
+
+    assertSame(populate(unpacked, 100), loaded);
+    assertSame(modify(unpacked, populate(unpacked, 100)),
+               modify(packed, loaded));
+  }
+
+  @Test
+  public void testMerge() {
+    ConflictResolver resolver = new ConflictResolver() {
+        public Object resolveConflict(Table table,
+                                      Column column,
+                                      Object[] primaryKeyValues,
+                                      Object baseValue,
+                                      Object leftValue,
+                                      Object rightValue)
+        {
+          return column == value
+            ? (Integer) leftValue + (Integer) rightValue
+            : leftValue + " " + rightValue;
+        }
+      };
+
+    Revision[] results = new Revision[2];
+    Table[] tables = new Table[] { packed, unpacked };
+    for (int i = 0; i < tables.length; ++i) {
+      Table table = tables[i];
+      Revision base = populate(table, 100);
+
+      RevisionBuilder builder = base.builder();
+      builder.table(table).row(1).update(name, "left");
+      builder.table(table).row(2).update(value, 42);
+      builder.table(table).row(3).delete(value);
+      builder.table(table).delete(4);
+      Revision left = builder.commit();
+
+      builder = base.builder();
+      builder.table(table).row(1).update(name, "right").update(value, 7);
+      builder.table(table).row(2).update(name, "two");
+      builder.table(table).row(3).update(name, "three");
+      builder.table(table).row(4).update(name, "four");
+      builder.table(table).row(101).update(name, "new");
+      Revision right = builder.commit();
+
+      results[i] = base.merge
+        (left, right, resolver, ForeignKeyResolvers.Restrict);
+    }
+
+    assertSame(results[0], results[1]);
+
+    Revision merged = results[0];
+    assertEquals("left right", merged.query(name, packed.primaryKey, 1));
+    assertEquals(Integer.valueOf(7), merged.query(value, packed.primaryKey, 1));
+    assertEquals("two", merged.query(name, packed.primaryKey, 2));
+    assertEquals(Integer.valueOf(42),
+                 merged.query(value, packed.primaryKey, 2));
+    assertEquals("three", merged.query(name, packed.primaryKey, 3));
+    assertNull(merged.query(value, packed.primaryKey, 3));
+    assertNull(merged.query(name, packed.primaryKey, 4));
+    assertEquals("new", merged.query(name, packed.primaryKey, 101));
+  }
+}
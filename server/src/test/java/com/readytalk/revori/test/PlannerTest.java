@@ -0,0 +1,286 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.ExpressionFactory.reference;
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.readytalk.revori.BinaryOperation;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.DuplicateKeyResolution;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.Join;
+import com.readytalk.revori.Parameter;
+import com.readytalk.revori.QueryResult;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
+
+public class PlannerTest {
+  private static final Column<Integer> id = new Column<Integer>
+    (Integer.class, "id");
+  private static final Column<String> status = new Column<String>
+    (String.class, "status");
+  private static final Column<String> email = new Column<String>
+    (String.class, "email");
+  private static final Table people = new Table(cols(id), "people");
+  private static final Index statusIndex = new Index(people, cols(status));
+  private static final Index emailIndex = new Index(people, cols(email));
+
+  private static Revision populate(int count) {
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.add(statusIndex);
+    builder.add(emailIndex);
+    for (int i = 0; i < count; ++i) {
+      builder.insert(DuplicateKeyResolution.Throw, people, i, status,
+                     i % 10 == 0 ? "inactive" : "active");
+      builder.insert(DuplicateKeyResolution.Throw, people, i, email,
+                     "user" + i + "@example.com");
+    }
+    return builder.commit();
+  }
+
+  @Test
+  public void testSelectiveIndexIsPreferred() {
+    Revision revision = populate(1000);
+
+    TableReference peopleReference = new TableReference(people);
+    QueryTemplate byStatusAndEmail = new QueryTemplate
+      (Lists.newArrayList((Expression) reference(peopleReference, id)),
+       peopleReference,
+       new BinaryOperation
+       (BinaryOperation.Type.And,
+        new BinaryOperation
+        (BinaryOperation.Type.Equal,
+         reference(peopleReference, status),
+         new Parameter()),
+        new BinaryOperation
+        (BinaryOperation.Type.Equal,
+         reference(peopleReference, email),
+         new Parameter())));
+
+    // both indexes match the query, but only one row has the
+    // specified email address, whereas 900 have the specified status
+    String plan = Revisions.Empty.explain
+      (revision, byStatusAndEmail, "active", "user42@example.com");
+
+    assertTrue(plan, plan.startsWith("scan " + emailIndex));
+    assertTrue(plan, plan.contains("(estimated rows: 1)"));
+
+    QueryResult result = Revisions.Empty.diff
+      (revision, byStatusAndEmail, "active", "user42@example.com");
+    assertEquals(QueryResult.Type.Inserted, result.nextRow());
+    assertEquals(42, result.nextItem());
+    assertEquals(QueryResult.Type.End, result.nextRow());
+
+    // a status which no row has is even more selective
+    plan = Revisions.Empty.explain
+      (revision, byStatusAndEmail, "deleted", "user42@example.com");
+
+    assertTrue(plan, plan.startsWith("scan " + statusIndex));
+    assertTrue(plan, plan.contains("(estimated rows: 0)"));
+
+    result = Revisions.Empty.diff
+      (revision, byStatusAndEmail, "deleted", "user42@example.com");
+    assertEquals(QueryResult.Type.End, result.nextRow());
+  }
+
+  @Test
+  public void testRangeEstimates() {
+    Revision revision = populate(1000);
+
+    TableReference peopleReference = new TableReference(people);
+    QueryTemplate byIdRange = new QueryTemplate
+      (Lists.newArrayList((Expression) reference(peopleReference, id)),
+       peopleReference,
+       new BinaryOperation
+       (BinaryOperation.Type.And,
+        new BinaryOperation
+        (BinaryOperation.Type.GreaterThanOrEqual,
+         reference(peopleReference, id),
+         new Parameter()),
+        new BinaryOperation
+        (BinaryOperation.Type.LessThan,
+         reference(peopleReference, id),
+         new Parameter())));
+
+    String plan = Revisions.Empty.explain(revision, byIdRange, 100, 250);
+    assertTrue(plan, plan.startsWith("scan " + people.primaryKey));
+    assertTrue(plan, plan.contains("(estimated rows: 150)"));
+
+    QueryTemplate byStatus = new QueryTemplate
+      (Lists.newArrayList((Expression) reference(peopleReference, id)),
+       peopleReference,
+       new BinaryOperation
+       (BinaryOperation.Type.Equal,
+        reference(peopleReference, status),
+        new Parameter()));
+
+    plan = Revisions.Empty.explain(revision, byStatus, "inactive");
+    assertTrue(plan, plan.startsWith("scan " + statusIndex));
+    assertTrue(plan, plan.contains("(estimated rows: 100)"));
+
+    // diffs are estimated over both revisions
+    plan = revision.explain(revision, byStatus, "inactive");
+    assertTrue(plan, plan.contains("(estimated rows: 200)"));
+  }
+
+  @Test
+  public void testExplainJoin() {
+    Column<String> name = new Column<String>(String.class, "name");
+    Table names = new Table(cols(email), "names");
+
+    RevisionBuilder builder = populate(100).builder();
+    builder.insert(DuplicateKeyResolution.Throw, names, "user7@example.com",
+                   name, "seven");
+    Revision revision = builder.commit();
+
+    TableReference namesReference = new TableReference(names);
+    TableReference peopleReference = new TableReference(people);
+    QueryTemplate namesJoinPeople = new QueryTemplate
+      (Lists.newArrayList((Expression) reference(namesReference, name),
+                          reference(peopleReference, id)),
+       new Join(Join.Type.Inner, namesReference, peopleReference),
+       new BinaryOperation
+       (BinaryOperation.Type.Equal,
+        reference(namesReference, email),
+        reference(peopleReference, email)));
+
+    // the people table should be scanned using the email index, since
+    // the email column is known for each row of the names table
+    assertEquals("nested loop join (Inner)\n"
+                 + "  scan " + names.primaryKey
+                 + " (estimated rows: 1)\n"
+                 + "  scan " + emailIndex + " " + email
+                 + " in [interval[dummy:Inclusive dummy:Inclusive]]"
+                 + " (estimated rows: 1)\n",
+                 Revisions.Empty.explain(revision, namesJoinPeople));
+
+    QueryResult result = Revisions.Empty.diff(revision, namesJoinPeople);
+    assertEquals(QueryResult.Type.Inserted, result.nextRow());
+    assertEquals("seven", result.nextItem());
+    assertEquals(7, result.nextItem());
+    assertEquals(QueryResult.Type.End, result.nextRow());
+  }
+
+  private static int count(QueryResult result) {
+    int count = 0;
+    while (result.nextRow() != QueryResult.Type.End) {
+      result.nextItem();
+      ++ count;
+    }
+    return count;
+  }
+
+  @Test
+  public void testRepeatedQueriesAndReset() {
+    Revision revision = populate(100);
+
+    TableReference peopleReference = new TableReference(people);
+    QueryTemplate byStatus = new QueryTemplate
+      (Lists.newArrayList((Expression) reference(peopleReference, id)),
+       peopleReference,
+       new BinaryOperation
+       (BinaryOperation.Type.Equal,
+        reference(peopleReference, status),
+        new Parameter()));
+
+    for (int i = 0; i < 3; ++i) {
+      assertEquals(90, count(Revisions.Empty.diff
+                             (revision, byStatus, "active")));
+      assertEquals(10, count(Revisions.Empty.diff
+                             (revision, byStatus, "inactive")));
+    }
+
+    // results for the same template which are in progress at the
+    // same time must not share state
+    QueryResult active = Revisions.Empty.diff(revision, byStatus, "active");
+    QueryResult inactive = Revisions.Empty.diff
+      (revision, byStatus, "inactive");
+    assertEquals(QueryResult.Type.Inserted, active.nextRow());
+    assertEquals(QueryResult.Type.Inserted, inactive.nextRow());
+    assertEquals(0, inactive.nextItem());
+    assertEquals(1, active.nextItem());
+    assertEquals(QueryResult.Type.Inserted, inactive.nextRow());
+    assertEquals(10, inactive.nextItem());
+    assertEquals(89, count(active));
+    assertEquals(8, count(inactive));
+
+    // removing an index must be noticed by subsequent executions
+    RevisionBuilder builder = revision.builder();
+    builder.remove(statusIndex);
+    builder.insert(DuplicateKeyResolution.Throw, people, 100, status,
+                   "inactive");
+    builder.insert(DuplicateKeyResolution.Throw, people, 100, email,
+                   "user100@example.com");
+    Revision withoutIndex = builder.commit();
+
+    QueryResult result = Revisions.Empty.diff
+      (withoutIndex, byStatus, "inactive");
+    assertEquals(11, count(result));
+
+    result.reset(revision, withoutIndex, "inactive");
+    assertEquals(QueryResult.Type.Inserted, result.nextRow());
+    assertEquals(100, result.nextItem());
+    assertEquals(QueryResult.Type.End, result.nextRow());
+
+    result.reset(withoutIndex, withoutIndex, "inactive");
+    assertEquals(QueryResult.Type.End, result.nextRow());
+
+    result.reset(Revisions.Empty, revision, "active");
+    assertEquals(90, count(result));
+
+    // resetting a result which was abandoned part way through
+    result.reset(Revisions.Empty, revision, "inactive");
+    assertEquals(QueryResult.Type.Inserted, result.nextRow());
+    result.reset(Revisions.Empty, withoutIndex, "inactive");
+    assertEquals(11, count(result));
+  }
+
+  @Test
+  public void testPreparedQueriesDoNotRetainTemplates()
+    throws InterruptedException
+  {
+    Revision revision = populate(10);
+
+    TableReference peopleReference = new TableReference(people);
+    QueryTemplate byStatus = new QueryTemplate
+      (Lists.newArrayList((Expression) reference(peopleReference, id)),
+       peopleReference,
+       new BinaryOperation
+       (BinaryOperation.Type.Equal,
+        reference(peopleReference, status),
+        new Parameter()));
+
+    // leaves an idle prepared query pooled for the template
+    assertEquals(1, count(Revisions.Empty.diff
+                          (revision, byStatus, "inactive")));
+
+    WeakReference<QueryTemplate> reference
+      = new WeakReference<QueryTemplate>(byStatus);
+    byStatus = null;
+
+    for (int i = 0; i < 50 && reference.get() != null; ++i) {
+      System.gc();
+      Thread.sleep(20);
+    }
+
+    assertTrue(reference.get() == null);
+  }
+}
@@ -10,16 +10,26 @@ package com.readytalk.revori.test;
 import static com.readytalk.revori.server.SQLServer.readString;
 import static org.junit.Assert.assertEquals;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
 
 import org.junit.Ignore;
 import org.junit.Test;
 
 import com.readytalk.revori.server.SQLServer;
+import com.readytalk.revori.server.SQLServer.ColumnType;
 import com.readytalk.revori.server.SQLServer.Connection;
+import com.readytalk.revori.server.SQLServer.Listener;
+import com.readytalk.revori.server.SQLServer.Request;
 import com.readytalk.revori.server.SQLServer.Response;
+import com.readytalk.revori.server.SQLServer.RowFormat;
 import com.readytalk.revori.server.SQLServer.RowSetFlag;
+import com.readytalk.revori.server.protocol.Protocol;
 
 public class SQLTest {
   @Test
@@ -133,6 +143,23 @@ public class SQLTest {
     assertEquals("twenty-eight", readString(in));
     assertEquals(RowSetFlag.End.ordinal(), in.read());
 
+    in = connection.execute("select name from test order by name limit 1");
+
+    assertEquals(Response.RowSet.ordinal(), in.read());
+    assertEquals(RowSetFlag.InsertedRow.ordinal(), in.read());
+    assertEquals(RowSetFlag.Item.ordinal(), in.read());
+    assertEquals("forty-two", readString(in));
+    assertEquals(RowSetFlag.End.ordinal(), in.read());
+
+    in = connection.execute
+      ("select name from test order by name limit 5 offset 1");
+
+    assertEquals(Response.RowSet.ordinal(), in.read());
+    assertEquals(RowSetFlag.InsertedRow.ordinal(), in.read());
+    assertEquals(RowSetFlag.Item.ordinal(), in.read());
+    assertEquals("twenty-eight", readString(in));
+    assertEquals(RowSetFlag.End.ordinal(), in.read());
+
     in = connection.execute("select name from test order by name desc");
 
     assertEquals(Response.RowSet.ordinal(), in.read());
@@ -145,4 +172,179 @@ public class SQLTest {
     assertEquals(RowSetFlag.End.ordinal(), in.read());
 
   }
+
+  @Test
+  public void testBinaryRows() throws IOException {
+    Connection connection = new SQLServer("test").makeConnection
+      (RowFormat.Binary);
+
+    assertEquals(Response.Success.ordinal(), connection.execute("create database test").read());
+
+    assertEquals(Response.NewDatabase.ordinal(), connection.execute("use database test").read());
+
+    assertEquals(Response.Success.ordinal(), connection.execute
+     ("create table test"
+      + " ( number int32, big int64, name string, primary key ( number ) )").read());
+
+    assertEquals(Response.Success.ordinal(), connection.execute
+     ("insert into test values ( 42, -5000000000, 'forty-two' )").read());
+
+    assertEquals(Response.Success.ordinal(), connection.execute
+     ("insert into test values ( 7, 1, null )").read());
+
+    InputStream in = connection.execute("select number, big, name from test");
+
+    assertEquals(Response.BinaryRowSet.ordinal(), in.read());
+    assertEquals(3, Protocol.readInteger(in));
+    assertEquals(ColumnType.Int32.ordinal(), in.read());
+    assertEquals(ColumnType.Int64.ordinal(), in.read());
+    assertEquals(ColumnType.String.ordinal(), in.read());
+
+    assertEquals(RowSetFlag.InsertedRow.ordinal(), in.read());
+    assertEquals(RowSetFlag.Item.ordinal(), in.read());
+    assertEquals(7, Protocol.readInteger(in));
+    assertEquals(RowSetFlag.Item.ordinal(), in.read());
+    assertEquals(1L, Protocol.readLong(in));
+    assertEquals(RowSetFlag.Null.ordinal(), in.read());
+
+    assertEquals(RowSetFlag.InsertedRow.ordinal(), in.read());
+    assertEquals(RowSetFlag.Item.ordinal(), in.read());
+    assertEquals(42, Protocol.readInteger(in));
+    assertEquals(RowSetFlag.Item.ordinal(), in.read());
+    assertEquals(-5000000000L, Protocol.readLong(in));
+    assertEquals(RowSetFlag.Item.ordinal(), in.read());
+    assertEquals("forty-two", Protocol.readString(in));
+
+    assertEquals(RowSetFlag.End.ordinal(), in.read());
+    assertEquals(-1, in.read());
+  }
+
+  private static byte[] execute(String ... commands) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(buffer);
+    for (String command: commands) {
+      byte[] bytes = command.getBytes("UTF-8");
+      out.write(Request.Execute.ordinal());
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+    return buffer.toByteArray();
+  }
+
+  private static void expectSuccess(InputStream in, String message)
+    throws IOException
+  {
+    assertEquals(Response.Success.ordinal(), in.read());
+    assertEquals(message, readString(in));
+  }
+
+  @Test
+  public void testListenerPipelinedRequests() throws Exception {
+    Listener listener = new Listener("127.0.0.1", 0, 2);
+    Socket socket = new Socket("127.0.0.1", listener.port());
+    try {
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+
+      socket.getOutputStream().write
+        (execute("create database d1", "create database d2"));
+
+      expectSuccess(in, "created database d1");
+      expectSuccess(in, "created database d2");
+
+      // requests are still handled if the client stops sending
+      // immediately afterward
+      socket.getOutputStream().write
+        (execute("create database d3", "create database d4"));
+      socket.shutdownOutput();
+
+      expectSuccess(in, "created database d3");
+      expectSuccess(in, "created database d4");
+      assertEquals(-1, in.read());
+    } finally {
+      socket.close();
+      listener.close();
+    }
+  }
+
+  @Test
+  public void testListenerPartialRequests() throws Exception {
+    Listener listener = new Listener("127.0.0.1", 0, 2);
+    Socket socket = new Socket("127.0.0.1", listener.port());
+    try {
+      socket.setTcpNoDelay(true);
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      OutputStream out = socket.getOutputStream();
+
+      // send two requests in pieces which split the type, the length
+      // and the string, and which straddle the boundary between them
+      byte[] requests = execute("create database d1", "create database d2");
+      int[] splits = { 1, 3, 5, 12, 24, 26, requests.length };
+      int offset = 0;
+      for (int split: splits) {
+        out.write(requests, offset, split - offset);
+        out.flush();
+        offset = split;
+        Thread.sleep(20);
+      }
+
+      expectSuccess(in, "created database d1");
+      expectSuccess(in, "created database d2");
+    } finally {
+      socket.close();
+      listener.close();
+    }
+  }
+
+  @Test
+  public void testListenerRowSet() throws Exception {
+    Listener listener = new Listener("127.0.0.1", 0, 2);
+    Socket socket = new Socket("127.0.0.1", listener.port());
+    try {
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      OutputStream out = socket.getOutputStream();
+
+      out.write(execute
+                ("create database test",
+                 "use database test",
+                 "create table test"
+                 + " ( number int32, name string, primary key ( number ) )"));
+
+      expectSuccess(in, "created database test");
+      assertEquals(Response.NewDatabase.ordinal(), in.read());
+      assertEquals("test", readString(in));
+      assertEquals("switched to database test", readString(in));
+      assertEquals(Response.Success.ordinal(), in.read());
+      readString(in);
+
+      // enough rows that the result is produced in several chunks
+      String name = new String(new char[100]).replace('\0', 'x');
+      int count = 2000;
+      String[] inserts = new String[count];
+      for (int i = 0; i < count; ++i) {
+        inserts[i] = "insert into test values ( " + i + ", '" + name + "' )";
+      }
+      out.write(execute(inserts));
+      for (int i = 0; i < count; ++i) {
+        expectSuccess(in, "inserted 1 row");
+      }
+
+      out.write(execute("select number, name from test",
+                        "create database after"));
+
+      assertEquals(Response.RowSet.ordinal(), in.read());
+      for (int i = 0; i < count; ++i) {
+        assertEquals(RowSetFlag.InsertedRow.ordinal(), in.read());
+        assertEquals(RowSetFlag.Item.ordinal(), in.read());
+        assertEquals(String.valueOf(i), readString(in));
+        assertEquals(RowSetFlag.Item.ordinal(), in.read());
+        assertEquals(name, readString(in));
+      }
+      assertEquals(RowSetFlag.End.ordinal(), in.read());
+
+      expectSuccess(in, "created database after");
+    } finally {
+      socket.close();
+      listener.close();
+    }
+  }
 }
@@ -0,0 +1,143 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.readytalk.revori.Column;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.Table;
+
+public class SchemaOrderTest {
+  private static int sign(int n) {
+    return n < 0 ? -1 : (n > 0 ? 1 : 0);
+  }
+
+  private static <T extends Comparable<T>> void assertOrder(List<T> sorted) {
+    for (int i = 0; i < sorted.size(); ++i) {
+      for (int j = 0; j < sorted.size(); ++j) {
+        assertEquals(sign(Integer.valueOf(i).compareTo(j)),
+                     sign(sorted.get(i).compareTo(sorted.get(j))));
+      }
+    }
+  }
+
+  @Test
+  public void testColumnOrder() {
+    // each ID falls between the previous one and "b", exhausting the
+    // space between registered labels and forcing them to be
+    // reassigned several times
+    List<Column<?>> columns = new ArrayList<Column<?>>();
+    columns.add(new Column<String>(String.class, "schema.a"));
+    columns.add(new Column<String>(String.class, "schema.b"));
+    String id = "schema.a";
+    for (int i = 0; i < 200; ++i) {
+      id = id + "m";
+      Column<?> c = new Column<String>(String.class, id);
+      assertTrue(c.compareTo(columns.get(i == 0 ? 0 : columns.size() - 1))
+                 > 0);
+      assertTrue(c.compareTo(columns.get(1)) < 0);
+      columns.add(c);
+    }
+
+    List<Column<?>> sorted = new ArrayList<Column<?>>();
+    sorted.add(columns.get(0));
+    sorted.addAll(columns.subList(2, columns.size()));
+    sorted.add(columns.get(1));
+
+    assertOrder(sorted);
+
+    // same ID, different types
+    Column<Integer> integer = new Column<Integer>(Integer.class, "schema.a");
+    Column<Long> long_ = new Column<Long>(Long.class, "schema.a");
+    assertTrue(integer.compareTo(long_) < 0);
+    assertTrue(long_.compareTo(columns.get(0)) < 0);
+
+    // equal instances compare equal
+    Column<?> copy = new Column<String>(String.class, id);
+    assertEquals(0, copy.compareTo(columns.get(columns.size() - 1)));
+    assertEquals(copy, columns.get(columns.size() - 1));
+  }
+
+  @Test
+  public void testTableAndIndexOrder() {
+    Column<Integer> number = new Column<Integer>(Integer.class, "schema.n");
+    Column<String> name = new Column<String>(String.class, "schema.s");
+
+    List<Table> tables = new ArrayList<Table>();
+    for (int order = 0; order < 3; ++order) {
+      for (int i = 0; i < 20; ++i) {
+        tables.add(new Table(cols(number), "schema." + (char) ('a' + i), order));
+        tables.add(new Table(cols(name), "schema." + (char) ('a' + i), order));
+      }
+    }
+
+    // register in a random order so labels are allocated between
+    // existing ones rather than always appended
+    List<Table> shuffled = new ArrayList<Table>(tables);
+    Collections.shuffle(shuffled, new Random(42));
+    for (int i = 1; i < shuffled.size(); ++i) {
+      shuffled.get(i).compareTo(shuffled.get(i - 1));
+    }
+
+    List<Table> expected = new ArrayList<Table>(tables);
+    Collections.sort(expected, new Comparator<Table>() {
+        public int compare(Table a, Table b) {
+          int d = a.order - b.order;
+          if (d != 0) {
+            return d;
+          }
+
+          d = a.id.compareTo(b.id);
+          if (d != 0) {
+            return d;
+          }
+
+          return a.primaryKey.columns.get(0).id.compareTo
+            (b.primaryKey.columns.get(0).id);
+        }
+      });
+
+    assertOrder(expected);
+
+    List<Index> indexes = new ArrayList<Index>();
+    for (Table t: expected) {
+      indexes.add(t.primaryKey);
+      indexes.add(new Index(t, cols(name, number)));
+      indexes.add(new Index(t, cols(number, name)));
+    }
+
+    // sorting by the index columns within each table gives
+    // [n], [n, s], [s, n] for tables keyed by n, and [s, n], [s] is
+    // shorter so comes first for tables keyed by s
+    List<Index> sorted = new ArrayList<Index>(indexes);
+    Collections.shuffle(sorted, new Random(7));
+    Collections.sort(sorted);
+
+    for (int i = 0; i < expected.size(); ++i) {
+      Table t = expected.get(i);
+      for (int j = 0; j < 3; ++j) {
+        assertEquals(t, sorted.get(i * 3 + j).table);
+      }
+      assertEquals(t.primaryKey, sorted.get(i * 3).table.primaryKey);
+      assertEquals(0, sorted.get(i * 3).compareColumns(t.primaryKey));
+    }
+
+    assertOrder(sorted);
+  }
+}
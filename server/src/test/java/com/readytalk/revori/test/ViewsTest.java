@@ -18,18 +18,27 @@ import static com.readytalk.revori.util.Util.cols;
 import com.google.common.collect.Lists;
 import static com.readytalk.revori.util.Util.set;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
+import com.readytalk.revori.Accumulator;
 import com.readytalk.revori.Column;
 import com.readytalk.revori.Comparators;
 import com.readytalk.revori.ConflictResolver;
+import com.readytalk.revori.DuplicateKeyResolution;
 import com.readytalk.revori.Expression;
 import com.readytalk.revori.Foldables;
 import com.readytalk.revori.ForeignKeyResolvers;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.PrimitiveFoldable;
 import com.readytalk.revori.QueryResult;
 import com.readytalk.revori.QueryTemplate;
 import com.readytalk.revori.Revision;
@@ -406,4 +415,506 @@ public class ViewsTest {
     assertEquals("planet", result.nextItem());
     assertEquals(QueryResult.Type.End, result.nextRow());
   }
+
+  private static List<List<Object>> rows(QueryResult result, int width) {
+    List<List<Object>> rows = new ArrayList<List<Object>>();
+    QueryResult.Type type;
+    while ((type = result.nextRow()) != QueryResult.Type.End) {
+      List<Object> row = new ArrayList<Object>();
+      row.add(type);
+      for (int i = 0; i < width; ++i) {
+        row.add(result.nextItem());
+      }
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  @Test
+  public void testOrderByIndex() {
+    Column<Integer> number = new Column<Integer>(Integer.class, "number");
+    Column<String> name = new Column<String>(String.class, "name");
+    Table things = new Table(cols(number), "things");
+    Index nameIndex = new Index(things, cols(name));
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+
+    builder.insert(Throw, things, 1, name, "tree");
+    builder.insert(Throw, things, 2, name, "truck");
+    builder.insert(Throw, things, 3, name, "planet");
+    builder.insert(Throw, things, 4, name, "planet");
+    builder.insert(Throw, things, 5, name, "tree");
+    builder.insert(Throw, things, 6, name, "tree");
+
+    Revision head = builder.commit();
+
+    builder = head.builder();
+    builder.add(nameIndex);
+    Revision indexedHead = builder.commit();
+
+    builder = head.builder();
+    builder.insert(Throw, things, 7, name, "bear");
+    builder.insert(DuplicateKeyResolution.Overwrite, things, 1, name, "apple");
+    builder.delete(things, 2);
+    Revision next = builder.commit();
+
+    builder = next.builder();
+    builder.add(nameIndex);
+    Revision indexedNext = builder.commit();
+
+    TableReference thingsReference = new TableReference(things);
+
+    QueryTemplate ascending = new QueryTemplate
+      (Lists.newArrayList
+       (reference(thingsReference, number), reference(thingsReference, name)),
+       thingsReference, constant(true),
+       Collections.<Expression>emptySet(),
+       Lists.newArrayList(new QueryTemplate.OrderExpression
+                          (reference(thingsReference, name),
+                           Comparators.Ascending)));
+
+    QueryTemplate byKey = new QueryTemplate
+      (Lists.newArrayList
+       (reference(thingsReference, number), reference(thingsReference, name)),
+       thingsReference, constant(true),
+       Collections.<Expression>emptySet(),
+       Lists.newArrayList(new QueryTemplate.OrderExpression
+                          (reference(thingsReference, number),
+                           Comparators.Ascending)));
+
+    QueryTemplate descending = new QueryTemplate
+      (Lists.newArrayList
+       (reference(thingsReference, number), reference(thingsReference, name)),
+       thingsReference, constant(true),
+       Collections.<Expression>emptySet(),
+       Lists.newArrayList(new QueryTemplate.OrderExpression
+                          (reference(thingsReference, name),
+                           Comparators.Descending)));
+
+    assertTrue(Revisions.Empty.explain(indexedHead, ascending)
+               .startsWith("ordered by index\n"));
+    assertTrue(Revisions.Empty.explain(head, byKey)
+               .startsWith("ordered by index\n"));
+    assertTrue(Revisions.Empty.explain(head, ascending)
+               .startsWith("temporary view\n"));
+    assertTrue(Revisions.Empty.explain(indexedHead, descending)
+               .startsWith("temporary view\n"));
+
+    // scanning the index must give exactly the rows the temporary
+    // view would, both from scratch and between two revisions
+    for (QueryTemplate template: Lists.newArrayList
+           (ascending, byKey, descending))
+    {
+      assertEquals(rows(Revisions.Empty.diff(head, template), 2),
+                   rows(Revisions.Empty.diff(indexedHead, template), 2));
+      assertEquals(rows(head.diff(next, template), 2),
+                   rows(indexedHead.diff(indexedNext, template), 2));
+      assertEquals(rows(next.diff(head, template), 2),
+                   rows(indexedNext.diff(indexedHead, template), 2));
+    }
+
+    QueryResult result = indexedHead.diff(indexedNext, ascending);
+
+    assertEquals(QueryResult.Type.Inserted, result.nextRow());
+    assertEquals(1, result.nextItem());
+    assertEquals("apple", result.nextItem());
+    assertEquals(QueryResult.Type.Inserted, result.nextRow());
+    assertEquals(7, result.nextItem());
+    assertEquals("bear", result.nextItem());
+    assertEquals(QueryResult.Type.End, result.nextRow());
+  }
+
+  @Test
+  public void testAggregateFromView() {
+    Column<Integer> number = new Column<Integer>(Integer.class, "number");
+    Column<String> name = new Column<String>(String.class, "name");
+    Table things = new Table(cols(number), "things");
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+
+    builder.insert(Throw, things, 1, name, "tree");
+    builder.insert(Throw, things, 2, name, "truck");
+    builder.insert(Throw, things, 3, name, "planet");
+    builder.insert(Throw, things, 4, name, "planet");
+    builder.insert(Throw, things, 5, name, "tree");
+    builder.insert(Throw, things, 6, name, "tree");
+
+    Revision head = builder.commit();
+
+    TableReference thingsReference = new TableReference(things);
+
+    QueryTemplate sums = new QueryTemplate
+      (Lists.newArrayList(reference(thingsReference, name),
+                          aggregate(Integer.class, Foldables.Sum,
+                                    reference(thingsReference, number))),
+       thingsReference, constant(true),
+       set(reference(thingsReference, name)));
+
+    builder = head.builder();
+    builder.add(new View(sums));
+    Revision withView = builder.commit();
+
+    builder = withView.builder();
+    builder.insert(Throw, things, 7, name, "tree");
+    builder.delete(things, 2);
+    Revision next = builder.commit();
+
+    assertTrue(Revisions.Empty.explain(withView, sums)
+               .startsWith("view["));
+    assertTrue(Revisions.Empty.explain(head, sums)
+               .startsWith("temporary view\n"));
+
+    // the view cannot be used for a diff between non-empty revisions
+    assertTrue(withView.explain(next, sums).startsWith("temporary view\n"));
+
+    assertEquals(rows(Revisions.Empty.diff(head, sums), 2),
+                 rows(Revisions.Empty.diff(withView, sums), 2));
+    assertEquals(rows(withView.diff(next, sums), 2),
+                 rows(head.diff(next, sums), 2));
+
+    QueryResult result = Revisions.Empty.diff(next, sums);
+
+    assertEquals(QueryResult.Type.Inserted, result.nextRow());
+    assertEquals("planet", result.nextItem());
+    assertEquals(7, result.nextItem());
+    assertEquals(QueryResult.Type.Inserted, result.nextRow());
+    assertEquals("tree", result.nextItem());
+    assertEquals(19, result.nextItem());
+    assertEquals(QueryResult.Type.End, result.nextRow());
+  }
+
+  @Test
+  public void testLimit() {
+    Column<Integer> number = new Column<Integer>(Integer.class, "number");
+    Column<String> name = new Column<String>(String.class, "name");
+    Table things = new Table(cols(number), "things");
+    Index nameIndex = new Index(things, cols(name));
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    for (int i = 0; i < 50; ++i) {
+      builder.insert(Throw, things, i, name, "name" + ((i * 7) % 10));
+    }
+    Revision head = builder.commit();
+
+    builder = head.builder();
+    builder.add(nameIndex);
+    Revision indexedHead = builder.commit();
+
+    TableReference thingsReference = new TableReference(things);
+
+    List<Expression> expressions = Lists.newArrayList
+      ((Expression) reference(thingsReference, number),
+       reference(thingsReference, name));
+
+    List<QueryTemplate.OrderExpression> byName = Lists.newArrayList
+      (new QueryTemplate.OrderExpression
+       (reference(thingsReference, name), Comparators.Ascending));
+
+    List<QueryTemplate.OrderExpression> byNameDescending = Lists.newArrayList
+      (new QueryTemplate.OrderExpression
+       (reference(thingsReference, name), Comparators.Descending));
+
+    for (List<QueryTemplate.OrderExpression> order: Lists.newArrayList
+           (byName, byNameDescending))
+    {
+      List<List<Object>> all = rows
+        (Revisions.Empty.diff
+         (head, new QueryTemplate
+          (expressions, thingsReference, constant(true),
+           Collections.<Expression>emptySet(), order)), 2);
+
+      assertEquals(50, all.size());
+
+      for (int offset: new int[] { 0, 1, 17, 49, 50, 60 }) {
+        for (int limit: new int[] { 0, 1, 5, 50 }) {
+          QueryTemplate template = new QueryTemplate
+            (expressions, thingsReference, constant(true),
+             Collections.<Expression>emptySet(), order, limit, offset);
+
+          List<List<Object>> expected = all.subList
+            (Math.min(offset, 50), Math.min(offset + limit, 50));
+
+          assertEquals(expected, rows
+                       (Revisions.Empty.diff(head, template), 2));
+          assertEquals(expected, rows
+                       (Revisions.Empty.diff(indexedHead, template), 2));
+        }
+      }
+    }
+
+    QueryTemplate page = new QueryTemplate
+      (expressions, thingsReference, constant(true),
+       Collections.<Expression>emptySet(), byName, 3, 10);
+
+    assertTrue(Revisions.Empty.explain(head, page)
+               .startsWith("sort first 13 rows\n"));
+    assertTrue(Revisions.Empty.explain(indexedHead, page)
+               .startsWith("ordered by index\n"));
+
+    // without an order, the limit applies to whatever order the
+    // rows are visited in
+    QueryTemplate unordered = new QueryTemplate
+      (expressions, thingsReference, constant(true),
+       Collections.<Expression>emptySet(),
+       Collections.<QueryTemplate.OrderExpression>emptyList(), 5, 45);
+
+    assertEquals(5, rows(Revisions.Empty.diff(head, unordered), 2).size());
+
+    // aggregates are still computed using a view, with the limit
+    // applied to its rows
+    QueryTemplate counts = new QueryTemplate
+      (Lists.newArrayList
+       (reference(thingsReference, name),
+        aggregate(Integer.class, Foldables.Count)),
+       thingsReference, constant(true),
+       set(reference(thingsReference, name)),
+       Collections.<QueryTemplate.OrderExpression>emptyList(), 2, 3);
+
+    QueryResult result = Revisions.Empty.diff(head, counts);
+
+    assertEquals(QueryResult.Type.Inserted, result.nextRow());
+    assertEquals("name3", result.nextItem());
+    assertEquals(5, result.nextItem());
+    assertEquals(QueryResult.Type.Inserted, result.nextRow());
+    assertEquals("name4", result.nextItem());
+    assertEquals(5, result.nextItem());
+    assertEquals(QueryResult.Type.End, result.nextRow());
+  }
+
+  @Test
+  public void testLimitWithUpdates() {
+    Column<Integer> number = new Column<Integer>(Integer.class, "number");
+    Column<String> name = new Column<String>(String.class, "name");
+    Table things = new Table(cols(number), "things");
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    for (int i = 0; i < 10; ++i) {
+      builder.insert(Throw, things, i, name, "name" + i);
+    }
+    Revision base = builder.commit();
+
+    builder = base.builder();
+    builder.delete(things, 0);
+    builder.insert(DuplicateKeyResolution.Overwrite, things, 1, name, "one");
+    builder.insert(DuplicateKeyResolution.Overwrite, things, 2, name, "two");
+    Revision fork = builder.commit();
+
+    TableReference thingsReference = new TableReference(things);
+
+    List<Expression> expressions = Lists.newArrayList
+      ((Expression) reference(thingsReference, number),
+       reference(thingsReference, name));
+
+    // the update to row 1 sits exactly at the limit, and must be
+    // visited whole rather than as just a delete
+    QueryResult result = base.diff
+      (fork, new QueryTemplate
+       (expressions, thingsReference, constant(true),
+        Collections.<Expression>emptySet(),
+        Collections.<QueryTemplate.OrderExpression>emptyList(), 2, 0));
+
+    assertEquals(QueryResult.Type.Deleted, result.nextRow());
+    assertEquals(0, result.nextItem());
+    assertEquals("name0", result.nextItem());
+    assertEquals(QueryResult.Type.Deleted, result.nextRow());
+    assertTrue(result.rowUpdated());
+    assertEquals(1, result.nextItem());
+    assertEquals("name1", result.nextItem());
+    assertEquals(QueryResult.Type.Inserted, result.nextRow());
+    assertEquals(1, result.nextItem());
+    assertEquals("one", result.nextItem());
+    assertEquals(QueryResult.Type.End, result.nextRow());
+
+    // an update skipped by the offset is skipped whole
+    result = base.diff
+      (fork, new QueryTemplate
+       (expressions, thingsReference, constant(true),
+        Collections.<Expression>emptySet(),
+        Collections.<QueryTemplate.OrderExpression>emptyList(), 1, 2));
+
+    assertEquals(QueryResult.Type.Deleted, result.nextRow());
+    assertTrue(result.rowUpdated());
+    assertEquals(2, result.nextItem());
+    assertEquals("name2", result.nextItem());
+    assertEquals(QueryResult.Type.Inserted, result.nextRow());
+    assertEquals(2, result.nextItem());
+    assertEquals("two", result.nextItem());
+    assertEquals(QueryResult.Type.End, result.nextRow());
+  }
+
+  @Test
+  public void testMinMaxAverage() {
+    Column<Integer> number = new Column<Integer>(Integer.class, "number");
+    Column<String> name = new Column<String>(String.class, "name");
+    Column<Integer> value = new Column<Integer>(Integer.class, "value");
+    Column<BigDecimal> price = new Column<BigDecimal>
+      (BigDecimal.class, "price");
+    Table things = new Table(cols(number), "things");
+
+    TableReference thingsReference = new TableReference(things);
+
+    QueryTemplate stats = new QueryTemplate
+      (Lists.newArrayList(reference(thingsReference, name),
+                          aggregate(Integer.class, Foldables.<Integer>min(),
+                                    reference(thingsReference, value)),
+                          aggregate(Integer.class, Foldables.<Integer>max(),
+                                    reference(thingsReference, value)),
+                          aggregate(Double.class, Foldables.Average,
+                                    reference(thingsReference, value)),
+                          aggregate(Long.class, Foldables.LongSum,
+                                    reference(thingsReference, value)),
+                          aggregate(BigDecimal.class, Foldables.BigDecimalSum,
+                                    reference(thingsReference, price))),
+       thingsReference, constant(true),
+       set(reference(thingsReference, name)));
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.add(new View(stats));
+    builder.table(things).row(1).update(name, "tree").update(value, 5)
+      .update(price, new BigDecimal("0.10"));
+    builder.table(things).row(2).update(name, "tree").update(value, 3)
+      .update(price, new BigDecimal("0.20"));
+    builder.table(things).row(3).update(name, "tree").update(value, 9)
+      .update(price, new BigDecimal("0.30"));
+    builder.table(things).row(4).update(name, "planet").update(value, 4)
+      .update(price, new BigDecimal("1.00"));
+    builder.table(things).row(5).update(name, "planet").update(value, 4)
+      .update(price, new BigDecimal("2.00"));
+    builder.table(things).row(6).update(name, "truck").update(value, 7);
+    Revision head = builder.commit();
+
+    assertTrue(Revisions.Empty.explain(head, stats).startsWith("view["));
+
+    List<List<Object>> expected = new ArrayList<List<Object>>();
+    expected.add(Lists.<Object>newArrayList
+                 (QueryResult.Type.Inserted, "planet", 4, 4, 4D, 8L,
+                  new BigDecimal("3.00")));
+    expected.add(Lists.<Object>newArrayList
+                 (QueryResult.Type.Inserted, "tree", 3, 9, 17D / 3, 17L,
+                  new BigDecimal("0.60")));
+    expected.add(Lists.<Object>newArrayList
+                 (QueryResult.Type.Inserted, "truck", 7, 7, 7D, 7L,
+                  BigDecimal.ZERO));
+    assertEquals(expected, rows(Revisions.Empty.diff(head, stats), 6));
+
+    // removing the current minimum and maximum of a group must yield
+    // the next ones, and removing every row of a group removes it
+    builder = head.builder();
+    builder.delete(things, 2);
+    builder.delete(things, 3);
+    builder.delete(things, 4);
+    builder.delete(things, 6);
+    head = builder.commit();
+
+    expected.clear();
+    expected.add(Lists.<Object>newArrayList
+                 (QueryResult.Type.Inserted, "planet", 4, 4, 4D, 4L,
+                  new BigDecimal("2.00")));
+    expected.add(Lists.<Object>newArrayList
+                 (QueryResult.Type.Inserted, "tree", 5, 5, 5D, 5L,
+                  new BigDecimal("0.10")));
+    assertEquals(expected, rows(Revisions.Empty.diff(head, stats), 6));
+
+    // the same results must be produced without the view
+    builder = Revisions.Empty.builder();
+    builder.table(things).row(1).update(name, "tree").update(value, 5)
+      .update(price, new BigDecimal("0.10"));
+    builder.table(things).row(5).update(name, "planet").update(value, 4)
+      .update(price, new BigDecimal("2.00"));
+    Revision plain = builder.commit();
+
+    assertTrue(Revisions.Empty.explain(plain, stats)
+               .startsWith("temporary view\n"));
+    assertEquals(expected, rows(Revisions.Empty.diff(plain, stats), 6));
+  }
+
+  @Test
+  public void testPrimitiveFold() {
+    Column<Integer> number = new Column<Integer>(Integer.class, "number");
+    Column<String> name = new Column<String>(String.class, "name");
+    Column<Integer> value = new Column<Integer>(Integer.class, "value");
+    Table things = new Table(cols(number), "things");
+
+    TableReference thingsReference = new TableReference(things);
+
+    // views must fold rows into an Accumulator and box the result
+    // once per group rather than once per row
+    final AtomicInteger boxes = new AtomicInteger();
+    PrimitiveFoldable<Long> sum = new PrimitiveFoldable<Long>() {
+      public Long base() {
+        return 0L;
+      }
+
+      public Long add(Long accumulation, Object ... values) {
+        throw new UnsupportedOperationException();
+      }
+
+      public Long subtract(Long accumulation, Object ... values) {
+        throw new UnsupportedOperationException();
+      }
+
+      public void unbox(Long accumulation, Accumulator accumulator) {
+        accumulator.integralSum = accumulation;
+      }
+
+      public void addTo(Accumulator accumulator, Object ... values) {
+        accumulator.integralSum += (Integer) values[0];
+      }
+
+      public void subtractFrom(Accumulator accumulator, Object ... values) {
+        accumulator.integralSum -= (Integer) values[0];
+      }
+
+      public Long box(Accumulator accumulator) {
+        boxes.incrementAndGet();
+        return accumulator.integralSum;
+      }
+    };
+
+    QueryTemplate sums = new QueryTemplate
+      (Lists.newArrayList(reference(thingsReference, name),
+                          aggregate(Long.class, sum,
+                                    reference(thingsReference, value)),
+                          aggregate(Integer.class, Foldables.Count)),
+       thingsReference, constant(true),
+       set(reference(thingsReference, name)));
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.add(new View(sums));
+    for (int i = 0; i < 1000; ++i) {
+      builder.table(things).row(i).update(name, "group" + (i % 3))
+        .update(value, i);
+    }
+    Revision head = builder.commit();
+
+    assertEquals(3, boxes.get());
+
+    List<List<Object>> expected = new ArrayList<List<Object>>();
+    expected.add(Lists.<Object>newArrayList
+                 (QueryResult.Type.Inserted, "group0", 166833L, 334));
+    expected.add(Lists.<Object>newArrayList
+                 (QueryResult.Type.Inserted, "group1", 166167L, 333));
+    expected.add(Lists.<Object>newArrayList
+                 (QueryResult.Type.Inserted, "group2", 166500L, 333));
+    assertEquals(expected, rows(Revisions.Empty.diff(head, sums), 3));
+
+    boxes.set(0);
+
+    builder = head.builder();
+    for (int i = 0; i < 100; ++i) {
+      builder.delete(things, i);
+    }
+    head = builder.commit();
+
+    assertEquals(3, boxes.get());
+
+    expected.clear();
+    expected.add(Lists.<Object>newArrayList
+                 (QueryResult.Type.Inserted, "group0", 165150L, 300));
+    expected.add(Lists.<Object>newArrayList
+                 (QueryResult.Type.Inserted, "group1", 164550L, 300));
+    expected.add(Lists.<Object>newArrayList
+                 (QueryResult.Type.Inserted, "group2", 164850L, 300));
+    assertEquals(expected, rows(Revisions.Empty.diff(head, sums), 3));
+  }
 }